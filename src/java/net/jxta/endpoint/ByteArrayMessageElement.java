@@ -62,6 +62,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;         // used in hashCode
 import java.util.zip.Checksum;
 
@@ -361,6 +362,24 @@ public class ByteArrayMessageElement extends MessageElement {
         sendTo.write( sending, sendingOffset, len );
     }
     
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>The buffer returned shares the byte array of this element, no copy
+     *  is made even if this element uses a portion of a larger array.
+     **/
+    public ByteBuffer getByteBuffer() {
+        byte [] sending;
+        int sendingOffset;
+        
+        synchronized( this ) {
+            sending = b;
+            sendingOffset = offset;
+        }
+        
+        return ByteBuffer.wrap( sending, sendingOffset, len ).slice();
+    }
+    
     /**
      * Returns the contents of this element as a byte array. If this elements
      * was originally constructed from a intact byte array, the array returned
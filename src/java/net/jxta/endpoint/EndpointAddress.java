@@ -58,7 +58,10 @@
 package net.jxta.endpoint;
 
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.net.URI;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import java.io.UnsupportedEncodingException;
 
@@ -176,6 +179,31 @@ public class EndpointAddress {
      **/
     private transient SoftReference cachedToString = null;
     
+    /**
+     *  The number of independently locked portions of the intern table.
+     **/
+    private static final int INTERN_STRIPES = 32;
+    
+    /**
+     *  The interned addresses, divided amongst independently locked stripes
+     *  according to the hash code of their string form so that threads
+     *  looking up different addresses rarely contend.
+     *
+     *  <ul>
+     *      <li>keys are the {@link java.lang.String} form of the address.
+     *      The key is strongly referenced by the address itself.</li>
+     *      <li>values are {@link java.lang.ref.WeakReference} to the
+     *      unmodifiable {@link EndpointAddress}.</li>
+     *  </ul>
+     **/
+    private static final Map[] interned = new Map[INTERN_STRIPES];
+    
+    static {
+        for( int eachStripe = 0; eachStripe < INTERN_STRIPES; eachStripe++ ) {
+            interned[eachStripe] = new WeakHashMap();
+        }
+    }
+    
     /**
      *  Returns an unmodifiable copy of the specified EndpointAddress. This
      *  method allows modules to provide users with "read-only" access to
@@ -194,6 +222,34 @@ public class EndpointAddress {
             super.setProtocolAddress( address.getProtocolAddress() );
             super.setServiceName( address.getServiceName() );
             super.setServiceParameter( address.getServiceParameter() );
+            
+            // we can never change so these can be computed now.
+            hashCode = super.hashCode();
+            asString = super.toString();
+        }
+        
+        /**
+         *  The hash code of this address.
+         **/
+        private final int hashCode;
+        
+        /**
+         *  The string form of this address.
+         **/
+        private final String asString;
+        
+        /**
+         *  {@inheritDoc}
+         **/
+        public int hashCode() {
+            return hashCode;
+        }
+        
+        /**
+         *  {@inheritDoc}
+         **/
+        public String toString() {
+            return asString;
         }
         
         /**
@@ -243,6 +299,123 @@ public class EndpointAddress {
         return new EndpointAddress.UnmodifiableEndpointAddress( address );
     }
     
+    /**
+     *  Returns the shared unmodifiable instance of the address. Interned
+     *  addresses have their hash code and string form computed only once and
+     *  may be used by many threads without synchronization. The intern table
+     *  holds addresses weakly.
+     *
+     *  @param address  the address to be interned.
+     *  @return the shared unmodifiable address equal to <code>address</code>.
+     **/
+    public static EndpointAddress intern( EndpointAddress address ) {
+        String asString = address.toString();
+        Map stripe = getInternStripe( asString );
+        
+        synchronized( stripe ) {
+            WeakReference ref = (WeakReference) stripe.get( asString );
+            EndpointAddress result = (null != ref) ? (EndpointAddress) ref.get() : null;
+            
+            if( null == result ) {
+                result = (address instanceof UnmodifiableEndpointAddress) ? address : new UnmodifiableEndpointAddress( address );
+                
+                // key with the address's own string so that the entry lives as long as the address.
+                stripe.put( result.toString(), new WeakReference( result ) );
+            }
+            
+            return result;
+        }
+    }
+    
+    /**
+     *  Returns the stripe of the intern table responsible for an address.
+     *
+     *  @param asString the string form of the address.
+     *  @return the stripe.
+     **/
+    private static Map getInternStripe( String asString ) {
+        int hash = asString.hashCode();
+        
+        hash ^= (hash >>> 16);
+        hash ^= (hash >>> 7);
+        
+        return interned[ (hash & 0x7FFFFFFF) % INTERN_STRIPES ];
+    }
+    
+    /**
+     *  Returns an unmodifiable address for the provided string, re-using an
+     *  existing instance if possible.
+     *
+     *  @param address the string representation of the address.
+     *  @return the shared unmodifiable address.
+     **/
+    public static EndpointAddress getEndpointAddress( String address ) {
+        if( address == null ) {
+            throw new IllegalArgumentException( "address must not be null" );
+        }
+        
+        Map stripe = getInternStripe( address );
+        
+        synchronized( stripe ) {
+            WeakReference ref = (WeakReference) stripe.get( address );
+            EndpointAddress result = (null != ref) ? (EndpointAddress) ref.get() : null;
+            
+            if( null != result ) {
+                return result;
+            }
+        }
+        
+        return intern( new EndpointAddress( address ) );
+    }
+    
+    /**
+     *  Returns an unmodifiable address built from a base address and
+     *  replacement service and params, re-using an existing instance if
+     *  possible.
+     *
+     * @param base The EndpointAddress on which the new EndpointAddress will be based
+     * @param service provides an alternate service for the new EndpointAddress.
+     * @param serviceParam provides and alternate service parameter for the new EndpointAddress
+     * @return the shared unmodifiable address.
+     **/
+    public static EndpointAddress getEndpointAddress( EndpointAddress base, String service, String serviceParam ) {
+        if( (base instanceof UnmodifiableEndpointAddress) &&
+        ((null == service) ? (null == base.getServiceName()) : service.equals( base.getServiceName() )) &&
+        ((null == serviceParam) ? (null == base.getServiceParameter()) : serviceParam.equals( base.getServiceParameter() )) ) {
+            return intern( base );
+        }
+        
+        return intern( new EndpointAddress( base, service, serviceParam ) );
+    }
+    
+    /**
+     *  Returns an unmodifiable address built from the four standard
+     *  constituent parts, re-using an existing instance if possible.
+     *
+     * @param protocol Describes the method of addressing used by the remainder of the
+     *  endpoint address.
+     * @param address Describes the destination entity of this address.
+     * @param service String containing the name of the destination service
+     * @param serviceParam String containing the service parameter
+     * @return the shared unmodifiable address.
+     **/
+    public static EndpointAddress getEndpointAddress( String protocol, String address, String service, String serviceParam ) {
+        return intern( new EndpointAddress( protocol, address, service, serviceParam ) );
+    }
+    
+    /**
+     *  Returns an unmodifiable address built from a standard jxta id and a
+     *  service and param, re-using an existing instance if possible.
+     *
+     * @param id the ID which will be the destination of the endpoint address
+     * @param service String containing the name of the destination service
+     * @param serviceParam String containing the service parameter
+     * @return the shared unmodifiable address.
+     **/
+    public static EndpointAddress getEndpointAddress( ID id, String service, String serviceParam ) {
+        return intern( new EndpointAddress( id, service, serviceParam ) );
+    }
+    
     /**
      * Builds an empty (invalid) Endpoint Address.
      *
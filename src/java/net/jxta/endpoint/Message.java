@@ -179,6 +179,33 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      **/
     protected transient List elements = new ArrayList();
     
+    /**
+     *  Index of the elements by namespace and name.
+     *
+     *  <ul>
+     *      <li>keys are {@link java.lang.String} namespaces</li>
+     *      <li>values are {@link java.util.Map}
+     *          <ul>
+     *              <li>keys are {@link java.lang.String} element names</li>
+     *              <li>values are {@link java.util.List} of
+     *              {@link net.jxta.endpoint.Message.element} in the order in
+     *              which they occur in {@link #elements}</li>
+     *          </ul>
+     *      </li>
+     *  </ul>
+     *
+     *  <p/>If <code>null</code> then the index will be rebuilt from
+     *  {@link #elements} when it is next needed.
+     **/
+    protected transient volatile Map index = new HashMap();
+    
+    /**
+     *  If <tt>true</tt> then {@link #elements}, {@link #namespaces} and
+     *  {@link #index} may be shared with clones of this message and must be
+     *  copied before they are modified.
+     **/
+    private transient volatile boolean sharedContents = false;
+    
     /**
      *  Message properties HashMap
      *
@@ -394,6 +421,8 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
                 throw new IllegalStateException( "no current element, call next() or previous()" );
             }
             
+            ensureContentsUnshared();
+            
             ListIterator elsPosition = Message.this.elements.listIterator();
             ListIterator nsPosition = ((List)( namespaces.get(current.namespace))).listIterator();
             
@@ -438,6 +467,7 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
             elsPosition.remove( );
             nsPosition.remove( );
             list.remove();
+            unindexElement( current );
             origModCount = Message.this.incMessageModCount();
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Removed " + current.namespace + "::" + current.element.getElementName() + "/" + current.element.getClass().getName() + "@" + current.element.hashCode() + " from " +  Message.this );
@@ -469,6 +499,8 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
                 throw new IllegalStateException( "no current element, call next() or previous()" );
             }
             
+            ensureContentsUnshared();
+            
             ListIterator elsPosition = Message.this.elements.listIterator();
             ListIterator nsPosition = ((List)( namespaces.get(current.namespace))).listIterator();
             
@@ -514,6 +546,7 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
             elsPosition.set( newCurrent );
             nsPosition.set( obj );
             list.set( newCurrent );
+            reindexElement( current, newCurrent );
             origModCount = Message.this.incMessageModCount();
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Replaced " + current.namespace + "::" + current.element.getElementName() + "/" + current.element.getClass().getName() + "@" + current.element.hashCode() +
@@ -550,6 +583,174 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
         }
     }
     
+    /**
+     *  Add an element record to the index. The record must be the last
+     *  element of its namespace and name in {@link #elements}.
+     *
+     *  @param add the element record to index.
+     **/
+    private void indexElement( element add ) {
+        if( null == index ) {
+            return;
+        }
+        
+        indexElement( index, add );
+    }
+    
+    /**
+     *  Add an element record to the specified index.
+     *
+     *  @param toIndex the index to update.
+     *  @param add the element record to index.
+     **/
+    private static void indexElement( Map toIndex, element add ) {
+        Map names = (Map) toIndex.get( add.namespace );
+        
+        if( null == names ) {
+            names = new HashMap();
+            toIndex.put( add.namespace, names );
+        }
+        
+        String name = add.element.getElementName();
+        List named = (List) names.get( name );
+        
+        if( null == named ) {
+            named = new ArrayList( 1 );
+            names.put( name, named );
+        }
+        
+        named.add( add );
+    }
+    
+    /**
+     *  Remove an element record from the index.
+     *
+     *  @param remove the element record to remove.
+     **/
+    private void unindexElement( element remove ) {
+        if( null == index ) {
+            return;
+        }
+        
+        Map names = (Map) index.get( remove.namespace );
+        
+        if( null == names ) {
+            return;
+        }
+        
+        String name = remove.element.getElementName();
+        List named = (List) names.get( name );
+        
+        if( null == named ) {
+            return;
+        }
+        
+        Iterator eachNamed = named.iterator();
+        
+        while( eachNamed.hasNext() ) {
+            if( remove == eachNamed.next() ) {
+                eachNamed.remove();
+                break;
+            }
+        }
+        
+        if( named.isEmpty() ) {
+            names.remove( name );
+            
+            if( names.isEmpty() ) {
+                index.remove( remove.namespace );
+            }
+        }
+    }
+    
+    /**
+     *  Update the index for an element record which has replaced another at
+     *  the same position in {@link #elements}.
+     *
+     *  @param replaced the element record which was replaced.
+     *  @param replacement the element record which replaced it.
+     **/
+    private void reindexElement( element replaced, element replacement ) {
+        if( null == index ) {
+            return;
+        }
+        
+        String name = replacement.element.getElementName();
+        
+        if( replaced.namespace.equals( replacement.namespace ) && name.equals( replaced.element.getElementName() ) ) {
+            List named = (List) ((Map) index.get( replaced.namespace )).get( name );
+            
+            named.set( named.indexOf( replaced ), replacement );
+            return;
+        }
+        
+        unindexElement( replaced );
+        
+        // rebuild the list for the new name so that it stays in order.
+        List named = new ArrayList( 1 );
+        Iterator eachElement = elements.iterator();
+        
+        while( eachElement.hasNext() ) {
+            element anElement = (element) eachElement.next();
+            
+            if( replacement.namespace.equals( anElement.namespace ) && name.equals( anElement.element.getElementName() ) ) {
+                named.add( anElement );
+            }
+        }
+        
+        Map names = (Map) index.get( replacement.namespace );
+        
+        if( null == names ) {
+            names = new HashMap();
+            index.put( replacement.namespace, names );
+        }
+        
+        names.put( name, named );
+    }
+    
+    /**
+     *  Rebuild the index from {@link #elements}.
+     *
+     *  @return the new index.
+     **/
+    private Map rebuildIndex() {
+        Map newIndex = new HashMap();
+        
+        Iterator eachElement = elements.iterator();
+        
+        while( eachElement.hasNext() ) {
+            indexElement( newIndex, (element) eachElement.next() );
+        }
+        
+        index = newIndex;
+        
+        return newIndex;
+    }
+    
+    /**
+     *  Returns the element records with the specified namespace and name.
+     *
+     *  @param namespace the namespace of the elements.
+     *  @param name the name of the elements.
+     *  @return the matching element records in order or null if there are
+     *  none.
+     **/
+    private List getIndexed( String namespace, String name ) {
+        Map current = index;
+        
+        if( null == current ) {
+            current = rebuildIndex();
+        }
+        
+        Map names = (Map) current.get( namespace );
+        
+        if( null == names ) {
+            return null;
+        }
+        
+        return (List) names.get( name );
+    }
+    
     /**
      *  Returns the next message number in sequence.
      *
@@ -601,13 +802,43 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      * be freely modified without causing change to the originally cloned
      * message.
      *
+     * <p/>The element tables are shared between the original and the clone
+     * until one of them is modified, so cloning a message which will only be
+     * slightly changed, or not changed at all, is cheap.
+     *
      * @return Message a Message that is a copy of the original message
      **/
     public Object clone() {
         Message clone = new Message( getDefaultNamespace() );
         
         clone.lineage.addAll( lineage );
-        clone.elements.addAll( elements );
+        
+        // The element tables are shared until either message is modified.
+        sharedContents = true;
+        clone.elements = elements;
+        clone.namespaces = namespaces;
+        clone.index = index;
+        clone.sharedContents = true;
+        
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Created clone " + clone + " of " + this );
+        }
+        
+        return clone;
+    }
+    
+    /**
+     *  Make private copies of the element tables if they are shared with
+     *  another message. Must be called before the element tables are
+     *  modified.
+     **/
+    private void ensureContentsUnshared() {
+        if( !sharedContents ) {
+            return;
+        }
+        
+        List newElements = new ArrayList( elements );
+        Map newNamespaces = new HashMap( namespaces.size() * 2 );
         
         Iterator eachNamespace = namespaces.keySet().iterator();
         
@@ -618,14 +849,15 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
             
             List newNamespaceElements = new ArrayList( namespaceElements.size() );
             newNamespaceElements.addAll( namespaceElements );
-            clone.namespaces.put( aNamespace, newNamespaceElements );
+            newNamespaces.put( aNamespace, newNamespaceElements );
         }
         
-        if (LOG.isEnabledFor(Level.DEBUG)) {
-            LOG.debug("Created clone " + clone + " of " + this );
-        }
+        elements = newElements;
+        namespaces = newNamespaces;
         
-        return clone;
+        // Many clones are never searched. Rebuild the index only if needed.
+        index = null;
+        sharedContents = false;
     }
     
     /**
@@ -757,6 +989,7 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
         
         namespaces = readMessage.namespaces;
         elements = readMessage.elements;
+        index = readMessage.index;
 
         if( elements.contains( defaultNamespace ) ) {
             throw new IOException( "Corrupted Object--does not contain required namespace."  );
@@ -829,7 +1062,11 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
             throw new IllegalArgumentException( "Message Element must be non-null" );
         }
         
-        elements.add( new element( namespace, add ) );
+        ensureContentsUnshared();
+        
+        element newElement = new element( namespace, add );
+        elements.add( newElement );
+        indexElement( newElement );
         
         List namespaceElements = (List) namespaces.get( namespace );
         if( null == namespaceElements ) {
@@ -955,24 +1192,14 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
             namespace = getDefaultNamespace();
         }
         
-        List namespaceElements = (List) namespaces.get( namespace );
+        List named = getIndexed( namespace, name );
         
-        // no namespace means no element.
-        if( null == namespaceElements ) {
+        // no matching entry means no element.
+        if( null == named ) {
             return null;
         }
         
-        Iterator eachElement = namespaceElements.listIterator();
-        
-        while( eachElement.hasNext() ) {
-            MessageElement anElement = (MessageElement) eachElement.next();
-            
-            if( name.equals( anElement.getElementName() ) ) {
-                return anElement;
-            }
-        }
-        
-        return null;
+        return ((element) named.get( 0 )).element;
     }
     
     /**
@@ -1077,21 +1304,12 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      *
      **/
     public ElementIterator getMessageElements( String namespace, String name ) {
-        List theMsgElements = new ArrayList( elements.size() );
-        
         if( null == namespace ) {
             namespace = getDefaultNamespace();
         }
         
-        Iterator eachElement = elements.iterator();
-        
-        while ( eachElement.hasNext() ) {
-            element anElement = (element) eachElement.next();
-            
-            if( namespace.equals(anElement.namespace) && name.equals(anElement.element.getElementName()) ) {
-                theMsgElements.add( anElement );
-            }
-        }
+        List named = getIndexed( namespace, name );
+        List theMsgElements = (null == named) ? new ArrayList( 0 ) : new ArrayList( named );
         
         return new ElementIterator( theMsgElements.listIterator() );
     }
@@ -1211,8 +1429,16 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      *  clears any properties set for this message.
      **/
     public void clear() {
-        elements.clear();
-        namespaces.clear();
+        if( sharedContents ) {
+            elements = new ArrayList();
+            namespaces = new HashMap();
+            index = new HashMap();
+            sharedContents = false;
+        } else {
+            elements.clear();
+            namespaces.clear();
+            index = new HashMap();
+        }
         properties.clear();
         // a cleared message has no ancestors
         lineage.retainAll( Collections.singletonList( lineage.get(0) ) );
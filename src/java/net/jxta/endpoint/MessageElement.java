@@ -65,6 +65,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -447,6 +448,22 @@ public abstract class MessageElement implements Document {
         copyInputStreamToOutputStream( getStream(), sendTo );
     }
     
+    /**
+     *  Returns a ByteBuffer which contains the element data. The buffer
+     *  returned <b>may share its contents with the element</b>, do not
+     *  modify it. The position of the buffer is at the start of the element
+     *  data and its limit at the end.
+     *
+     *  <p/>This implementation wraps the result of {@link #getBytes(boolean)}.
+     *  Sub-classes which hold their data in a byte array should override this
+     *  implementation to avoid copying.
+     *
+     *  @return ByteBuffer containing the element data.
+     **/
+    public ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap( getBytes( false ) );
+    }
+    
     /**
      *  Returns the element containing the digest/digital signature for
      *  this element
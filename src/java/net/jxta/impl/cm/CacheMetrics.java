@@ -0,0 +1,134 @@
+/*
+ *  $Id$
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ *
+ *  $Id$
+ */
+
+package net.jxta.impl.cm;
+
+/**
+ * The hits, misses and invalidations of the query result cache of a
+ * {@link SrdiIndex}.
+ **/
+public final class CacheMetrics {
+
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    /**
+     * Records a query answered from the cache.
+     **/
+    synchronized void hit() {
+        hits++;
+    }
+
+    /**
+     * Records a query answered from the index.
+     **/
+    synchronized void miss() {
+        misses++;
+    }
+
+    /**
+     * Records cached results dropped because the index changed.
+     *
+     * @param count the number of results dropped
+     **/
+    synchronized void invalidated(int count) {
+        invalidations += count;
+    }
+
+    /**
+     * @return the number of queries answered from the cache
+     **/
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of queries answered from the index
+     **/
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of cached results dropped because the index changed
+     **/
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return the fraction of the queries answered from the cache, 0 when
+     * there was no query
+     **/
+    public synchronized double getHitRate() {
+        long queries = hits + misses;
+
+        return (queries == 0) ? 0.0 : ((double) hits / queries);
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public synchronized String toString() {
+        return "hits=" + hits +
+               " misses=" + misses +
+               " hit rate=" + ((int) (getHitRate() * 100)) + "%" +
+               " invalidations=" + invalidations;
+    }
+}
@@ -57,22 +57,33 @@
 package net.jxta.impl.cm;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Date;
 import java.util.Vector;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -91,17 +102,15 @@ import net.jxta.protocol.PeerGroupAdvertisement;
 
 import net.jxta.impl.config.Config;
 import net.jxta.impl.util.JxtaHash;
+import net.jxta.impl.util.ReadWriteLock;
 import net.jxta.impl.util.TimeUtils;
 
 import net.jxta.impl.xindice.core.data.Key;
 import net.jxta.impl.xindice.core.data.Record;
 import net.jxta.impl.xindice.core.data.Value;
 import net.jxta.impl.xindice.core.DBException;
-import net.jxta.impl.xindice.core.filer.BTreeCallback;
-import net.jxta.impl.xindice.core.filer.BTreeFiler;
-import net.jxta.impl.xindice.core.filer.BTreeException;
+import net.jxta.impl.xindice.core.filer.Paged;
 import net.jxta.impl.xindice.core.indexer.IndexQuery;
-import net.jxta.impl.xindice.core.indexer.NameIndexer;
 
 
 /**
@@ -131,14 +140,39 @@ public final class Cm implements Runnable {
     // garbage collect once an hour
     public static final long DEFAULT_GC_MAX_INTERVAL = 1 * TimeUtils.ANHOUR;
 
+    /**
+     * Default maximum time an update waits before it is committed to the
+     * write-ahead log.
+     */
+    public static final long DEFAULT_COMMIT_INTERVAL = 1 * TimeUtils.ASECOND;
+
+    /**
+     * Default number of updated pages which causes an immediate commit to the
+     * write-ahead log.
+     */
+    public static final int DEFAULT_COMMIT_SIZE = 256;
+
+    /**
+     * Starts the stream written by exportRecords.
+     */
+    private static final int EXPORT_MAGIC = 0x4A58434D;
+
     /*
-     *  expiration db
+     *  the records and their indexes
+     */
+    private CmStore store = null;
+
+    private final GcMetrics gcMetrics = new GcMetrics();
+
+    /**
+     * Guards the databases. Lookups share the read lock so that queries are
+     * answered in parallel; changes to the databases, including purging
+     * expired records, take the write lock. All of the directories share the
+     * same databases so a single lock covers all of them.
      */
-    private BTreeFiler cacheDB = null;
-    private Indexer indexer = null;
-    private final static String databaseFileName = "advertisements";
+    private final ReadWriteLock lock = new ReadWriteLock();
 
-    private boolean stop = false;
+    private volatile boolean stop = false;
 
     private boolean trackDeltas = false;
     private final Map deltaMap = new HashMap(3);
@@ -192,47 +226,21 @@ public final class Cm implements Runnable {
         try {
             rootDir = new File(ROOTDIRBASE, areaName);
             rootDir = new File(rootDir.getAbsolutePath());
-            if (!rootDir.exists()) {
-                // We need to create the directory
-                if (!rootDir.mkdirs()) {
-                    throw new RuntimeException("Cm cannot create directory " + rootDir);
-                }
-            }
 
             /*
-             * to avoid inconsistent database state, it is highly recommended that
-             * checkpoint is true by default, which causes fd.sync() on every write
-             * operation.  In transitory caches such as SrdiCache it makes perfect sense
+             * The records are kept on disk unless another store is configured,
+             * either "memory" or the name of a CmStore class.
              */
-            boolean chkPoint = true;
-            ResourceBundle jxtaRsrcs = ResourceBundle.getBundle("net.jxta.user");
-            String checkpointStr = jxtaRsrcs.getString("impl.cm.defferedcheckpoint");
-
-            if (checkpointStr != null) {
-                chkPoint = (checkpointStr.equalsIgnoreCase("true")) ? false : true;
-            }
-
-            // Storage
-            cacheDB = new BTreeFiler();
-            // no deffered checkpoint
-            cacheDB.setSync(chkPoint);
-            cacheDB.setLocation(rootDir.getAbsolutePath(), databaseFileName);
-
-            if (!cacheDB.open()) {
-                cacheDB.create();
-                // now open it
-                cacheDB.open();
-            }
-
-            // Index
-            indexer = new Indexer(chkPoint);
-            indexer.setLocation(rootDir.getAbsolutePath(), databaseFileName);
+            String storeName = System.getProperty(Cm.class.getName() + ".store");
 
-            if (!indexer.open()) {
-                indexer.create();
-                // now open it
-                indexer.open();
+            if ("memory".equals(storeName)) {
+                store = new MemStore();
+            } else if (storeName != null) {
+                store = (CmStore) Class.forName(storeName).newInstance();
+            } else {
+                store = newXindiceStore();
             }
+            store.open(rootDir);
 
             if (System.getProperty("net.jxta.impl.cm.index.rebuild") != null) {
                 rebuildIndex();
@@ -265,6 +273,64 @@ public final class Cm implements Runnable {
         }
     }
 
+    /**
+     * Creates the disk store, configured from the resources and the system
+     * properties.
+     */
+    private XindiceStore newXindiceStore() {
+        /*
+         * to avoid inconsistent database state, it is highly recommended that
+         * checkpoint is true by default, which causes fd.sync() on every write
+         * operation.  In transitory caches such as SrdiCache it makes perfect sense
+         */
+        boolean chkPoint = true;
+        ResourceBundle jxtaRsrcs = ResourceBundle.getBundle("net.jxta.user");
+        String checkpointStr = jxtaRsrcs.getString("impl.cm.defferedcheckpoint");
+
+        if (checkpointStr != null) {
+            chkPoint = (checkpointStr.equalsIgnoreCase("true")) ? false : true;
+        }
+
+        XindiceStore xindiceStore = new XindiceStore(chkPoint);
+
+        /*
+         * Optionally, updates are written to a write-ahead log and committed
+         * in groups rather than synced one page at a time.
+         */
+        if (Boolean.getBoolean(Cm.class.getName() + ".writeAheadLog")) {
+            long commitInterval = Long.getLong(Cm.class.getName() + ".commitInterval", DEFAULT_COMMIT_INTERVAL).longValue();
+            int commitSize = Integer.getInteger(Cm.class.getName() + ".commitSize", DEFAULT_COMMIT_SIZE).intValue();
+
+            xindiceStore.setWriteAheadLog(commitInterval, commitSize);
+        }
+
+        // Optionally, pages are read and written through memory mapped files.
+        xindiceStore.setMemoryMapped(Boolean.getBoolean(Cm.class.getName() + ".memoryMapped"));
+
+        // The number of pages each database caches.
+        xindiceStore.setCacheSize(Integer.getInteger(Cm.class.getName() + ".pageCacheSize", Paged.DEFAULT_CACHE_SIZE).intValue());
+
+        /*
+         * Optionally, the listed attributes (for instance "Name,Desc")
+         * keep a substring index in every directory to answer
+         * "*foo" and "*foo*" queries.
+         */
+        Set substringIndexed = new HashSet();
+        String substringAttrs = System.getProperty(Cm.class.getName() + ".substringIndex");
+        if (substringAttrs != null) {
+            StringTokenizer attrs = new StringTokenizer(substringAttrs, ", ");
+            while (attrs.hasMoreTokens()) {
+                String attr = attrs.nextToken();
+                for (int i = 0; i < DIRNAME.length; i++) {
+                    substringIndexed.add(DIRNAME[i] + attr);
+                }
+            }
+        }
+        xindiceStore.setSubstringIndexed(substringIndexed);
+
+        return xindiceStore;
+    }
+
     public String toString() {
         return "CM for " + rootDir.getAbsolutePath() + "[" + super.toString() + "]";
     }
@@ -323,7 +389,7 @@ public final class Cm implements Runnable {
         return getRecords(dn, threshold, values, expirations, false);
     }
 
-    public synchronized Vector getRecords(String dn, int threshold,
+    public Vector getRecords(String dn, int threshold,
             Vector values, Vector expirations,
             boolean purge) {
 
@@ -335,17 +401,22 @@ public final class Cm implements Runnable {
             }
             return res;
         } else {
-            IndexQuery iq = new IndexQuery(IndexQuery.SW, new Value(dn));
-
+            if (purge) {
+                lock.acquireWrite();
+            } else {
+                lock.acquireRead();
+            }
             try {
-                cacheDB.query(iq, new SearchCallback(cacheDB, indexer, res, expirations, threshold, purge));
+                store.query(dn, new SearchCallback(res, expirations, threshold, purge));
             } catch (DBException dbe) {
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("Exception during getRecords(): ", dbe);
                 }
-            } catch (IOException ie) {
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Exception during getRecords(): ", ie);
+            } finally {
+                if (purge) {
+                    lock.releaseWrite();
+                } else {
+                    lock.releaseRead();
                 }
             }
             return res;
@@ -353,20 +424,136 @@ public final class Cm implements Runnable {
     }
 
     public void garbageCollect() {
-        // calling getRecords is good enough since it removes
-        // expired entries
-        Map map = indexer.getIndexers();
-        Iterator it = map.keySet().iterator();
-        long t0 = 0;
+        long t0;
+        long duration;
+        int purged = 0;
 
-        while (it != null && it.hasNext()) {
+        lock.acquireWrite();
+        try {
             t0 = System.currentTimeMillis();
-            String indexName = (String) it.next();
+            try {
+                purged = store.purge(t0);
+            } catch (DBException dbe) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Exception during garbageCollect(): ", dbe);
+                }
+            }
+            duration = System.currentTimeMillis() - t0;
+        } finally {
+            lock.releaseWrite();
+        }
 
-            getRecords(indexName, Integer.MAX_VALUE, null, null, true);
-            if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Cm garbageCollect :" + indexName + " in :" + (System.currentTimeMillis() - t0));
+        gcMetrics.collected(duration, purged);
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Cm garbageCollect : purged " + purged + " in :" + duration + " " + gcMetrics);
+        }
+    }
+
+    /**
+     * Returns the metrics of the garbage collections of this cm.
+     *
+     * @return the metrics
+     */
+    public GcMetrics getGcMetrics() {
+        return gcMetrics;
+    }
+
+    /**
+     * Writes every record of this cm which hasn't expired to a stream, in
+     * key order, to be read back by {@link #importRecords(InputStream)}.
+     *
+     * @param  out              the stream to write to
+     * @return                  the number of records written
+     * @exception  IOException  if an I/O error occurs
+     */
+    public int exportRecords(OutputStream out) throws IOException {
+        long t0 = System.currentTimeMillis();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        ExportCallback cb = new ExportCallback(dos, t0);
+
+        dos.writeInt(EXPORT_MAGIC);
+        lock.acquireRead();
+        try {
+            store.query("", cb);
+        } catch (DBException de) {
+            IOException failure = new IOException("Failed to export " + rootDir);
+
+            failure.initCause(de);
+            throw failure;
+        } finally {
+            lock.releaseRead();
+        }
+        if (cb.failure != null) {
+            throw cb.failure;
+        }
+        dos.writeBoolean(false);
+        dos.flush();
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Exported " + cb.count + " records from " + rootDir + " in " + (System.currentTimeMillis() - t0) + "ms");
+        }
+        return cb.count;
+    }
+
+    /**
+     * Reads records written by {@link #exportRecords(OutputStream)} into
+     * this cm, indexing each advertisement by its index fields. Records
+     * which have since expired are skipped. An empty cm is built in bulk
+     * rather than by saving the records one at a time.
+     *
+     * @param  in               the stream to read from
+     * @return                  the number of records read
+     * @exception  IOException  if an I/O error occurs
+     */
+    public int importRecords(InputStream in) throws IOException {
+        long t0 = System.currentTimeMillis();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+
+        if (dis.readInt() != EXPORT_MAGIC) {
+            throw new IOException("Not a cm export");
+        }
+
+        ImportIterator entries = new ImportIterator(dis, t0);
+        lock.acquireWrite();
+        try {
+            store.load(entries);
+        } catch (UndeclaredThrowableException read) {
+            if (read.getUndeclaredThrowable() instanceof IOException) {
+                throw (IOException) read.getUndeclaredThrowable();
             }
+            throw read;
+        } catch (DBException de) {
+            IOException failure = new IOException("Failed to import into " + rootDir);
+
+            failure.initCause(de);
+            throw failure;
+        } finally {
+            lock.releaseWrite();
+        }
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Imported " + entries.count + " records into " + rootDir + " in " + (System.currentTimeMillis() - t0) + "ms");
+        }
+        return entries.count;
+    }
+
+    /**
+     * Reclaims the space left in the store by deleted records. The cm can't
+     * be used meanwhile.
+     *
+     * @exception  IOException  if the store could not be compacted
+     */
+    public void compact() throws IOException {
+        lock.acquireWrite();
+        try {
+            store.compact();
+        } catch (DBException de) {
+            IOException failure = new IOException("Failed to compact " + rootDir);
+
+            failure.initCause(de);
+            throw failure;
+        } finally {
+            lock.releaseWrite();
         }
     }
 
@@ -381,10 +568,10 @@ public final class Cm implements Runnable {
      * document will expire. -1 is returned if the file is not
      * recognized or already expired.
      */
-    public synchronized long getLifetime(String dn, String fn) {
+    public long getLifetime(String dn, String fn) {
         try {
             Key key = new Key(dn + "/" + fn);
-            Record record = cacheDB.readRecord(key);
+            Record record = readRecord(key);
 
             if (record == null) {
                 return -1;
@@ -398,13 +585,7 @@ public final class Cm implements Runnable {
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("Removing expired record :" + fn);
                 }
-                try {
-                    remove(dn, fn);
-                } catch (IOException e) {
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("Failed to remove record", e);
-                    }
-                }
+                removeIfExpired(dn, fn);
             }
             return TimeUtils.toRelativeTimeMillis(life.longValue());
         } catch (DBException de) {
@@ -426,10 +607,10 @@ public final class Cm implements Runnable {
      * @return     number of milliseconds until the file expires or -1 if the
      * file is not recognized or already expired.
      */
-    public synchronized long getExpirationtime(String dn, String fn) {
+    public long getExpirationtime(String dn, String fn) {
         try {
             Key key = new Key(dn + "/" + fn);
-            Record record = cacheDB.readRecord(key);
+            Record record = readRecord(key);
             long expiration = calcExpiration(record);
 
             if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -439,13 +620,7 @@ public final class Cm implements Runnable {
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("Removing expired record :" + fn);
                 }
-                try {
-                    remove(dn, fn);
-                } catch (IOException e) {
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("Failed to remove record", e);
-                    }
-                }
+                removeIfExpired(dn, fn);
             }
             return expiration;
         } catch (DBException de) {
@@ -456,6 +631,22 @@ public final class Cm implements Runnable {
         }
     }
 
+    /**
+     *  Reads a record while holding the read lock.
+     *
+     * @param  key  the key of the record
+     * @return      the record or null if there is no such record
+     * @throws  DBException  if the record could not be read
+     */
+    private Record readRecord(Key key) throws DBException {
+        lock.acquireRead();
+        try {
+            return store.readRecord(key);
+        } finally {
+            lock.releaseRead();
+        }
+    }
+
     /**
      *  Figures out expiration
      *
@@ -502,7 +693,7 @@ public final class Cm implements Runnable {
         Key key = new Key(dn + "/" + fn);
 
         try {
-            Record record = cacheDB.readRecord(key);
+            Record record = readRecord(key);
 
             if (record == null) {
                 return null;
@@ -537,43 +728,82 @@ public final class Cm implements Runnable {
      * @param  fn            file name
      * @throws  IOException  if an I/O error occurs
      */
-    public synchronized void remove(String dn,
+    public void remove(String dn,
             String fn)
         throws IOException {
 
+        if (fn == null) {
+            return;
+        }
+
+        removeRecord(dn, fn, false);
+    }
+
+    /**
+     * Removes a file if it is still expired once the write lock is held. The
+     * lookups which find an expired record drop the read lock before removing
+     * it, meanwhile the record may have been refreshed by a save.
+     *
+     * @param  dn  directory name
+     * @param  fn  file name
+     */
+    private void removeIfExpired(String dn, String fn) {
+        removeRecord(dn, fn, true);
+    }
+
+    /**
+     * Removes a record and its index entries and expires it in srdi.
+     *
+     * @param  dn           directory name
+     * @param  fn           file name
+     * @param  expiredOnly  if true the record is only removed if it has expired
+     */
+    private void removeRecord(String dn, String fn, boolean expiredOnly) {
+        Map indexables = null;
+
+        lock.acquireWrite();
         try {
-            if (fn == null) {
-                return;
-            }
             Key key = new Key(dn + "/" + fn);
-            Record record = cacheDB.readRecord(key);
-            long removePos = cacheDB.findValue(key);
+            Record record = store.readRecord(key);
+
+            if (record != null && expiredOnly) {
+                Long life = (Long) record.getMetaData(Record.LIFETIME);
+
+                if (life.longValue() >= System.currentTimeMillis()) {
+                    // refreshed since it was found expired
+                    record = null;
+                }
+            }
 
-            cacheDB.deleteRecord(key);
             if (record != null) {
                 try {
                     InputStream is = record.getValue().getInputStream();
                     Advertisement adv = AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8, is);
-                    Map indexables = getIndexfields(adv.getIndexFields(), (StructuredDocument) adv.getDocument(MimeMediaType.XMLUTF8));
 
-                    indexer.removeFromIndex(addKey(dn, indexables), removePos);
-                    // add it to deltas to expire it in srdi
-                    addDelta(dn, indexables, 0);
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("removed " + record);
-                    }
+                    indexables = getIndexfields(adv.getIndexFields(), (StructuredDocument) adv.getDocument(MimeMediaType.XMLUTF8));
                 } catch (Exception e) {
-                    // bad bits we are done
-                    if (LOG.isEnabledFor(Level.WARN)) {
-                        LOG.warn("failed to remove " + dn + "/" + fn, e);
+                    // bad bits, the store finds the index entries itself
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("failed to read index fields of " + dn + "/" + fn, e);
                     }
                 }
+                store.deleteRecord(key, addKey(dn, indexables));
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("removed " + record);
+                }
             }
         } catch (DBException de) {
             // entry does not exist
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("failed to remove " + dn + "/" + fn);
             }
+        } finally {
+            lock.releaseWrite();
+        }
+
+        if (indexables != null) {
+            // add it to deltas to expire it in srdi
+            addDelta(dn, indexables, 0);
         }
     }
 
@@ -601,12 +831,12 @@ public final class Cm implements Runnable {
      * @return               byte [] containing the file
      * @throws  IOException  if an I/O error occurs
      */
-    public synchronized byte[] restoreBytes(String dn,
+    public byte[] restoreBytes(String dn,
             String fn) throws IOException {
 
         try {
             Key key = new Key(dn + "/" + fn);
-            Record record = cacheDB.readRecord(key);
+            Record record = readRecord(key);
 
             if (record == null) {
                 return null;
@@ -659,7 +889,7 @@ public final class Cm implements Runnable {
      * @param  expiration       Document (global) expiration time in relative ms
      * @exception  IOException  Thrown if there is a problem saving the document.
      */
-    public synchronized void save(String dn,
+    public void save(String dn,
             String fn,
             Advertisement adv,
             long lifetime,
@@ -695,44 +925,29 @@ public final class Cm implements Runnable {
             Value value = new Value(baos.toByteArray());
 
             baos = null;
-            Long oldLife = null;
-            Record record = cacheDB.readRecord(key);
-
-            if (record != null) {
-                // grab the old lifetime
-                oldLife = (Long) record.getMetaData(Record.LIFETIME);
-            }
-
-            long absoluteLifetime = TimeUtils.toAbsoluteTimeMillis(lifetime);
+            Map indexables = getIndexfields(adv.getIndexFields(), doc);
+            Map keyedIdx = addKey(dn, indexables);
 
-            if (oldLife != null) {
-                if (absoluteLifetime < oldLife.longValue()) {
-                    // make sure we don't override the original value
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug(
-                                "Overriding attempt to decrease adv lifetime from : " + new Date(oldLife.longValue()) + " to :"
-                                + new Date(absoluteLifetime));
-                    }
-                    absoluteLifetime = oldLife.longValue();
-                }
-            }
             // make sure expiration does not exceed lifetime
             if (expiration > lifetime) {
                 expiration = lifetime;
             }
-            long pos = cacheDB.writeRecord(key, value, absoluteLifetime, expiration);
-            Map indexables = getIndexfields(adv.getIndexFields(), doc);
-            Map keyedIdx = addKey(dn, indexables);
 
-            if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Indexing " + keyedIdx + " at " + pos);
-            }
-            indexer.addToIndex(keyedIdx, pos);
+            long absoluteLifetime;
 
-            if (LOG.isEnabledFor(Level.DEBUG)) {
-                // too noisy
-                // LOG.debug("Wrote " + key + " = " + value);
-                LOG.debug("Stored " + indexables + " at " + pos);
+            lock.acquireWrite();
+            try {
+                absoluteLifetime = keepLifetime(store.readRecord(key), TimeUtils.toAbsoluteTimeMillis(lifetime));
+
+                store.writeRecord(key, value, absoluteLifetime, expiration, keyedIdx);
+
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    // too noisy
+                    // LOG.debug("Wrote " + key + " = " + value);
+                    LOG.debug("Stored " + indexables + " for " + key);
+                }
+            } finally {
+                lock.releaseWrite();
             }
 
             if( expiration > 0 ) {
@@ -764,7 +979,7 @@ public final class Cm implements Runnable {
      * @param  expiration       Document (global) expiration time in relative ms
      * @exception  IOException  Thrown if there is a problem saving the document.
      */
-    public synchronized void save(String dn,
+    public void save(String dn,
             String fn,
             byte[] data,
             long lifetime,
@@ -778,36 +993,21 @@ public final class Cm implements Runnable {
 
             Key key = new Key(dn + "/" + fn);
             Value value = new Value(data);
-            Long oldLife = null;
-            Record record = cacheDB.readRecord(key);
-
-            if (record != null) {
-                // grab the old lifetime
-                oldLife = (Long) record.getMetaData(Record.LIFETIME);
-            }
-            
-            // save the new version
-
-            long absoluteLifetime = TimeUtils.toAbsoluteTimeMillis(lifetime);
-
-            if (oldLife != null) {
-                if (absoluteLifetime < oldLife.longValue()) {
-                    // make sure we don't override the original value
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug(
-                                "Overriding attempt to decrease adv lifetime from : " + new Date(oldLife.longValue()) + " to :"
-                                + new Date(absoluteLifetime));
-                    }
-                    absoluteLifetime = oldLife.longValue();
-                }
-            }
             
             // make sure expiration does not exceed lifetime
             if (expiration > lifetime) {
                 expiration = lifetime;
             }
 
-            cacheDB.writeRecord(key, value, absoluteLifetime, expiration);
+            lock.acquireWrite();
+            try {
+                // save the new version
+                long absoluteLifetime = keepLifetime(store.readRecord(key), TimeUtils.toAbsoluteTimeMillis(lifetime));
+
+                store.writeRecord(key, value, absoluteLifetime, expiration, null);
+            } finally {
+                lock.releaseWrite();
+            }
         } catch (DBException de) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Failed to write " + dn + "/" + fn + " " + lifetime + " " + expiration, de);
@@ -821,6 +1021,37 @@ public final class Cm implements Runnable {
         }
     }
 
+    /**
+     * Returns the lifetime to use when replacing a record. The lifetime of a
+     * document is never decreased.
+     *
+     * @param  record            the existing record or null
+     * @param  absoluteLifetime  the requested lifetime in absolute ms
+     * @return                   the lifetime in absolute ms
+     */
+    private static long keepLifetime(Record record, long absoluteLifetime) {
+        if (record == null) {
+            return absoluteLifetime;
+        }
+
+        // grab the old lifetime
+        Long oldLife = (Long) record.getMetaData(Record.LIFETIME);
+
+        if (oldLife != null) {
+            if (absoluteLifetime < oldLife.longValue()) {
+                // make sure we don't override the original value
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug(
+                            "Overriding attempt to decrease adv lifetime from : " + new Date(oldLife.longValue()) + " to :"
+                            + new Date(absoluteLifetime));
+                }
+                absoluteLifetime = oldLife.longValue();
+            }
+        }
+
+        return absoluteLifetime;
+    }
+
     private static Map getIndexfields(String[] fields, StructuredDocument doc) {
         Map map = new HashMap();
 
@@ -847,6 +1078,14 @@ public final class Cm implements Runnable {
         return map;
     }
 
+    /* the index fields of a stored advertisement, with the primary index 'dn' */
+    private static Map getIndexfields(Value value) throws IOException {
+        Advertisement adv = AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8, value.getInputStream());
+        Map indexables = getIndexfields(adv.getIndexFields(), (StructuredDocument) adv.getDocument(MimeMediaType.XMLUTF8));
+
+        return addKey(getDirName(adv), indexables);
+    }
+
     /* adds a primary index 'dn' to indexables */
     private static Map addKey(String dn, Map map) {
         if (map == null) {
@@ -866,15 +1105,124 @@ public final class Cm implements Runnable {
         return tmp;
     }
 
-    private static final class EntriesCallback implements BTreeCallback {
+    /**
+     * Writes each record which hasn't expired to an export.
+     */
+    private static final class ExportCallback implements CmStore.RecordCallback {
+
+        private final DataOutputStream dos;
+        private final long now;
+        int count = 0;
+        IOException failure = null;
+
+        ExportCallback(DataOutputStream dos, long now) {
+            this.dos = dos;
+            this.now = now;
+        }
+
+        /**
+         *  {@inheritDoc}
+         */
+        public boolean record(Value val, Record record) {
+            long lifetime = ((Long) record.getMetaData(Record.LIFETIME)).longValue();
+
+            if (lifetime < now) {
+                return true;
+            }
+            try {
+                Value value = record.getValue();
+
+                dos.writeBoolean(true);
+                dos.writeUTF(record.getKey().toString());
+                dos.writeLong(lifetime);
+                dos.writeLong(((Long) record.getMetaData(Record.EXPIRATION)).longValue());
+                dos.writeInt(value.getLength());
+                value.streamTo(dos);
+                count++;
+            } catch (IOException ie) {
+                failure = ie;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads the records of an export as they are asked for. As an Iterator
+     * can't throw IOExceptions, they are thrown wrapped.
+     */
+    private static final class ImportIterator implements Iterator {
+
+        private final DataInputStream dis;
+        private final long now;
+        private CmStore.Entry next = null;
+        private boolean done = false;
+        int count = 0;
+
+        ImportIterator(DataInputStream dis, long now) {
+            this.dis = dis;
+            this.now = now;
+        }
+
+        public boolean hasNext() {
+            try {
+                while (next == null && !done) {
+                    if (!dis.readBoolean()) {
+                        done = true;
+                        break;
+                    }
+                    Key key = new Key(dis.readUTF());
+                    long lifetime = dis.readLong();
+                    long expiration = dis.readLong();
+                    byte[] data = new byte[dis.readInt()];
+
+                    dis.readFully(data);
+                    if (lifetime < now) {
+                        continue;
+                    }
+                    Value value = new Value(data);
+                    Map indexables;
+
+                    try {
+                        indexables = getIndexfields(value);
+                    } catch (Exception notAdv) {
+                        // saved as bytes, so not indexed
+                        indexables = null;
+                    }
+                    next = new CmStore.Entry(key, value, lifetime, expiration, indexables);
+                }
+            } catch (IOException ie) {
+                throw new UndeclaredThrowableException(ie, "Failed to read export");
+            }
+            return next != null;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object result = next;
+
+            next = null;
+            count++;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class EntriesCallback implements CmStore.RecordCallback {
 
-        private BTreeFiler cacheDB = null;
         private int threshold;
         private Vector results;
         private String key;
+        // the last value visited, the search stops between values only.
+        private Value last = null;
+        private boolean stopped = false;
 
-        EntriesCallback(BTreeFiler cacheDB, Vector results, String key, int threshold) {
-            this.cacheDB = cacheDB;
+        EntriesCallback(Vector results, String key, int threshold) {
             this.results = results;
             this.key = key;
             this.threshold = threshold;
@@ -883,25 +1231,14 @@ public final class Cm implements Runnable {
         /**
          *  {@inheritDoc}
          */
-        public boolean indexInfo(Value val, long pos) {
-            if (results.size() >= threshold) {
+        public boolean record(Value val, Record record) {
+            if (results.size() >= threshold && !val.equals(last)) {
+                stopped = true;
                 return false;
             }
+            last = val;
             if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Found " + val.toString() + " at " + pos);
-            }
-            Record record = null;
-
-            try {
-                record = cacheDB.readRecord(pos);
-            } catch (DBException ex) {
-                if (LOG.isEnabledFor(Level.WARN)) {
-                    LOG.warn("Exception while reading indexed", ex);
-                }
-                return false;
-            }
-            if (record == null) {
-                return true;
+                LOG.debug("Found " + val.toString());
             }
             long exp = calcExpiration(record);
 
@@ -921,22 +1258,18 @@ public final class Cm implements Runnable {
     }
 
 
-    private final class SearchCallback implements BTreeCallback {
+    private final class SearchCallback implements CmStore.RecordCallback {
 
-        private BTreeFiler cacheDB = null;
-        private Indexer indexer = null;
         private int threshold;
         private Vector results;
         private Vector expirations;
         private boolean purge;
 
-        SearchCallback(BTreeFiler cacheDB, Indexer indexer, Vector results, Vector expirations, int threshold) {
-            this(cacheDB, indexer, results, expirations, threshold, false);
+        SearchCallback(Vector results, Vector expirations, int threshold) {
+            this(results, expirations, threshold, false);
         }
 
-        SearchCallback(BTreeFiler cacheDB, Indexer indexer, Vector results, Vector expirations, int threshold, boolean purge) {
-            this.cacheDB = cacheDB;
-            this.indexer = indexer;
+        SearchCallback(Vector results, Vector expirations, int threshold, boolean purge) {
             this.results = results;
             this.threshold = threshold;
             this.expirations = expirations;
@@ -946,25 +1279,12 @@ public final class Cm implements Runnable {
         /**
          *  {@inheritDoc}
          */
-        public boolean indexInfo(Value val, long pos) {
+        public boolean record(Value val, Record record) {
             if (results.size() >= threshold) {
                 return false;
             }
             if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Found " + val.toString() + " at " + pos);
-            }
-            Record record = null;
-
-            try {
-                record = cacheDB.readRecord(pos);
-            } catch (DBException ex) {
-                if (LOG.isEnabledFor(Level.WARN)) {
-                    LOG.warn("Exception while reading indexed", ex);
-                }
-                return false;
-            }
-            if (record == null) {
-                return true;
+                LOG.debug("Found " + val.toString());
             }
 
             /* too noisy
@@ -975,17 +1295,12 @@ public final class Cm implements Runnable {
             long exp = calcExpiration(record);
 
             if (exp < 0) {
-                if (purge) {
+                if (purge && record.getKey() != null) {
                     try {
-                        indexer.purge(pos);
-                        cacheDB.deleteRecord(record.getKey());
+                        store.deleteRecord(record.getKey(), null);
                     } catch (DBException ex) {
                         if (LOG.isEnabledFor(Level.WARN)) {
-                            LOG.warn("Exception while reading indexed", ex);
-                        }
-                    } catch (IOException ie) {
-                        if (LOG.isEnabledFor(Level.WARN)) {
-                            LOG.warn("Exception while reading indexed", ie);
+                            LOG.warn("Exception while purging record", ex);
                         }
                     }
                 } else {
@@ -1003,52 +1318,6 @@ public final class Cm implements Runnable {
     }
 
 
-    private static final class removeCallback implements BTreeCallback {
-
-        private BTreeFiler cacheDB = null;
-        private Indexer indexer = null;
-
-        removeCallback(BTreeFiler cacheDB, Indexer indexer) {
-            this.cacheDB = cacheDB;
-            this.indexer = indexer;
-        }
-
-        /**
-         *  {@inheritDoc}
-         */
-        public boolean indexInfo(Value val, long pos) {
-            Record record = null;
-
-            try {
-                record = cacheDB.readRecord(pos);
-            } catch (DBException ex) {
-                if (LOG.isEnabledFor(Level.WARN)) {
-                    LOG.warn("Exception while reading record", ex);
-                }
-                return false;
-            }
-            if (record == null) {
-                return true;
-            }
-            try {
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Removing Record at position :" + pos);
-                }
-                indexer.purge(pos);
-                cacheDB.deleteRecord(record.getKey());
-            } catch (DBException ex) {
-                if (LOG.isEnabledFor(Level.WARN)) {
-                    LOG.warn("Exception while reading indexed", ex);
-                }
-            } catch (IOException ie) {
-                if (LOG.isEnabledFor(Level.WARN)) {
-                    LOG.warn("Exception while reading indexed", ie);
-                }
-            }
-            return true;
-        }
-    }
-
     protected static IndexQuery getIndexQuery(String value) {
 
         int operator = IndexQuery.ANY;
@@ -1086,19 +1355,22 @@ public final class Cm implements Runnable {
      * @param  threshold  threshold
      * @return            Enumeration containing of all the documents names
      */
-    public synchronized Vector search(String dn, String attribute,
+    public Vector search(String dn, String attribute,
             String value, int threshold,
             Vector expirations) {
 
         Vector res = new Vector();
         IndexQuery iq = getIndexQuery(value);
 
+        lock.acquireRead();
         try {
-            indexer.search(iq, dn + attribute, new SearchCallback(cacheDB, indexer, res, expirations, threshold));
+            store.search(dn + attribute, iq, new SearchCallback(res, expirations, threshold));
         } catch (Exception ex) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Exception while searching in index", ex);
             }
+        } finally {
+            lock.releaseRead();
         }
         return res;
     }
@@ -1109,13 +1381,12 @@ public final class Cm implements Runnable {
      * @param  dn  the relative dir name
      * @return     SrdiMessage.Entries
      */
-    public synchronized Vector getEntries(String dn, boolean clearDeltas) {
+    public Vector getEntries(String dn, boolean clearDeltas) {
         Vector res = new Vector();
 
+        lock.acquireRead();
         try {
-            Map map = indexer.getIndexers();
-            BTreeFiler listDB = indexer.getListDB();
-            Iterator it = map.keySet().iterator();
+            Iterator it = store.getIndexNames().iterator();
 
             while (it != null && it.hasNext()) {
                 String indexName = (String) it.next();
@@ -1123,15 +1394,16 @@ public final class Cm implements Runnable {
                 // seperate the index name from attribute
                 if (indexName.startsWith(dn)) {
                     String attr = indexName.substring((dn).length());
-                    NameIndexer idxr = (NameIndexer) map.get(indexName);
 
-                    idxr.query(null, new Indexer.SearchCallback(listDB, new EntriesCallback(cacheDB, res, attr, Integer.MAX_VALUE)));
+                    store.search(indexName, null, new EntriesCallback(res, attr, Integer.MAX_VALUE));
                 }
             }
         } catch (Exception ex) {
             if (LOG.isEnabledFor(Level.ERROR)) {
                 LOG.error("Exception while searching in index", ex);
             }
+        } finally {
+            lock.releaseRead();
         }
 
         if (clearDeltas) {
@@ -1141,38 +1413,167 @@ public final class Cm implements Runnable {
         return res;
     }
 
+    /**
+     * A position in the entries of a directory, from which
+     * {@link Cm#getEntries(Cm.EntryCursor, int)} continues.
+     */
+    public static final class EntryCursor {
+
+        private final String dn;
+        // the index being walked, and the last value returned from it. A
+        // null value with an index means that index is done.
+        private String indexName = null;
+        private Value last = null;
+        private boolean done = false;
+
+        /**
+         * Creates a cursor at the first entry of a directory.
+         *
+         * @param  dn  the relative dir name
+         */
+        public EntryCursor(String dn) {
+            this.dn = dn;
+        }
+
+        /**
+         * Returns the relative dir name.
+         *
+         * @return the relative dir name
+         */
+        public String getDirName() {
+            return dn;
+        }
+
+        /**
+         * Returns true once all entries have been returned.
+         *
+         * @return true if there are no more entries
+         */
+        public boolean isDone() {
+            return done;
+        }
+    }
+
+    /**
+     * Returns the next entries of a directory and moves the cursor past
+     * them. All entries sharing a value are returned together, so slightly
+     * more than the threshold may be returned. The lock on the cache is held
+     * for one batch only; entries added or removed meanwhile may or may not
+     * be returned depending on where they fall relative to the cursor.
+     *
+     * @param  cursor     where to continue from
+     * @param  threshold  the number of entries to return
+     * @return            SrdiMessage.Entries, empty once the cursor is done
+     */
+    public Vector getEntries(EntryCursor cursor, int threshold) {
+        Vector res = new Vector();
+
+        if (cursor.done) {
+            return res;
+        }
+
+        lock.acquireRead();
+        try {
+            SortedSet names = new TreeSet();
+            Iterator it = store.getIndexNames().iterator();
+
+            while (it.hasNext()) {
+                String indexName = (String) it.next();
+
+                if (indexName.startsWith(cursor.dn)) {
+                    names.add(indexName);
+                }
+            }
+
+            if (cursor.indexName != null) {
+                names = names.tailSet(cursor.indexName);
+            }
+
+            it = names.iterator();
+            while (it.hasNext()) {
+                String indexName = (String) it.next();
+                IndexQuery iq = null;
+
+                if (indexName.equals(cursor.indexName)) {
+                    if (cursor.last == null) {
+                        // done with this one
+                        continue;
+                    }
+                    iq = new IndexQuery(IndexQuery.GT, cursor.last);
+                } else if (res.size() >= threshold) {
+                    // start with this one next time
+                    return res;
+                }
+
+                EntriesCallback callback = new EntriesCallback(res, indexName.substring(cursor.dn.length()), Math.max(1, threshold));
+
+                store.search(indexName, iq, callback);
+
+                cursor.indexName = indexName;
+                if (callback.stopped) {
+                    cursor.last = callback.last;
+                    return res;
+                }
+                cursor.last = null;
+            }
+            cursor.done = true;
+        } catch (Exception ex) {
+            if (LOG.isEnabledFor(Level.ERROR)) {
+                LOG.error("Exception while searching in index", ex);
+            }
+            cursor.done = true;
+        } finally {
+            lock.releaseRead();
+        }
+
+        return res;
+    }
+
     /**
      * returns all entries that are added since this method was last called
      *
      * @param  dn  the relative dir name
      * @return     SrdiMessage.Entries
      */
-    public synchronized Vector getDeltas(String dn) {
+    public Vector getDeltas(String dn) {
         Vector result = new Vector();
 
-        List deltas = (List) deltaMap.get(dn);
+        synchronized (deltaMap) {
+            List deltas = (List) deltaMap.get(dn);
 
-        if (deltas != null) {
-            result.addAll(deltas);
-            deltas.clear();
+            if (deltas != null) {
+                result.addAll(deltas);
+                deltas.clear();
+            }
         }
 
         return result;
     }
 
-    private synchronized void clearDeltas(String dn) {
+    /**
+     * Forgets the entries added since the deltas were last taken
+     *
+     * @param  dn  the relative dir name
+     */
+    public void clearDeltas(String dn) {
 
-        List deltas = (List) deltaMap.get(dn);
+        synchronized (deltaMap) {
+            List deltas = (List) deltaMap.get(dn);
 
-        if (deltas == null) {
-            return;
+            if (deltas == null) {
+                return;
+            }
+            deltas.clear();
         }
-        deltas.clear();
     }
 
-    private synchronized void addDelta(String dn, Map indexables, long exp) {
+    private void addDelta(String dn, Map indexables, long exp) {
+
+        synchronized (deltaMap) {
+            if (!trackDeltas) {
+                return;
+            }
 
-        if (trackDeltas) {
             Iterator eachIndex = indexables.entrySet().iterator();
 
             if (eachIndex.hasNext()) {
@@ -1198,35 +1599,42 @@ public final class Cm implements Runnable {
         }
     }
 
-    public synchronized void setTrackDeltas(boolean trackDeltas) {
+    public void setTrackDeltas(boolean trackDeltas) {
 
-        this.trackDeltas = trackDeltas;
+        synchronized (deltaMap) {
+            this.trackDeltas = trackDeltas;
 
-        if (!trackDeltas) {
-            deltaMap.clear();
+            if (!trackDeltas) {
+                deltaMap.clear();
+            }
         }
     }
 
     /**
      * stop the cm
      */
-    public synchronized void stop() {
+    public void stop() {
+        lock.acquireWrite();
         try {
-            cacheDB.close();
-            indexer.close();
-            stop = true;
-            notify();
+            store.close();
         } catch (DBException ex) {
             if (LOG.isEnabledFor(Level.ERROR)) {
-                LOG.error("Unable to close advertisments.tbl", ex);
+                LOG.error("Unable to close " + store, ex);
             }
+        } finally {
+            lock.releaseWrite();
+        }
+
+        synchronized (this) {
+            stop = true;
+            notify();
         }
     }
 
     /**
      *  {@inheritDoc}
      */
-    public synchronized void run() {
+    public void run() {
         try {
             while (!stop) {
                 try {
@@ -1235,7 +1643,11 @@ public final class Cm implements Runnable {
                         LOG.debug("waiting " + gcMinInterval + "ms before garbage collection");
                     }
 
-                    wait(gcMinInterval);
+                    synchronized (this) {
+                        if (!stop) {
+                            wait(gcMinInterval);
+                        }
+                    }
                 } catch (InterruptedException woken) {
                     Thread.interrupted();
 
@@ -1273,54 +1685,49 @@ public final class Cm implements Runnable {
         }
     }
 
-    private synchronized void rebuildIndex()
-        throws BTreeException, DBException, IOException {
+    private void rebuildIndex()
+        throws DBException {
 
         if (LOG.isEnabledFor(Level.INFO)) {
             LOG.info("Rebuilding indices");
         }
 
-        String pattern = "*";
-        IndexQuery any = new IndexQuery(IndexQuery.ANY, pattern);
-
-        cacheDB.query(any, new RebuildIndexCallback(cacheDB, indexer));
+        lock.acquireWrite();
+        try {
+            store.query("", new RebuildIndexCallback(store));
+        } finally {
+            lock.releaseWrite();
+        }
     }
 
-    private static final class RebuildIndexCallback implements BTreeCallback {
+    /**
+     * Writes each advertisement again with its index fields.
+     */
+    private static final class RebuildIndexCallback implements CmStore.RecordCallback {
 
-        private BTreeFiler database = null;
-        private Indexer index = null;
+        private CmStore store = null;
 
-        RebuildIndexCallback(BTreeFiler database, Indexer index) {
-            this.database = database;
-            this.index = index;
+        RebuildIndexCallback(CmStore store) {
+            this.store = store;
         }
 
         /**
          *  {@inheritDoc}
          */
-        public boolean indexInfo(Value val, long pos) {
+        public boolean record(Value val, Record record) {
             try {
-                Record record = database.readRecord(pos);
-
-                if (record == null) {
-                    return true;
-                }
-
-                InputStream is = record.getValue().getInputStream();
-                Advertisement adv = AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8, is);
-                Map indexables = getIndexfields(adv.getIndexFields(), (StructuredDocument) adv.getDocument(MimeMediaType.XMLUTF8));
-
-                String dn = getDirName(adv);
-                Map keyedIdx = addKey(dn, indexables);
+                Map keyedIdx = getIndexfields(record.getValue());
 
                 if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Restoring index " + keyedIdx + " at " + pos);
+                    LOG.debug("Restoring index " + keyedIdx + " for " + val);
                 }
-                index.addToIndex(keyedIdx, pos);
+                Long life = (Long) record.getMetaData(Record.LIFETIME);
+                Long exp = (Long) record.getMetaData(Record.EXPIRATION);
+
+                store.writeRecord(record.getKey(), record.getValue(), life.longValue(), exp.longValue(), keyedIdx);
             } catch (Exception ex) {
                 if (LOG.isEnabledFor(Level.WARN)) {
-                    LOG.warn("Exception rebuilding index  at " + pos, ex);
+                    LOG.warn("Exception rebuilding index for " + val, ex);
                 }
                 return true;
             }
@@ -0,0 +1,250 @@
+/*
+ *  $Id$
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ *
+ *  $Id$
+ */
+
+package net.jxta.impl.cm;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import net.jxta.impl.xindice.core.DBException;
+import net.jxta.impl.xindice.core.data.Key;
+import net.jxta.impl.xindice.core.data.Record;
+import net.jxta.impl.xindice.core.data.Value;
+import net.jxta.impl.xindice.core.indexer.IndexQuery;
+
+/**
+ * The storage behind a {@link Cm}. A store holds records, each of which is
+ * a document kept under a key ("dn/fn") with an absolute lifetime and a
+ * relative expiration, and indexes the records by the values of their
+ * index fields.
+ *
+ * <p/>The records returned by a store carry their lifetime and expiration
+ * as the {@link Record#LIFETIME} and {@link Record#EXPIRATION} meta data.
+ *
+ * <p/>A store need not be synchronized. Cm calls the methods which read the
+ * store while holding a shared lock and the methods which change it while
+ * holding an exclusive lock.
+ *
+ * @see XindiceStore
+ * @see MemStore
+ **/
+public interface CmStore {
+
+    /**
+     * Receives the records found by {@link CmStore#query(String, RecordCallback)}
+     * and {@link CmStore#search(String, IndexQuery, RecordCallback)}. The
+     * callback may change the store.
+     **/
+    public interface RecordCallback {
+
+        /**
+         * Called for each record found.
+         *
+         * @param value the index value the record was found under or, for a
+         *        query, the key of the record
+         * @param record the record
+         * @return false to stop the search
+         **/
+        boolean record(Value value, Record record);
+    }
+
+    /**
+     * A record given to {@link CmStore#load(Iterator)}.
+     **/
+    public static final class Entry {
+
+        /**
+         * The key of the record.
+         **/
+        public final Key key;
+
+        /**
+         * The document.
+         **/
+        public final Value value;
+
+        /**
+         * The lifetime in absolute ms.
+         **/
+        public final long lifetime;
+
+        /**
+         * The expiration in relative ms.
+         **/
+        public final long expiration;
+
+        /**
+         * The index names and values of the record, or null.
+         **/
+        public final Map indexables;
+
+        public Entry(Key key, Value value, long lifetime, long expiration, Map indexables) {
+            this.key = key;
+            this.value = value;
+            this.lifetime = lifetime;
+            this.expiration = expiration;
+            this.indexables = indexables;
+        }
+    }
+
+    /**
+     * Opens the store, creating it if needed.
+     *
+     * @param dir the directory of the Cm
+     * @throws DBException if the store could not be opened
+     **/
+    void open(File dir) throws DBException;
+
+    /**
+     * Closes the store.
+     *
+     * @throws DBException if the store could not be closed
+     **/
+    void close() throws DBException;
+
+    /**
+     * Reads a record.
+     *
+     * @param key the key of the record
+     * @return the record or null if there is no such record
+     * @throws DBException if the record could not be read
+     **/
+    Record readRecord(Key key) throws DBException;
+
+    /**
+     * Writes a record, replacing any record with the same key, and indexes
+     * it.
+     *
+     * @param key the key of the record
+     * @param value the document
+     * @param lifetime the lifetime in absolute ms
+     * @param expiration the expiration in relative ms
+     * @param indexables the index names and values of the record, or null
+     * @throws DBException if the record could not be written
+     **/
+    void writeRecord(Key key, Value value, long lifetime, long expiration, Map indexables) throws DBException;
+
+    /**
+     * Deletes a record and its index entries.
+     *
+     * @param key the key of the record
+     * @param indexables the index names and values of the record, or null if
+     *        they are not known
+     * @return true if the record was deleted, false if there was no such
+     *         record
+     * @throws DBException if the record could not be deleted
+     **/
+    boolean deleteRecord(Key key, Map indexables) throws DBException;
+
+    /**
+     * Finds the records whose keys start with a prefix.
+     *
+     * @param prefix the prefix, "" for all of the records
+     * @param callback receives the records
+     * @throws DBException if the records could not be read
+     **/
+    void query(String prefix, RecordCallback callback) throws DBException;
+
+    /**
+     * Finds the records an index holds values matching a query for. EW, NEW
+     * and BWX queries match values which end with, don't end with and
+     * contain the query value.
+     *
+     * @param name the name of the index
+     * @param query the query, null for every value of the index
+     * @param callback receives the records
+     * @throws DBException if the records could not be read
+     **/
+    void search(String name, IndexQuery query, RecordCallback callback) throws DBException;
+
+    /**
+     * Returns the names of the indexes.
+     *
+     * @return the names
+     **/
+    Set getIndexNames();
+
+    /**
+     * Deletes the records whose lifetime has passed, and their index
+     * entries.
+     *
+     * @param now the current time in absolute ms
+     * @return the number of records deleted
+     * @throws DBException if the records could not be deleted
+     **/
+    int purge(long now) throws DBException;
+
+    /**
+     * Writes many records and indexes them. The records must be given in
+     * ascending key order. An empty store may build its files from them
+     * in bulk rather than writing them one at a time.
+     *
+     * @param entries an Iterator of {@link Entry}
+     * @throws DBException if the records could not be written
+     **/
+    void load(Iterator entries) throws DBException;
+
+    /**
+     * Reclaims the space left by deleted records, if the store leaves any.
+     *
+     * @throws DBException if the store could not be compacted
+     **/
+    void compact() throws DBException;
+}
@@ -0,0 +1,375 @@
+/*
+ *  $Id$
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ *
+ *  $Id$
+ */
+
+package net.jxta.impl.cm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.impl.xindice.core.DBException;
+import net.jxta.impl.xindice.core.FaultCodes;
+import net.jxta.impl.xindice.core.data.Key;
+import net.jxta.impl.xindice.core.data.Record;
+import net.jxta.impl.xindice.core.data.Value;
+import net.jxta.impl.xindice.core.filer.BTreeCallback;
+import net.jxta.impl.xindice.core.filer.BTreeFiler;
+import net.jxta.impl.xindice.core.filer.FilerException;
+import net.jxta.impl.xindice.core.indexer.IndexQuery;
+
+/**
+ * An index of records by the time they expire, so that garbage collection
+ * visits only the records which have expired instead of every record.
+ * Each entry is keyed by an expiration time followed by the key of the
+ * record and holds the index names and values the record was indexed
+ * under, so that its index entries can be removed without searching the
+ * indexes.
+ *
+ * <p/>Entries are not removed when a record is replaced or deleted. When
+ * an entry comes due its record may since have been given a later
+ * expiration or have been deleted, so the caller checks the record before
+ * purging it.
+ **/
+final class ExpiryIndex {
+
+    /**
+     * The Log4J debugging category.
+     **/
+    private final static Logger LOG = Logger.getLogger(ExpiryIndex.class.getName());
+
+    private final BTreeFiler db;
+
+    /**
+     * An entry which has come due.
+     **/
+    static final class Expired {
+        final Key entryKey;
+        final long expiration;
+        final Key key;
+        final Map indexables;
+
+        Expired(Key entryKey, Map indexables) {
+            this.entryKey = entryKey;
+            this.expiration = getExpiration(entryKey);
+            this.key = getRecordKey(entryKey);
+            this.indexables = indexables;
+        }
+    }
+
+    /**
+     * @param db the database holding the entries, configured but not opened
+     **/
+    ExpiryIndex(BTreeFiler db) {
+        this.db = db;
+    }
+
+    /**
+     * Opens the index, creating it if needed.
+     *
+     * @return true if the index was created and has to be filled
+     * @throws DBException if the index could not be opened
+     **/
+    boolean open() throws DBException {
+        if (db.open()) {
+            return false;
+        }
+        db.create();
+        db.open();
+        return true;
+    }
+
+    void close() throws DBException {
+        db.close();
+    }
+
+    /**
+     * Adds an entry for a record.
+     *
+     * @param expiration the time at which the record expires in absolute ms
+     * @param key the key of the record
+     * @param indexables the index names and values of the record, or null if
+     *        they are not known
+     * @throws DBException if the entry could not be written
+     **/
+    void add(long expiration, Key key, Map indexables) throws DBException {
+        db.writeRecord(getEntryKey(expiration, key), getEntryValue(indexables));
+    }
+
+    /**
+     * Returns every entry, earliest first.
+     *
+     * @return a SortedMap of the entry keys to the entry values
+     * @throws DBException if the entries could not be read
+     **/
+    SortedMap getEntries() throws DBException {
+        final List keys = new ArrayList();
+        final List positions = new ArrayList();
+
+        try {
+            db.query(null, new BTreeCallback() {
+                         public boolean indexInfo(Value val, long pos) {
+                             keys.add(new Key(val));
+                             positions.add(new Long(pos));
+                             return true;
+                         }
+                     }
+                    );
+        } catch (IOException ie) {
+            throw new FilerException(FaultCodes.GEN_GENERAL_ERROR, "Can't read entries", ie);
+        }
+
+        SortedMap entries = new TreeMap();
+        for (int i = 0; i < keys.size(); i++) {
+            Record record = db.readRecord(((Long) positions.get(i)).longValue());
+
+            entries.put(keys.get(i), record.getValue());
+        }
+        return entries;
+    }
+
+    /**
+     * Fills an empty index, building it bottom-up.
+     *
+     * @param entries a SortedMap of the entry keys to the entry values
+     * @param fill the percentage of each page to fill
+     * @throws DBException if the entries could not be written
+     **/
+    void load(SortedMap entries, int fill) throws DBException {
+        BTreeFiler.RecordLoader loader = db.loadRecords(fill);
+        Iterator each = entries.entrySet().iterator();
+
+        while (each.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) each.next();
+
+            loader.add(new Record((Key) anEntry.getKey(), (Value) anEntry.getValue()));
+        }
+        loader.finish();
+    }
+
+    /**
+     * Returns the key of the entry for a record.
+     *
+     * @param expiration the time at which the record expires in absolute ms
+     * @param key the key of the record
+     * @return the entry key
+     **/
+    static Key getEntryKey(long expiration, Key key) {
+        byte[] data = new byte[8 + key.getLength()];
+
+        encode(expiration, data);
+        key.copyTo(data, 8);
+        return new Key(data);
+    }
+
+    /**
+     * Returns the value of the entry for a record.
+     *
+     * @param indexables the index names and values of the record, or null if
+     *        they are not known
+     * @return the entry value
+     **/
+    static Value getEntryValue(Map indexables) {
+        return new Value(toByteArray(indexables));
+    }
+
+    /**
+     * Returns the time at which the record of an entry expires.
+     **/
+    static long getExpiration(Key entryKey) {
+        return decode(entryKey.getData());
+    }
+
+    /**
+     * Returns the key of the record of an entry.
+     **/
+    static Key getRecordKey(Key entryKey) {
+        byte[] data = entryKey.getData();
+        byte[] keyData = new byte[data.length - 8];
+
+        System.arraycopy(data, 8, keyData, 0, keyData.length);
+        return new Key(keyData);
+    }
+
+    /**
+     * Returns the entries which expire at or before a time, earliest first.
+     *
+     * @param now the time in absolute ms
+     * @return a List of {@link Expired}
+     * @throws DBException if the entries could not be read
+     **/
+    List expired(long now) throws DBException {
+        final List keys = new ArrayList();
+        final List positions = new ArrayList();
+        byte[] bound = new byte[8];
+
+        encode(now + 1, bound);
+        try {
+            db.query(new IndexQuery(IndexQuery.LT, new Value(bound)), new BTreeCallback() {
+                         public boolean indexInfo(Value val, long pos) {
+                             keys.add(new Key(val));
+                             positions.add(new Long(pos));
+                             return true;
+                         }
+                     }
+                    );
+        } catch (IOException ie) {
+            throw new FilerException(FaultCodes.GEN_GENERAL_ERROR, "Can't read expired entries", ie);
+        }
+
+        List expired = new ArrayList(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Record record = db.readRecord(((Long) positions.get(i)).longValue());
+
+            expired.add(new Expired((Key) keys.get(i), fromRecord(record)));
+        }
+        return expired;
+    }
+
+    /**
+     * Removes an entry which has come due.
+     *
+     * @param expired the entry
+     * @throws DBException if the entry could not be removed
+     **/
+    void remove(Expired expired) throws DBException {
+        db.deleteRecord(expired.entryKey);
+    }
+
+    /**
+     * Encodes a time so that the byte order of the Values, which compare
+     * signed bytes, is the order of the times.
+     **/
+    private static void encode(long time, byte[] data) {
+        long bits = time ^ Long.MIN_VALUE;
+
+        for (int i = 0; i < 8; i++) {
+            data[i] = (byte) ((bits >>> (56 - (8 * i))) ^ 0x80);
+        }
+    }
+
+    private static long decode(byte[] data) {
+        long bits = 0;
+
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | ((data[i] ^ 0x80) & 0xFF);
+        }
+        return bits ^ Long.MIN_VALUE;
+    }
+
+    private static byte[] toByteArray(Map indexables) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+
+            if (indexables == null) {
+                dos.writeInt(-1);
+            } else {
+                dos.writeInt(indexables.size());
+                Iterator each = indexables.entrySet().iterator();
+                while (each.hasNext()) {
+                    Map.Entry anEntry = (Map.Entry) each.next();
+
+                    dos.writeUTF((String) anEntry.getKey());
+                    dos.writeUTF((String) anEntry.getValue());
+                }
+            }
+            dos.close();
+            return bos.toByteArray();
+        } catch (IOException ie) {
+            // can't happen, the stream is in memory
+            throw new IllegalStateException("Can't write index values");
+        }
+    }
+
+    private static Map fromRecord(Record record) {
+        if (record == null) {
+            return null;
+        }
+        try {
+            DataInputStream dis = new DataInputStream(record.getValue().getInputStream());
+            int size = dis.readInt();
+
+            if (size < 0) {
+                return null;
+            }
+            Map indexables = new HashMap(size);
+            for (int i = 0; i < size; i++) {
+                String name = dis.readUTF();
+
+                indexables.put(name, dis.readUTF());
+            }
+            return indexables;
+        } catch (IOException ie) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Exception while reading index values", ie);
+            }
+            return null;
+        }
+    }
+}
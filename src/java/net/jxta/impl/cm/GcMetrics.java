@@ -0,0 +1,145 @@
+/*
+ *  $Id$
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ *
+ *  $Id$
+ */
+
+package net.jxta.impl.cm;
+
+/**
+ * The number, durations and results of the garbage collections of a
+ * {@link Cm} or {@link SrdiIndex}. Updates wait while a collection runs,
+ * so the durations are also the pauses the collections cause.
+ **/
+public final class GcMetrics {
+
+    private long collections = 0;
+    private long totalTime = 0;
+    private long lastTime = 0;
+    private long maxTime = 0;
+    private long purged = 0;
+    private long lastPurged = 0;
+
+    /**
+     * Records a collection.
+     *
+     * @param duration the duration of the collection in ms
+     * @param count the number of entries it purged
+     **/
+    synchronized void collected(long duration, int count) {
+        collections++;
+        totalTime += duration;
+        lastTime = duration;
+        if (duration > maxTime) {
+            maxTime = duration;
+        }
+        purged += count;
+        lastPurged = count;
+    }
+
+    /**
+     * @return the number of collections
+     **/
+    public synchronized long getCollections() {
+        return collections;
+    }
+
+    /**
+     * @return the total duration of the collections in ms
+     **/
+    public synchronized long getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @return the duration of the last collection in ms
+     **/
+    public synchronized long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * @return the duration of the longest collection in ms
+     **/
+    public synchronized long getMaxTime() {
+        return maxTime;
+    }
+
+    /**
+     * @return the number of entries purged by the collections
+     **/
+    public synchronized long getPurged() {
+        return purged;
+    }
+
+    /**
+     * @return the number of entries purged by the last collection
+     **/
+    public synchronized long getLastPurged() {
+        return lastPurged;
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public synchronized String toString() {
+        return "collections=" + collections +
+               " total=" + totalTime + "ms" +
+               " last=" + lastTime + "ms" +
+               " max=" + maxTime + "ms" +
+               " purged=" + purged +
+               " last purged=" + lastPurged;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  $Id$
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ *
+ *  $Id$
+ */
+
+package net.jxta.impl.cm;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A consistent hash ring over the peers of a peerview. Each peer is placed
+ * on the ring at a number of points, its virtual nodes, derived from the
+ * hash of its ID. An expression maps to the first peer found clockwise from
+ * the hash of the expression, so when a peer joins or leaves only the
+ * expressions mapping next to its points move, rather than nearly all of
+ * them as when the hash is spread over the positions of the peerview.
+ *
+ * <p/>The points are the first 64 bits of the SHA-1 digests, kept in a
+ * sorted array which lookups search. Each thread has its own digest, and a
+ * ring does not change once built, so lookups take no locks. A new ring is
+ * built when the peerview changes.
+ */
+public final class HashRing {
+
+    /**
+     * The digest of each thread.
+     */
+    private static final ThreadLocal digests = new ThreadLocal() {
+        protected Object initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException absent) {
+                throw new IllegalStateException("SHA-1 is not available");
+            }
+        }
+    };
+
+    private final List peers;
+    // The points in ascending order, and the peer at each.
+    private final long[] points;
+    private final Object[] owners;
+
+    /**
+     * Builds the ring of a peerview.
+     *
+     * @param  peers         the peers of the peerview. Their string forms
+     *                       are hashed to place them.
+     * @param  virtualNodes  the number of points at which each peer is placed
+     */
+    public HashRing(List peers, int virtualNodes) {
+        this.peers = Collections.unmodifiableList(new ArrayList(peers));
+        virtualNodes = Math.max(1, virtualNodes);
+
+        int size = this.peers.size() * virtualNodes;
+        long[] hashes = new long[size];
+        long[] sorted = new long[size];
+
+        for (int p = 0; p < this.peers.size(); p++) {
+            String name = this.peers.get(p).toString();
+
+            for (int i = 0; i < virtualNodes; i++) {
+                hashes[(p * virtualNodes) + i] = hash(name + "#" + i);
+            }
+        }
+        System.arraycopy(hashes, 0, sorted, 0, size);
+        Arrays.sort(sorted);
+
+        // should two points collide the ring keeps the first peer.
+        int distinct = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        points = new long[distinct];
+        owners = new Object[distinct];
+        System.arraycopy(sorted, 0, points, 0, distinct);
+        for (int i = 0; i < size; i++) {
+            int at = Arrays.binarySearch(points, hashes[i]);
+
+            if (owners[at] == null) {
+                owners[at] = this.peers.get(i / virtualNodes);
+            }
+        }
+    }
+
+    /**
+     * Returns the peers the ring was built from.
+     *
+     * @return the peers, in the order given
+     */
+    public List getPeers() {
+        return peers;
+    }
+
+    /**
+     * Returns the peer an expression maps to.
+     *
+     * @param  expression  expression to derive the mapping from
+     * @return             the peer, or null if the ring is empty
+     */
+    public Object getPeer(String expression) {
+        if (points.length == 0) {
+            return null;
+        }
+        return owners[find(hash(expression))];
+    }
+
+    /**
+     * Returns the distinct peers found clockwise from an expression. The
+     * first is the peer the expression maps to, and the others are the
+     * peers it would move to if those before them left.
+     *
+     * @param  expression  expression to derive the mapping from
+     * @param  count       the number of peers wanted
+     * @return             up to count peers
+     */
+    public List getPeers(String expression, int count) {
+        count = Math.min(count, peers.size());
+        List result = new ArrayList(Math.max(count, 0));
+
+        if (count <= 0 || points.length == 0) {
+            return result;
+        }
+
+        int at = find(hash(expression));
+
+        for (int i = 0; (i < points.length) && (result.size() < count); i++) {
+            Object peer = owners[(at + i) % points.length];
+
+            if (!result.contains(peer)) {
+                result.add(peer);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the first point at or after a hash, wrapping
+     * around to the first point.
+     */
+    private int find(long hash) {
+        int at = Arrays.binarySearch(points, hash);
+
+        if (at < 0) {
+            at = -(at + 1);
+        }
+        return (at == points.length) ? 0 : at;
+    }
+
+    /**
+     * Returns the first 64 bits of the digest of an expression.
+     */
+    private static long hash(String expression) {
+        MessageDigest digest = (MessageDigest) digests.get();
+        byte[] bytes = digest.digest(expression.getBytes());
+        long hash = 0;
+
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (bytes[i] & 0xFF);
+        }
+        return hash;
+    }
+}
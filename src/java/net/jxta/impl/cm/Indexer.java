@@ -65,13 +65,17 @@ import java.io.InputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -79,11 +83,17 @@ import org.apache.log4j.Logger;
 import net.jxta.impl.xindice.core.data.Key;
 import net.jxta.impl.xindice.core.data.Value;
 import net.jxta.impl.xindice.core.data.Record;
+import net.jxta.impl.xindice.core.filer.BTree;
 import net.jxta.impl.xindice.core.filer.BTreeException;
+import net.jxta.impl.xindice.core.filer.BTreeNotFoundException;
 import net.jxta.impl.xindice.core.DBException;
+import net.jxta.impl.xindice.core.FaultCodes;
 import net.jxta.impl.xindice.core.filer.BTreeFiler;
 import net.jxta.impl.xindice.core.filer.BTreeCallback;
+import net.jxta.impl.xindice.core.filer.BTreeCorruptException;
+import net.jxta.impl.xindice.core.filer.FilerException;
 import net.jxta.impl.xindice.core.indexer.IndexQuery;
+import net.jxta.impl.xindice.core.indexer.NGramIndexer;
 import net.jxta.impl.xindice.core.indexer.NameIndexer;
 
 public final class Indexer {
@@ -94,6 +104,12 @@ public final class Indexer {
     private final static String listFileName = "offsets";
     private BTreeFiler listDB = null;
     private boolean sync = true;
+    private long commitInterval = 0;
+    private int commitSize = 0;
+    private boolean memoryMapped = false;
+    private int cacheSize = 0;
+    private Set substringIndexed = Collections.EMPTY_SET;
+    private HashMap ngrams = new HashMap();
 
     /**
      * The Log4J debugging category.
@@ -123,6 +139,71 @@ public final class Indexer {
         indices = new HashMap();
         this.sync = sync;
     }
+    /**
+     * Enables the write-ahead log for the indexes and the listDB.
+     * Must be called before {@link #setLocation(String, String)}.
+     *
+     * @param commitInterval the maximum time in milliseconds an update waits
+     *        before it is committed to the log
+     * @param commitSize the number of updated pages which causes an
+     *        immediate commit
+     * @see net.jxta.impl.xindice.core.filer.Paged#setWriteAheadLog(long, int)
+     */
+    public void setWriteAheadLog(long commitInterval, int commitSize) {
+        this.commitInterval = commitInterval;
+        this.commitSize = commitSize;
+    }
+
+    /**
+     * Selects memory mapped page I/O for the indexes and the listDB.
+     * Must be called before {@link #setLocation(String, String)}.
+     *
+     * @param memoryMapped true to map the database files
+     * @see net.jxta.impl.xindice.core.filer.Paged#setMemoryMapped(boolean)
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Sets the size of the page cache of each of the indexes and the listDB.
+     * Must be called before {@link #setLocation(String, String)}.
+     *
+     * @param cacheSize the number of pages, or zero for the default
+     * @see net.jxta.impl.xindice.core.filer.Paged#setCacheSize(int)
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Selects the indexes which also keep a substring index, so that
+     * ends-with and contains queries against them only visit the values
+     * which may match rather than every value of the index.
+     * Must be called before {@link #setLocation(String, String)}.
+     *
+     * @param names the names of the indexes
+     * @see net.jxta.impl.xindice.core.indexer.NGramIndexer
+     */
+    public void setSubstringIndexed(Set names) {
+        substringIndexed = new HashSet(names);
+    }
+
+    /**
+     * Applies the sync, write-ahead log, mapping and cache settings to a
+     * database.
+     */
+    private void configure(BTree db) {
+        db.setSync(sync);
+        if (commitInterval > 0) {
+            db.setWriteAheadLog(commitInterval, commitSize);
+        }
+        db.setMemoryMapped(memoryMapped);
+        if (cacheSize > 0) {
+            db.setCacheSize(cacheSize);
+        }
+    }
+
     public void setLocation(String dir, String file) {
         this.dir = dir;
         this.file = file;
@@ -148,7 +229,7 @@ public final class Indexer {
                         // location should be the same as in
                         // addToIndex below
                         indexer.setLocation(dir, file + "-" + name);
-                        indexer.setSync(sync);
+                        configure(indexer);
                         if (!indexer.open()) {
                             indexer.create();
                             indexer.open();
@@ -157,6 +238,7 @@ public final class Indexer {
                             LOG.debug("Adding :" + indexFileName + " under " + name);
                         }
                         indices.put(name, indexer);
+                        openSubstringIndex(name, indexer);
                     } catch (DBException ignore) {
                         if (LOG.isEnabledFor(Level.ERROR)) {
                             LOG.error("Failed to create Index " + name , ignore);
@@ -168,7 +250,7 @@ public final class Indexer {
         try {
             // record pointers
             listDB = new BTreeFiler();
-            listDB.setSync(sync);
+            configure(listDB);
             listDB.setLocation(directory.getCanonicalPath(), file + "-" + listFileName);
             if (!listDB.open()) {
                 listDB.create();
@@ -187,6 +269,46 @@ public final class Indexer {
         }
     }
 
+    /**
+     * Opens the substring index of an index if one is wanted. A substring
+     * index which had to be created is filled from the index.
+     */
+    private void openSubstringIndex(String name, NameIndexer indexer)
+    throws DBException {
+
+        if (!substringIndexed.contains(name)) {
+            return;
+        }
+        NGramIndexer ngram = new NGramIndexer();
+        ngram.setLocation(dir, file + "-" + name);
+        configure(ngram);
+        if (!ngram.open()) {
+            ngram.create();
+            ngram.open();
+
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Building substring index for " + name);
+            }
+            final List values = new ArrayList();
+            try {
+                indexer.query(null, new BTreeCallback() {
+                                  public boolean indexInfo(Value val, long pos) {
+                                      values.add(val);
+                                      return true;
+                                  }
+                              }
+                             );
+            } catch (IOException ie) {
+                throw new BTreeCorruptException("Corruption detected on query");
+            }
+            Iterator vi = values.iterator();
+            while (vi.hasNext()) {
+                ngram.add((Value) vi.next());
+            }
+        }
+        ngrams.put(name, ngram);
+    }
+
     public boolean open() throws DBException {
         return true;
     }
@@ -212,6 +334,11 @@ public final class Indexer {
                 LOG.debug("Clearing indices HashMap");
             }
             indices.clear();
+            i = ngrams.values().iterator();
+            while (i.hasNext()) {
+                ((NGramIndexer) i.next()).close();
+            }
+            ngrams.clear();
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Closing listDB");
             }
@@ -286,8 +413,9 @@ public final class Indexer {
     throws IOException, BTreeException {
 
         BTreeCallback cb = new SearchCallback(listDB, callback);
+        int op = IndexQuery.ANY;
         if (query != null) {
-            int op = query.getOperator();
+            op = query.getOperator();
             if (op == IndexQuery.EW ||
                 op == IndexQuery.NEW ||
                 op == IndexQuery.BWX) {
@@ -319,10 +447,166 @@ public final class Indexer {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Searching Index : "+ name);
             }
+            NGramIndexer ngram = (NGramIndexer) ngrams.get(name);
+            if (ngram != null && (op == IndexQuery.EW || op == IndexQuery.BWX)) {
+                Set candidates = ngram.candidates(query.getValue(0));
+                if (candidates != null) {
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("Substring index of " + name + " gave " + candidates.size() + " candidates");
+                    }
+                    // cb filters out the candidates which don't match. Once
+                    // it returns false no more candidates are looked up, as
+                    // BTree.query stops reporting its matches.
+                    Iterator ci = candidates.iterator();
+                    while (ci.hasNext()) {
+                        Value val = (Value) ci.next();
+                        try {
+                            if (!cb.indexInfo(val, indexer.findValue(val))) {
+                                break;
+                            }
+                        } catch (BTreeNotFoundException gone) {
+                            // removed from the index but not the substring index
+                        }
+                    }
+                    return;
+                }
+            }
             indexer.query(query, cb);
         }
     }
 
+    /**
+     * Returns an index, which is created if there isn't one yet.
+     */
+    private NameIndexer getIndexer(String name)
+    throws DBException {
+
+        NameIndexer indexer = (NameIndexer) indices.get(name);
+        if (indexer == null) {
+            indexer = new NameIndexer();
+            // location should be the same as in setLocation above
+            indexer.setLocation(dir, file + "-" + name);
+            configure(indexer);
+            if (!indexer.open()) {
+                indexer.create();
+                indexer.open();
+            }
+            indices.put(name, indexer);
+            openSubstringIndex(name, indexer);
+        }
+        return indexer;
+    }
+
+    /**
+     * Returns the entries of every index in the form taken by
+     * {@link #load(Map, int)}, with each record position replaced by the
+     * one it has moved to. Positions which haven't moved anywhere are
+     * dropped, and so are the values left without any.
+     *
+     * @param moved a Map of the Long positions of the records to their
+     * new Long positions
+     * @return a Map of the index names to SortedMaps of the values to the
+     * Sets of the Long positions of the records holding them
+     */
+    Map getEntries(Map moved)
+    throws IOException, DBException {
+
+        Map entries = new HashMap();
+        Iterator ni = indices.keySet().iterator();
+        while (ni.hasNext()) {
+            String name = (String) ni.next();
+            NameIndexer indexer = (NameIndexer) indices.get(name);
+            final List values = new ArrayList();
+            final List listPositions = new ArrayList();
+
+            indexer.query(null, new BTreeCallback() {
+                              public boolean indexInfo(Value val, long pos) {
+                                  values.add(val);
+                                  listPositions.add(new Long(pos));
+                                  return true;
+                              }
+                          }
+                         );
+
+            SortedMap found = new TreeMap();
+            for (int i = 0; i < values.size(); i++) {
+                Set offsets = readRecord(listDB.readRecord(((Long) listPositions.get(i)).longValue()));
+                Set positions = new TreeSet();
+                Iterator oi = offsets.iterator();
+                while (oi.hasNext()) {
+                    Object to = moved.get(oi.next());
+                    if (to != null) {
+                        positions.add(to);
+                    }
+                }
+                if (!positions.isEmpty()) {
+                    found.put(values.get(i), positions);
+                }
+            }
+            entries.put(name, found);
+        }
+        return entries;
+    }
+
+    /**
+     * Builds the indexes of an Indexer which has none yet. The lists of
+     * record positions are written in key order and each index is built
+     * bottom-up, rather than by adding the entries one at a time.
+     *
+     * @param entries a Map of the index names to SortedMaps of the values
+     * to the Sets of the Long positions of the records holding them
+     * @param fill the percentage of each page to fill
+     */
+    void load(Map entries, int fill)
+    throws IOException, DBException {
+
+        if (!indices.isEmpty() || listDB.getRecordCount() > 0) {
+            throw new FilerException(FaultCodes.DBE_CANNOT_CREATE, "Can't load indexes which aren't empty");
+        }
+
+        // the lists are keyed by the index name followed by the value
+        SortedMap lists = new TreeMap();
+        Iterator ni = entries.keySet().iterator();
+        while (ni.hasNext()) {
+            String name = (String) ni.next();
+            Iterator each = ((SortedMap) entries.get(name)).entrySet().iterator();
+            while (each.hasNext()) {
+                Map.Entry anEntry = (Map.Entry) each.next();
+                lists.put(new Key(name + anEntry.getKey()), anEntry.getValue());
+            }
+        }
+
+        Map listPositions = new HashMap();
+        BTreeFiler.RecordLoader listLoader = listDB.loadRecords(fill);
+        Iterator each = lists.entrySet().iterator();
+        while (each.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) each.next();
+            Key dbKey = (Key) anEntry.getKey();
+            Value recordValue = new Value(toByteArray((Set) anEntry.getValue()));
+            listPositions.put(dbKey, new Long(listLoader.add(new Record(dbKey, recordValue))));
+        }
+        listLoader.finish();
+
+        ni = entries.keySet().iterator();
+        while (ni.hasNext()) {
+            String name = (String) ni.next();
+            SortedMap values = (SortedMap) entries.get(name);
+            NameIndexer indexer = getIndexer(name);
+            BTree.Loader loader = indexer.load(fill);
+            Iterator vi = values.keySet().iterator();
+            while (vi.hasNext()) {
+                Value val = (Value) vi.next();
+                Long listPos = (Long) listPositions.get(new Key(name + val));
+                loader.add(val, listPos.longValue());
+            }
+            loader.finish();
+            NGramIndexer ngram = (NGramIndexer) ngrams.get(name);
+            if (ngram != null) {
+                ngram.load(values.keySet(), fill);
+            }
+        }
+    }
+
     public void addToIndex(Map indexables, long pos)
     throws IOException, DBException {
 
@@ -336,23 +620,20 @@ public final class Indexer {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("looking up NameIndexer : " + name);
             }
-            NameIndexer indexer = (NameIndexer) indices.get(name);
-            if (indexer == null) {
-                indexer = new NameIndexer();
-                // location should be the same as in setLocation above
-                indexer.setLocation(dir, file + "-" + name);
-                indexer.setSync(sync);
-                if (!indexer.open()) {
-                    indexer.create();
-                    indexer.open();
-                }
-                indices.put(name, indexer);
-            }
+            NameIndexer indexer = getIndexer(name);
 
             //we need to make sure that the db key is unique from the
             //the index key to avoid value collision
             Key dbKey = new Key(name + (String) indexables.get(name));
             Key indexKey = new Key((String) indexables.get(name));
+            NGramIndexer ngram = (NGramIndexer) ngrams.get(name);
+            if (ngram != null) {
+                try {
+                    indexer.findValue(indexKey);
+                } catch (BTreeNotFoundException fresh) {
+                    ngram.add(indexKey);
+                }
+            }
             long listPos = writeRecord(listDB, dbKey, pos);
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Adding a reference at position :" + listPos +
@@ -394,6 +675,10 @@ public final class Indexer {
                             // only we can proceed to remove the entry from the index
                             listDB.deleteRecord(dbKey);
                             indexer.remove(indexKey);
+                            NGramIndexer ngram = (NGramIndexer) ngrams.get(name);
+                            if (ngram != null) {
+                                ngram.remove(indexKey);
+                            }
                         }
                     } else {
                         // empty record purge it
@@ -418,7 +703,8 @@ public final class Indexer {
         Object[] objKeys = keys.toArray();
         for(int i=0; i<objKeys.length; i++ ){
             NameIndexer index = (NameIndexer) indices.get(objKeys[i]);
-            PurgeCallback pc = new PurgeCallback(listDB, index, (String)objKeys[i], list);
+            NGramIndexer ngram = (NGramIndexer) ngrams.get(objKeys[i]);
+            PurgeCallback pc = new PurgeCallback(listDB, index, ngram, (String)objKeys[i], list);
             index.query(iq, pc);
         }
     }
@@ -437,8 +723,10 @@ public final class Indexer {
         Object[] objKeys = keys.toArray();
         for(int i=0; i<objKeys.length; i++ ){
             NameIndexer index = (NameIndexer) indices.get(objKeys[i]);
+            NGramIndexer ngram = (NGramIndexer) ngrams.get(objKeys[i]);
             PurgeCallback pc = new PurgeCallback(listDB, 
                                                  index,
+                                                 ngram,
                                                  (String)objKeys[i], 
                                                  Collections.singletonList(new Long(pos)));
             index.query(iq, pc);
@@ -448,13 +736,15 @@ public final class Indexer {
     private static final class PurgeCallback implements BTreeCallback {
 
         private NameIndexer indexer = null;
+        private NGramIndexer ngram = null;
         private List list;
         private BTreeFiler listDB = null;
         private String indexKey = null;
         
-        PurgeCallback(BTreeFiler listDB, NameIndexer indexer, String indexKey, List list) {
+        PurgeCallback(BTreeFiler listDB, NameIndexer indexer, NGramIndexer ngram, String indexKey, List list) {
             this.listDB = listDB;
             this.indexer = indexer;
+            this.ngram = ngram;
             this.indexKey = indexKey;
             this.list = list;
         }
@@ -477,6 +767,9 @@ public final class Indexer {
                         } else {
                             listDB.deleteRecord(new Key(indexKey + val));
                             indexer.remove(new Key(val));
+                            if (ngram != null) {
+                                ngram.remove(val);
+                            }
                         }
                     } else {
                         // not a match continue callback
@@ -0,0 +1,451 @@
+/*
+ *  $Id$
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ *
+ *  $Id$
+ */
+
+package net.jxta.impl.cm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.impl.xindice.core.DBException;
+import net.jxta.impl.xindice.core.data.Key;
+import net.jxta.impl.xindice.core.data.Record;
+import net.jxta.impl.xindice.core.data.Value;
+import net.jxta.impl.xindice.core.indexer.IndexQuery;
+
+/**
+ * A {@link CmStore} which keeps everything in memory, for peers whose cache
+ * need not outlive them. Nothing is written to disk and no directory is
+ * created for the Cm.
+ *
+ * <p/>The records are kept in a map sorted by key so that the records of a
+ * directory are found from their common prefix. Each index is a map sorted
+ * by value to the keys of the records holding that value. The records are
+ * also kept ordered by lifetime so that purging visits only the records
+ * which have expired.
+ *
+ * <p/>MemStore is not synchronized. Cm guards it with its read/write lock,
+ * under which any number of lookups proceed in parallel.
+ **/
+public final class MemStore implements CmStore {
+
+    /**
+     * The Log4J debugging category.
+     **/
+    private final static Logger LOG = Logger.getLogger(MemStore.class.getName());
+
+    /**
+     * The records by Key.
+     **/
+    private final TreeMap records = new TreeMap();
+
+    /**
+     * The indexes by name. Each is a TreeMap of Value to a Set of Keys.
+     **/
+    private final Map indices = new HashMap();
+
+    /**
+     * The records in the order they expire.
+     **/
+    private final TreeSet expiry = new TreeSet();
+
+    /**
+     * A record and the index values it was stored with.
+     **/
+    private static final class Entry implements Comparable {
+        final Key key;
+        final byte[] data;
+        final long created;
+        final long modified;
+        final long lifetime;
+        final long expiration;
+        final Map indexables;
+
+        Entry(Key key, byte[] data, long created, long lifetime, long expiration, Map indexables) {
+            this.key = key;
+            this.data = data;
+            this.created = created;
+            this.modified = System.currentTimeMillis();
+            this.lifetime = lifetime;
+            this.expiration = expiration;
+            this.indexables = indexables;
+        }
+
+        Record toRecord() {
+            Map meta = new HashMap(4);
+
+            meta.put(Record.CREATED, new Long(created));
+            meta.put(Record.MODIFIED, new Long(modified));
+            meta.put(Record.LIFETIME, new Long(lifetime));
+            meta.put(Record.EXPIRATION, new Long(expiration));
+
+            // hand out a copy, callers may keep and change the bytes
+            byte[] copy = new byte[data.length];
+            System.arraycopy(data, 0, copy, 0, data.length);
+            return new Record(key, new Value(copy), meta);
+        }
+
+        /**
+         * Orders by lifetime and then by key.
+         **/
+        public int compareTo(Object obj) {
+            Entry other = (Entry) obj;
+
+            if (lifetime != other.lifetime) {
+                return lifetime < other.lifetime ? -1 : 1;
+            }
+            return key.compareTo(other.key);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void open(File dir) throws DBException {
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Keeping " + dir + " in memory");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void close() throws DBException {
+        records.clear();
+        indices.clear();
+        expiry.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public Record readRecord(Key key) throws DBException {
+        Entry entry = (Entry) records.get(key);
+
+        return entry == null ? null : entry.toRecord();
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void writeRecord(Key key, Value value, long lifetime, long expiration, Map indexables) throws DBException {
+        long created = System.currentTimeMillis();
+        Entry old = (Entry) records.get(key);
+
+        if (old != null) {
+            created = old.created;
+            remove(old);
+        }
+
+        byte[] data = new byte[value.getLength()];
+        value.copyTo(data, 0);
+
+        Map indexed = Collections.EMPTY_MAP;
+        if (indexables != null && !indexables.isEmpty()) {
+            indexed = new HashMap(indexables);
+        }
+
+        Entry entry = new Entry(key, data, created, lifetime, expiration, indexed);
+
+        records.put(key, entry);
+        expiry.add(entry);
+
+        Iterator each = indexed.entrySet().iterator();
+        while (each.hasNext()) {
+            Map.Entry anIndexable = (Map.Entry) each.next();
+            TreeMap index = (TreeMap) indices.get(anIndexable.getKey());
+
+            if (index == null) {
+                index = new TreeMap();
+                indices.put(anIndexable.getKey(), index);
+            }
+
+            Value indexValue = new Value((String) anIndexable.getValue());
+            Set keys = (Set) index.get(indexValue);
+
+            if (keys == null) {
+                keys = new TreeSet();
+                index.put(indexValue, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>The index values are known from when the record was written so
+     * the given indexables are not needed.
+     **/
+    public boolean deleteRecord(Key key, Map indexables) throws DBException {
+        Entry entry = (Entry) records.get(key);
+
+        if (entry == null) {
+            return false;
+        }
+        remove(entry);
+        return true;
+    }
+
+    /**
+     * Removes an entry from the records, the expiry order and the indexes.
+     **/
+    private void remove(Entry entry) {
+        records.remove(entry.key);
+        expiry.remove(entry);
+
+        Iterator each = entry.indexables.entrySet().iterator();
+        while (each.hasNext()) {
+            Map.Entry anIndexable = (Map.Entry) each.next();
+            TreeMap index = (TreeMap) indices.get(anIndexable.getKey());
+
+            if (index == null) {
+                continue;
+            }
+
+            Value indexValue = new Value((String) anIndexable.getValue());
+            Set keys = (Set) index.get(indexValue);
+
+            if (keys != null) {
+                keys.remove(entry.key);
+                if (keys.isEmpty()) {
+                    index.remove(indexValue);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void query(String prefix, RecordCallback callback) throws DBException {
+        Key from = new Key(prefix);
+        List found = new ArrayList();
+
+        // gather first, the callback may change the records
+        Iterator each = records.tailMap(from).values().iterator();
+        while (each.hasNext()) {
+            Entry entry = (Entry) each.next();
+
+            if (!entry.key.startsWith(from)) {
+                break;
+            }
+            found.add(entry);
+        }
+
+        for (int i = 0; i < found.size(); i++) {
+            Entry entry = (Entry) found.get(i);
+
+            if (records.get(entry.key) != entry) {
+                // removed by the callback
+                continue;
+            }
+            if (!callback.record(entry.key, entry.toRecord())) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void search(String name, IndexQuery query, RecordCallback callback) throws DBException {
+        TreeMap index = (TreeMap) indices.get(name);
+
+        if (index == null) {
+            return;
+        }
+
+        int op = (query == null) ? IndexQuery.ANY : query.getOperator();
+
+        // gather first, the callback may change the records
+        List values = new ArrayList();
+        List keys = new ArrayList();
+
+        if (op == IndexQuery.EQ) {
+            Set found = (Set) index.get(query.getValue(0));
+
+            if (found != null) {
+                gather(query.getValue(0), found, values, keys);
+            }
+        } else {
+            SortedMap candidates = index;
+
+            if (op == IndexQuery.SW || op == IndexQuery.GT || op == IndexQuery.GEQ) {
+                candidates = index.tailMap(query.getValue(0));
+            }
+
+            Iterator each = candidates.entrySet().iterator();
+            while (each.hasNext()) {
+                Map.Entry anEntry = (Map.Entry) each.next();
+                Value value = (Value) anEntry.getKey();
+
+                if (op == IndexQuery.SW && !value.startsWith(query.getValue(0))) {
+                    // past the values with the prefix
+                    break;
+                }
+                if (matches(op, query, value)) {
+                    gather(value, (Set) anEntry.getValue(), values, keys);
+                }
+            }
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            Entry entry = (Entry) records.get(keys.get(i));
+
+            if (entry == null) {
+                // removed by the callback
+                continue;
+            }
+            if (!callback.record((Value) values.get(i), entry.toRecord())) {
+                break;
+            }
+        }
+    }
+
+    private static void gather(Value value, Set found, List values, List keys) {
+        Iterator eachKey = found.iterator();
+
+        while (eachKey.hasNext()) {
+            values.add(value);
+            keys.add(eachKey.next());
+        }
+    }
+
+    /**
+     * Tests an index value, with EW, NEW and BWX taken as Indexer does.
+     **/
+    private static boolean matches(int op, IndexQuery query, Value value) {
+        switch (op) {
+        case IndexQuery.ANY:
+            return true;
+
+        case IndexQuery.EW:
+            return value.endsWith(query.getValue(0));
+
+        case IndexQuery.NEW:
+            return !value.endsWith(query.getValue(0));
+
+        case IndexQuery.BWX:
+            return value.contains(query.getValue(0));
+
+        default:
+            return query.testValue(value);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public Set getIndexNames() {
+        return new HashSet(indices.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public int purge(long now) throws DBException {
+        int purged = 0;
+
+        while (!expiry.isEmpty()) {
+            Entry entry = (Entry) expiry.first();
+
+            if (entry.lifetime > now) {
+                break;
+            }
+            remove(entry);
+            purged++;
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Purged " + purged + " records, " + records.size() + " remain");
+        }
+        return purged;
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void load(Iterator entries) throws DBException {
+        while (entries.hasNext()) {
+            CmStore.Entry entry = (CmStore.Entry) entries.next();
+
+            writeRecord(entry.key, entry.value, entry.lifetime, entry.expiration, entry.indexables);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>There is nothing to reclaim.
+     **/
+    public void compact() {
+    }
+}
@@ -58,11 +58,16 @@ package net.jxta.impl.cm;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -87,14 +92,19 @@ import net.jxta.protocol.RdvAdvertisement;
 import net.jxta.protocol.ResolverQueryMsg;
 import net.jxta.protocol.ResolverSrdiMsg;
 import net.jxta.protocol.SrdiMessage;
+import net.jxta.rendezvous.RendezVousService;
 import net.jxta.rendezvous.RendezvousEvent;
 import net.jxta.rendezvous.RendezvousListener;
 import net.jxta.resolver.ResolverService;
 
 import net.jxta.impl.protocol.ResolverSrdiMsgImpl;
 import net.jxta.impl.protocol.SrdiMessageImpl;
+import net.jxta.impl.rendezvous.RendezVousServiceInterface;
 import net.jxta.impl.rendezvous.rpv.PeerViewEvent;
+import net.jxta.impl.rendezvous.rpv.PeerViewListener;
 import net.jxta.impl.util.JxtaHash;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.TokenBucket;
 
 
 /**
@@ -123,7 +133,7 @@ import net.jxta.impl.util.JxtaHash;
  *
  * @see <a href="http://spec.jxta.org/nonav/v1.0/docbook/JXTAProtocols.html#proto-prp" target="_blank">JXTA Protocols Specification : Peer Resolver Protocol</a>
  */
-public class Srdi implements Runnable, RendezvousListener {
+public class Srdi implements Runnable, RendezvousListener, PeerViewListener {
     
     /**
      *  Log4J Logger
@@ -142,7 +152,71 @@ public class Srdi implements Runnable, RendezvousListener {
     
     private ResolverService resolver;
     private MembershipService membership;
-    private JxtaHash jxtaHash = new JxtaHash();
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+    private int replicationFactor = DEFAULT_REPLICATION_FACTOR;
+    
+    /**
+     *  If true entries are mapped to rendezvous on a consistent hash ring,
+     *  otherwise by spreading their hash over the positions of the peerview.
+     */
+    private boolean useRing = false;
+    
+    /**
+     *  The hash of each thread for the linear mapping.
+     */
+    private static final ThreadLocal jxtaHashes = new ThreadLocal() {
+        protected Object initialValue() {
+            return new JxtaHash();
+        }
+    };
+    
+    /**
+     *  The global peerview and its hash ring, rebuilt when the version of the
+     *  peerview changes.
+     */
+    private volatile Snapshot snapshot = null;
+    
+    /**
+     *  Incremented whenever the peerview changes.
+     */
+    private volatile int peerViewVersion = 0;
+    
+    /**
+     *  If true the peerview version follows the peerview events, otherwise
+     *  the peerview is compared with the snapshot on every lookup.
+     */
+    private boolean peerViewEvents = false;
+    
+    /**
+     *  If true SRDI messages are sent in the compact encoding to the peers
+     *  which accept it.
+     */
+    private boolean compactPayload = false;
+    
+    /**
+     *  The peers known to accept compact SRDI payloads, with the time until
+     *  which this is assumed, least recently used first.
+     */
+    private final Map compactPeers = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > MAX_COMPACT_PEERS;
+        }
+    };
+    
+    /**
+     *  The number of entries pushed per message when all entries are pushed.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    
+    /**
+     *  Paces the pushing of entries, null if unlimited.
+     */
+    private TokenBucket pushRate = null;
+    
+    /**
+     *  The digest buckets rendezvous asked for, pushed by the Srdi thread.
+     */
+    private final List wanted = new ArrayList();
     private CredentialListener membershipCredListener = null;
     private Credential credential = null;
     private StructuredDocument credentialDoc = null;
@@ -155,6 +229,67 @@ public class Srdi implements Runnable, RendezvousListener {
     // This ought be to configurable/based on a function applied to the rpv size
     public static final int RPV_REPLICATION_THRESHOLD = 3;
     
+    /**
+     * Default number of points at which each rendezvous is placed on the
+     * hash ring.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 64;
+    
+    /**
+     * Default number of rendezvous each SRDI entry is replicated to.
+     */
+    public static final int DEFAULT_REPLICATION_FACTOR = 1;
+    
+    /**
+     * Maximum number of peers remembered as accepting compact SRDI payloads.
+     */
+    public static final int MAX_COMPACT_PEERS = 1024;
+    
+    /**
+     * How long a peer is assumed to accept compact SRDI payloads without
+     * hearing so again.
+     */
+    public static final long COMPACT_PEER_LIFETIME = 30 * TimeUtils.AMINUTE;
+    
+    /**
+     * Default number of entries pushed per message when all entries are
+     * pushed.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 250;
+    
+    /**
+     * Default number of entries pushed per second when all entries are
+     * pushed.
+     */
+    public static final int DEFAULT_ENTRIES_PER_SECOND = 1000;
+    
+    /**
+     * Mime type of the payload of a digest exchange, a compact SRDI message
+     * holding the buckets of an {@link SrdiDigest}.
+     */
+    public static final MimeMediaType DIGEST_MIME_TYPE = new MimeMediaType("text/x-jxta-srdi-digest");
+    
+    /**
+     * Entries a rendezvous holds which expire within this time are left out
+     * of its digest so that they are pushed again.
+     */
+    public static final long DIGEST_HORIZON = 15 * TimeUtils.AMINUTE;
+    
+    /**
+     *  Buckets of a digest a rendezvous asked for.
+     */
+    private static final class Want {
+        final PeerID peer;
+        final String primaryKey;
+        final BitSet buckets;
+        
+        Want(PeerID peer, String primaryKey, BitSet buckets) {
+            this.peer = peer;
+            this.primaryKey = primaryKey;
+            this.buckets = buckets;
+        }
+    }
+    
     /**
      *  Listener we use for membership property events.
      */
@@ -202,6 +337,25 @@ public class Srdi implements Runnable, RendezvousListener {
         void pushEntries(boolean all);
     }
     
+    /**
+     *  Implemented by services which, when all entries are to be pushed,
+     *  first compare the {@link SrdiDigest} of their entries with that of
+     *  the entries their rendezvous holds and then push only the buckets
+     *  which differ.
+     */
+    public interface SrdiDigestInterface extends SrdiInterface {
+        
+        /**
+         * Push the entries of a primary key which fall into the given
+         * digest buckets.
+         *
+         * @param  peer        the peer to push to
+         * @param  primaryKey  the primary key
+         * @param  buckets     the buckets
+         */
+        void pushEntries(ID peer, String primaryKey, BitSet buckets);
+    }
+    
     /**
      *  Starts the Srdi Service. wait for connectPollInterval prior to
      *  pushing the index if connected to a rdv, otherwise index is
@@ -230,11 +384,51 @@ public class Srdi implements Runnable, RendezvousListener {
         this.connectPollInterval = connectPollInterval;
         this.pushInterval = pushInterval;
         
+        /*
+         * With "ring" set entries are mapped to rendezvous on a consistent
+         * hash ring, with each rendezvous placed at "virtualNodes" points.
+         * All of the rendezvous of a peerview must agree on the mapping, or
+         * entries are pushed to and queried from different rendezvous, so
+         * the ring is only enabled once every rendezvous of the group has it.
+         * Entries may be replicated to the next "replicationFactor" - 1
+         * rendezvous as well, which take over the entries should it leave.
+         */
+        useRing = Boolean.getBoolean(Srdi.class.getName() + ".ring");
+        virtualNodes = Integer.getInteger(Srdi.class.getName() + ".virtualNodes", DEFAULT_VIRTUAL_NODES).intValue();
+        replicationFactor = Math.max(1, Integer.getInteger(Srdi.class.getName() + ".replicationFactor", DEFAULT_REPLICATION_FACTOR).intValue());
+        
+        /*
+         * SRDI messages are XML unless both ends accept the compact encoding.
+         * Every message sent by a peer with compactPayload set says so, a
+         * receiver which accepts it as well answers an XML message with an
+         * empty compact one so that the sender switches too.
+         */
+        compactPayload = Boolean.getBoolean(Srdi.class.getName() + ".compactPayload");
+        
+        /*
+         * When all entries are pushed they are sent in batches, at a limited
+         * rate so that a peer holding many entries does not flood its
+         * rendezvous on connect. An entriesPerSecond of 0 lifts the limit.
+         */
+        batchSize = Math.max(1, Integer.getInteger(Srdi.class.getName() + ".batchSize", DEFAULT_BATCH_SIZE).intValue());
+        
+        int entriesPerSecond = Integer.getInteger(Srdi.class.getName() + ".entriesPerSecond", DEFAULT_ENTRIES_PER_SECOND).intValue();
+        
+        if (entriesPerSecond > 0) {
+            pushRate = new TokenBucket(entriesPerSecond, Math.max(batchSize, entriesPerSecond));
+        }
+        
         membership = group.getMembershipService();
         
         resolver = group.getResolverService();
         
-        group.getRendezVousService().addListener(this);
+        RendezVousService rdv = group.getRendezVousService();
+        
+        rdv.addListener(this);
+        if (rdv instanceof RendezVousServiceInterface) {
+            ((RendezVousServiceInterface) rdv).addPeerViewListener(this);
+            peerViewEvents = true;
+        }
         
         synchronized (this) {
             membershipCredListener = new CredentialListener();
@@ -267,7 +461,12 @@ public class Srdi implements Runnable, RendezvousListener {
         
         stop = true;
         
-        group.getRendezVousService().removeListener(this);
+        RendezVousService rdv = group.getRendezVousService();
+        
+        rdv.removeListener(this);
+        if (peerViewEvents) {
+            ((RendezVousServiceInterface) rdv).removePeerViewListener(this);
+        }
         
         membership.removePropertyChangeListener("defaultCredential", membershipCredListener);
         membershipCredListener = null;
@@ -287,7 +486,8 @@ public class Srdi implements Runnable, RendezvousListener {
     
     public void replicateEntries(SrdiMessage srdiMsg) {
         
-        List rpv = getGlobalPeerView();
+        Snapshot current = getSnapshot();
+        List rpv = current.peers;
         
         if (srdiMsg.getTTL() < 1 || !group.isRendezvous() || rpv.size() < RPV_REPLICATION_THRESHOLD) {
             return;
@@ -298,21 +498,25 @@ public class Srdi implements Runnable, RendezvousListener {
         
         while (allEntries.hasNext()) {
             SrdiMessage.Entry entry = (SrdiMessage.Entry) allEntries.next();
-            PeerID destPeer = getReplicaPeer(srdiMsg.getPrimaryKey() + entry.key + entry.value);
+            Iterator destPeers = getReplicaPeers(current, srdiMsg.getPrimaryKey() + entry.key + entry.value, replicationFactor).iterator();
             
-            if (destPeer == null || destPeer.equals(group.getPeerID())) {
-                // don't replicate message back to ourselves
-                continue;
-            }
-            SrdiMessageImpl sm = (SrdiMessageImpl) bins.get(destPeer);
-            
-            if (sm == null) {
-                sm = new SrdiMessageImpl();
-                sm.setPrimaryKey(srdiMsg.getPrimaryKey());
-                sm.setPeerID(srdiMsg.getPeerID());
-                bins.put(destPeer, sm);
+            while (destPeers.hasNext()) {
+                PeerID destPeer = (PeerID) destPeers.next();
+                
+                if (destPeer.equals(group.getPeerID())) {
+                    // don't replicate message back to ourselves
+                    continue;
+                }
+                SrdiMessageImpl sm = (SrdiMessageImpl) bins.get(destPeer);
+                
+                if (sm == null) {
+                    sm = new SrdiMessageImpl();
+                    sm.setPrimaryKey(srdiMsg.getPrimaryKey());
+                    sm.setPeerID(srdiMsg.getPeerID());
+                    bins.put(destPeer, sm);
+                }
+                sm.addEntry(entry);
             }
-            sm.addEntry(entry);
         }
         
         Iterator peers = bins.keySet().iterator();
@@ -340,7 +544,7 @@ public class Srdi implements Runnable, RendezvousListener {
     public void pushSrdi(ID peer, SrdiMessage srdi) {
         
         try {
-            ResolverSrdiMsg resSrdi = new ResolverSrdiMsgImpl(handlername, credential, srdi.toString());
+            ResolverSrdiMsg resSrdi = newResolverSrdiMsg(peer, srdi);
             
             if (null == peer) {
                 resolver.sendSrdi(null, resSrdi);
@@ -354,6 +558,294 @@ public class Srdi implements Runnable, RendezvousListener {
         }
     }
     
+    /**
+     *  Returns the number of entries to push per message when all entries
+     *  are pushed.
+     *
+     * @return    the batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     *  Waits until the given number of entries may be pushed.
+     *
+     * @param  entries  the number of entries about to be pushed
+     * @return          false if this Srdi has been stopped or the thread
+     *                  was interrupted while waiting
+     */
+    public boolean pace(int entries) {
+        
+        if (pushRate != null && !stop) {
+            try {
+                pushRate.acquire(entries);
+            } catch (InterruptedException woken) {
+                // keep the interrupt for whoever is stopping the push.
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !stop;
+    }
+    
+    /**
+     *  Returns the rendezvous we are connected to if it takes part in
+     *  digest exchanges.
+     *
+     * @return    the rendezvous or null if all entries should be pushed
+     */
+    public ID getDigestPeer() {
+        
+        if (!compactPayload || !(srdiService instanceof SrdiDigestInterface)) {
+            return null;
+        }
+        
+        Enumeration rdvs = group.getRendezVousService().getConnectedRendezVous();
+        
+        while (rdvs.hasMoreElements()) {
+            ID rdv = (ID) rdvs.nextElement();
+            
+            if (isCompactPeer(rdv)) {
+                return rdv;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     *  Sends the digest of all the entries of a primary key to a rendezvous
+     *  found by {@link #getDigestPeer()}. The rendezvous answers with the
+     *  buckets it misses, which are then passed to
+     *  {@link SrdiDigestInterface#pushEntries(ID, String, BitSet)}.
+     *
+     * @param  peer    the rendezvous
+     * @param  digest  the digest of the entries
+     */
+    public void pushDigest(ID peer, SrdiDigest digest) {
+        
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] Sending digest of " + digest.getPrimaryKey() + " to " + peer);
+        }
+        sendDigest(peer, digest.toSrdiMessage(group.getPeerID(), 1, null));
+    }
+    
+    /**
+     *  Sends an SRDI message holding a digest.
+     *
+     * @param  peer    the peer to send to
+     * @param  digest  the digest, see {@link SrdiDigest#toSrdiMessage}
+     */
+    private void sendDigest(ID peer, SrdiMessage digest) {
+        
+        ResolverSrdiMsg resSrdi = new ResolverSrdiMsgImpl(handlername, credential, ((SrdiMessageImpl) digest).toCompactString());
+        
+        resSrdi.setPayloadType(DIGEST_MIME_TYPE);
+        resSrdi.setSrcPeerID(group.getPeerID());
+        resSrdi.setAccept(SrdiMessageImpl.COMPACT_MIME_TYPE);
+        
+        try {
+            resolver.sendSrdi(peer.toString(), resSrdi);
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Failed to send srdi digest", e);
+            }
+        }
+    }
+    
+    /**
+     *  Handles a digest exchange. A digest with a ttl is a peer asking
+     *  which of its buckets we miss and is answered with our digest of the
+     *  buckets which differ. A digest without is such an answer and its
+     *  buckets are pushed by the Srdi thread.
+     *
+     * @param  srcPid  the peer which sent the digest
+     * @param  digest  the digest
+     */
+    private void processDigest(PeerID srcPid, SrdiMessage digest) {
+        
+        SrdiDigest theirs = new SrdiDigest(digest);
+        
+        if (digest.getTTL() > 0) {
+            if (srdiIndex == null) {
+                return;
+            }
+            
+            PeerID owner = (digest.getPeerID() == null) ? srcPid : digest.getPeerID();
+            SrdiDigest ours = srdiIndex.getDigest(digest.getPrimaryKey(), owner, DIGEST_HORIZON);
+            BitSet differ = ours.diff(theirs);
+            
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] " + differ.cardinality() + " of " + SrdiDigest.BUCKETS
+                        + " buckets of " + digest.getPrimaryKey() + " differ for " + owner);
+            }
+            
+            if (!differ.isEmpty()) {
+                sendDigest(srcPid, ours.toSrdiMessage(group.getPeerID(), 0, differ));
+            }
+        } else if (srdiService instanceof SrdiDigestInterface) {
+            BitSet buckets = new BitSet(SrdiDigest.BUCKETS);
+            Iterator eachEntry = digest.getEntries().iterator();
+            
+            while (eachEntry.hasNext()) {
+                SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+                
+                try {
+                    buckets.set(Integer.parseInt(entry.key));
+                } catch (NumberFormatException ignored) {// not a bucket
+                } catch (IndexOutOfBoundsException ignored) {// not a bucket
+                }
+            }
+            
+            synchronized (this) {
+                wanted.add(new Want(srcPid, digest.getPrimaryKey(), buckets));
+                notify();
+            }
+        }
+    }
+    
+    /**
+     *  Pushes the digest buckets rendezvous asked for.
+     */
+    private void pushWanted() {
+        
+        while (!stop) {
+            Want want;
+            
+            synchronized (this) {
+                if (wanted.isEmpty()) {
+                    return;
+                }
+                want = (Want) wanted.remove(0);
+            }
+            
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] Pushing " + want.buckets.cardinality() + " buckets of "
+                        + want.primaryKey + " to " + want.peer);
+            }
+            ((SrdiDigestInterface) srdiService).pushEntries(want.peer, want.primaryKey, want.buckets);
+        }
+    }
+    
+    /**
+     *  Wraps an SRDI message for sending to a peer, in the compact encoding
+     *  if the peer is known to accept it.
+     *
+     * @param  peer  destination peer, null if the message is propagated
+     * @param  srdi  SRDI message to send
+     * @return       the resolver SRDI message
+     */
+    private ResolverSrdiMsg newResolverSrdiMsg(ID peer, SrdiMessage srdi) {
+        
+        ResolverSrdiMsg resSrdi;
+        
+        if (peer != null && srdi instanceof SrdiMessageImpl && isCompactPeer(peer)) {
+            resSrdi = new ResolverSrdiMsgImpl(handlername, credential,
+                    ((SrdiMessageImpl) srdi).toCompactString());
+            resSrdi.setPayloadType(SrdiMessageImpl.COMPACT_MIME_TYPE);
+        } else {
+            resSrdi = new ResolverSrdiMsgImpl(handlername, credential, srdi.toString());
+        }
+        
+        if (compactPayload && peer != null) {
+            // propagated messages are always XML and would have every
+            // receiver offer compact payloads, they are left unmarked.
+            resSrdi.setSrcPeerID(group.getPeerID());
+            resSrdi.setAccept(SrdiMessageImpl.COMPACT_MIME_TYPE);
+        }
+        
+        return resSrdi;
+    }
+    
+    /**
+     *  Returns true if SRDI messages to the peer are sent in the compact
+     *  encoding.
+     *
+     * @param  peer  the peer
+     * @return       true if the peer accepts compact payloads
+     */
+    private boolean isCompactPeer(ID peer) {
+        
+        if (!compactPayload) {
+            return false;
+        }
+        
+        synchronized (compactPeers) {
+            Long until = (Long) compactPeers.get(peer);
+            
+            if (until == null) {
+                return false;
+            }
+            if (until.longValue() < TimeUtils.timeNow()) {
+                compactPeers.remove(peer);
+                return false;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     *  Decodes the SRDI message carried by a resolver SRDI message, whatever
+     *  its payload encoding, and notes whether the sender accepts compact
+     *  payloads.
+     *
+     *  <p/>A sender which accepts compact payloads but sent XML does not know
+     *  yet that we accept them too, it is told so by an empty compact SRDI
+     *  message the first time it is heard from. Empty messages are never
+     *  answered. Propagated messages carry no source peer and are never
+     *  answered either.
+     *
+     * @param  message  the resolver SRDI message
+     * @return          the SRDI message of the payload
+     * @exception  IOException  if the payload cannot be decoded
+     */
+    public SrdiMessage getSrdiMessage(ResolverSrdiMsg message) throws IOException {
+        
+        MimeMediaType type = message.getPayloadType();
+        boolean digest = (type != null) && type.equalsIngoringParams(DIGEST_MIME_TYPE);
+        SrdiMessageImpl srdiMsg = new SrdiMessageImpl(digest ? SrdiMessageImpl.COMPACT_MIME_TYPE : type, message.getPayload());
+        PeerID srcPid = message.getSrcPeerID();
+        
+        if (!compactPayload || srcPid == null || srcPid.equals(group.getPeerID())) {
+            if (digest) {
+                // we take no part in digest exchanges
+                srdiMsg.setEntries(Collections.EMPTY_LIST);
+            }
+            return srdiMsg;
+        }
+        
+        if (SrdiMessageImpl.COMPACT_MIME_TYPE.equals(message.getAccept())) {
+            boolean known;
+            
+            synchronized (compactPeers) {
+                known = compactPeers.put(srcPid, new Long(TimeUtils.toAbsoluteTimeMillis(COMPACT_PEER_LIFETIME))) != null;
+            }
+            
+            if (!known && message.getPayloadType() == null && !srdiMsg.getEntries().isEmpty()) {
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] Offering compact SRDI to " + srcPid);
+                }
+                SrdiMessageImpl offer = new SrdiMessageImpl();
+                
+                offer.setPeerID(group.getPeerID());
+                pushSrdi(srcPid, offer);
+            }
+        } else {
+            synchronized (compactPeers) {
+                compactPeers.remove(srcPid);
+            }
+        }
+        
+        if (digest) {
+            processDigest(srcPid, srdiMsg);
+            
+            // nothing for the service to index
+            srdiMsg.setEntries(Collections.EMPTY_LIST);
+        }
+        
+        return srdiMsg;
+    }
+    
     /**
      *  Forwards a Query to a specific peer
      *  hopCount is incremented to indicate this query is forwarded
@@ -464,21 +956,11 @@ public class Srdi implements Runnable, RendezvousListener {
      * @return             The replicaPeer value
      */
     public PeerID getReplicaPeer(String expression) {
-        PeerID pid = null;
-        Vector rpv = getGlobalPeerView();
+        Snapshot current = getSnapshot();
         
-        if (rpv.size() >= RPV_REPLICATION_THRESHOLD) {
-            BigInteger digest = null;
+        if (current.peers.size() >= RPV_REPLICATION_THRESHOLD) {
+            PeerID pid = (PeerID) getReplicaPeers(current, expression, 1).get(0);
             
-            synchronized (this) {
-                jxtaHash.update(expression);
-                digest = jxtaHash.getDigestInteger().abs();
-            }
-            BigInteger sizeOfSpace = java.math.BigInteger.valueOf(rpv.size());
-            BigInteger sizeOfHashSpace = BigInteger.ONE.shiftLeft(8 * digest.toByteArray().length);
-            int pos = (digest.multiply(sizeOfSpace)).divide(sizeOfHashSpace).intValue();
-            
-            pid = (PeerID) rpv.elementAt(pos);
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] Found a direct peer " + pid);
             }
@@ -488,6 +970,127 @@ public class Srdi implements Runnable, RendezvousListener {
         }
     }
     
+    /**
+     *  Given an expression return the peers of the peerview an entry is
+     *  replicated to. The first is the one given by getReplicaPeer, and the
+     *  others are those which would in turn take its place should it leave
+     *  the peerview.
+     *
+     * @param  expression  expression to derive the mapping from
+     * @return             a List of up to the replication factor PeerIDs,
+     *                     empty if the peerview is too small to replicate
+     */
+    public List getReplicaPeers(String expression) {
+        Snapshot current = getSnapshot();
+        
+        if (current.peers.size() >= RPV_REPLICATION_THRESHOLD) {
+            return getReplicaPeers(current, expression, replicationFactor);
+        } else {
+            return Collections.EMPTY_LIST;
+        }
+    }
+    
+    /**
+     *  Returns the distinct peers of a peerview an expression maps to. On the
+     *  hash ring they are the peers found clockwise from the expression,
+     *  otherwise the peer at the position the hash of the expression is
+     *  spread to and those following it in the peerview.
+     *
+     * @param  current     the peerview
+     * @param  expression  expression to derive the mapping from
+     * @param  count       the number of peers wanted
+     * @return             up to count peers
+     */
+    private static List getReplicaPeers(Snapshot current, String expression, int count) {
+        if (current.ring != null) {
+            return current.ring.getPeers(expression, count);
+        }
+        
+        List rpv = current.peers;
+        
+        count = Math.min(count, rpv.size());
+        List result = new ArrayList(Math.max(count, 0));
+        
+        if (count <= 0) {
+            return result;
+        }
+        
+        BigInteger digest = ((JxtaHash) jxtaHashes.get()).getDigestInteger(expression).abs();
+        BigInteger sizeOfSpace = BigInteger.valueOf(rpv.size());
+        BigInteger sizeOfHashSpace = BigInteger.ONE.shiftLeft(8 * digest.toByteArray().length);
+        int pos = (digest.multiply(sizeOfSpace)).divide(sizeOfHashSpace).intValue();
+        
+        for (int i = 0; i < count; i++) {
+            result.add(rpv.get((pos + i) % rpv.size()));
+        }
+        return result;
+    }
+    
+    /**
+     *  Returns the global peerview and, if the ring is used, its hash ring.
+     *  They are kept until the peerview changes, and lookups take no locks.
+     *  Racing lookups may each build a ring, of which the last one built is
+     *  kept.
+     */
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        int version = peerViewVersion;
+        
+        if (peerViewEvents && (current != null) && (current.version == version)) {
+            return current;
+        }
+        
+        Vector rpv = getGlobalPeerView();
+        
+        if ((current != null) && current.peers.equals(rpv)) {
+            current = new Snapshot(version, current.peers, current.ring);
+        } else if (useRing) {
+            HashRing ring = new HashRing(rpv, virtualNodes);
+            
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] Built hash ring of " + rpv.size() + " peers");
+            }
+            current = new Snapshot(version, ring.getPeers(), ring);
+        } else {
+            current = new Snapshot(version, Collections.unmodifiableList(rpv), null);
+        }
+        snapshot = current;
+        return current;
+    }
+    
+    /**
+     *  A peerview, the version it was taken at and, if the ring is used, its
+     *  hash ring.
+     */
+    private static final class Snapshot {
+        final int version;
+        final List peers;
+        final HashRing ring;
+        
+        Snapshot(int version, List peers, HashRing ring) {
+            this.version = version;
+            this.peers = peers;
+            this.ring = ring;
+        }
+    }
+    
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Invalidates the snapshot of the peerview.
+     */
+    public void peerViewEvent(PeerViewEvent event) {
+        peerViewChanged();
+    }
+    
+    /**
+     *  Moves the peerview to a new version. Synchronized so that no change
+     *  is lost between racing events.
+     */
+    private synchronized void peerViewChanged() {
+        peerViewVersion++;
+    }
+    
     /**
      *  forward srdi message to another peer
      *
@@ -509,14 +1112,14 @@ public class Srdi implements Runnable, RendezvousListener {
             SrdiMessageImpl srdi = new SrdiMessageImpl(srcPid, // ttl of 0, avoids additional replication
                     0, primaryKey, secondarykey, value, expiration);
             
-            ResolverSrdiMsgImpl resSrdi = new ResolverSrdiMsgImpl(handlername, credential, srdi.toString());
+            ResolverSrdiMsg resSrdi = newResolverSrdiMsg(peerid, srdi);
             
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug(
                         "[" + group.getPeerGroupName() + " / " + handlername + "] Forwarding a SRDI messsage of type " + primaryKey + " to " + peerid);
             }
             
-            resolver.sendSrdi(peerid.toString(), (ResolverSrdiMsg) resSrdi);
+            resolver.sendSrdi(peerid.toString(), resSrdi);
         } catch (Exception e) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Failed forwarding SRDI Message", e);
@@ -547,10 +1150,14 @@ public class Srdi implements Runnable, RendezvousListener {
             notify(); // wake up the thread now.
             break;
                 
-        case RendezvousEvent.CLIENTCONNECT:
-        case RendezvousEvent.CLIENTRECONNECT:
         case RendezvousEvent.BECAMERDV:
         case RendezvousEvent.BECAMEEDGE: // XXX 20031110 bondolo@jxta.org perhaps becoming edge one should cause it to wake up so that run() switch to
+            // the walk view may be a different one now.
+            peerViewChanged();
+            break;
+            
+        case RendezvousEvent.CLIENTCONNECT:
+        case RendezvousEvent.CLIENTRECONNECT:
             // don't do anything.
             break;
                 
@@ -629,6 +1236,7 @@ public class Srdi implements Runnable, RendezvousListener {
                     LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] Pushing " + (republish ? "all entries" : "deltas"));
                 }
                 
+                pushWanted();
                 srdiService.pushEntries(republish);
                 republish = false;
             }
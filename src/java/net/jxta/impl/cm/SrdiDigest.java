@@ -0,0 +1,226 @@
+/*
+ *  $Id$
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ *
+ *  $Id$
+ */
+
+package net.jxta.impl.cm;
+
+import java.util.BitSet;
+import java.util.Iterator;
+
+import net.jxta.peer.PeerID;
+import net.jxta.protocol.SrdiMessage;
+
+import net.jxta.impl.protocol.SrdiMessageImpl;
+
+/**
+ * A digest of the SRDI entries a peer holds for one primary key. The entries
+ * are spread over a fixed number of buckets by the hash of their secondary
+ * key and value, and the digest of a bucket is the sum of the hashes of its
+ * entries. The sum does not depend on the order in which entries are added,
+ * so a peer and a rendezvous walking their own indexes arrive at the same
+ * digest when they hold the same entries, and only the entries of the
+ * buckets which differ have to be sent again.
+ *
+ * <p/>Values are hashed in upper case, the form in which the rendezvous
+ * indexes them. Expirations are not part of the digest, a rendezvous leaves
+ * out the entries about to expire so that their buckets are sent again.
+ */
+public final class SrdiDigest {
+
+    /**
+     * The number of buckets.
+     */
+    public static final int BUCKETS = 64;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String primaryKey;
+    private final long[] sums = new long[BUCKETS];
+
+    /**
+     * Creates an empty digest.
+     *
+     * @param  primaryKey  the primary key of the entries
+     */
+    public SrdiDigest(String primaryKey) {
+        this.primaryKey = primaryKey;
+    }
+
+    /**
+     * Decodes the digest carried by an SRDI message, see
+     * {@link #toSrdiMessage}.
+     *
+     * @param  srdiMsg  the SRDI message
+     */
+    public SrdiDigest(SrdiMessage srdiMsg) {
+        this(srdiMsg.getPrimaryKey());
+
+        Iterator eachEntry = srdiMsg.getEntries().iterator();
+
+        while (eachEntry.hasNext()) {
+            SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+
+            try {
+                int bucket = Integer.parseInt(entry.key);
+
+                if (bucket >= 0 && bucket < BUCKETS) {
+                    sums[bucket] = Long.parseLong(entry.value, Character.MAX_RADIX);
+                }
+            } catch (NumberFormatException ignored) {
+                // not a bucket of ours
+            }
+        }
+    }
+
+    /**
+     * Returns the primary key of the entries.
+     *
+     * @return  the primary key
+     */
+    public String getPrimaryKey() {
+        return primaryKey;
+    }
+
+    /**
+     * Adds an entry.
+     *
+     * @param  attribute  the secondary key of the entry
+     * @param  value      the value of the entry
+     */
+    public void add(String attribute, String value) {
+        long hash = hash(attribute, value);
+
+        sums[getBucket(hash)] += hash;
+    }
+
+    /**
+     * Returns the bucket of an entry.
+     *
+     * @param  attribute  the secondary key of the entry
+     * @param  value      the value of the entry
+     * @return            the bucket
+     */
+    public static int getBucket(String attribute, String value) {
+        return getBucket(hash(attribute, value));
+    }
+
+    /**
+     * Returns the buckets whose digests differ.
+     *
+     * @param  other  the digest to compare with
+     * @return        the buckets which differ
+     */
+    public BitSet diff(SrdiDigest other) {
+        BitSet differ = new BitSet(BUCKETS);
+
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (sums[bucket] != other.sums[bucket]) {
+                differ.set(bucket);
+            }
+        }
+        return differ;
+    }
+
+    /**
+     * Encodes buckets of the digest as an SRDI message. Each bucket is an
+     * entry whose key is the bucket and whose value is its digest.
+     *
+     * @param  peerid   the peer sending the message
+     * @param  ttl      1 for a digest which is to be compared, 0 for one
+     *                  which answers a comparison
+     * @param  buckets  the buckets to encode, all if null
+     * @return          the SRDI message
+     */
+    public SrdiMessage toSrdiMessage(PeerID peerid, int ttl, BitSet buckets) {
+        SrdiMessageImpl srdiMsg = new SrdiMessageImpl();
+
+        srdiMsg.setPeerID(peerid);
+        srdiMsg.setTTL(ttl);
+        srdiMsg.setPrimaryKey(primaryKey);
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (buckets == null || buckets.get(bucket)) {
+                srdiMsg.addEntry(Integer.toString(bucket), Long.toString(sums[bucket], Character.MAX_RADIX), 0);
+            }
+        }
+        return srdiMsg;
+    }
+
+    private static int getBucket(long hash) {
+        // take the bucket from the high bits of the hash
+        return (int) ((hash >>> 32) % BUCKETS);
+    }
+
+    /**
+     * FNV-1a over the attribute, a separator and the upper cased value.
+     */
+    private static long hash(String attribute, String value) {
+        long hash = FNV_OFFSET;
+
+        for (int each = 0; each < attribute.length(); each++) {
+            hash = (hash ^ attribute.charAt(each)) * FNV_PRIME;
+        }
+        hash *= FNV_PRIME;
+
+        String upper = (value == null) ? "" : value.toUpperCase();
+
+        for (int each = 0; each < upper.length(); each++) {
+            hash = (hash ^ upper.charAt(each)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
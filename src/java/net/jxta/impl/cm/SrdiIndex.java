@@ -63,6 +63,7 @@ import java.io.ByteArrayOutputStream;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.List;
@@ -82,6 +83,7 @@ import net.jxta.id.IDFactory;
 import net.jxta.peer.PeerID;
 import net.jxta.peergroup.PeerGroup;
 
+import net.jxta.impl.util.ReadWriteLock;
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.impl.xindice.core.data.Key;
 import net.jxta.impl.xindice.core.data.Value;
@@ -107,11 +109,42 @@ public class SrdiIndex implements Runnable {
     private volatile boolean stop = false;
     private Indexer srdiIndexer = null;
     private BTreeFiler cacheDB = null;
+    private ExpiryIndex expiry = null;
     private Thread gcThread = null;
     private Set gcPeerTBL = new HashSet();
 
     private final String indexName;
-    
+
+    private final GcMetrics gcMetrics = new GcMetrics();
+
+    /**
+     * Guards the databases and the table of removed peers. Queries share the
+     * read lock so that they are answered in parallel; adding entries,
+     * removing peers and garbage collecting take the write lock.
+     */
+    private final ReadWriteLock lock = new ReadWriteLock();
+
+    /**
+     *  The default number of query results cached.
+     */
+    public final static int DEFAULT_CACHE_SIZE = 1024;
+
+    /**
+     *  The recent query results by query, least recently used first. An
+     *  exact query is dropped when an entry is added for its value; the
+     *  other queries are dropped when the generation of their primary key
+     *  changes.
+     */
+    private final Map cache;
+
+    /**
+     *  The generation of each primary key queried other than by exact value,
+     *  increased whenever an entry is added for the key.
+     */
+    private final Map generations = new HashMap();
+
+    private final CacheMetrics cacheMetrics = new CacheMetrics();
+
     /**
      *  Constructor for the SrdiIndex
      *
@@ -121,6 +154,14 @@ public class SrdiIndex implements Runnable {
     public SrdiIndex(PeerGroup group, String indexName) {
         this.indexName = indexName;
 
+        final int cacheSize = Integer.getInteger(SrdiIndex.class.getName() + ".cacheSize", DEFAULT_CACHE_SIZE).intValue();
+
+        cache = new LinkedHashMap(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(Map.Entry eldest) {
+                        return size() > cacheSize;
+                    }
+                };
+
         try {
             String pgdir = null;
             if (group == null) {
@@ -160,6 +201,15 @@ public class SrdiIndex implements Runnable {
                 srdiIndexer.open();
             }
 
+            // the records by the time their entries expire
+            BTreeFiler expiryDB = new BTreeFiler();
+            expiryDB.setSync(false);
+            expiryDB.setLocation(rootDir.getCanonicalPath(), indexName + "-expiry");
+            expiry = new ExpiryIndex(expiryDB);
+            if (expiry.open()) {
+                fillExpiryIndex();
+            }
+
             if (LOG.isEnabledFor(Level.INFO)) {
                 LOG.info("[" + ((group == null) ? "none" : group.getPeerGroupName()) + "] : " + "Initialized " + indexName);
             }
@@ -219,6 +269,50 @@ public class SrdiIndex implements Runnable {
         return indexName;
     }
 
+    /**
+     *  Returns the metrics of the garbage collections of this index.
+     *
+     *  @return the metrics
+     */
+    public GcMetrics getGcMetrics() {
+        return gcMetrics;
+    }
+
+    /**
+     *  Returns the metrics of the query result cache of this index.
+     *
+     *  @return the metrics
+     */
+    public CacheMetrics getCacheMetrics() {
+        return cacheMetrics;
+    }
+
+    /**
+     *  Adds an entry to the expiry index for every entry of every record,
+     *  when the records were written before there was an expiry index.
+     */
+    private void fillExpiryIndex() throws DBException, IOException {
+        final List keys = new ArrayList();
+        final List positions = new ArrayList();
+
+        cacheDB.query(null, new BTreeCallback() {
+                          public boolean indexInfo(Value val, long pos) {
+                              keys.add(new Key(val));
+                              positions.add(new Long(pos));
+                              return true;
+                          }
+                      }
+                     );
+
+        for (int i = 0; i < keys.size(); i++) {
+            ArrayList entries = readRecord(cacheDB.readRecord(((Long) positions.get(i)).longValue())).list;
+
+            for (int j = 0; j < entries.size(); j++) {
+                expiry.add(((Entry) entries.get(j)).expiration, (Key) keys.get(i), null);
+            }
+        }
+    }
+
     /**
      *  add an index entry
      *
@@ -229,7 +323,7 @@ public class SrdiIndex implements Runnable {
      *      milliseconds
      *@param  pid         peerid reference
      */
-    public synchronized void add(String primaryKey,
+    public void add(String primaryKey,
             String attribute,
             String value,
             PeerID pid,
@@ -239,6 +333,7 @@ public class SrdiIndex implements Runnable {
             LOG.debug("[" + indexName + "] Adding " + primaryKey + "/" + attribute + " = '" + value + "' for " + pid);
         }
 
+        lock.acquireWrite();
         try {
             Key key = new Key(primaryKey + attribute + value);
             long expiresin = TimeUtils.toAbsoluteTimeMillis(expiration);
@@ -248,7 +343,12 @@ public class SrdiIndex implements Runnable {
                 // FIXME hamada 10/14/04 it is possible a peer re-appears with
                 // a different set of indexes since it's been marked for garbage
                 // collection.  will address this issue in a subsequent patch
-                gcPeerTBL.remove(pid);
+                if (gcPeerTBL.remove(pid)) {
+                    // the other entries of the peer are found again
+                    clearCache();
+                } else {
+                    invalidate(primaryKey, attribute, value);
+                }
                 
                 Record record = cacheDB.readRecord(key);
                 ArrayList old;
@@ -286,6 +386,7 @@ public class SrdiIndex implements Runnable {
                 Map indexables = getIndexMap(primaryKey + attribute, value);
 
                 srdiIndexer.addToIndex(indexables, pos);
+                expiry.add(expiresin, key, indexables);
             }
         } catch (IOException de) {
             if (LOG.isEnabledFor(Level.WARN)) {
@@ -295,6 +396,8 @@ public class SrdiIndex implements Runnable {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Failed to add SRDI", de);
             }
+        } finally {
+            lock.releaseWrite();
         }
     }
 
@@ -311,8 +414,11 @@ public class SrdiIndex implements Runnable {
         Record record = null;
         try {
             Key key = new Key(pkey + skey + value);
-            synchronized (cacheDB) {
+            lock.acquireRead();
+            try {
                 record = cacheDB.readRecord(key);
+            } finally {
+                lock.releaseRead();
             }
         } catch (DBException de) {
             if (LOG.isEnabledFor(Level.WARN)) {
@@ -349,11 +455,18 @@ public class SrdiIndex implements Runnable {
      *
      *@param  pid   peer id to remove
      */
-    public synchronized void remove(PeerID pid) {
+    public void remove(PeerID pid) {
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug(" Adding " + pid + " to peer GC table");
         }
-        gcPeerTBL.add(pid);
+        lock.acquireWrite();
+        try {
+            if (gcPeerTBL.add(pid)) {
+                invalidate(pid);
+            }
+        } finally {
+            lock.releaseWrite();
+        }
     }
 
     /**
@@ -363,7 +476,7 @@ public class SrdiIndex implements Runnable {
      * @param  value      value of the attribute string
      * @return            an enumeration of canonical paths
      */
-    public synchronized Vector query(String primaryKey, String attribute, String value, int threshold) {
+    public Vector query(String primaryKey, String attribute, String value, int threshold) {
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("[" + indexName + "] Querying for " + threshold + " " + primaryKey + "/" + attribute + " = '" + value + "'");
@@ -375,22 +488,47 @@ public class SrdiIndex implements Runnable {
         }
 
         Vector res;
-
         // a blind query
-        if (attribute == null) {
-            res = query(primaryKey);
-        } else {
+        boolean blind = (attribute == null);
+        boolean exact = !blind && isExactQuery(value);
+        String cacheKey = getCacheKey(primaryKey, attribute, value, exact);
+
+        lock.acquireRead();
+        try {
+            res = getCached(cacheKey, primaryKey, threshold);
+            if (res != null) {
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("[" + indexName + "] Returning " + res.size() + " cached results for " + primaryKey + "/" + attribute + " = '" + value + "'");
+                }
+                return res;
+            }
+
             res = new Vector();
 
-            IndexQuery iq = Cm.getIndexQuery(value);
+            SearchCallback callback;
 
-            try {
-                srdiIndexer.search(iq, primaryKey + attribute, new SearchCallback(cacheDB, res, threshold, gcPeerTBL));
-            } catch (Exception ex) {
-                if (LOG.isEnabledFor(Level.WARN)) {
-                    LOG.warn("Exception while searching in index", ex);
+            if (blind) {
+                threshold = Integer.MAX_VALUE;
+                callback = search(primaryKey, res);
+            } else {
+                IndexQuery iq = Cm.getIndexQuery(value);
+
+                callback = new SearchCallback(cacheDB, res, threshold, gcPeerTBL);
+                try {
+                    srdiIndexer.search(iq, primaryKey + attribute, callback);
+                } catch (Exception ex) {
+                    if (LOG.isEnabledFor(Level.WARN)) {
+                        LOG.warn("Exception while searching in index", ex);
+                    }
+                    callback = null;
                 }
             }
+
+            if (callback != null) {
+                putCached(cacheKey, primaryKey, exact, res, threshold, callback.expires);
+            }
+        } finally {
+            lock.releaseRead();
         }
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -406,13 +544,38 @@ public class SrdiIndex implements Runnable {
      *@param  primaryKey  primary key
      *@return             an enumeration of peerids
      */
-    public synchronized Vector query(String primaryKey) {
+    public Vector query(String primaryKey) {
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("[" + indexName + "] Querying for " + primaryKey);
         }
 
         Vector res = new Vector();
 
+        lock.acquireRead();
+        try {
+            search(primaryKey, res);
+        } finally {
+            lock.releaseRead();
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("[" + indexName + "] Returning " + res.size() + " results for " + primaryKey);
+        }
+
+        return res;
+    }
+
+    /**
+     *  Searches all the indexes of a primary key. The caller holds the read
+     *  lock.
+     *
+     *@param  primaryKey  primary key
+     *@param  res         the peerids found are added to it
+     *@return             the callback of the search, null if it failed
+     */
+    private SearchCallback search(String primaryKey, Vector res) {
+        SearchCallback callback = new SearchCallback(cacheDB, res, Integer.MAX_VALUE, gcPeerTBL);
+
         try {
             Map map = srdiIndexer.getIndexers();
             Iterator it = map.keySet().iterator();
@@ -424,20 +587,193 @@ public class SrdiIndex implements Runnable {
                 if (indexName.startsWith(primaryKey)) {
                     NameIndexer idxr = (NameIndexer) map.get(indexName);
 
-                    idxr.query(null, new SearchCallback(cacheDB, res, Integer.MAX_VALUE, gcPeerTBL));
+                    idxr.query(null, callback);
                 }
             }
         } catch (Exception ex) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Exception while searching in index", ex);
             }
+            return null;
         }
+        return callback;
+    }
 
-        if (LOG.isEnabledFor(Level.DEBUG)) {
-            LOG.debug("[" + indexName + "] Returning " + res.size() + " results for " + primaryKey);
+    /**
+     *  Returns whether a query value matches a single index value.
+     *
+     *@param  value  the query value
+     *@return        true if the value has no wildcard
+     */
+    private static boolean isExactQuery(String value) {
+        return (value != null) && (value.length() > 0) && (value.indexOf('*') < 0);
+    }
+
+    /**
+     *  Returns the key of the cached results of a query. The index values are
+     *  upper case, so are the keys of exact queries.
+     */
+    private static String getCacheKey(String primaryKey, String attribute, String value, boolean exact) {
+        if (attribute == null) {
+            return "B" + primaryKey;
+        } else if (exact) {
+            return "E" + primaryKey + attribute + "\u0000" + value.toUpperCase();
+        } else {
+            return "W" + primaryKey + "\u0000" + attribute + "\u0000" + value;
         }
+    }
 
-        return res;
+    /**
+     *  Returns a copy of the cached results of a query, if they are still
+     *  valid and hold the results wanted.
+     *
+     *@param  cacheKey    the key of the query
+     *@param  primaryKey  primary key
+     *@param  threshold   the number of results wanted
+     *@return             the results, or null if they are not cached
+     */
+    private Vector getCached(String cacheKey, String primaryKey, int threshold) {
+        synchronized (cache) {
+            CachedResult cached = (CachedResult) cache.get(cacheKey);
+
+            if (cached != null) {
+                if (isExpired(cached.expires) || ((cached.generation >= 0) && (cached.generation != getGeneration(primaryKey)))) {
+                    cache.remove(cacheKey);
+                } else if ((threshold <= cached.threshold) || (cached.results.size() < cached.threshold)) {
+                    cacheMetrics.hit();
+
+                    int count = Math.min(Math.max(threshold, 0), cached.results.size());
+
+                    return new Vector(cached.results.subList(0, count));
+                }
+            }
+            cacheMetrics.miss();
+            return null;
+        }
+    }
+
+    /**
+     *  Caches the results of a query. The caller holds the read lock so that
+     *  the index does not change before the results are cached.
+     */
+    private void putCached(String cacheKey, String primaryKey, boolean exact, Vector res, int threshold, long expires) {
+        synchronized (cache) {
+            int generation = exact ? -1 : getGeneration(primaryKey);
+
+            cache.put(cacheKey, new CachedResult(new Vector(res), threshold, expires, generation));
+        }
+    }
+
+    /**
+     *  Returns the generation of a primary key, starting one for it if
+     *  needed. The caller synchronizes on the cache.
+     */
+    private int getGeneration(String primaryKey) {
+        Integer generation = (Integer) generations.get(primaryKey);
+
+        if (generation == null) {
+            generation = new Integer(0);
+            generations.put(primaryKey, generation);
+        }
+        return generation.intValue();
+    }
+
+    /**
+     *  Drops the cached results an added entry may change. The caller holds
+     *  the write lock.
+     */
+    private void invalidate(String primaryKey, String attribute, String value) {
+        synchronized (cache) {
+            if (cache.remove(getCacheKey(primaryKey, attribute, (value == null) ? "" : value, true)) != null) {
+                cacheMetrics.invalidated(1);
+            }
+
+            // the blind queries match the indexes by prefix
+            Iterator eachKey = generations.entrySet().iterator();
+
+            while (eachKey.hasNext()) {
+                Map.Entry generation = (Map.Entry) eachKey.next();
+
+                if (primaryKey.startsWith((String) generation.getKey())) {
+                    generation.setValue(new Integer(((Integer) generation.getValue()).intValue() + 1));
+                }
+            }
+        }
+    }
+
+    /**
+     *  Drops the cached results which include a removed peer. The caller
+     *  holds the write lock.
+     */
+    private void invalidate(PeerID pid) {
+        synchronized (cache) {
+            Iterator eachCached = cache.values().iterator();
+            int count = 0;
+
+            while (eachCached.hasNext()) {
+                if (((CachedResult) eachCached.next()).results.contains(pid)) {
+                    eachCached.remove();
+                    count++;
+                }
+            }
+            cacheMetrics.invalidated(count);
+        }
+    }
+
+    /**
+     *  Drops all the cached results.
+     */
+    private void clearCache() {
+        synchronized (cache) {
+            cacheMetrics.invalidated(cache.size());
+            cache.clear();
+        }
+    }
+
+    /**
+     *  Returns the digest of the entries a peer holds for a primary key,
+     *  leaving out the entries which expire within the given time so that
+     *  the peer sends them again.
+     *
+     *@param  primaryKey  primary key
+     *@param  pid         the peer
+     *@param  horizon     relative time in milliseconds
+     *@return             the digest
+     */
+    public SrdiDigest getDigest(String primaryKey, PeerID pid, long horizon) {
+
+        SrdiDigest digest = new SrdiDigest(primaryKey);
+        long until = TimeUtils.toAbsoluteTimeMillis(horizon);
+
+        lock.acquireRead();
+        try {
+            if (gcPeerTBL.contains(pid)) {
+                // the entries are being removed
+                return digest;
+            }
+
+            Map map = srdiIndexer.getIndexers();
+            Iterator it = map.keySet().iterator();
+
+            while (it != null && it.hasNext()) {
+                String indexName = (String) it.next();
+
+                // seperate the index name from attribute
+                if (indexName.startsWith(primaryKey)) {
+                    NameIndexer idxr = (NameIndexer) map.get(indexName);
+
+                    idxr.query(null, new DigestCallback(cacheDB, digest, indexName.substring(primaryKey.length()), pid, until));
+                }
+            }
+        } catch (Exception ex) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Exception while computing digest", ex);
+            }
+        } finally {
+            lock.releaseRead();
+        }
+
+        return digest;
     }
 
     private static final class SearchCallback implements BTreeCallback {
@@ -446,6 +782,11 @@ public class SrdiIndex implements Runnable {
         private Vector results;
         private Set table;
 
+        /**
+         *  The earliest expiration of the entries found.
+         */
+        long expires = Long.MAX_VALUE;
+
         SearchCallback(BTreeFiler cacheDB, Vector results, int threshold, Set table) {
             this.cacheDB = cacheDB;
             this.threshold = threshold;
@@ -487,16 +828,72 @@ public class SrdiIndex implements Runnable {
             // if (LOG.isEnabledFor(Level.DEBUG)) {
             // LOG.debug("Got result back in : " + (System.currentTimeMillis() - t0) + "ms.");
             // }
+            for (int i = 0; i < res.size(); i++) {
+                long expiration = ((Entry) res.get(i)).expiration;
+
+                if (!isExpired(expiration) && (expiration < expires)) {
+                    expires = expiration;
+                }
+            }
             copyIntoVector(results, res, table);
             return true;
         }
     }
 
+    private static final class DigestCallback implements BTreeCallback {
+        private BTreeFiler cacheDB = null;
+        private SrdiDigest digest;
+        private String attribute;
+        private PeerID pid;
+        private long until;
+
+        DigestCallback(BTreeFiler cacheDB, SrdiDigest digest, String attribute, PeerID pid, long until) {
+            this.cacheDB = cacheDB;
+            this.digest = digest;
+            this.attribute = attribute;
+            this.pid = pid;
+            this.until = until;
+        }
+
+        /**
+         *  @inheritDoc
+         */
+        public boolean indexInfo(Value val, long pos) {
+            Record record = null;
+
+            try {
+                record = cacheDB.readRecord(pos);
+            } catch (DBException ex) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Exception while reading indexed", ex);
+                }
+                return false;
+            }
+            if (record == null) {
+                return true;
+            }
+
+            Iterator eachEntry = readRecord(record).list.iterator();
+
+            while (eachEntry.hasNext()) {
+                Entry entry = (Entry) eachEntry.next();
+
+                if (entry.peerid.equals(pid) && entry.expiration > until) {
+                    digest.add(attribute, val.toString());
+                    break;
+                }
+            }
+            return true;
+        }
+    }
+
     private static final class GcCallback implements BTreeCallback {
         private BTreeFiler cacheDB = null;
         private Indexer idxr = null;
         private List list;
         private Set table;
+        int purged = 0;
+
         GcCallback(BTreeFiler cacheDB, Indexer idxr, List list, Set table) {
             this.cacheDB = cacheDB;
             this.idxr = idxr;
@@ -530,6 +927,8 @@ public class SrdiIndex implements Runnable {
 
                     if (isExpired(entry.expiration) || table.contains(entry.peerid)) {
                         res.remove(i);
+                        i--;
+                        purged++;
                         changed = true;
                     }
                 }
@@ -678,43 +1077,118 @@ public class SrdiIndex implements Runnable {
      * Empties the index completely.
      * The entries are abandonned to the GC.
      */
-    public synchronized void clear() {
+    public void clear() {
         // FIXME changing the behavior a bit
         // instead of dropping all srdi entries, we let them expire
         // if that is not a desired behavior the indexer could be dropped
         // simply close it, and remove all index db created
+        lock.acquireWrite();
         try {
+            clearCache();
             srdiIndexer.close();
             cacheDB.close();
+            expiry.close();
         } catch (Exception e) {
             // bad bits we are done
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("failed to close index", e);
             }
+        } finally {
+            lock.releaseWrite();
         }
     }
 
     /**
      *  Garbage Collect expired entries
      */
-    public synchronized void garbageCollect() {
-        try {
-            Map map = srdiIndexer.getIndexers();
-            Iterator it = map.keySet().iterator();
-            List list = new ArrayList();
+    public void garbageCollect() {
+        long t0 = System.currentTimeMillis();
+        int purged = 0;
 
-            while (it.hasNext()) {
-                String indexName = (String) it.next();
-                NameIndexer idxr = (NameIndexer) map.get(indexName);
-                idxr.query(null, new GcCallback(cacheDB, srdiIndexer, list, gcPeerTBL));
-                srdiIndexer.purge(list);
+        lock.acquireWrite();
+        try {
+            if (gcPeerTBL.isEmpty()) {
+                purged = purgeExpired();
+            } else {
+                // the entries of removed peers can only be found by visiting every record
+                Map map = srdiIndexer.getIndexers();
+                Iterator it = map.keySet().iterator();
+                List list = new ArrayList();
+                GcCallback gc = new GcCallback(cacheDB, srdiIndexer, list, gcPeerTBL);
+
+                while (it.hasNext()) {
+                    String indexName = (String) it.next();
+                    NameIndexer idxr = (NameIndexer) map.get(indexName);
+                    idxr.query(null, gc);
+                    srdiIndexer.purge(list);
+                }
+                purged = gc.purged;
             }
             gcPeerTBL.clear();
+            if (purged > 0) {
+                clearCache();
+            }
         } catch (Exception ex) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Failure during SRDI Garbage Collect", ex);
             }
+        } finally {
+            lock.releaseWrite();
         }
+
+        long duration = System.currentTimeMillis() - t0;
+        gcMetrics.collected(duration, purged);
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("[" + indexName + "] Garbage collected " + purged + " entries in " + duration + "ms " + gcMetrics);
+        }
+    }
+
+    /**
+     *  Removes the expired entries, visiting only the records the expiry
+     *  index has entries due for.
+     *
+     *  @return the number of entries removed
+     */
+    private int purgeExpired() throws DBException, IOException {
+        // isExpired() takes an entry expiring now as not yet expired
+        List expired = expiry.expired(System.currentTimeMillis() - 1);
+        List unindexed = new ArrayList();
+        int purged = 0;
+
+        synchronized (cacheDB) {
+            for (int i = 0; i < expired.size(); i++) {
+                ExpiryIndex.Expired due = (ExpiryIndex.Expired) expired.get(i);
+                Record record = cacheDB.readRecord(due.key);
+
+                // the record may have been deleted or its entries refreshed
+                if (record != null) {
+                    ArrayList entries = readRecord(record).list;
+                    int before = entries.size();
+
+                    entries = removeExpired(entries);
+                    if (entries.size() < before) {
+                        long pos = cacheDB.findValue(due.key);
+
+                        purged += before - entries.size();
+                        if (entries.isEmpty()) {
+                            cacheDB.deleteRecord(due.key);
+                            if (due.indexables != null) {
+                                srdiIndexer.removeFromIndex(due.indexables, pos);
+                            } else {
+                                unindexed.add(new Long(pos));
+                            }
+                        } else {
+                            cacheDB.writeRecord(pos, new Value(getData(due.key, entries)));
+                        }
+                    }
+                }
+                expiry.remove(due);
+            }
+        }
+        if (!unindexed.isEmpty()) {
+            srdiIndexer.purge(unindexed);
+        }
+        return purged;
     }
 
     /**
@@ -764,14 +1238,19 @@ public class SrdiIndex implements Runnable {
 
         // Stop the database
 
+        lock.acquireWrite();
         try {
+            clearCache();
             srdiIndexer.close();
             cacheDB.close();
+            expiry.close();
             gcPeerTBL.clear();
         } catch (Exception ex) {
             if (LOG.isEnabledFor(Level.ERROR)) {
                 LOG.error("Unable to stop the Srdi Indexer", ex);
             }
+        } finally {
+            lock.releaseWrite();
         }
     }
 
@@ -872,6 +1351,33 @@ public class SrdiIndex implements Runnable {
         }
     }
 
+    /**
+     *  The results of a query.
+     */
+    private final static class CachedResult {
+
+        final Vector results;
+        final int threshold;
+
+        /**
+         *  The results are valid until the first of their entries expires.
+         */
+        final long expires;
+
+        /**
+         *  The generation of the primary key the results were found in, -1
+         *  for an exact query.
+         */
+        final int generation;
+
+        CachedResult(Vector results, int threshold, long expires, int generation) {
+            this.results = results;
+            this.threshold = threshold;
+            this.expires = expires;
+            this.generation = generation;
+        }
+    }
+
     /**
      *  An entry in the index tables.
      */
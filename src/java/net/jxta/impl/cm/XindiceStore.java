@@ -0,0 +1,641 @@
+/*
+ *  $Id$
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ *
+ *  $Id$
+ */
+
+package net.jxta.impl.cm;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.impl.xindice.core.DBException;
+import net.jxta.impl.xindice.core.FaultCodes;
+import net.jxta.impl.xindice.core.data.Key;
+import net.jxta.impl.xindice.core.data.Record;
+import net.jxta.impl.xindice.core.data.Value;
+import net.jxta.impl.xindice.core.filer.BTreeCallback;
+import net.jxta.impl.xindice.core.filer.BTreeFiler;
+import net.jxta.impl.xindice.core.filer.BTreeNotFoundException;
+import net.jxta.impl.xindice.core.filer.FilerException;
+import net.jxta.impl.xindice.core.filer.Paged;
+import net.jxta.impl.xindice.core.indexer.IndexQuery;
+
+/**
+ * The default {@link CmStore}, which keeps the records in a BTreeFiler and
+ * the indexes in an {@link Indexer}, in files in the directory of the Cm.
+ **/
+public final class XindiceStore implements CmStore {
+
+    /**
+     * The Log4J debugging category.
+     **/
+    private final static Logger LOG = Logger.getLogger(XindiceStore.class.getName());
+
+    private final static String databaseFileName = "advertisements";
+
+    /**
+     * The percentage of each page filled when databases are built in bulk,
+     * leaving room for some inserts before pages split.
+     **/
+    private final static int LOAD_FILL = 90;
+
+    private final boolean sync;
+    private boolean writeAheadLog = false;
+    private long commitInterval = 0;
+    private int commitSize = 0;
+    private boolean memoryMapped = false;
+    private int cacheSize = Paged.DEFAULT_CACHE_SIZE;
+    private Set substringIndexed = Collections.EMPTY_SET;
+
+    private File dir = null;
+    private BTreeFiler cacheDB = null;
+    private Indexer indexer = null;
+    private ExpiryIndex expiry = null;
+
+    /**
+     * Creates a store.
+     *
+     * @param sync passed through to xindice to determine a lazy checkpoint
+     *        or not, false == lazy checkpoint
+     **/
+    public XindiceStore(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Enables the write-ahead log for the databases.
+     * Must be called before {@link #open(File)}.
+     *
+     * @see Paged#setWriteAheadLog(long, int)
+     **/
+    public void setWriteAheadLog(long commitInterval, int commitSize) {
+        this.writeAheadLog = true;
+        this.commitInterval = commitInterval;
+        this.commitSize = commitSize;
+    }
+
+    /**
+     * Selects memory mapped page I/O for the databases.
+     * Must be called before {@link #open(File)}.
+     *
+     * @see Paged#setMemoryMapped(boolean)
+     **/
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Sets the number of pages each database caches.
+     * Must be called before {@link #open(File)}.
+     *
+     * @see Paged#setCacheSize(int)
+     **/
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Selects the indexes which also keep a substring index.
+     * Must be called before {@link #open(File)}.
+     *
+     * @see Indexer#setSubstringIndexed(Set)
+     **/
+    public void setSubstringIndexed(Set names) {
+        substringIndexed = names;
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void open(File dir) throws DBException {
+        if (!dir.exists()) {
+            // We need to create the directory
+            if (!dir.mkdirs()) {
+                throw new FilerException(FaultCodes.DBE_CANNOT_CREATE, "Cm cannot create directory " + dir);
+            }
+        }
+
+        this.dir = dir;
+
+        // Storage
+        cacheDB = new BTreeFiler();
+        configure(cacheDB);
+        cacheDB.setLocation(dir.getAbsolutePath(), databaseFileName);
+
+        if (!cacheDB.open()) {
+            cacheDB.create();
+            // now open it
+            cacheDB.open();
+        }
+
+        // Index
+        indexer = new Indexer(sync);
+        if (writeAheadLog) {
+            indexer.setWriteAheadLog(commitInterval, commitSize);
+        }
+        indexer.setMemoryMapped(memoryMapped);
+        indexer.setCacheSize(cacheSize);
+        indexer.setSubstringIndexed(substringIndexed);
+        indexer.setLocation(dir.getAbsolutePath(), databaseFileName);
+
+        if (!indexer.open()) {
+            indexer.create();
+            // now open it
+            indexer.open();
+        }
+
+        // Expiration
+        BTreeFiler expiryDB = new BTreeFiler();
+        configure(expiryDB);
+        expiryDB.setLocation(dir.getAbsolutePath(), databaseFileName + "-expiry");
+        expiry = new ExpiryIndex(expiryDB);
+        if (expiry.open()) {
+            fillExpiryIndex();
+        }
+    }
+
+    /**
+     * Applies the sync, write-ahead log, mapping and cache settings to a
+     * database.
+     **/
+    private void configure(BTreeFiler db) {
+        db.setSync(sync);
+        if (writeAheadLog) {
+            db.setWriteAheadLog(commitInterval, commitSize);
+        }
+        db.setMemoryMapped(memoryMapped);
+        db.setCacheSize(cacheSize);
+    }
+
+    /**
+     * Adds an entry to the expiry index for every record, when the records
+     * were written before there was an expiry index. The index values of
+     * these records aren't known.
+     **/
+    private void fillExpiryIndex() throws DBException {
+        final List keys = new ArrayList();
+        final List lifetimes = new ArrayList();
+
+        query("", new RecordCallback() {
+                  public boolean record(Value value, Record record) {
+                      keys.add(record.getKey());
+                      lifetimes.add(record.getMetaData(Record.LIFETIME));
+                      return true;
+                  }
+              }
+             );
+
+        for (int i = 0; i < keys.size(); i++) {
+            expiry.add(((Long) lifetimes.get(i)).longValue(), (Key) keys.get(i), null);
+        }
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Built expiry index for " + keys.size() + " records");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void close() throws DBException {
+        cacheDB.close();
+        indexer.close();
+        expiry.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public Record readRecord(Key key) throws DBException {
+        return cacheDB.readRecord(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void writeRecord(Key key, Value value, long lifetime, long expiration, Map indexables) throws DBException {
+        long pos = cacheDB.writeRecord(key, value, lifetime, expiration);
+
+        expiry.add(lifetime, key, indexables);
+
+        if (indexables != null && !indexables.isEmpty()) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Indexing " + indexables + " at " + pos);
+            }
+            try {
+                indexer.addToIndex(indexables, pos);
+            } catch (IOException ie) {
+                throw new FilerException(FaultCodes.DBE_CANNOT_CREATE, "Can't index " + key, ie);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public boolean deleteRecord(Key key, Map indexables) throws DBException {
+        try {
+            long pos = cacheDB.findValue(key);
+
+            cacheDB.deleteRecord(key);
+            if (indexables != null) {
+                indexer.removeFromIndex(indexables, pos);
+            } else {
+                indexer.purge(pos);
+            }
+            return true;
+        } catch (BTreeNotFoundException notFound) {
+            return false;
+        } catch (IOException ie) {
+            throw new FilerException(FaultCodes.DBE_CANNOT_DROP, "Can't delete " + key, ie);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void query(String prefix, RecordCallback callback) throws DBException {
+        IndexQuery iq = null;
+
+        if (prefix.length() > 0) {
+            iq = new IndexQuery(IndexQuery.SW, new Value(prefix));
+        }
+        try {
+            cacheDB.query(iq, new ReadCallback(cacheDB, callback, true));
+        } catch (IOException ie) {
+            throw new FilerException(FaultCodes.GEN_GENERAL_ERROR, "Can't query " + prefix, ie);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public void search(String name, IndexQuery query, RecordCallback callback) throws DBException {
+        try {
+            indexer.search(query, name, new ReadCallback(cacheDB, callback, false));
+        } catch (IOException ie) {
+            throw new FilerException(FaultCodes.GEN_GENERAL_ERROR, "Can't search " + name, ie);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     **/
+    public Set getIndexNames() {
+        return new HashSet(indexer.getIndexers().keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>Only the entries of the expiry index which have come due are
+     * visited.
+     **/
+    public int purge(long now) throws DBException {
+        List expired = expiry.expired(now);
+        List unindexed = new ArrayList();
+        int purged = 0;
+
+        try {
+            for (int i = 0; i < expired.size(); i++) {
+                ExpiryIndex.Expired due = (ExpiryIndex.Expired) expired.get(i);
+                Record record = cacheDB.readRecord(due.key);
+
+                // the record may have been deleted or given a later lifetime
+                if (record != null && ((Long) record.getMetaData(Record.LIFETIME)).longValue() <= now) {
+                    long pos = cacheDB.findValue(due.key);
+
+                    cacheDB.deleteRecord(due.key);
+                    if (due.indexables != null) {
+                        indexer.removeFromIndex(due.indexables, pos);
+                    } else {
+                        unindexed.add(new Long(pos));
+                    }
+                    purged++;
+                }
+                expiry.remove(due);
+            }
+            if (!unindexed.isEmpty()) {
+                indexer.purge(unindexed);
+            }
+        } catch (IOException ie) {
+            throw new FilerException(FaultCodes.DBE_CANNOT_DROP, "Can't purge", ie);
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Purged " + purged + " of " + expired.size() + " due records");
+            LOG.debug("Page cache of " + cacheDB.getCacheSize() + " pages :" +
+                      " hits=" + cacheDB.getCacheHits() +
+                      " misses=" + cacheDB.getCacheMisses() +
+                      " evictions=" + cacheDB.getCacheEvictions() +
+                      " dirty flushes=" + cacheDB.getDirtyFlushes());
+        }
+        return purged;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>When the store is empty the records are written to consecutive
+     * pages, and the record database, the indexes and the expiry index are
+     * each built bottom-up. The index entries are gathered and sorted in
+     * memory first.
+     **/
+    public void load(Iterator entries) throws DBException {
+        if (cacheDB.getRecordCount() > 0 || !indexer.getIndexers().isEmpty()) {
+            while (entries.hasNext()) {
+                Entry entry = (Entry) entries.next();
+
+                writeRecord(entry.key, entry.value, entry.lifetime, entry.expiration, entry.indexables);
+            }
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        BTreeFiler.RecordLoader loader = cacheDB.loadRecords(LOAD_FILL);
+        Map indexes = new HashMap();
+        SortedMap expiries = new TreeMap();
+        int count = 0;
+
+        while (entries.hasNext()) {
+            Entry entry = (Entry) entries.next();
+            Map meta = new HashMap(4);
+
+            meta.put(Record.LIFETIME, new Long(entry.lifetime));
+            meta.put(Record.EXPIRATION, new Long(entry.expiration));
+            long pos = loader.add(new Record(entry.key, entry.value, meta));
+
+            if (entry.indexables != null) {
+                Long lpos = new Long(pos);
+                Iterator ni = entry.indexables.keySet().iterator();
+                while (ni.hasNext()) {
+                    String name = (String) ni.next();
+                    SortedMap values = (SortedMap) indexes.get(name);
+                    if (values == null) {
+                        values = new TreeMap();
+                        indexes.put(name, values);
+                    }
+                    Value val = new Value((String) entry.indexables.get(name));
+                    Set positions = (Set) values.get(val);
+                    if (positions == null) {
+                        positions = new TreeSet();
+                        values.put(val, positions);
+                    }
+                    positions.add(lpos);
+                }
+            }
+            expiries.put(ExpiryIndex.getEntryKey(entry.lifetime, entry.key), ExpiryIndex.getEntryValue(entry.indexables));
+            count++;
+        }
+        loader.finish();
+
+        try {
+            indexer.load(indexes, LOAD_FILL);
+        } catch (IOException ie) {
+            throw new FilerException(FaultCodes.DBE_CANNOT_CREATE, "Can't load the indexes", ie);
+        }
+        expiry.load(expiries, LOAD_FILL);
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Loaded " + count + " records into " + dir + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>The databases are rewritten into new files in a subdirectory,
+     * which then replace the old files. The records are copied in key
+     * order to consecutive pages and the indexes and the expiry index are
+     * built bottom-up from the copies. Index entries for records which are
+     * gone, and the expiry entries of records which were deleted or given
+     * a later lifetime, are left behind. The new position of every record
+     * is kept in memory while the indexes are copied.
+     *
+     * <p/>A store which isn't used by a Cm can be compacted by opening it
+     * on the directory of the Cm and calling this method.
+     **/
+    public void compact() throws DBException {
+        long start = System.currentTimeMillis();
+        long before = getSize(dir);
+        File work = new File(dir, "compact");
+
+        // left over from a compaction which didn't finish
+        deleteFiles(work, "");
+
+        XindiceStore copy = new XindiceStore(false);
+        copy.setMemoryMapped(memoryMapped);
+        copy.setCacheSize(cacheSize);
+        copy.setSubstringIndexed(substringIndexed);
+        copy.open(work);
+        int count;
+        try {
+            final List keys = new ArrayList();
+            final List positions = new ArrayList();
+
+            cacheDB.query(null, new BTreeCallback() {
+                              public boolean indexInfo(Value val, long pos) {
+                                  keys.add(new Key(val));
+                                  positions.add(new Long(pos));
+                                  return true;
+                              }
+                          }
+                         );
+            count = keys.size();
+
+            BTreeFiler.RecordLoader loader = copy.cacheDB.loadRecords(LOAD_FILL);
+            Map moved = new HashMap(count * 2);
+            for (int i = 0; i < count; i++) {
+                Long pos = (Long) positions.get(i);
+                Record record = cacheDB.readRecord(pos.longValue());
+
+                record.setKey((Key) keys.get(i));
+                moved.put(pos, new Long(loader.add(record)));
+            }
+            loader.finish();
+            keys.clear();
+            positions.clear();
+
+            copy.indexer.load(indexer.getEntries(moved), LOAD_FILL);
+            moved.clear();
+
+            SortedMap expiries = expiry.getEntries();
+            Iterator each = expiries.keySet().iterator();
+            while (each.hasNext()) {
+                Key entryKey = (Key) each.next();
+                Record record = copy.cacheDB.readRecord(ExpiryIndex.getRecordKey(entryKey));
+
+                if (record == null || ((Long) record.getMetaData(Record.LIFETIME)).longValue() != ExpiryIndex.getExpiration(entryKey)) {
+                    each.remove();
+                }
+            }
+            copy.expiry.load(expiries, LOAD_FILL);
+        } catch (IOException ie) {
+            throw new FilerException(FaultCodes.GEN_GENERAL_ERROR, "Can't compact " + dir, ie);
+        } finally {
+            copy.close();
+        }
+
+        // replace the databases with the copies
+        close();
+        deleteFiles(dir, databaseFileName);
+        File[] files = work.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].renameTo(new File(dir, files[i].getName()))) {
+                throw new FilerException(FaultCodes.GEN_CRITICAL_ERROR, "Can't move " + files[i] + " to " + dir);
+            }
+        }
+        work.delete();
+        open(dir);
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Compacted " + count + " records in " + dir + " from " + before + " to " + getSize(dir) +
+                     " bytes in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Deletes the files in a directory whose names start with a prefix.
+     **/
+    private static void deleteFiles(File dir, final String prefix) throws DBException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+                                         public boolean accept(File parentDir, String fileName) {
+                                             return fileName.startsWith(prefix);
+                                         }
+                                     }
+                                    );
+        if (files == null) {
+            return;
+        }
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].isFile() && !files[i].delete()) {
+                throw new FilerException(FaultCodes.GEN_CRITICAL_ERROR, "Can't delete " + files[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the total size of the databases in a directory.
+     **/
+    private static long getSize(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].isFile() && files[i].getName().startsWith(databaseFileName)) {
+                size += files[i].length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Reads the record at each position and hands it to a RecordCallback.
+     **/
+    private static final class ReadCallback implements BTreeCallback {
+
+        private final BTreeFiler cacheDB;
+        private final RecordCallback callback;
+        private final boolean keyed;
+
+        /**
+         * @param keyed true if the values are the keys of the records
+         **/
+        ReadCallback(BTreeFiler cacheDB, RecordCallback callback, boolean keyed) {
+            this.cacheDB = cacheDB;
+            this.callback = callback;
+            this.keyed = keyed;
+        }
+
+        /**
+         *  {@inheritDoc}
+         **/
+        public boolean indexInfo(Value val, long pos) {
+            Record record;
+
+            try {
+                record = cacheDB.readRecord(pos);
+            } catch (DBException ex) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Exception while reading indexed", ex);
+                }
+                return false;
+            }
+            if (record == null) {
+                return true;
+            }
+            if (keyed) {
+                record.setKey(new Key(val));
+            }
+            return callback.record(val, record);
+        }
+    }
+}
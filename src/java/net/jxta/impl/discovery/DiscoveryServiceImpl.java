@@ -58,6 +58,8 @@ package net.jxta.impl.discovery;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
@@ -115,6 +117,7 @@ import net.jxta.exception.PeerGroupException;
 
 import net.jxta.impl.cm.Cm;
 import net.jxta.impl.cm.Srdi;
+import net.jxta.impl.cm.SrdiDigest;
 import net.jxta.impl.cm.SrdiIndex;
 import net.jxta.impl.peergroup.StdPeerGroup;
 import net.jxta.impl.protocol.DiscoveryConfigAdv;
@@ -155,7 +158,7 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             InternalQueryHandler,
             RendezvousListener,
             SrdiHandler,
-    Srdi.SrdiInterface {
+    Srdi.SrdiDigestInterface {
 
     /**
      *  Log4J Logger
@@ -582,7 +585,7 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             failed = true;
         }
 
-        if (rendezvous.isRendezVous()) {
+        if (!localonly) {
             if (resolver.unregisterSrdiHandler(handlerName) == null) {
                 failed = true;
             }
@@ -1390,10 +1393,7 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         SrdiMessage srdiMsg;
 
         try {
-            StructuredTextDocument asDoc = (StructuredTextDocument)
-                                           StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(message.getPayload()));
-
-            srdiMsg = new SrdiMessageImpl(asDoc);
+            srdiMsg = srdi.getSrdiMessage(message);
         } catch (Exception e) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Failed parsing srdi message", e);
@@ -1401,6 +1401,11 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             return false;
         }
 
+        if (srdiIndex == null) {
+            // edge peers only take the messages srdi itself handles
+            return true;
+        }
+
         PeerID pid = srdiMsg.getPeerID();
 
         Iterator eachEntry = srdiMsg.getEntries().iterator();
@@ -1443,18 +1448,32 @@ public class DiscoveryServiceImpl implements DiscoveryService,
     /**
      * push srdi entries
      *
+     * <p/>All entries are pushed in batches paced by srdi. If our rendezvous
+     * takes part in digest exchanges only a digest is sent and the entries
+     * it misses are pushed once it asks for them.
+     *
+     *@param peer the peer to push to, null to push to our rendezvous
+     *@param type the type of the entries
      *@param all if true push all entries, otherwise just deltas
      */
     protected void pushSrdi(ID peer, int type, boolean all) {
 
-        List entries;
-
         if (all) {
-            entries = cm.getEntries(dirname[type], true);
-        } else {
-            entries = cm.getDeltas(dirname[type]);
+            cm.clearDeltas(dirname[type]);
+
+            ID rdv = (peer == null) ? srdi.getDigestPeer() : null;
+
+            if (rdv != null) {
+                // the rendezvous will ask for what it misses
+                srdi.pushDigest(rdv, getDigest(type));
+            } else {
+                pushAllSrdi(peer, type, null);
+            }
+            return;
         }
 
+        List entries = cm.getDeltas(dirname[type]);
+
         if (!entries.isEmpty()) {
             SrdiMessage srdiMsg;
 
@@ -1463,7 +1482,7 @@ public class DiscoveryServiceImpl implements DiscoveryService,
                                               dirname[type], entries);
 
                 if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Pushing " + entries.size() + (all ? " entries" : " deltas") + " of type " + dirname[type]);
+                    LOG.debug("Pushing " + entries.size() + " deltas of type " + dirname[type]);
                 }
                 srdi.pushSrdi(peer, srdiMsg);
             } catch (Exception e) {
@@ -1473,9 +1492,103 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             }
         } else {
             if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("No" + (all ? " entries" : " deltas") + " of type " + dirname[type] + " to push");
+                LOG.debug("No deltas of type " + dirname[type] + " to push");
+            }
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void pushEntries(ID peer, String primaryKey, BitSet buckets) {
+
+        for (int type = PEER; type <= ADV; type++) {
+            if (dirname[type].equals(primaryKey)) {
+                pushAllSrdi(peer, type, buckets);
+                return;
+            }
+        }
+    }
+
+    /**
+     * push all srdi entries of a type, walking the cache in batches paced
+     * by srdi
+     *
+     *@param peer the peer to push to, null to push to our rendezvous
+     *@param type the type of the entries
+     *@param buckets if not null only the entries falling into these digest
+     *   buckets are pushed
+     */
+    private void pushAllSrdi(ID peer, int type, BitSet buckets) {
+
+        Cm.EntryCursor cursor = new Cm.EntryCursor(dirname[type]);
+        int batchSize = srdi.getBatchSize();
+        List batch = new ArrayList();
+        int pushed = 0;
+
+        while (!cursor.isDone()) {
+            Iterator eachEntry = cm.getEntries(cursor, batchSize).iterator();
+
+            while (eachEntry.hasNext()) {
+                SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+
+                if (buckets == null || buckets.get(SrdiDigest.getBucket(entry.key, entry.value))) {
+                    batch.add(entry);
+                }
+            }
+
+            if (batch.size() < batchSize && !cursor.isDone()) {
+                continue;
             }
+            if (batch.isEmpty() || !srdi.pace(batch.size())) {
+                break;
+            }
+
+            try {
+                SrdiMessage srdiMsg = new SrdiMessageImpl(group.getPeerID(), 1, // ttl of 1, ensure it is replicated
+                                              dirname[type], batch);
+
+                srdi.pushSrdi(peer, srdiMsg);
+                pushed += batch.size();
+            } catch (Exception e) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Exception pushing SRDI Entries", e);
+                }
+            }
+            batch.clear();
         }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Pushed " + pushed + " entries of type " + dirname[type] + ((buckets == null) ? "" : (" in " + buckets.cardinality() + " buckets")));
+        }
+    }
+
+    /**
+     * Returns the digest of all srdi entries of a type
+     *
+     *@param type the type of the entries
+     *@return the digest
+     */
+    private SrdiDigest getDigest(int type) {
+
+        SrdiDigest digest = new SrdiDigest(dirname[type]);
+        Cm.EntryCursor cursor = new Cm.EntryCursor(dirname[type]);
+        SrdiMessage.Entry previous = null;
+
+        while (!cursor.isDone()) {
+            Iterator eachEntry = cm.getEntries(cursor, srdi.getBatchSize()).iterator();
+
+            while (eachEntry.hasNext()) {
+                SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+
+                // advertisements sharing a value are a single entry to the rendezvous
+                if (!entry.equals(previous)) {
+                    digest.add(entry.key, entry.value);
+                }
+                previous = entry;
+            }
+        }
+        return digest;
     }
 
     /**
@@ -1642,9 +1755,8 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         if (srdiIndex != null) {
             srdiIndex.stop();
             srdiIndex = null;
-            resolver.unregisterSrdiHandler(handlerName);
             if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("stopped cache and unregistered from resolver");
+                LOG.debug("stopped cache");
             }
         }
 
@@ -1661,6 +1773,9 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             // Create a new SRDI
             srdi = new Srdi(group, handlerName, this, null, initialDelay, runInterval);
 
+            // edge peers only receive the digest exchanges and offers of srdi
+            resolver.registerSrdiHandler(handlerName, this);
+
             // only edge peers distribute srdi
             srdiThread = new Thread(group.getHomeThreadGroup(), srdi, "Discovery Srdi Thread");
             srdiThread.setDaemon(true);
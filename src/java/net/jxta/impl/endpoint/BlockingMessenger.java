@@ -57,8 +57,6 @@
 
 package net.jxta.impl.endpoint;
 
-import java.util.Timer;
-import java.util.TimerTask;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
@@ -76,8 +74,9 @@ import net.jxta.endpoint.OutgoingMessageEvent;
 import net.jxta.peergroup.PeerGroupID;
 import net.jxta.util.SimpleSelectable;
 
+import net.jxta.impl.util.ScheduledTask;
+import net.jxta.impl.util.SharedTimer;
 import net.jxta.impl.util.TimeUtils;
-import net.jxta.impl.util.TimerThreadNamer;
 
 /**
  * This class is a near-drop-in replacement for the previous BlockingMessenger class.
@@ -170,17 +169,12 @@ public abstract class BlockingMessenger extends AbstractMessenger {
      * When this messenger has become idle, it is closed. As a side effect, it makes the owning canonical messenger,
      * if any, subject to removal if it is otherwise unreferenced.
      **/
-    private static Timer timer;
-
-    static {
-        timer = new Timer(true);
-        timer.schedule( new TimerThreadNamer( "BlockingMessenger self destruct timer" ), 0);
-    }
+    private static final SharedTimer timer = new SharedTimer("BlockingMessenger self destruct timer");
 
     /**
      * The timer task watching over our self destruction requirement.
      **/
-    private final TimerTask selfDestructTask;
+    private final ScheduledTask selfDestructTask;
 
     /**
      * State lock and engine.
@@ -389,7 +383,7 @@ public abstract class BlockingMessenger extends AbstractMessenger {
         // should probably superimpose a time limit of our own.
         //
         if (selfDestruct) {
-            selfDestructTask = new TimerTask() {
+            selfDestructTask = new ScheduledTask() {
                     public void run() {
                         try {
                             try {
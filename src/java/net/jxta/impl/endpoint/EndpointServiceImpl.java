@@ -65,6 +65,7 @@ import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -122,7 +123,6 @@ import net.jxta.impl.endpoint.endpointMeter.OutboundMeter;
 import net.jxta.impl.endpoint.endpointMeter.PropagationMeter;
 import net.jxta.impl.endpoint.relay.RelayClient;
 import net.jxta.impl.endpoint.router.EndpointRouter;
-import net.jxta.impl.util.FastHashMap;
 import net.jxta.impl.util.SequenceIterator;
 
 
@@ -247,11 +247,50 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
     
     /**
      * The set of listener managed by this instance of the endpoint svc.
+     * Only accessed while synchronized on the map.
      *
      *  <p/>keys are {@see java.lang.String}
      *  <p/>values are {@see net.jxta.endpoint.EndpointListener}
      **/
-    private final Map incomingMessageListeners = new FastHashMap(16);
+    private final Map incomingMessageListeners = new HashMap(16);
+    
+    /**
+     *  Read-only snapshot of {@link #incomingMessageListeners} used for
+     *  dispatching incoming messages without locking or building keys.
+     *  Replaced whenever a listener is added or removed.
+     *
+     *  <p/>keys are {@see java.lang.String} service names
+     *  <p/>values are {@see java.util.Map}
+     *  <ul>
+     *      <li>keys are {@see java.lang.String} service params, null for
+     *      listeners registered without a param.</li>
+     *      <li>values are {@see net.jxta.endpoint.EndpointListener}</li>
+     *  </ul>
+     **/
+    private volatile Map listenerTable = Collections.EMPTY_MAP;
+    
+    /**
+     *  The result of splitting the service parameter of a group redirected
+     *  address.
+     **/
+    private static final class Demangled {
+        final String mangledParam;
+        final String serviceName;
+        final String serviceParam;
+        
+        Demangled(String mangledParam, String serviceName, String serviceParam) {
+            this.mangledParam = mangledParam;
+            this.serviceName = serviceName;
+            this.serviceParam = serviceParam;
+        }
+    }
+    
+    /**
+     *  Recently demangled service parameters, indexed by the hash of the
+     *  mangled parameter. Entries are immutable so the cache can be read and
+     *  written without locking; a lost update only costs a re-parse.
+     **/
+    private static final Demangled[] demangledCache = new Demangled[256];
     
     /**
      * The set of shared transport messengers currently ready for use.
@@ -589,7 +628,10 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         // Clear up the HashMap
         if (incomingMessageListeners != null) {
             try {
-                incomingMessageListeners.clear();
+                synchronized (incomingMessageListeners) {
+                    incomingMessageListeners.clear();
+                    listenerTable = Collections.EMPTY_MAP;
+                }
             } catch (Exception ez) {// Not much can be done
             }
         }
@@ -796,20 +838,94 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             return new EndpointAddress(mangled, null, null);
         }
         
-        int slashAt = serviceParam.indexOf('/');
+        int slot = serviceParam.hashCode() & (demangledCache.length - 1);
+        Demangled demangled = demangledCache[slot];
         
-        if (-1 == slashAt) {
-            // param has no param portion.
-            return new EndpointAddress(mangled, serviceParam, null);
+        if ((null == demangled) || !serviceParam.equals(demangled.mangledParam)) {
+            int slashAt = serviceParam.indexOf('/');
+            
+            if (-1 == slashAt) {
+                // param has no param portion.
+                demangled = new Demangled(serviceParam, serviceParam, null);
+            } else {
+                demangled = new Demangled(serviceParam, serviceParam.substring(0, slashAt), serviceParam.substring(slashAt + 1));
+            }
+            
+            demangledCache[slot] = demangled;
         }
         
-        return new EndpointAddress(mangled, serviceParam.substring(0, slashAt), serviceParam.substring(slashAt + 1));
+        return new EndpointAddress(mangled, demangled.serviceName, demangled.serviceParam);
+    }
+    
+    /**
+     *  Rebuild the dispatch snapshot from {@link #incomingMessageListeners}.
+     *  Must be called while synchronized on
+     *  <code>incomingMessageListeners</code>.
+     **/
+    private void updateListenerTable() {
+        Map newTable = new HashMap();
+        Iterator eachListener = incomingMessageListeners.entrySet().iterator();
+        
+        while (eachListener.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachListener.next();
+            String address = (String) anEntry.getKey();
+            
+            // service names never contain '/', so the first one separates the param.
+            int slashAt = address.indexOf('/');
+            String serviceName = (-1 == slashAt) ? address : address.substring(0, slashAt);
+            String serviceParam = (-1 == slashAt) ? null : address.substring(slashAt + 1);
+            
+            Map params = (Map) newTable.get(serviceName);
+            
+            if (null == params) {
+                params = new HashMap(4);
+                newTable.put(serviceName, params);
+            }
+            
+            params.put(serviceParam, anEntry.getValue());
+        }
+        
+        listenerTable = newTable;
+    }
+    
+    /**
+     *  Returns the listener registered for the specified service name and
+     *  param.
+     *
+     *  @param serviceName the service name.
+     *  @param serviceParam the service param or null for the generic listener
+     *  of the service.
+     *  @return the listener or null if there is none.
+     **/
+    private EndpointListener getIncomingMessageListener(String serviceName, String serviceParam) {
+        Map params = (Map) listenerTable.get(serviceName);
+        
+        if (null == params) {
+            return null;
+        }
+        
+        return (EndpointListener) params.get(serviceParam);
     }
     
     /**
      * {@inheritDoc}
      **/
     public void processIncomingMessage(Message msg, EndpointAddress srcAddress, EndpointAddress dstAddress) {
+        dispatchIncomingMessage(msg, srcAddress, dstAddress);
+    }
+    
+    /**
+     *  Deliver an incoming message to the listener for its destination.
+     *
+     *  @param msg The message to be delivered.
+     *  @param srcAddress The source of the message.
+     *  @param dstAddress The destination of the message.
+     *  @return <code>true</code> if the message was passed to a listener
+     *  otherwise <code>false</code>. Incoming filters may hold the message or
+     *  its elements, so once they have seen it its pooled buffers are left to
+     *  the garbage collector even if no listener takes it.
+     **/
+    private boolean dispatchIncomingMessage(Message msg, EndpointAddress srcAddress, EndpointAddress dstAddress) {
         
         // check for propagate loopback.
         MessageElement srcPeerElement = msg.getMessageElement(EndpointServiceImpl.MESSAGE_SRCPEERHDR_NS, EndpointServiceImpl.MESSAGE_SRCPEERHDR_NAME);
@@ -828,7 +944,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                     endpointMeter.discardedLoopbackDemuxMessage();
                 }
                 
-                return;
+                return false;
             }
         }
         
@@ -841,7 +957,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 endpointMeter.invalidIncomingMessage();
             }
             
-            return;
+            return false;
         }
         
         // Decode the destination address.
@@ -857,6 +973,10 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         String decodedServiceParam = demangledAddress.getServiceParameter();
         
         // Do filters for this message:
+        if (!incomingFilterListeners.isEmpty()) {
+            WireFormatMessageBinary.keepBuffers(msg);
+        }
+        
         // FIXME - jice 20040417 : filters are likely broken, now. They do not see messages
         // from xports in parent groups.  For those messages that are seen, demangled address seems to be the useful one.
         msg = processFilters(msg, srcAddress, demangledAddress, true);
@@ -871,7 +991,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 endpointMeter.incomingMessageFilteredOut();
             }
             
-            return;
+            return false;
         }
         
         if ((null == decodedServiceName) || (0 == decodedServiceName.length())) {
@@ -883,29 +1003,53 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 endpointMeter.invalidIncomingMessage();
             }
             
-            return;
+            return false;
         }
         
-        // Now that we know the original service name is valid, finish building the decoded version.
+        // Listeners are registered under "serviceName[/serviceParam]". For
+        // redirected addresses the registered service name is the group
+        // redirection and the param is the original service name and param.
+        String listenerName;
+        String listenerParam;
+        String genericParam;
+        
         if (demangledAddress != dstAddress) {
-            decodedServiceName = dstAddress.getServiceName() + "/" + decodedServiceName;
+            listenerName = dstAddress.getServiceName();
+            listenerParam = dstAddress.getServiceParameter();
+            genericParam = decodedServiceName;
+        } else {
+            listenerName = decodedServiceName;
+            listenerParam = decodedServiceParam;
+            genericParam = null;
         }
         
         // First, try the regular destination
         EndpointListener h = null;
         
         if (null != decodedServiceParam) {
-            h = (EndpointListener) incomingMessageListeners.get(decodedServiceName + "/" + decodedServiceParam);
+            h = getIncomingMessageListener(listenerName, listenerParam);
         }
         
         // Didn't find it with param, maybe there is a generic listener for the service
         if (h == null) {
-            h = (EndpointListener) incomingMessageListeners.get(decodedServiceName);
+            h = getIncomingMessageListener(listenerName, genericParam);
+        }
+        
+        // Now that we know the original service name is valid, finish building the decoded version.
+        if ((h == null) && (demangledAddress != dstAddress)) {
+            decodedServiceName = dstAddress.getServiceName() + "/" + decodedServiceName;
         }
         
         // Didn't find it still, try the compatibility name.
         if (h == null) {
-            h = (EndpointListener) incomingMessageListeners.get(decodedServiceName + decodedServiceParam);
+            String compatName = decodedServiceName + decodedServiceParam;
+            int slashAt = compatName.indexOf('/');
+            
+            if (-1 == slashAt) {
+                h = getIncomingMessageListener(compatName, null);
+            } else {
+                h = getIncomingMessageListener(compatName.substring(0, slashAt), compatName.substring(slashAt + 1));
+            }
         }
         
         // Still no listener? oh well.
@@ -920,7 +1064,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 endpointMeter.noListenerForIncomingMessage();
             }
             
-            return; // noone cares for this message
+            return false; // noone cares for this message
         }
         
         // call the listener
@@ -944,6 +1088,8 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 endpointMeter.errorProcessingIncomingMessage();
             }
         }
+        
+        return true;
     }
     
     /**
@@ -969,11 +1115,12 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 endpointMeter.noDestinationAddressForDemuxMessage();
             }
             
+            WireFormatMessageBinary.releaseBuffers(msg);
             return;
         }
         
         msg.removeMessageElement(dstAddressElement);
-        EndpointAddress dstAddress = new EndpointAddress(dstAddressElement.toString());
+        EndpointAddress dstAddress = EndpointAddress.getEndpointAddress(dstAddressElement.toString());
         
         // Get the message source
         MessageElement srcAddressElement = msg.getMessageElement(EndpointServiceImpl.MESSAGE_SOURCE_NS, EndpointServiceImpl.MESSAGE_SOURCE_NAME);
@@ -988,12 +1135,16 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 endpointMeter.noSourceAddressForDemuxMessage();
             }
             
+            WireFormatMessageBinary.releaseBuffers(msg);
             return;
         }
         msg.removeMessageElement(srcAddressElement);
-        EndpointAddress msgScrAddress = new EndpointAddress(srcAddressElement.toString());
+        EndpointAddress msgScrAddress = EndpointAddress.getEndpointAddress(srcAddressElement.toString());
         
-        processIncomingMessage(msg, msgScrAddress, dstAddress);
+        if (!dispatchIncomingMessage(msg, msgScrAddress, dstAddress)) {
+            // No listener took the message. Recycle any buffers it was using.
+            WireFormatMessageBinary.releaseBuffers(msg);
+        }
         
         if (EndpointMeterBuildSettings.ENDPOINT_METERING && (endpointMeter != null)) {
             endpointMeter.demuxMessageProcessed();
@@ -1335,6 +1486,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             }
             
             incomingMessageListeners.put(address, listener);
+            updateListenerTable();
         }
         
         if (parentEndpoint != null) {
@@ -1376,6 +1528,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         synchronized (incomingMessageListeners) {
             removedListener = (QuotaIncomingMessageListener) incomingMessageListeners.remove(address);
             if (removedListener != null) {
+                updateListenerTable();
                 result = removedListener.getListener();
                 // We need to explicitly close the  QuotaIncomingMessageListener
                 removedListener.close();
@@ -62,6 +62,8 @@ import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
@@ -368,6 +370,77 @@ public final class IPUtils {
      *  @throws IOException when the socket cannot be opened. (Lame, but that's what ServerSocket says).
      **/
     public static ServerSocket openServerSocketInRange( int start, int end, int backlog, InetAddress bindAddress) throws IOException {
+        return (ServerSocket) openInRange( start, end, backlog, bindAddress, false );
+    }
+    
+    /**
+     *  Open a ServerSocketChannel in the specified range. The channel is left
+     *  in blocking mode. The ServerSocketFactory, if any, is not used since
+     *  it cannot produce channels.
+     *
+     *  @param start The lowest numbered port to try.
+     *  @param end The highest numbered port to try.
+     *  @param backlog the allowed backlog of unaccepted connections.
+     *  @param bindAddress the InetAddress to which to bind.
+     *  @throws IOException when the channel cannot be opened.
+     **/
+    public static ServerSocketChannel openServerSocketChannelInRange( int start, int end, int backlog, InetAddress bindAddress) throws IOException {
+        return (ServerSocketChannel) openInRange( start, end, backlog, bindAddress, true );
+    }
+    
+    /**
+     *  Open a ServerSocketChannel on the specified port. The channel is left
+     *  in blocking mode.
+     *
+     *  @param port The port to bind to.
+     *  @param backlog the allowed backlog of unaccepted connections.
+     *  @param bindAddress the InetAddress to which to bind.
+     *  @throws IOException when the channel cannot be opened.
+     **/
+    public static ServerSocketChannel openServerSocketChannel( int port, int backlog, InetAddress bindAddress) throws IOException {
+        ServerSocketChannel result = ServerSocketChannel.open();
+        
+        try {
+            result.socket().bind( new InetSocketAddress( bindAddress, port ), backlog );
+        } catch ( IOException failed ) {
+            result.close();
+            throw failed;
+        }
+        
+        return result;
+    }
+    
+    /**
+     *  Create a client SocketChannel bound to the specified interface and
+     *  connected to the specified destination. The channel is left in
+     *  blocking mode. The SocketFactory, if any, is not used since it cannot
+     *  produce channels.
+     **/
+    public static SocketChannel connectChannelToFrom(InetAddress inetAddress, int port,
+    InetAddress usingInterface, int localPort,
+    int timeout)
+    throws IOException {
+        
+        SocketChannel channel = SocketChannel.open();
+        
+        try {
+            InetSocketAddress src = new InetSocketAddress(usingInterface, localPort);
+            InetSocketAddress dst = new InetSocketAddress(inetAddress, port);
+            channel.socket().bind(src);
+            channel.socket().connect(dst, timeout);
+        } catch ( IOException failed ) {
+            channel.close();
+            throw failed;
+        }
+        
+        return channel;
+    }
+    
+    /**
+     *  Common implementation of {@link #openServerSocketInRange} and
+     *  {@link #openServerSocketChannelInRange}.
+     **/
+    private static Object openInRange( int start, int end, int backlog, InetAddress bindAddress, boolean channel ) throws IOException {
         ServerSocketFactory factory = getServerSocketFactory();
         
         if( (start < 1) || (start > 65535) ) {
@@ -409,6 +482,10 @@ public final class IPUtils {
                 }
                 
                 try {
+                    if( channel ) {
+                        return openServerSocketChannel( tryPort, backlog, bindAddress );
+                    }
+                    
                     ServerSocket result;
                     if( null == factory ) {
                         result = new ServerSocket( tryPort, backlog, bindAddress );
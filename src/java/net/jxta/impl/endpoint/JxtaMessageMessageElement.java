@@ -57,10 +57,14 @@
 
 package net.jxta.impl.endpoint;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -93,6 +97,15 @@ public class JxtaMessageMessageElement extends MessageElement {
      **/
     protected transient net.jxta.endpoint.WireFormatMessage serial;
     
+    /**
+     *  If not <code>null</code> then the message as it was received. The
+     *  message is decoded from these bytes when it is first needed. Until
+     *  then the element content is served from these bytes.
+     **/
+    private final byte [] raw;
+    private final int rawOffset;
+    private final int rawLength;
+    
     /**
      * Create a new Message Element. The contents of the provided byte array
      * are <b>not</b> copied during construction.
@@ -110,6 +123,35 @@ public class JxtaMessageMessageElement extends MessageElement {
         super( name, type, sig );
         
         this.msg = msg;
+        raw = null;
+        rawOffset = 0;
+        rawLength = 0;
+    }
+    
+    /**
+     *  Create a new Message Element from the serialized form of a message. The
+     *  message is not decoded until it is needed. The contents of the provided
+     *  byte array are <b>not</b> copied during construction and must not be
+     *  modified.
+     *
+     *  @param name Name of the MessageElement.
+     *  @param type Type of the MessageElement.
+     *  @param b the buffer containing the serialized message.
+     *  @param offset the offset within the buffer at which the message begins.
+     *  @param len the length of the serialized message.
+     *  @param sig optional message digest/digital signature elemnent or null if
+     *  no signature is desired.
+     *  @throws IOException if the serialized message is not well formed.
+     **/
+    JxtaMessageMessageElement( String name, MimeMediaType type, byte [] b, int offset, int len, MessageElement sig ) throws IOException {
+        super( name, type, sig );
+        
+        // check now so that bad input fails while the outer message is read.
+        WireFormatMessageBinary.checkWire( b, offset, len );
+        
+        raw = b;
+        rawOffset = offset;
+        rawLength = len;
     }
     
     /**
@@ -125,10 +167,18 @@ public class JxtaMessageMessageElement extends MessageElement {
                 return false;
             }
             
-            if( target instanceof JxtaMessageMessageElement ) {
+            if( (target instanceof JxtaMessageMessageElement) && (null != raw) && (null != ((JxtaMessageMessageElement) target).raw) ) {
                 JxtaMessageMessageElement likeMe = (JxtaMessageMessageElement) target;
                 
-                return super.equals( likeMe ) & msg.equals( likeMe.msg );
+                if( likeMe.rawLength != rawLength )
+                    return false;
+                
+                for( int eachByte = rawLength - 1; eachByte >= 0; eachByte-- ) {
+                    if( likeMe.raw[likeMe.rawOffset + eachByte] != raw[rawOffset + eachByte] )
+                        return false;
+                }
+                
+                return true;
             } else {
                 // have to do a slow stream comparison.
                 // XXX 20020615 bondolo@jxta.org the performance of this could be much improved.
@@ -167,8 +217,18 @@ public class JxtaMessageMessageElement extends MessageElement {
      *  {@inheritDoc}
      **/
     public int hashCode() {
+        Checksum crc = new CRC32();
+        
+        if( null != raw ) {
+            crc.update( raw, rawOffset, rawLength );
+        } else {
+            byte [] bytes = getBytes( false );
+            
+            crc.update( bytes, 0, bytes.length );
+        }
+        
         int result = super.hashCode() *  6037 +   // a prime
-        msg.hashCode();
+        (int) crc.getValue();
         
         return (0 != result) ? result : 1;
     }
@@ -184,6 +244,10 @@ public class JxtaMessageMessageElement extends MessageElement {
      *  {@inheritDoc}
      **/
     public long getByteLength() {
+        if( isUndecoded() ) {
+            return rawLength;
+        }
+        
         initSerial();
        
         return serial.getByteLength();
@@ -193,6 +257,14 @@ public class JxtaMessageMessageElement extends MessageElement {
      *  {@inheritDoc}
      **/
     public byte[] getBytes( boolean copy ) {
+        if( isUndecoded() ) {
+            byte [] result = new byte [ rawLength ];
+            
+            System.arraycopy( raw, rawOffset, result, 0, rawLength );
+            
+            return result;
+        }
+        
         initSerial();
        
         ByteArrayOutputStream baos = new ByteArrayOutputStream( (int) serial.getByteLength() );
@@ -208,10 +280,25 @@ public class JxtaMessageMessageElement extends MessageElement {
         return baos.toByteArray();
     }
     
+    /**
+     *  {@inheritDoc}
+     **/
+    public ByteBuffer getByteBuffer() {
+        if( isUndecoded() ) {
+            return ByteBuffer.wrap( raw, rawOffset, rawLength ).slice();
+        }
+        
+        return super.getByteBuffer();
+    }
+    
     /**
      *  {@inheritDoc}
      **/
     public InputStream getStream() throws IOException {
+        if( isUndecoded() ) {
+            return new ByteArrayInputStream( raw, rawOffset, rawLength );
+        }
+        
         initSerial();
         
         return serial.getStream();
@@ -221,6 +308,11 @@ public class JxtaMessageMessageElement extends MessageElement {
      *  {@inheritDoc}
      **/
     public void sendToStream( OutputStream sendTo ) throws IOException {
+        if( isUndecoded() ) {
+            sendTo.write( raw, rawOffset, rawLength );
+            return;
+        }
+        
         initSerial();
         
         serial.sendToStream( sendTo );
@@ -232,18 +324,42 @@ public class JxtaMessageMessageElement extends MessageElement {
      *  <p/>Currently the message is modifiable, but should not be modified to
      *  obey the contract of MessageElement.
      *
+     *  <p/>If the element was received then the message is decoded the first
+     *  time it is requested.
+     *
      *  @return Returns the message which backs this element.
      **/
-    public Message getMessage() {
+    public synchronized Message getMessage() {
+        if( null == msg ) {
+            try {
+                msg = WireFormatMessageBinary.fromWire( raw, rawOffset, rawLength, type );
+            } catch( IOException failed ) {
+                if (LOG.isEnabledFor(Level.ERROR)) {
+                    LOG.error( "Could not decode message from element " + getElementName(), failed );
+                }
+                
+                throw new IllegalStateException( "Could not decode message from element : " + failed.getMessage() );
+            }
+        }
+        
         return msg;
     }
     
+    /**
+     *  Returns true if the message has not been handed out. Until then the
+     *  element content is the bytes it was received as, afterwards it is
+     *  the message as it may have been changed.
+     **/
+    private synchronized boolean isUndecoded() {
+        return (null != raw) && (null == msg);
+    }
+    
     /**
      *  Generates the serialized representation of the message.
      **/
     private synchronized void initSerial() {
         if( null == serial ) {
-            serial = WireFormatMessageFactory.toWire( msg, type, null );
+            serial = WireFormatMessageFactory.toWire( getMessage(), type, null );
         }
     }
 }
@@ -267,10 +267,17 @@ public class QuotaIncomingMessageListener implements EndpointListener {
         final long timeReceived;
         final long size;
         
+        /**
+         *  The pooled buffers of the message, held here while it is queued.
+         *  See {@link WireFormatMessageBinary#takeBuffers(Message)}.
+         **/
+        final Object pooled;
+        
         MessageFromSource( Message msg, EndpointAddress srcAddress,
         EndpointAddress destAddress, ResourceAccount src, long timeReceived,
-        long size) {
+        long size, Object pooled) {
             this.msg = msg;
+            this.pooled = pooled;
             this.src = src;
             this.srcAddress = srcAddress;
             this.destAddress = destAddress;
@@ -563,6 +570,11 @@ public class QuotaIncomingMessageListener implements EndpointListener {
                 
                 mfs.src.inNeed(false);
                 mfs.src.releaseQuantity(mfs.size);
+                
+                // Nobody will see the message now.
+                WireFormatMessageBinary.restoreBuffers(mfs.msg, mfs.pooled);
+                WireFormatMessageBinary.releaseBuffers(mfs.msg);
+                
                 // Check src account idleness here. Idleness status is
                 // stable under messageDispatcher synchronization.
                 if (mfs.src.isIdle()) {
@@ -632,6 +644,12 @@ public class QuotaIncomingMessageListener implements EndpointListener {
                 // bogus in that respect we make it unlikely that the bug will ever show itself.
                 // This is as far as we can go without creating deadlocks.
                 if (l != null) {
+                    // Only a consuming listener tells us when it is done with
+                    // the message. Any other gets it without its buffers.
+                    if (l instanceof ConsumingEndpointListener) {
+                        WireFormatMessageBinary.restoreBuffers(mfs.msg, mfs.pooled);
+                    }
+                    
                     l.processIncomingMessage( mfs.msg, mfs.srcAddress, mfs.destAddress);
                 }
             } catch (Throwable ignored) {
@@ -642,6 +660,10 @@ public class QuotaIncomingMessageListener implements EndpointListener {
                 if (EndpointMeterBuildSettings.ENDPOINT_METERING && (incomingMessageListenerMeter != null)) {
                     incomingMessageListenerMeter.inboundMessageProcessed(mfs.msg, System.currentTimeMillis() - timeDequeued);
                 }
+                
+                // No effect unless the listener was a consuming listener
+                // which did not keep the message.
+                WireFormatMessageBinary.releaseBuffers(mfs.msg);
             }
         }
         
@@ -753,10 +775,11 @@ public class QuotaIncomingMessageListener implements EndpointListener {
         
         boolean obtained = false;
         boolean pushed = false;
+        Object pooled = WireFormatMessageBinary.takeBuffers(message);
         
         synchronized(threadDispatcher) {
             do {
-                pushed = messageQueue.push( new MessageFromSource(message, srcAddr, dstAddr, msgSrcAccount, timeReceived, msgSize) );
+                pushed = messageQueue.push( new MessageFromSource(message, srcAddr, dstAddr, msgSrcAccount, timeReceived, msgSize, pooled) );
                 
                 if( (!pushed) && messageQueue.isClosed() ) {
                     if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -787,6 +810,8 @@ public class QuotaIncomingMessageListener implements EndpointListener {
         }
         
         if (! pushed) {
+            WireFormatMessageBinary.restoreBuffers(message, pooled);
+            
             // We need to release the resources that we have obtained.
             // The acount cannot have possibly been purged; it is marked
             // sticky and we hold resources. So, we can re-use the cache
@@ -64,6 +64,7 @@ import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -85,6 +86,8 @@ import net.jxta.endpoint.WireFormatMessage;
 import net.jxta.endpoint.WireFormatMessageFactory;
 import net.jxta.util.LimitInputStream;
 
+import net.jxta.impl.util.BufferPool;
+
 /**
  *  A Wire Format Message which encodes the message into Mime Type
  *  "application/x-jxta-msg".
@@ -111,6 +114,21 @@ public class WireFormatMessageBinary implements WireFormatMessage {
     
     protected static final int MESSAGE_VERSION = 0;
     
+    private static final char [] MESSAGE_SIGNATURE = { 'j', 'x', 'm', 'g' };
+    
+    private static final char [] ELEMENT_SIGNATURE = { 'j', 'x', 'e', 'l' };
+    
+    /**
+     *  Shared namespace ids so that we don't create one per element.
+     **/
+    private static final Integer [] NAMESPACE_IDS = new Integer [256];
+    
+    static {
+        for (int eachId = 0; eachId < NAMESPACE_IDS.length; eachId++) {
+            NAMESPACE_IDS[eachId] = new Integer(eachId);
+        }
+    }
+    
     /**
      * Our Mime Media Type(s)
      **/
@@ -128,10 +146,511 @@ public class WireFormatMessageBinary implements WireFormatMessage {
     };
     
     /**
-     * Our instantiator for the factory.
+     *  The key of the message property in which the pooled buffers used by a
+     *  message decoded with {@link #fromWire(InputStream,MimeMediaType,BufferPool)}
+     *  are recorded.
+     **/
+    private static final String POOLED_BUFFERS_PROPERTY = WireFormatMessageBinary.class.getName() + ".pooledBuffers";
+    
+    /**
+     *  Namespaces and element names which occur in nearly every message. When
+     *  one of these is read from the wire the existing string is used rather
+     *  than creating a new one.
+     **/
+    private static final String [] COMMON_NAMES = {
+        "",
+        "jxta",
+        "EndpointSourceAddress",
+        "EndpointDestinationAddress",
+        "EndpointHeaderSrcPeer",
+        "EndpointRouterMsg",
+        "RendezVousPropagate",
+        "jxta:RendezVousPropagateMessage",
+        "PeerView.PeerAdv",
+        "PeerView.EdgePeer",
+        "PeerView.Cached",
+        "PeerView.Failure",
+        "PeerView.Response",
+        "jxtarel",
+        "relay",
+        "cbjx",
+        "proxy",
+        "JXTAMCAST",
+        "RdvWalkSvcName",
+        "ResolverQuery",
+        "ResolverResponse",
+        "ResolverSrdi",
+        "application/x-jxta-msg",
+        "application/gzip",
+        "application/octet-stream",
+        "text/xml",
+        "text/xml;charset=\"UTF-8\"",
+        "text/xml;charset=UTF-8",
+        "text/plain",
+        "text/plain;charset=\"UTF-8\"",
+        "text/plain;charset=UTF-8"
+    };
+    
+    /**
+     *  Open addressed hash table of the UTF-8 encodings of {@link #COMMON_NAMES}.
+     **/
+    private static final byte [][] internedBytes;
+    
+    /**
+     *  The strings corresponding to the entries of {@link #internedBytes}.
+     **/
+    private static final String [] internedNames;
+    
+    /**
+     *  Parsed mime types indexed by their string representation. Bounded by
+     *  {@link #MAX_CACHED_TYPES}.
+     **/
+    private static final HashMap mimeTypeCache = new HashMap();
+    
+    private static final int MAX_CACHED_TYPES = 64;
+    
+    static {
+        int tableSize = 1;
+        while (tableSize < (COMMON_NAMES.length * 4)) {
+            tableSize <<= 1;
+        }
+        
+        internedBytes = new byte [tableSize][];
+        internedNames = new String [tableSize];
+        
+        for (int eachName = 0; eachName < COMMON_NAMES.length; eachName++) {
+            byte [] asBytes;
+            
+            try {
+                asBytes = COMMON_NAMES[eachName].getBytes("UTF8");
+            } catch (java.io.UnsupportedEncodingException never) {
+                throw new Error("UTF8 encoding unsupported");
+            }
+            
+            int slot = hashBytes(asBytes, 0, asBytes.length) & (tableSize - 1);
+            
+            while (null != internedBytes[slot]) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            
+            internedBytes[slot] = asBytes;
+            internedNames[slot] = COMMON_NAMES[eachName];
+        }
+    }
+    
+    /**
+     *  Our instantiator for the factory.
      **/
     public static final WireFormatMessageFactory.Instantiator INSTANTIATOR = new Instantiator();
     
+    /**
+     *  Decode a message using element data buffers borrowed from the provided
+     *  pool. The buffers may be returned with {@link #releaseBuffers(Message)}
+     *  by whoever knows that nothing refers to the message any longer. After
+     *  the buffers have been released the contents of the message's elements
+     *  are undefined, so this is only appropriate for messages whose lifetime
+     *  the caller controls. A message which is never released is simply
+     *  reclaimed by the garbage collector.
+     *
+     *  @param is the stream to read from.
+     *  @param type the mime type of the message.
+     *  @param pool the pool from which element data buffers are allocated.
+     *  @return the message which was read.
+     *  @throws IOException if the message could not be read.
+     **/
+    public static Message fromWire(InputStream is, MimeMediaType type, BufferPool pool) throws IOException {
+        List buffers = new ArrayList();
+        
+        Message msg = ((Instantiator) INSTANTIATOR).readMessage(is, pool, buffers);
+        
+        if (!buffers.isEmpty()) {
+            msg.setMessageProperty(POOLED_BUFFERS_PROPERTY, new Object [] { pool, buffers });
+        }
+        
+        return msg;
+    }
+    
+    /**
+     *  Return the pooled buffers used by a message decoded with
+     *  {@link #fromWire(InputStream,MimeMediaType,BufferPool)} to their pool.
+     *  Has no effect for other messages or if the buffers were already
+     *  released.
+     *
+     *  @param msg the message whose buffers are to be released.
+     **/
+    public static void releaseBuffers(Message msg) {
+        Object [] pooled = (Object []) msg.setMessageProperty(POOLED_BUFFERS_PROPERTY, null);
+        
+        if (null == pooled) {
+            return;
+        }
+        
+        BufferPool pool = (BufferPool) pooled[0];
+        Iterator eachBuffer = ((List) pooled[1]).iterator();
+        
+        while (eachBuffer.hasNext()) {
+            pool.release((byte []) eachBuffer.next());
+        }
+    }
+    
+    /**
+     *  Declare that a message decoded with
+     *  {@link #fromWire(InputStream,MimeMediaType,BufferPool)} outlives its
+     *  current holder. Its buffers are left to the garbage collector and a
+     *  later {@link #releaseBuffers(Message)} has no effect.
+     *
+     *  @param msg the message which is being kept.
+     **/
+    public static void keepBuffers(Message msg) {
+        msg.setMessageProperty(POOLED_BUFFERS_PROPERTY, null);
+    }
+    
+    /**
+     *  Detach the record of the pooled buffers of a message so that they can
+     *  be held while the message is queued.
+     *
+     *  @param msg the message.
+     *  @return the record or {@code null} if the message has no pooled buffers.
+     **/
+    static Object takeBuffers(Message msg) {
+        return msg.setMessageProperty(POOLED_BUFFERS_PROPERTY, null);
+    }
+    
+    /**
+     *  Reattach a record previously returned by {@link #takeBuffers(Message)}.
+     *
+     *  @param msg the message.
+     *  @param pooled the record or {@code null}.
+     **/
+    static void restoreBuffers(Message msg, Object pooled) {
+        if (null != pooled) {
+            msg.setMessageProperty(POOLED_BUFFERS_PROPERTY, pooled);
+        }
+    }
+    
+    /**
+     *  Compute the hash used for the interned names table.
+     **/
+    private static int hashBytes(byte [] bytes, int offset, int len) {
+        int hash = len;
+        
+        for (int eachByte = offset; eachByte < (offset + len); eachByte++) {
+            hash = (31 * hash) + bytes[eachByte];
+        }
+        
+        return hash ^ (hash >>> 16);
+    }
+    
+    /**
+     *  Returns the interned string for the UTF-8 bytes provided or
+     *  <code>null</code> if the bytes are not one of the common names.
+     **/
+    private static String lookupInterned(byte [] bytes, int offset, int len) {
+        int mask = internedBytes.length - 1;
+        int slot = hashBytes(bytes, offset, len) & mask;
+        
+        while (true) {
+            byte [] candidate = internedBytes[slot];
+            
+            if (null == candidate) {
+                return null;
+            }
+            
+            if (candidate.length == len) {
+                int eachByte = 0;
+                while ((eachByte < len) && (candidate[eachByte] == bytes[offset + eachByte])) {
+                    eachByte++;
+                }
+                
+                if (eachByte == len) {
+                    return internedNames[slot];
+                }
+            }
+            
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    /**
+     *  Returns the mime type for the provided string, re-using a previously
+     *  parsed instance if possible.
+     **/
+    private static MimeMediaType getMimeType(String typeString) {
+        MimeMediaType type;
+        
+        synchronized (mimeTypeCache) {
+            type = (MimeMediaType) mimeTypeCache.get(typeString);
+        }
+        
+        if (null != type) {
+            return type;
+        }
+        
+        type = new MimeMediaType(typeString).intern();
+        
+        synchronized (mimeTypeCache) {
+            if (mimeTypeCache.size() < MAX_CACHED_TYPES) {
+                mimeTypeCache.put(typeString, type);
+            }
+        }
+        
+        return type;
+    }
+    
+    /**
+     *  Decode a message from a buffer without copying the element data. The
+     *  element headers are parsed immediately but element contents remain as
+     *  slices of the provided buffer and messages nested within elements are
+     *  not decoded until they are first requested. The buffer must not be
+     *  modified for as long as the message is in use.
+     *
+     *  @param buffer the buffer containing the message.
+     *  @param offset the offset within the buffer at which the message begins.
+     *  @param length the length of the message in bytes.
+     *  @param type the mime type of the message.
+     *  @return the message which was read.
+     *  @throws IOException if the message could not be read.
+     **/
+    public static Message fromWire(byte [] buffer, int offset, int length, MimeMediaType type) throws IOException {
+        SliceReader reader = new SliceReader(buffer, offset, length);
+        
+        return reader.readMessage(true);
+    }
+    
+    /**
+     *  Checks that a buffer holds a well formed message, including any
+     *  messages nested within it, without decoding it.
+     *
+     *  @param buffer the buffer containing the message.
+     *  @param offset the offset within the buffer at which the message begins.
+     *  @param length the length of the message in bytes.
+     *  @throws IOException if the message is not well formed.
+     **/
+    static void checkWire(byte [] buffer, int offset, int length) throws IOException {
+        SliceReader reader = new SliceReader(buffer, offset, length);
+        
+        reader.readMessage(false);
+    }
+    
+    /**
+     *  Decode a message from a buffer which was allocated from a pool without
+     *  copying the element data. As for
+     *  {@link #fromWire(byte[],int,int,MimeMediaType)} except that the buffer
+     *  is returned to the pool by {@link #releaseBuffers(Message)}.
+     *
+     *  @param buffer the buffer containing the message.
+     *  @param offset the offset within the buffer at which the message begins.
+     *  @param length the length of the message in bytes.
+     *  @param type the mime type of the message.
+     *  @param pool the pool from which the buffer was allocated.
+     *  @return the message which was read.
+     *  @throws IOException if the message could not be read.
+     **/
+    public static Message fromWire(byte [] buffer, int offset, int length, MimeMediaType type, BufferPool pool) throws IOException {
+        Message msg = fromWire(buffer, offset, length, type);
+        
+        List buffers = new ArrayList(1);
+        buffers.add(buffer);
+        msg.setMessageProperty(POOLED_BUFFERS_PROPERTY, new Object [] { pool, buffers });
+        
+        return msg;
+    }
+    
+    /**
+     *  Reads messages directly from a byte array. Element contents are left
+     *  in place.
+     **/
+    private static class SliceReader {
+        
+        private final byte [] buffer;
+        private int position;
+        private final int end;
+        
+        SliceReader(byte [] buffer, int offset, int length) {
+            if ((offset < 0) || (length < 0) || ((offset + length) > buffer.length)) {
+                throw new IllegalArgumentException("Invalid offset or length");
+            }
+            
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+        }
+        
+        private void require(int count) throws IOException {
+            if ((count < 0) || ((end - position) < count)) {
+                throw new EOFException("Unexpected end of message");
+            }
+        }
+        
+        private int readByte() throws IOException {
+            require(1);
+            return buffer[position++];
+        }
+        
+        private int readShort() throws IOException {
+            require(2);
+            int result = (short) (((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF));
+            position += 2;
+            return result;
+        }
+        
+        private int readInt() throws IOException {
+            require(4);
+            int result = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16) |
+            ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+            position += 4;
+            return result;
+        }
+        
+        private String readString() throws IOException {
+            int len = readShort();
+            if (len < 0) {
+                throw new IOException("Bad string length in message");
+            }
+            
+            require(len);
+            
+            String result = lookupInterned(buffer, position, len);
+            
+            if (null == result) {
+                result = new String(buffer, position, len, "UTF8");
+            }
+            
+            position += len;
+            
+            return result;
+        }
+        
+        private boolean checkSignature(char [] signature) throws IOException {
+            require(signature.length);
+            
+            for (int eachChar = 0; eachChar < signature.length; eachChar++) {
+                if (buffer[position + eachChar] != signature[eachChar]) {
+                    return false;
+                }
+            }
+            
+            position += signature.length;
+            return true;
+        }
+        
+        /**
+         *  Reads a message. If <code>build</code> is false then the message
+         *  is only checked and <code>null</code> is returned.
+         **/
+        Message readMessage(boolean build) throws IOException {
+            if (!checkSignature(MESSAGE_SIGNATURE)) {
+                throw new IOException("Not a message (incorrect signature)");
+            }
+            
+            if (readByte() != MESSAGE_VERSION) {
+                throw new IOException("Message not version " + MESSAGE_VERSION);
+            }
+            
+            int namespaceCnt = readShort();
+            
+            if (namespaceCnt > 253) {
+                throw new IOException("Message contains too many namespaces (>253)");
+            }
+            
+            String [] id2namespace = new String [256];
+            id2namespace[0] = "";
+            id2namespace[1] = "jxta";
+            
+            for (int eachNamespace = 0; eachNamespace < namespaceCnt; eachNamespace++) {
+                id2namespace[eachNamespace + 2] = readString();
+            }
+            
+            int elementCnt = readShort();
+            
+            Message msg = build ? new Message() : null;
+            
+            int eachElement = 0;
+            while (((0 == elementCnt) || (eachElement < elementCnt)) && (position < end)) {
+                if (!checkSignature(ELEMENT_SIGNATURE)) {
+                    throw new IOException("Not a message element (incorrect signature)");
+                }
+                
+                int nsid = readByte() & 0xFF;
+                MessageElement anElement = readMessageElement(nsid, build);
+                
+                String namespace = id2namespace[nsid];
+                
+                if (null == namespace) {
+                    throw new IOException("Element identified a namespace which was not defined for this message.");
+                }
+                
+                if (build) {
+                    msg.addMessageElement(namespace, anElement);
+                }
+                eachElement++;
+            }
+            
+            if ((elementCnt != 0) && (eachElement != elementCnt)) {
+                throw new IOException("Found wrong number of elements in message.");
+            }
+            
+            if (build && LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Read " + msg + " with " + eachElement + " elements from buffer");
+            }
+            
+            return msg;
+        }
+        
+        /**
+         *  Reads an element. The element signature and namespace id have
+         *  already been consumed. If <code>build</code> is false then the
+         *  element is only checked and <code>null</code> is returned.
+         **/
+        private MessageElement readMessageElement(int nsid, boolean build) throws IOException {
+            byte flags = (byte) readByte();
+            
+            String name = readString();
+            
+            MimeMediaType type;
+            if ((flags & HAS_TYPE) != 0) {
+                String typeString = readString();
+                try {
+                    type = getMimeType(typeString);
+                } catch (IllegalArgumentException uhoh) {
+                    throw new IOException("Bad MimeType in message element header : " + uhoh.getMessage());
+                }
+            } else {
+                type = MimeMediaType.AOS;
+            }
+            
+            int dataLen = readInt();
+            
+            require(dataLen);
+            
+            int dataStart = position;
+            position += dataLen;
+            
+            MessageElement sig = null;
+            if ((flags & HAS_SIGNATURE) != 0) {
+                if (!checkSignature(ELEMENT_SIGNATURE)) {
+                    throw new IOException("Not a message element (incorrect signature)");
+                }
+                
+                sig = readMessageElement(readByte() & 0xFF, build);
+            }
+            
+            if (!build) {
+                if (type.equalsIngoringParams(myTypes [0])) {
+                    new SliceReader(buffer, dataStart, dataLen).readMessage(false);
+                }
+                
+                return null;
+            }
+            
+            if (type.equalsIngoringParams(myTypes [0])) {
+                return new JxtaMessageMessageElement(name, type, buffer, dataStart, dataLen, sig);
+            } else {
+                return new ByteArrayMessageElement(name, type, buffer, dataStart, dataLen, sig);
+            }
+        }
+    }
+    
     /**
      *  Our instantiator.
      **/
@@ -162,6 +681,20 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          **/
         public Message fromWire( InputStream is, MimeMediaType type, MimeMediaType contentEncoding ) throws IOException {
             // FIXME 20020504 bondolo@jxta.org  Ignores type and contentEncoding completely.
+            return readMessage( is, null, null );
+        }
+        
+        /**
+         *  Read a message from the provided stream.
+         *
+         *  @param is the stream to read from.
+         *  @param pool if not <code>null</code> then element data is read
+         *  into buffers allocated from this pool.
+         *  @param buffers the list to which pooled buffers are added.
+         *  @return the message which was read.
+         *  @throws IOException if the message could not be read.
+         **/
+        Message readMessage( InputStream is, BufferPool pool, List buffers ) throws IOException {
             Message msg = new Message();
             
             if ( LOG.isEnabledFor(Level.DEBUG) )
@@ -169,7 +702,10 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             
             DataInputStream dis = new DataInputStream( is );
             
-            HashMap idToNamespace = readHeader( dis );
+            // scratch space for reading names, re-used for each string.
+            byte [] scratch = new byte [ 64 ];
+            
+            String [] idToNamespace = readHeader( dis, scratch );
             
             int elementCnt = dis.readShort();
             
@@ -184,7 +720,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 Object [] anElement = null;
                 
                 try {
-                    anElement = readMessageElement( dis, is );
+                    anElement = readMessageElement( dis, is, scratch, pool, buffers );
                 } catch ( IOException failed ) {
                     if ( LOG.isEnabledFor(Level.ERROR) )
                         LOG.error( "Failure reading element " + eachElement + " of " + elementCnt + " from " + is + " for " + msg, failed );
@@ -195,7 +731,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 if( null == anElement )
                     break;
                 
-                String namespace = (String) idToNamespace.get(anElement[0]);
+                String namespace = idToNamespace[ ((Integer) anElement[0]).intValue() ];
                 
                 if( null == namespace ) {
                     if ( LOG.isEnabledFor(Level.ERROR) )
@@ -235,11 +771,13 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          *  Read in a message header from the provided data stream.
          *
          *  @param dis  the data stream to read from
-         *  @return hashmap containing the namespace id to namespace values
+         *  @param scratch  scratch space for reading strings
+         *  @return array mapping namespace ids to namespaces. Undefined ids
+         *  are <code>null</code>.
          *  @throws IOException if EOF or other IOException is encountered
          *  during the reading of the header.
          **/
-        private static HashMap readHeader( DataInputStream dis ) throws IOException {
+        private static String [] readHeader( DataInputStream dis, byte [] scratch ) throws IOException {
             // Read message signature
             char [] msgsig = new char[4];
             
@@ -287,15 +825,15 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 throw failure;
             }
             
-            HashMap id2namespace = new HashMap( 2 + namespaceCnt );
-            id2namespace.put(new Integer(0), "");
-            id2namespace.put(new Integer(1), "jxta");
+            // namespace ids are unsigned bytes.
+            String [] id2namespace = new String [ 256 ];
+            id2namespace[0] = "";
+            id2namespace[1] = "jxta";
             
             int id=2;
             for(int i=0; i<namespaceCnt; ++i) {
                 try {
-                    String namespace = readString(dis);
-                    id2namespace.put(new Integer(id++), namespace);
+                    id2namespace[id++] = readString(dis, scratch);
                 } catch ( IOException caught ) {
                     if (LOG.isEnabledFor(Level.WARN))
                         LOG.warn( "Error Processing namespace", caught );
@@ -313,6 +851,10 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          *  Read in a message element from the provided data stream.
          *
          *  @param dis  the data stream to read from
+         *  @param scratch  scratch space for reading strings
+         *  @param pool  if not <code>null</code> then the pool from which
+         *  element data buffers are allocated.
+         *  @param buffers  the list to which pooled buffers are added.
          *  @return object array containing two objects, index[0] contains an
          *  Integer which identifies the namespace to which this element belongs
          *  and index[1] contains a MessageElement. If null is returned then
@@ -321,7 +863,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          *  @throws IOException if EOF or other IOException is encountered
          *  during the reading of the element.
          **/
-        private Object [] readMessageElement( DataInputStream dis, InputStream is ) throws IOException {
+        private Object [] readMessageElement( DataInputStream dis, InputStream is, byte [] scratch, BufferPool pool, List buffers ) throws IOException {
             // Read message signature
             char [] elsig = new char[4];
             
@@ -355,14 +897,14 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             byte flags = dis.readByte();
             
             // Name
-            String name = readString(dis);
+            String name = readString(dis, scratch);
             
             // Mime type
             MimeMediaType type = null;
             if ((flags & HAS_TYPE) != 0) {
-                String typeString = readString(dis);
+                String typeString = readString(dis, scratch);
                 try {
-                    type = new MimeMediaType(typeString);
+                    type = getMimeType(typeString);
                 } catch ( IllegalArgumentException uhoh ) {
                     throw new IOException( "Bad MimeType in message element header : " + uhoh.getMessage() );
                 }
@@ -380,7 +922,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             
             Object [] res = new Object [2];
             
-            res[0] = new Integer( nsid & 0x000000FF );
+            res[0] = NAMESPACE_IDS[ nsid & 0x000000FF ];
             
             byte[] value = null;
             Message submsg = null;
@@ -389,24 +931,33 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             if ( type.equalsIngoringParams( myTypes [0] ) ) {
                 InputStream subis = new LimitInputStream( is, dataLen );
                 
-                submsg = WireFormatMessageFactory.fromWire( subis, type, null );
+                if( null != pool ) {
+                    submsg = readMessage( subis, pool, buffers );
+                } else {
+                    submsg = WireFormatMessageFactory.fromWire( subis, type, null );
+                }
             } else {
-                if( dataLen > Integer.MAX_VALUE ) {
+                if( dataLen < 0 ) {
                     if ( LOG.isEnabledFor(Level.ERROR) )
                         LOG.error( "WireFormatMessageBinary does not support elements longer than 2GB" );
                     
                     throw new IllegalStateException( "WireFormatMessageBinary does not support elements longer than 2GB" );
                 }
                 
-                value = new byte[dataLen];
-
+                if( null != pool ) {
+                    value = pool.allocate( dataLen );
+                    buffers.add( value );
+                } else {
+                    value = new byte[dataLen];
+                }
+                
                 String mayFail = null;
                 if (LOG.isEnabledFor(Level.WARN)) {
                     mayFail = is.toString();
                 }
                 
                 try {
-                    dis.readFully( value );
+                    dis.readFully( value, 0, dataLen );
                 } catch( EOFException failed ) {
                     if (LOG.isEnabledFor(Level.WARN)) {
                         LOG.error( "had tried to read " + dataLen + " from " + mayFail + " which is now " + is );
@@ -417,12 +968,12 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             
             MessageElement sig = null;
             if ((flags & HAS_SIGNATURE) != 0) {
-                Object [] sigRes = readMessageElement( dis, is );
+                Object [] sigRes = readMessageElement( dis, is, scratch, pool, buffers );
                 sig = (MessageElement) sigRes[1];
             }
             
             if( null != value ) {
-                res[1] = new ByteArrayMessageElement( name, type, value, sig );
+                res[1] = new ByteArrayMessageElement( name, type, value, 0, dataLen, sig );
             } else {
                 res[1] = new JxtaMessageMessageElement( name, type, submsg, sig );
             }
@@ -431,21 +982,29 @@ public class WireFormatMessageBinary implements WireFormatMessage {
         }
         
         /**
-         *  Read and construct a string from the data stream.
+         *  Read and construct a string from the data stream. Common names are
+         *  returned as shared instances.
          *
          *  @param dis the stream to read from
+         *  @param scratch  scratch space for reading the string
          *  @return the String which was read.
          *  @throws IOException if EOF or other IOException is encountered
          *  during the reading of the string.
          **/
-        private static String readString(DataInputStream dis) throws IOException {
+        private static String readString(DataInputStream dis, byte [] scratch) throws IOException {
             int len = dis.readShort();
             if (len < 0)
                 throw new IOException("Bad string length in message");
             
-            byte[] bytes = new byte[len];
-            dis.readFully(bytes);
-            return new String( bytes, "UTF8");
+            byte[] bytes = (len <= scratch.length) ? scratch : new byte[len];
+            dis.readFully(bytes, 0, len);
+            
+            String interned = lookupInterned(bytes, 0, len);
+            if( null != interned ) {
+                return interned;
+            }
+            
+            return new String( bytes, 0, len, "UTF8");
         }
     };
     
@@ -543,6 +1102,27 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             }
         }
         
+        /**
+         *  Returns the serialized message as a sequence of buffers. The
+         *  element data buffers share the contents of the elements.
+         *
+         *  @return the buffers in the order they should be sent.
+         **/
+        public ByteBuffer [] getByteBuffers() {
+            List buffers = new ArrayList( 1 + 2 * elements.size() );
+            
+            buffers.add( ByteBuffer.wrap( header ) );
+            
+            Iterator eachElement = elements.listIterator();
+            
+            while( eachElement.hasNext() ) {
+                binaryElementProxy anElement = (binaryElementProxy) eachElement.next();
+                anElement.getByteBuffers( buffers );
+            }
+            
+            return (ByteBuffer []) buffers.toArray( new ByteBuffer [buffers.size()] );
+        }
+        
         /**
          * {@inheritDoc}
          **/
@@ -714,6 +1294,13 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             if( null != sig )
                 sig.sendToStream( sendTo );
         }
+        
+        void getByteBuffers( List buffers ) {
+            buffers.add( ByteBuffer.wrap( header ) );
+            buffers.add( element.getByteBuffer() );
+            if( null != sig )
+                sig.getByteBuffers( buffers );
+        }
     };
     
     /**
@@ -856,6 +1443,26 @@ public class WireFormatMessageBinary implements WireFormatMessage {
         }
     }
     
+    /**
+     *  Returns the serialized message as a sequence of buffers suitable for a
+     *  gathering write. The buffers for the element data share the contents of
+     *  the message elements rather than copying them so they must not be
+     *  modified.
+     *
+     *  @return the buffers in the order they should be sent.
+     **/
+    public ByteBuffer [] getByteBuffers() {
+        if( msg.getMessageModCount() != msgModCount )
+            throw new IllegalStateException( "message was unexpectedly modified!" );
+        
+        msg.modifiable = false;
+        try {
+            return msgProxy.getByteBuffers();
+        } finally {
+            msg.modifiable = true;
+        }
+    }
+    
     /**
      * {@inheritDoc}
      **/
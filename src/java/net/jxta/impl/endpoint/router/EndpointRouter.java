@@ -68,8 +68,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Vector;
 
 import java.io.IOException;
@@ -83,7 +81,6 @@ import net.jxta.document.AdvertisementFactory;
 import net.jxta.document.Element;
 import net.jxta.document.TextElement;
 import net.jxta.endpoint.EndpointAddress;
-import net.jxta.endpoint.EndpointListener;
 import net.jxta.endpoint.EndpointService;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.MessageReceiver;
@@ -104,14 +101,17 @@ import net.jxta.protocol.RouteAdvertisement;
 
 import net.jxta.exception.PeerGroupException;
 
+import net.jxta.impl.endpoint.ConsumingEndpointListener;
 import net.jxta.impl.endpoint.LoopbackMessenger;
 import net.jxta.impl.util.FastHashMap;
+import net.jxta.impl.util.ScheduledTask;
+import net.jxta.impl.util.SharedTimer;
 import net.jxta.impl.util.TimeUtils;
-import net.jxta.impl.util.TimerThreadNamer;
 
 import net.jxta.impl.endpoint.IllegalTransportLoopException;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 
-public class EndpointRouter implements EndpointListener,
+public class EndpointRouter implements ConsumingEndpointListener,
             MessageReceiver,
             MessageSender,
             MessengerEventListener,
@@ -228,7 +228,7 @@ public class EndpointRouter implements EndpointListener,
     /**
      * Timer by which we schedule the clearing of pending queries.
      **/
-    private final Timer timer = new Timer(true);
+    private SharedTimer timer = null;
     
     /**
      *  MAX timeout (seconds) for route discovery after that timeout
@@ -274,7 +274,7 @@ public class EndpointRouter implements EndpointListener,
     public final static Integer GET_ROUTE_CONTROL = new Integer(0); // Return RouteControl Object
     public final static int RouteControlOp = 0; // Return RouteControl Object
     
-    protected class ClearPendingQuery extends TimerTask {
+    protected class ClearPendingQuery extends ScheduledTask {
         EndpointAddress pid;
         volatile boolean failed = false;
         long timeToRetry = 0;
@@ -669,7 +669,7 @@ public class EndpointRouter implements EndpointListener,
     public void init(PeerGroup g, ID assignedID, Advertisement impl)
         throws PeerGroupException {
         
-        timer.schedule(new TimerThreadNamer("EndpointRouter Timer for " + g.getPeerGroupID()), 0);
+        timer = new SharedTimer("EndpointRouter Timer for " + g.getPeerGroupID());
 
         group = g;
         ModuleImplAdvertisement implAdvertisement = (ModuleImplAdvertisement) impl;
@@ -1575,11 +1575,11 @@ public class EndpointRouter implements EndpointListener,
             
             // convert the src and dest addresses into canonical
             // form stripping service info
-            srcPeer = new EndpointAddress(origSrcAddr, null, null);
-            destPeer = new EndpointAddress(origDstAddr, null, null);
+            srcPeer = EndpointAddress.getEndpointAddress(origSrcAddr, null, null);
+            destPeer = EndpointAddress.getEndpointAddress(origDstAddr, null, null);
             
             if (routerMsg.getLastHop() != null) {
-                lastHop = new EndpointAddress(routerMsg.getLastHop());
+                lastHop = EndpointAddress.getEndpointAddress(routerMsg.getLastHop());
             }
             
             // See if there's an originator full route adv inthere.
@@ -1716,6 +1716,9 @@ public class EndpointRouter implements EndpointListener,
                 return;
             }
             
+            // The message is forwarded, possibly from a messenger queue.
+            WireFormatMessageBinary.keepBuffers(msg);
+            
             // WATCHOUT: if this peer is part of the reverse route
             // it means that we've seen that message already: there's
             // a loop between routers ! If that happens drop that
@@ -2592,7 +2595,7 @@ public class EndpointRouter implements EndpointListener,
      * convert a PeerID into an EndpointRouter Address
      **/
     protected static EndpointAddress pid2addr(PeerID pid) {
-        return new EndpointAddress(routerPName, pid.getUniqueValue().toString(), null, null);
+        return EndpointAddress.getEndpointAddress(routerPName, pid.getUniqueValue().toString(), null, null);
     }
     
     /**
@@ -392,7 +392,7 @@ public class EndpointRouterMessage {
     }
     
     public EndpointAddress getSrcAddress() {
-        return new EndpointAddress(srcAddress);
+        return EndpointAddress.getEndpointAddress(srcAddress);
     }
     
     public void setDestAddress(EndpointAddress a) {
@@ -402,7 +402,7 @@ public class EndpointRouterMessage {
     }
     
     public EndpointAddress getDestAddress() {
-        return new EndpointAddress(destAddress);
+        return EndpointAddress.getEndpointAddress(destAddress);
     }
     
     public void setLastHop(String p) {
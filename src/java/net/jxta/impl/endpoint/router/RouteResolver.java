@@ -82,7 +82,6 @@ import net.jxta.document.StructuredDocument;
 import net.jxta.document.StructuredDocumentFactory;
 import net.jxta.document.StructuredTextDocument;
 import net.jxta.document.TextElement;
-import net.jxta.document.XMLDocument;
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.OutgoingMessageEvent;
 import net.jxta.id.ID;
@@ -1159,10 +1158,7 @@ class RouteResolver implements QueryHandler, SrdiHandler, SrdiInterface {
                 LOG.debug("Received a SRDI messsage in group" + group.getPeerGroupName());
             }
             
-            XMLDocument asDoc = (XMLDocument) StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8,
-                    new StringReader(message.getPayload()));
-
-            srdiMsg = new SrdiMessageImpl(asDoc);
+            srdiMsg = srdi.getSrdiMessage(message);
         } catch (Exception e) {
             // we don't understand this msg, let's skip it
             if (LOG.isEnabledFor(Level.WARN)) {
@@ -0,0 +1,127 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+
+import java.io.IOException;
+
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.id.ID;
+
+import net.jxta.impl.endpoint.transportMeter.TransportBindingMeter;
+
+
+/**
+ *  The operations a {@link TcpMessenger} requires of the connection it sends
+ *  messages over. Implemented by the thread-per-connection
+ *  {@link TcpConnection} and by the selector based {@link NioTcpConnection}.
+ **/
+interface Connection {
+    
+    /**
+     *  Start receiving messages on this connection.
+     **/
+    void start();
+    
+    /**
+     *  Send message to the remote peer.
+     *
+     *  @param msg  the message to send.
+     *  @return If <tt>true</tt> the message was sent successfully otherwise <tt>false</tt>.
+     *  @throws IOException for failures in sending the message.
+     **/
+    boolean sendMessage(Message msg) throws IOException;
+    
+    /**
+     *  Soft close of the connection.
+     **/
+    void close();
+    
+    /**
+     *  return the current connection status.
+     *
+     *  @return true if there is an active connection to the remote peer,
+     *  otherwise false.
+     **/
+    boolean isConnected();
+    
+    /**
+     *  Return the absolute time in milliseconds at which this Connection was last used.
+     *
+     *  @return absolute time in milliseconds.
+     **/
+    long getLastUsed();
+    
+    /**
+     *  The public address of the remote peer.
+     **/
+    EndpointAddress getDestinationAddress();
+    
+    /**
+     *  The address the remote peer used to reach us.
+     **/
+    EndpointAddress getConnectionAddress();
+    
+    /**
+     *  The peer id of the remote peer.
+     **/
+    ID getDestinationPeerID();
+    
+    TransportBindingMeter getTransportBindingMeter();
+}
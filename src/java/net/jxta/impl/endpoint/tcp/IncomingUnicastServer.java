@@ -253,6 +253,27 @@ public class IncomingUnicastServer implements Runnable {
                     continue;
                 }
                 
+                NioTcpReactor reactor = owner.getReactor();
+                
+                if ((null != reactor) && (null != inputSocket.getChannel())) {
+                    try {
+                        // The connection registers itself with the reactor
+                        // and is announced once the welcome is received.
+                        new NioTcpConnection(inputSocket.getChannel(), owner, reactor);
+                    } catch (Throwable all) {
+                        try {
+                            inputSocket.close();
+                        } catch (Throwable any) {
+                            ;
+                        }
+                        
+                        if (LOG.isEnabledFor(Level.WARN)) {
+                            LOG.warn("Failed to create connection", all);
+                        }
+                    }
+                    continue;
+                }
+                
                 try {
                     // make a connection object
                     TcpConnection newConnect = new TcpConnection(inputSocket, owner);
@@ -344,7 +365,16 @@ public class IncomingUnicastServer implements Runnable {
         while (true) {
             try {
                 synchronized (this) {
-                    if (-1 != serverBindPreferedLocalPort) {
+                    if (null != owner.getReactor()) {
+                        // NIO connections need a channel, so must the server socket.
+                        if (-1 != serverBindPreferedLocalPort) {
+                            serverSocket = IPUtils.openServerSocketChannel(serverBindPreferedLocalPort, TcpTransport.MaxAcceptCnxBacklog,
+                                    serverBindLocalInterface).socket();
+                        } else {
+                            serverSocket = IPUtils.openServerSocketChannelInRange(serverBindStartLocalPort, serverBindEndLocalPort,
+                                    TcpTransport.MaxAcceptCnxBacklog, serverBindLocalInterface).socket();
+                        }
+                    } else if (-1 != serverBindPreferedLocalPort) {
                         serverSocket = new ServerSocket(serverBindPreferedLocalPort, TcpTransport.MaxAcceptCnxBacklog, serverBindLocalInterface);
                     } else {
                         serverSocket = IPUtils.openServerSocketInRange(serverBindStartLocalPort, serverBindEndLocalPort,
@@ -0,0 +1,1256 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.WireFormatMessage;
+import net.jxta.endpoint.WireFormatMessageFactory;
+import net.jxta.id.ID;
+import net.jxta.peer.PeerID;
+
+import net.jxta.impl.endpoint.EndpointServiceImpl;
+import net.jxta.impl.endpoint.IPUtils;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
+import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
+import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
+import net.jxta.impl.endpoint.transportMeter.TransportBindingMeter;
+import net.jxta.impl.endpoint.transportMeter.TransportMeterBuildSettings;
+import net.jxta.impl.util.BufferPool;
+import net.jxta.impl.util.TimeUtils;
+
+
+/**
+ *  A TCP connection which uses a non-blocking {@link SocketChannel} serviced
+ *  by a {@link NioTcpReactor} rather than a dedicated receive thread.
+ *
+ *  <p/>The wire protocol is identical to that of {@link TcpConnection}: a
+ *  welcome message in each direction followed by a sequence of
+ *  {@link MessagePackageHeader} framed messages. Framing is done
+ *  incrementally by the selector thread as bytes arrive. Complete message
+ *  bodies are decoded and demuxed by the reactor's dispatcher threads.
+ *
+ *  <p/>Sends are performed on the sending thread. When the socket buffer is
+ *  full the sender waits for the selector to report the channel writable.
+ **/
+class NioTcpConnection implements Connection {
+    
+    /**
+     *  Log4J Logger
+     **/
+    private static final Logger LOG = Logger.getLogger(NioTcpConnection.class.getName());
+    
+    private static final MimeMediaType appMsg = new MimeMediaType("application/x-jxta-msg").intern();
+    
+    /**
+     *  Maximum length of a welcome message, including the terminating CRLF.
+     *  Matches the limit imposed by {@link WelcomeMessage}.
+     **/
+    private static final int MAX_WELCOME_LENGTH = 4096;
+    
+    /**
+     *  The number of received messages which may be waiting for dispatch
+     *  before we stop reading from the connection.
+     **/
+    private static final int MAX_PENDING_MESSAGES = 32;
+    
+    /**
+     *  The maximum number of messages a dispatcher will deliver for this
+     *  connection before giving other connections a turn.
+     **/
+    private static final int MAX_DISPATCH_BATCH = 16;
+    
+    /**
+     *  Waiting for the welcome message of the remote peer.
+     **/
+    private static final int STATE_WELCOME = 0;
+    
+    /**
+     *  Waiting for a message header.
+     **/
+    private static final int STATE_HEADER = 1;
+    
+    /**
+     *  Reading a message body.
+     **/
+    private static final int STATE_BODY = 2;
+    
+    /**
+     *  A message body which has been received but not yet dispatched.
+     **/
+    private static class PendingMessage {
+        final MimeMediaType type;
+        final byte[] body;
+        final int length;
+        final long receiveBeginTime;
+        
+        PendingMessage(MimeMediaType type, byte[] body, int length, long receiveBeginTime) {
+            this.type = type;
+            this.body = body;
+            this.length = length;
+            this.receiveBeginTime = receiveBeginTime;
+        }
+    }
+    
+    private final TcpTransport proto;
+    
+    private final NioTcpReactor reactor;
+    
+    private final SocketChannel channel;
+    
+    private final InetAddress inetAddress;
+    private final int port;
+    
+    private volatile EndpointAddress dstAddress = null;
+    private EndpointAddress fullDstAddress = null;
+    
+    private WelcomeMessage myWelcome = null;
+    private volatile WelcomeMessage itsWelcome = null;
+    
+    private volatile boolean closed = false;
+    
+    private final long firstUsed = TimeUtils.timeNow();
+    private volatile long lastUsed = TimeUtils.timeNow();
+    
+    private TransportBindingMeter transportBindingMeter;
+    private final boolean initiator;
+    private long connectionBegunTime;
+    private boolean closingDueToFailure = false;
+    
+    /**
+     *  The selector which services this connection, an opaque handle from the
+     *  reactor.
+     **/
+    private volatile Object selector = null;
+    
+    /**
+     *  Our registration with the selector.
+     **/
+    private volatile SelectionKey key = null;
+    
+    /**
+     *  The current input framing state. Only used by the selector thread.
+     **/
+    private int state;
+    
+    /**
+     *  The absolute time at which we last made progress reading.
+     **/
+    private volatile long lastReadProgress = TimeUtils.timeNow();
+    
+    /**
+     *  Bytes of a welcome message or header which have been received but not
+     *  yet framed. Only used by the selector thread.
+     **/
+    private ByteBuffer partial = null;
+    
+    /**
+     *  The header of the message whose body we are reading.
+     **/
+    private MessagePackageHeader header = null;
+    
+    /**
+     *  The body of the message we are reading.
+     **/
+    private ByteBuffer body = null;
+    
+    private long receiveBeginTime = 0;
+    
+    /**
+     *  Received messages waiting to be dispatched. Also the lock for the
+     *  dispatch state.
+     **/
+    private final LinkedList incoming = new LinkedList();
+    
+    /**
+     *  If true then we are in the reactor's dispatch queue or a dispatcher is
+     *  working for us.
+     **/
+    private boolean dispatchScheduled = false;
+    
+    /**
+     *  If true then the messenger for this incoming connection must be
+     *  announced before any messages are dispatched.
+     **/
+    private boolean announcePending = false;
+    
+    /**
+     *  If true then we want the selector to tell us about readable input.
+     **/
+    private volatile boolean wantRead = true;
+    
+    /**
+     *  If true then a sender is waiting for the selector to tell us about
+     *  the channel becoming writable.
+     **/
+    private volatile boolean wantWrite = false;
+    
+    /**
+     *  only one outgoing message at a time per connection.
+     **/
+    private final Object writeLock;
+    
+    /**
+     *  Monitor on which senders wait for the channel to become writable.
+     **/
+    private final Object writeReady = new Object();
+    
+    /**
+     *  Creates a new connection for the specified destination address. The
+     *  connection is established and the welcome messages exchanged before
+     *  the constructor returns.
+     *
+     *  @param destaddr the destination address of this connection.
+     *  @param p    the transport which this connection is part of.
+     *  @param reactor the reactor which will service this connection.
+     *  @throws IOException for failures in creating the connection.
+     **/
+    NioTcpConnection(EndpointAddress destaddr, TcpTransport p, NioTcpReactor reactor) throws IOException {
+        initiator = true;
+        
+        proto = p;
+        this.reactor = reactor;
+        
+        this.fullDstAddress = destaddr;
+        this.dstAddress = new EndpointAddress(destaddr, null, null);
+        
+        String protoAddr = destaddr.getProtocolAddress();
+        int portIndex = protoAddr.lastIndexOf(":");
+        
+        if (portIndex == -1) {
+            throw new IllegalArgumentException("Invalid Protocol Address (port # missing) ");
+        }
+        
+        String portString = protoAddr.substring(portIndex + 1);
+        try {
+            port = Integer.valueOf(portString).intValue();
+        } catch (NumberFormatException caught) {
+            throw new IllegalArgumentException("Invalid Protocol Address (port # invalid): " + portString );
+        }
+        
+        // Check for bad port number.
+        if ((port <= 0) || (port > 65535)) {
+            throw new IllegalArgumentException("Invalid port number in Protocol Address : " + port);
+        }
+        
+        String hostString = protoAddr.substring(0, portIndex);
+        inetAddress = InetAddress.getByName(hostString);
+        
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("New TCP Connection to : " + dstAddress + " / "+ inetAddress.getHostAddress() + ":" + port );
+        }
+        
+        writeLock = new String( "TCP write lock for " + inetAddress.getHostAddress() + ":" + port );
+        
+        // See TcpConnection for the rationale.
+        if (inetAddress.isLoopbackAddress() != proto.usingInterface.isLoopbackAddress()) {
+            throw new IOException("Network unreachable");
+        }
+        
+        SocketChannel newChannel = null;
+        
+        try {
+            if (TransportMeterBuildSettings.TRANSPORT_METERING) {
+                connectionBegunTime = System.currentTimeMillis();
+            }
+            
+            int rp = proto.getRestrictionPort();
+            
+            if (rp != -1 && (port < rp - 1 || port > rp + 1)) {
+                throw new IOException("Simulated separate networks killed outgoing cnx.");
+            }
+            
+            newChannel = IPUtils.connectChannelToFrom(inetAddress, port, proto.usingInterface, 0, proto.connectionTimeOut);
+            
+            configureSocket(newChannel.socket());
+            
+            // We do the welcome exchange in blocking mode. Our caller needs
+            // the remote peer id before we return.
+            sendWelcome(newChannel);
+            
+            newChannel.socket().setSoTimeout(TcpTransport.ShortTimeout);
+            itsWelcome = new WelcomeMessage(newChannel.socket().getInputStream());
+            newChannel.socket().setSoTimeout(0);
+            
+            newChannel.configureBlocking(false);
+            
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Hello from " + itsWelcome.getPublicAddress() + " [" + itsWelcome.getPeerID() + "]");
+            }
+            
+            state = STATE_HEADER;
+            
+            if (TransportMeterBuildSettings.TRANSPORT_METERING) {
+                transportBindingMeter = proto.getUnicastTransportBindingMeter((PeerID) getDestinationPeerID(), dstAddress);
+                
+                if (transportBindingMeter != null) {
+                    transportBindingMeter.connectionEstablished(initiator, System.currentTimeMillis() - connectionBegunTime);
+                }
+            }
+        } catch (IOException e) {
+            if (TransportMeterBuildSettings.TRANSPORT_METERING) {
+                transportBindingMeter = proto.getUnicastTransportBindingMeter(null, dstAddress);
+                
+                if (transportBindingMeter != null) {
+                    transportBindingMeter.connectionFailed(initiator, System.currentTimeMillis() - connectionBegunTime);
+                }
+            }
+            
+            // If we failed for any reason, make sure the channel is closed.
+            // We're the only one to know about it.
+            if (newChannel != null) {
+                newChannel.close();
+            }
+            throw e;
+        }
+        
+        channel = newChannel;
+    }
+    
+    /**
+     *  Creates a new connection from an incoming channel. Our welcome message
+     *  is sent immediately and the connection is registered with the
+     *  reactor. The messenger for the connection is announced to the
+     *  transport once the welcome message of the remote peer has been
+     *  received.
+     *
+     *  @param incChannel    the incoming channel.
+     *  @param p the transport we are working for.
+     *  @param reactor the reactor which will service this connection.
+     *  @throws IOException for failures in creating the connection.
+     **/
+    NioTcpConnection(SocketChannel incChannel, TcpTransport p, NioTcpReactor reactor) throws IOException {
+        proto = p;
+        this.reactor = reactor;
+        channel = incChannel;
+        initiator = false;
+        
+        Socket incSocket = incChannel.socket();
+        
+        inetAddress = incSocket.getInetAddress();
+        port = incSocket.getPort();
+        
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Connection from " + inetAddress.getHostAddress() + ":" + port);
+        }
+        
+        if (TransportMeterBuildSettings.TRANSPORT_METERING) {
+            connectionBegunTime = System.currentTimeMillis();
+        }
+        
+        writeLock = new String( "TCP write lock for " + inetAddress.getHostAddress() + ":" + port );
+        
+        // Temporarily, our address for inclusion in the welcome message response.
+        dstAddress = new EndpointAddress(proto.getProtocolName(), inetAddress.getHostAddress() + ":" + port, null, null);
+        fullDstAddress = dstAddress;
+        
+        try {
+            configureSocket(incSocket);
+            
+            // The welcome is small enough to go straight into the socket
+            // buffer of a fresh connection.
+            sendWelcome(incChannel);
+            
+            incChannel.configureBlocking(false);
+        } catch (IOException e) {
+            if (TransportMeterBuildSettings.TRANSPORT_METERING) {
+                transportBindingMeter = proto.getUnicastTransportBindingMeter(null, dstAddress);
+                
+                if (transportBindingMeter != null) {
+                    transportBindingMeter.connectionFailed(initiator, System.currentTimeMillis() - connectionBegunTime);
+                }
+            }
+            throw e;
+        }
+        
+        state = STATE_WELCOME;
+        
+        reactor.register(this);
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public boolean equals(Object target) {
+        if (this == target) {
+            return true;
+        }
+        
+        if (target instanceof NioTcpConnection) {
+            NioTcpConnection likeMe = (NioTcpConnection) target;
+            
+            return getDestinationAddress().equals(likeMe.getDestinationAddress()) && getDestinationPeerID().equals(likeMe.getDestinationPeerID());
+        }
+        
+        return false;
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    protected void finalize() {
+        closingDueToFailure = false;
+        close();
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public int hashCode() {
+        return  getDestinationPeerID().hashCode() + getDestinationAddress().hashCode();
+    }
+    
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Implementation for debugging.
+     **/
+    public String toString() {
+        WelcomeMessage welcome = itsWelcome;
+        EndpointAddress dest = dstAddress;
+        
+        return super.toString() + ":" + ((null != welcome) ? welcome.getPeerID().toString() : "unknown") + " on address "
+                + ((null != dest) ? dest.toString() : "unknown");
+    }
+    
+    private void configureSocket(Socket socket) throws IOException {
+        socket.setKeepAlive(true);
+        int useBufferSize = Math.max(TcpTransport.ChunkSize, socket.getSendBufferSize());
+        
+        socket.setSendBufferSize(useBufferSize);
+        
+        useBufferSize = Math.max(TcpTransport.RecvBufferSize, socket.getReceiveBufferSize());
+        socket.setReceiveBufferSize(useBufferSize);
+        
+        socket.setSoLinger(true, TcpTransport.LingerDelay);
+        socket.setTcpNoDelay(true);
+    }
+    
+    /**
+     *  Send our welcome message. The channel must be in blocking mode.
+     **/
+    private void sendWelcome(SocketChannel toChannel) throws IOException {
+        myWelcome = new WelcomeMessage(fullDstAddress, proto.getPublicAddress(), proto.group.getPeerID(), false);
+        
+        ByteArrayOutputStream welcomeBytes = new ByteArrayOutputStream();
+        
+        myWelcome.sendToStream(welcomeBytes);
+        
+        ByteBuffer welcome = ByteBuffer.wrap(welcomeBytes.toByteArray());
+        
+        while (welcome.hasRemaining()) {
+            toChannel.write(welcome);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public EndpointAddress getDestinationAddress() {
+        return (EndpointAddress) dstAddress.clone();
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public EndpointAddress getConnectionAddress() {
+        // Somewhat confusing but destinationAddress is the name of that thing
+        // for the welcome message.
+        return itsWelcome.getDestinationAddress();
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public ID getDestinationPeerID() {
+        return itsWelcome.getPeerID();
+    }
+    
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Outgoing connections are registered with the reactor. Incoming
+     *  connections are registered upon creation.
+     **/
+    public void start() {
+        if (initiator && (null == selector) && !closed) {
+            reactor.register(this);
+        }
+    }
+    
+    SocketChannel getChannel() {
+        return channel;
+    }
+    
+    /**
+     *  Called by the reactor when the connection is bound to a selector.
+     **/
+    void setSelector(Object selector) {
+        this.selector = selector;
+    }
+    
+    /**
+     *  Called by the selector thread once our channel is registered.
+     **/
+    void setKey(SelectionKey key) {
+        this.key = key;
+        
+        if (closed) {
+            key.cancel();
+        } else {
+            updateInterest();
+        }
+    }
+    
+    /**
+     *  Apply our desired interest set to our selection key. Called only on
+     *  the selector thread.
+     **/
+    void updateInterest() {
+        SelectionKey myKey = key;
+        
+        if ((null == myKey) || !myKey.isValid()) {
+            return;
+        }
+        
+        int ops = (wantRead ? SelectionKey.OP_READ : 0) | (wantWrite ? SelectionKey.OP_WRITE : 0);
+        
+        myKey.interestOps(ops);
+    }
+    
+    /**
+     *  Called by the selector thread when our channel is writable. Wakes the
+     *  waiting sender.
+     **/
+    void processWritable() {
+        wantWrite = false;
+        updateInterest();
+        
+        synchronized (writeReady) {
+            writeReady.notifyAll();
+        }
+    }
+    
+    /**
+     *  Called by the selector thread when our channel is readable.
+     *
+     *  @param readBuffer buffer shared by all of the connections of the
+     *  selector.
+     **/
+    void processReadable(ByteBuffer readBuffer) {
+        try {
+            // Don't starve the other connections of the selector.
+            for (int eachRead = 0; (eachRead < 8) && wantRead && !closed; eachRead++) {
+                int read;
+                
+                if (STATE_BODY == state) {
+                    // Bodies are read straight into their own buffer.
+                    read = channel.read(body);
+                    
+                    if (read > 0) {
+                        lastReadProgress = TimeUtils.timeNow();
+                        
+                        if (!body.hasRemaining()) {
+                            bodyComplete();
+                        }
+                        continue;
+                    }
+                } else {
+                    readBuffer.clear();
+                    
+                    if (null != partial) {
+                        readBuffer.put(partial);
+                        partial = null;
+                    }
+                    
+                    read = channel.read(readBuffer);
+                    readBuffer.flip();
+                    
+                    if (read > 0) {
+                        lastReadProgress = TimeUtils.timeNow();
+                    }
+                    
+                    frame(readBuffer);
+                    
+                    if (readBuffer.hasRemaining()) {
+                        // Keep the leftovers for the next read.
+                        if (readBuffer.remaining() > (readBuffer.capacity() / 2)) {
+                            throw new IOException("Framing overflow");
+                        }
+                        
+                        partial = ByteBuffer.allocate(readBuffer.remaining());
+                        partial.put(readBuffer);
+                        partial.flip();
+                    }
+                    
+                    if (read > 0) {
+                        continue;
+                    }
+                }
+                
+                if (read < 0) {
+                    if (STATE_BODY == state || (null != partial)) {
+                        throw new EOFException("Connection closed in the middle of a message");
+                    }
+                    
+                    // The other side has closed the connection
+                    if (LOG.isEnabledFor(Level.INFO)) {
+                        LOG.info("tcp receive - Connection was closed by " + inetAddress.getHostAddress() + ":" + port);
+                    }
+                    
+                    receiveFailed();
+                    close();
+                }
+                
+                break;
+            }
+        } catch (Throwable e) {
+            receiveFailed();
+            
+            closingDueToFailure = true;
+            
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("tcp receive - Error on connection " + inetAddress.getHostAddress() + ":" + port, e);
+            }
+            
+            close();
+        }
+    }
+    
+    private void receiveFailed() {
+        if (TransportMeterBuildSettings.TRANSPORT_METERING && (transportBindingMeter != null)) {
+            transportBindingMeter.receiveFailure(initiator, System.currentTimeMillis() - receiveBeginTime, 0);
+        }
+    }
+    
+    /**
+     *  Consume as much of the buffer as possible. Any bytes left in the buffer
+     *  are an incomplete welcome message or header.
+     **/
+    private void frame(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && !closed) {
+            switch (state) {
+            case STATE_WELCOME:
+                if (!frameWelcome(buffer)) {
+                    return;
+                }
+                break;
+                
+            case STATE_HEADER:
+                if (!frameHeader(buffer)) {
+                    return;
+                }
+                break;
+                
+            case STATE_BODY:
+                int useBytes = Math.min(buffer.remaining(), body.remaining());
+                int oldLimit = buffer.limit();
+                
+                buffer.limit(buffer.position() + useBytes);
+                body.put(buffer);
+                buffer.limit(oldLimit);
+                
+                if (!body.hasRemaining()) {
+                    bodyComplete();
+                }
+                break;
+                
+            default:
+                throw new IllegalStateException("Unknown state " + state);
+            }
+        }
+    }
+    
+    /**
+     *  Attempt to frame the welcome message of the remote peer.
+     *
+     *  @return true if the welcome message was consumed.
+     **/
+    private boolean frameWelcome(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int end = buffer.limit();
+        
+        for (int eachByte = start + 1; eachByte < end; eachByte++) {
+            if (('\n' == buffer.get(eachByte)) && ('\r' == buffer.get(eachByte - 1))) {
+                int length = eachByte - start + 1;
+                
+                itsWelcome = new WelcomeMessage(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + start, length));
+                buffer.position(start + length);
+                
+                welcomeReceived();
+                return true;
+            }
+        }
+        
+        if ((end - start) >= MAX_WELCOME_LENGTH) {
+            throw new IOException("Invalid welcome message, too long");
+        }
+        
+        return false;
+    }
+    
+    private void welcomeReceived() {
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Hello from " + itsWelcome.getPublicAddress() + " [" + itsWelcome.getPeerID() + "]");
+        }
+        
+        // The correct value for dstAddr: that of the other party.
+        dstAddress = itsWelcome.getPublicAddress();
+        fullDstAddress = dstAddress;
+        
+        state = STATE_HEADER;
+        
+        if (TransportMeterBuildSettings.TRANSPORT_METERING) {
+            transportBindingMeter = proto.getUnicastTransportBindingMeter((PeerID) getDestinationPeerID(), dstAddress);
+            
+            if (transportBindingMeter != null) {
+                transportBindingMeter.connectionEstablished(initiator, System.currentTimeMillis() - connectionBegunTime);
+            }
+        }
+        
+        synchronized (incoming) {
+            announcePending = true;
+            scheduleDispatch();
+        }
+    }
+    
+    /**
+     *  Attempt to frame a message header.
+     *
+     *  @return true if a header was consumed.
+     **/
+    private boolean frameHeader(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int end = buffer.limit();
+        int at = start;
+        
+        // Find the end of the headers without consuming anything.
+        while (true) {
+            if (at >= end) {
+                return false;
+            }
+            
+            int nameLength = buffer.get(at) & 0xFF;
+            
+            at++;
+            
+            if (0 == nameLength) {
+                break;
+            }
+            
+            if ((at + nameLength + 2) > end) {
+                return false;
+            }
+            
+            at += nameLength;
+            
+            int valueLength = ((buffer.get(at) & 0xFF) << 8) | (buffer.get(at + 1) & 0xFF);
+            
+            at += 2 + valueLength;
+        }
+        
+        if (TransportMeterBuildSettings.TRANSPORT_METERING) {
+            receiveBeginTime = System.currentTimeMillis();
+        }
+        
+        header = new MessagePackageHeader(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + start, at - start));
+        buffer.position(at);
+        
+        long msglength = header.getContentLengthHeader();
+        
+        if ((msglength < 0) || (msglength > Integer.MAX_VALUE)) {
+            throw new IOException("Invalid message length " + msglength);
+        }
+        
+        // The body is allocated whole, so refuse anything larger than we are
+        // willing to hold.
+        if (msglength > TcpTransport.MaxMessageSize) {
+            throw new IOException("Message length " + msglength + " exceeds maximum of " + TcpTransport.MaxMessageSize);
+        }
+        
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("tcp receive - message body (" + msglength + ") starts for " + inetAddress.getHostAddress() + ":" + port);
+        }
+        
+        // The body is only needed until it has been decoded.
+        body = ByteBuffer.wrap(BufferPool.getDefault().allocate((int) msglength), 0, (int) msglength);
+        state = STATE_BODY;
+        
+        if (!body.hasRemaining()) {
+            bodyComplete();
+        }
+        
+        return true;
+    }
+    
+    /**
+     *  A complete message body has been received. Queue it for dispatch.
+     **/
+    private void bodyComplete() {
+        PendingMessage pending = new PendingMessage(header.getContentTypeHeader(), body.array(), body.limit(), receiveBeginTime);
+        
+        header = null;
+        body = null;
+        state = STATE_HEADER;
+        
+        lastUsed = TimeUtils.timeNow();
+        
+        synchronized (incoming) {
+            incoming.add(pending);
+            
+            if (incoming.size() >= MAX_PENDING_MESSAGES) {
+                // Let the dispatchers catch up before reading any more.
+                wantRead = false;
+                updateInterest();
+            }
+            
+            scheduleDispatch();
+        }
+    }
+    
+    /**
+     *  Must be called with the incoming lock held.
+     **/
+    private void scheduleDispatch() {
+        if (!dispatchScheduled) {
+            dispatchScheduled = true;
+            reactor.dispatch(this);
+        }
+    }
+    
+    /**
+     *  Called by a dispatcher thread. Announces the connection if needed and
+     *  then decodes and delivers the pending messages in order.
+     **/
+    void dispatchIncoming() {
+        boolean announce;
+        
+        synchronized (incoming) {
+            announce = announcePending;
+            announcePending = false;
+        }
+        
+        if (announce && !closed) {
+            announce();
+        }
+        
+        for (int eachMessage = 0; ; eachMessage++) {
+            PendingMessage pending;
+            
+            synchronized (incoming) {
+                if (incoming.isEmpty() || closed) {
+                    discardIncoming();
+                    dispatchScheduled = false;
+                    return;
+                }
+                
+                if (eachMessage >= MAX_DISPATCH_BATCH) {
+                    // Go to the back of the line.
+                    reactor.dispatch(this);
+                    return;
+                }
+                
+                pending = (PendingMessage) incoming.removeFirst();
+                
+                if (!wantRead && (incoming.size() < (MAX_PENDING_MESSAGES / 2))) {
+                    wantRead = true;
+                    reactor.interestChanged(this, selector);
+                }
+            }
+            
+            deliver(pending);
+        }
+    }
+    
+    /**
+     *  Discards the messages waiting to be dispatched, returning their
+     *  bodies to the buffer pool.
+     *
+     *  Must be called with the incoming lock held.
+     **/
+    private void discardIncoming() {
+        while (!incoming.isEmpty()) {
+            PendingMessage pending = (PendingMessage) incoming.removeFirst();
+            
+            BufferPool.getDefault().release(pending.body);
+        }
+    }
+    
+    /**
+     *  Tell the transport about the messenger for this incoming connection.
+     **/
+    private void announce() {
+        try {
+            TcpMessenger newMessenger = new TcpMessenger(getDestinationAddress(), this, proto);
+            
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Registering connection from " + inetAddress.getHostAddress() + ":" + port);
+            }
+            
+            proto.messengerReadyEvent(newMessenger, getConnectionAddress());
+        } catch (Throwable all) {
+            if (LOG.isEnabledFor(Level.FATAL)) {
+                LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+            }
+        }
+    }
+    
+    /**
+     *  Decode a message and give it to the endpoint.
+     **/
+    private void deliver(PendingMessage pending) {
+        Message msg;
+        
+        try {
+            if ((null != pending.type) && pending.type.equalsIngoringParams(EndpointServiceImpl.DEFAULT_MESSAGE_TYPE)) {
+                // Binary messages are decoded in place. The body is released
+                // by the endpoint if the message is discarded.
+                msg = WireFormatMessageBinary.fromWire(pending.body, 0, pending.length, pending.type, BufferPool.getDefault());
+            } else {
+                msg = WireFormatMessageFactory.fromWire(new ByteArrayInputStream(pending.body, 0, pending.length), pending.type, (MimeMediaType) null);
+                
+                // Decoding copied everything out of the body.
+                BufferPool.getDefault().release(pending.body);
+            }
+        } catch (IOException failed) {
+            BufferPool.getDefault().release(pending.body);
+            
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("tcp receive - failed reading msg from " + inetAddress.getHostAddress() + ":" + port);
+            }
+            
+            receiveFailed();
+            closingDueToFailure = true;
+            close();
+            return;
+        }
+        
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Handing " + msg + " from " + inetAddress.getHostAddress() + ":" + port + " to EndpointService");
+        }
+        
+        if (TransportMeterBuildSettings.TRANSPORT_METERING && (transportBindingMeter != null)) {
+            transportBindingMeter.messageReceived(initiator, msg, System.currentTimeMillis() - pending.receiveBeginTime, pending.length);
+        }
+        
+        try {
+            // Demux the message for the upper layers.
+            proto.endpoint.demux(msg);
+        } catch (Throwable all) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Failure demuxing " + msg + " from " + inetAddress.getHostAddress() + ":" + port, all);
+            }
+        }
+        
+        lastUsed = TimeUtils.timeNow();
+    }
+    
+    /**
+     *  Called periodically by the selector thread. Closes the connection if
+     *  input has stalled in the middle of a message or if the connection has
+     *  been idle for too long.
+     *
+     *  @param now the current time.
+     **/
+    void watch(long now) {
+        boolean midMessage = (STATE_HEADER != state) || (null != partial);
+        long timeout = midMessage ? TcpTransport.ShortTimeout : TcpTransport.LongTimeout;
+        
+        if (!wantRead) {
+            // We are waiting on the dispatchers, not the remote peer.
+            return;
+        }
+        
+        if (TimeUtils.toRelativeTimeMillis(now, lastReadProgress) > timeout) {
+            receiveFailed();
+            
+            closingDueToFailure = midMessage;
+            
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("tcp receive - Error : read() timeout on connection " + inetAddress.getHostAddress() + ":" + port);
+            }
+            
+            close();
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public boolean sendMessage(Message msg) throws IOException {
+        
+        // socket is a stream, only one writer at a time...
+        synchronized (writeLock) {
+            if (closed) {
+                if (LOG.isEnabledFor(Level.INFO)) {
+                    LOG.info("Connection was closed to : " + dstAddress);
+                }
+                
+                throw new IOException("Connection was closed to : " + dstAddress);
+            }
+            
+            long sendBeginTime = 0;
+            long size = 0;
+            
+            if (TransportMeterBuildSettings.TRANSPORT_METERING) {
+                sendBeginTime = System.currentTimeMillis();
+            }
+            
+            try {
+                // serialize the message.
+                WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, appMsg, (MimeMediaType[]) null);
+                
+                MessagePackageHeader header = new MessagePackageHeader();
+                
+                header.setContentTypeHeader(serialed.getMimeType());
+                
+                size = serialed.getByteLength();
+                header.setContentLengthHeader(size);
+                
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Sending " + msg + " (" + size + ") to " + dstAddress + " via " + inetAddress.getHostAddress() + ":" + port);
+                }
+                
+                // Gathering write, the element data is not copied.
+                writeFully(TcpTransport.getMessageBuffers(header, serialed));
+                
+                // all done!
+                lastUsed = TimeUtils.timeNow();
+                
+                if (TransportMeterBuildSettings.TRANSPORT_METERING && (transportBindingMeter != null)) {
+                    transportBindingMeter.messageSent(initiator, msg, System.currentTimeMillis() - sendBeginTime, size);
+                }
+                
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Sent " + msg + " successfully via " + inetAddress.getHostAddress() + ":" + port );
+                }
+                
+                return true;
+            } catch (Exception failed) {
+                if (TransportMeterBuildSettings.TRANSPORT_METERING && (transportBindingMeter != null)) {
+                    transportBindingMeter.sendFailure(initiator, msg, System.currentTimeMillis() - sendBeginTime, size);
+                }
+                
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Message send failed for " + inetAddress.getHostAddress() + ":" + port, failed);
+                }
+                
+                closingDueToFailure = true;
+                close();
+                
+                IOException failure = new IOException("Failed sending " + msg + " to : " + inetAddress.getHostAddress() + ":" + port );
+                failure.initCause(failed);
+                
+                throw failure;
+            }
+        }
+    }
+    
+    /**
+     *  Write all of the provided buffers to the channel. If the channel is
+     *  not writable we wait for the selector to tell us it is. We give up if
+     *  no progress is made for {@link TcpTransport#ShortTimeout}.
+     *
+     *  <p/>Must be called with the write lock held.
+     *
+     *  @param buffers the buffers to write.
+     *  @throws IOException for failures writing to the channel.
+     **/
+    void writeFully(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        
+        for (int eachBuffer = 0; eachBuffer < buffers.length; eachBuffer++) {
+            remaining += buffers[eachBuffer].remaining();
+        }
+        
+        long lastProgress = TimeUtils.timeNow();
+        
+        while (remaining > 0) {
+            if (closed) {
+                throw new IOException("Connection was closed to : " + dstAddress);
+            }
+            
+            long wrote = channel.write(buffers);
+            
+            if (wrote > 0) {
+                remaining -= wrote;
+                lastProgress = TimeUtils.timeNow();
+                continue;
+            }
+            
+            long waitFor = TcpTransport.ShortTimeout - TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), lastProgress);
+            
+            if (waitFor <= 0) {
+                throw new InterruptedIOException("write() timeout on connection " + inetAddress.getHostAddress() + ":" + port);
+            }
+            
+            synchronized (writeReady) {
+                Object mySelector = selector;
+                
+                if (null != mySelector) {
+                    wantWrite = true;
+                    reactor.interestChanged(this, mySelector);
+                } else {
+                    // Not yet registered, nobody will tell us. Poll.
+                    waitFor = Math.min(waitFor, TimeUtils.ATENTHOFASECOND);
+                }
+                
+                try {
+                    writeReady.wait(waitFor);
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                    throw new InterruptedIOException("Interrupted waiting to write to " + inetAddress.getHostAddress() + ":" + port);
+                }
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info( (closingDueToFailure ? "Failure" : "Normal") +
+                        " close (open " + TimeUtils.toRelativeTimeMillis( TimeUtils.timeNow(), firstUsed ) +
+                        "ms) of socket to : " + dstAddress + " / " + inetAddress.getHostAddress() + ":"
+                        + port);
+                if (LOG.isEnabledFor(Level.DEBUG) && closingDueToFailure) {
+                    LOG.debug("stack trace", new Throwable("stack trace"));
+                }
+            }
+            
+            closed = true;
+            lastUsed = 0; // we idle now. Way idle.
+        }
+        
+        SelectionKey myKey = key;
+        
+        if (null != myKey) {
+            myKey.cancel();
+        }
+        
+        try {
+            channel.close();
+        } catch (IOException ez1) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Error : could not close channel ", ez1);
+            }
+        }
+        
+        synchronized (writeReady) {
+            writeReady.notifyAll();
+        }
+        
+        synchronized (incoming) {
+            // A dispatcher which is working for us stops at its next message.
+            discardIncoming();
+        }
+        
+        if (TransportMeterBuildSettings.TRANSPORT_METERING && (transportBindingMeter != null)) {
+            if (closingDueToFailure) {
+                transportBindingMeter.connectionDropped(initiator, System.currentTimeMillis() - connectionBegunTime);
+            } else {
+                transportBindingMeter.connectionClosed(initiator, System.currentTimeMillis() - connectionBegunTime);
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public boolean isConnected() {
+        return (null != itsWelcome) && !closed;
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public long getLastUsed() {
+        return lastUsed;
+    }
+    
+    /**
+     * {@inheritDoc}
+     **/
+    public TransportBindingMeter getTransportBindingMeter() {
+        return transportBindingMeter;
+    }
+}
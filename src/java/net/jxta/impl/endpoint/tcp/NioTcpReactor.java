@@ -0,0 +1,466 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import java.io.IOException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.UnbiasedQueue;
+
+
+/**
+ *  A small, fixed pool of selector threads which perform all of the socket
+ *  I/O for the {@link NioTcpConnection}s of a {@link TcpTransport}, plus a
+ *  fixed pool of dispatcher threads which decode the received messages and
+ *  hand them to the endpoint service.
+ *
+ *  <p/>Each connection is bound to a single selector for its lifetime.
+ *  Registration and interest changes requested by other threads are queued
+ *  and applied by the selector thread itself.
+ *
+ *  <p/>Dispatching is serialized per connection so that messages are
+ *  delivered to the endpoint in the order they were received, as they are
+ *  with the thread-per-connection {@link TcpConnection}.
+ **/
+class NioTcpReactor {
+    
+    /**
+     *  Log4J Logger
+     **/
+    private static final Logger LOG = Logger.getLogger(NioTcpReactor.class.getName());
+    
+    /**
+     *  How often each selector checks its connections for stalled or idle
+     *  input.
+     **/
+    private static final long WATCH_INTERVAL = TcpTransport.ShortTimeout / 2;
+    
+    /**
+     *  Size of the read buffer shared by all of the connections of a selector.
+     **/
+    private static final int READ_BUFFER_SIZE = TcpTransport.RecvBufferSize;
+    
+    /**
+     *  The transport which owns this reactor.
+     **/
+    private final TcpTransport proto;
+    
+    /**
+     *  The selectors.
+     **/
+    private final SelectorThread[] selectors;
+    
+    /**
+     *  The dispatcher threads.
+     **/
+    private final Thread[] dispatchers;
+    
+    /**
+     *  Connections which have received messages waiting to be dispatched.
+     **/
+    private final UnbiasedQueue dispatchQueue = UnbiasedQueue.synchronizedQueue(new UnbiasedQueue(Integer.MAX_VALUE, false));
+    
+    /**
+     *  The selector to which the next registered connection will be bound.
+     **/
+    private int nextSelector = 0;
+    
+    private volatile boolean closed = false;
+    
+    /**
+     *  One selector and the thread which runs it.
+     **/
+    private class SelectorThread implements Runnable {
+        
+        final Selector selector;
+        
+        /**
+         *  Connections awaiting registration with our selector.
+         **/
+        final List registrations = new ArrayList();
+        
+        /**
+         *  Connections whose interest set must be updated.
+         **/
+        final List interestChanges = new ArrayList();
+        
+        /**
+         *  Read buffer shared by all our connections. Only used from our
+         *  thread.
+         **/
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        
+        Thread thread = null;
+        
+        SelectorThread() throws IOException {
+            selector = Selector.open();
+        }
+        
+        void register(NioTcpConnection conn) {
+            synchronized (registrations) {
+                registrations.add(conn);
+            }
+            selector.wakeup();
+        }
+        
+        void interestChanged(NioTcpConnection conn) {
+            if (Thread.currentThread() == thread) {
+                conn.updateInterest();
+                return;
+            }
+            
+            synchronized (interestChanges) {
+                interestChanges.add(conn);
+            }
+            selector.wakeup();
+        }
+        
+        private void processChanges() {
+            NioTcpConnection[] toRegister;
+            NioTcpConnection[] toChange;
+            
+            synchronized (registrations) {
+                toRegister = (NioTcpConnection[]) registrations.toArray(new NioTcpConnection[registrations.size()]);
+                registrations.clear();
+            }
+            
+            synchronized (interestChanges) {
+                toChange = (NioTcpConnection[]) interestChanges.toArray(new NioTcpConnection[interestChanges.size()]);
+                interestChanges.clear();
+            }
+            
+            for (int eachConn = 0; eachConn < toRegister.length; eachConn++) {
+                NioTcpConnection conn = toRegister[eachConn];
+                
+                try {
+                    conn.setKey(conn.getChannel().register(selector, SelectionKey.OP_READ, conn));
+                } catch (ClosedChannelException closed) {
+                    conn.close();
+                }
+            }
+            
+            for (int eachConn = 0; eachConn < toChange.length; eachConn++) {
+                toChange[eachConn].updateInterest();
+            }
+        }
+        
+        public void run() {
+            try {
+                long nextWatch = TimeUtils.toAbsoluteTimeMillis(WATCH_INTERVAL);
+                
+                while (!closed) {
+                    processChanges();
+                    
+                    selector.select(WATCH_INTERVAL);
+                    
+                    if (closed) {
+                        break;
+                    }
+                    
+                    Iterator eachKey = selector.selectedKeys().iterator();
+                    
+                    while (eachKey.hasNext()) {
+                        SelectionKey aKey = (SelectionKey) eachKey.next();
+                        
+                        eachKey.remove();
+                        
+                        NioTcpConnection conn = (NioTcpConnection) aKey.attachment();
+                        
+                        try {
+                            if (aKey.isValid() && aKey.isWritable()) {
+                                conn.processWritable();
+                            }
+                            
+                            if (aKey.isValid() && aKey.isReadable()) {
+                                conn.processReadable(readBuffer);
+                            }
+                        } catch (CancelledKeyException ignored) {
+                            // connection was closed by another thread.
+                            ;
+                        }
+                    }
+                    
+                    long now = TimeUtils.timeNow();
+                    
+                    if (now >= nextWatch) {
+                        Iterator allKeys = selector.keys().iterator();
+                        
+                        while (allKeys.hasNext()) {
+                            SelectionKey aKey = (SelectionKey) allKeys.next();
+                            
+                            ((NioTcpConnection) aKey.attachment()).watch(now);
+                        }
+                        
+                        nextWatch = TimeUtils.toAbsoluteTimeMillis(WATCH_INTERVAL, now);
+                    }
+                }
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.FATAL)) {
+                    LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+                }
+            } finally {
+                // Close all of our connections. Nobody else will be able to.
+                try {
+                    NioTcpConnection[] all;
+                    
+                    Iterator allKeys = selector.keys().iterator();
+                    List conns = new ArrayList();
+                    
+                    while (allKeys.hasNext()) {
+                        conns.add(((SelectionKey) allKeys.next()).attachment());
+                    }
+                    
+                    synchronized (registrations) {
+                        conns.addAll(registrations);
+                        registrations.clear();
+                    }
+                    
+                    all = (NioTcpConnection[]) conns.toArray(new NioTcpConnection[conns.size()]);
+                    
+                    for (int eachConn = 0; eachConn < all.length; eachConn++) {
+                        all[eachConn].close();
+                    }
+                    
+                    selector.close();
+                } catch (Throwable ignored) {
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("Failure closing selector", ignored);
+                    }
+                }
+                
+                thread = null;
+            }
+        }
+    }
+    
+    /**
+     *  Dispatches received messages for connections in the dispatch queue.
+     **/
+    private class Dispatcher implements Runnable {
+        
+        public void run() {
+            try {
+                while (!closed) {
+                    NioTcpConnection conn = (NioTcpConnection) dispatchQueue.pop(0);
+                    
+                    if (null == conn) {
+                        continue;
+                    }
+                    
+                    try {
+                        conn.dispatchIncoming();
+                    } catch (Throwable all) {
+                        if (LOG.isEnabledFor(Level.ERROR)) {
+                            LOG.error("Uncaught Throwable dispatching for " + conn, all);
+                        }
+                    }
+                }
+            } catch (InterruptedException woken) {
+                Thread.interrupted();
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.FATAL)) {
+                    LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+                }
+            }
+        }
+    }
+    
+    /**
+     *  Creates a new reactor.
+     *
+     *  @param proto the transport we are working for.
+     *  @param selectorCount the number of selector threads.
+     *  @param dispatcherCount the number of dispatcher threads.
+     *  @throws IOException if the selectors cannot be opened.
+     **/
+    NioTcpReactor(TcpTransport proto, int selectorCount, int dispatcherCount) throws IOException {
+        if (selectorCount < 1) {
+            throw new IllegalArgumentException("Need at least one selector");
+        }
+        
+        if (dispatcherCount < 1) {
+            throw new IllegalArgumentException("Need at least one dispatcher");
+        }
+        
+        this.proto = proto;
+        
+        selectors = new SelectorThread[selectorCount];
+        for (int eachSelector = 0; eachSelector < selectorCount; eachSelector++) {
+            selectors[eachSelector] = new SelectorThread();
+        }
+        
+        dispatchers = new Thread[dispatcherCount];
+    }
+    
+    /**
+     *  Start the selector and dispatcher threads.
+     *
+     *  @param inGroup  the thread group we should create our threads in.
+     **/
+    synchronized void start(ThreadGroup inGroup) {
+        for (int eachSelector = 0; eachSelector < selectors.length; eachSelector++) {
+            Thread selectorThread = new Thread(inGroup, selectors[eachSelector], "TCP Selector " + eachSelector);
+            
+            selectorThread.setDaemon(true);
+            selectors[eachSelector].thread = selectorThread;
+            selectorThread.start();
+        }
+        
+        for (int eachDispatcher = 0; eachDispatcher < dispatchers.length; eachDispatcher++) {
+            dispatchers[eachDispatcher] = new Thread(inGroup, new Dispatcher(), "TCP Dispatcher " + eachDispatcher);
+            dispatchers[eachDispatcher].setDaemon(true);
+            dispatchers[eachDispatcher].start();
+        }
+        
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Started " + selectors.length + " selectors and " + dispatchers.length + " dispatchers");
+        }
+    }
+    
+    /**
+     *  Stop the reactor. All of the connections are closed.
+     **/
+    synchronized void stop() {
+        closed = true;
+        
+        dispatchQueue.close();
+        
+        for (int eachSelector = 0; eachSelector < selectors.length; eachSelector++) {
+            selectors[eachSelector].selector.wakeup();
+        }
+        
+        for (int eachDispatcher = 0; eachDispatcher < dispatchers.length; eachDispatcher++) {
+            Thread dispatcher = dispatchers[eachDispatcher];
+            
+            if (null != dispatcher) {
+                dispatcher.interrupt();
+            }
+        }
+    }
+    
+    /**
+     *  Returns the transport we are working for.
+     **/
+    TcpTransport getTransport() {
+        return proto;
+    }
+    
+    /**
+     *  Bind a connection to one of our selectors and start reading from it.
+     *  The connection's channel must already be in non-blocking mode.
+     *
+     *  @param conn the connection.
+     **/
+    void register(NioTcpConnection conn) {
+        SelectorThread useSelector;
+        
+        synchronized (this) {
+            if (closed) {
+                conn.close();
+                return;
+            }
+            
+            useSelector = selectors[nextSelector];
+            nextSelector = (nextSelector + 1) % selectors.length;
+        }
+        
+        conn.setSelector(useSelector);
+        useSelector.register(conn);
+    }
+    
+    /**
+     *  Ask the selector of a connection to apply the connection's desired
+     *  interest set.
+     *
+     *  @param conn the connection.
+     *  @param selector the selector to which the connection is bound.
+     **/
+    void interestChanged(NioTcpConnection conn, Object selector) {
+        ((SelectorThread) selector).interestChanged(conn);
+    }
+    
+    /**
+     *  Schedule a connection for dispatch of its received messages.
+     *
+     *  @param conn the connection.
+     **/
+    void dispatch(NioTcpConnection conn) {
+        try {
+            if (!dispatchQueue.push(conn, 0)) {
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Dispatch queue closed, discarding incoming for " + conn);
+                }
+            }
+        } catch (InterruptedException woken) {
+            Thread.interrupted();
+        }
+    }
+}
@@ -63,6 +63,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -83,18 +84,21 @@ import net.jxta.util.LimitInputStream;
 import net.jxta.util.WatchedInputStream;
 import net.jxta.util.WatchedOutputStream;
 
+import net.jxta.impl.endpoint.EndpointServiceImpl;
 import net.jxta.impl.endpoint.IPUtils;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
 import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
 import net.jxta.impl.endpoint.transportMeter.TransportBindingMeter;
 import net.jxta.impl.endpoint.transportMeter.TransportMeterBuildSettings;
+import net.jxta.impl.util.BufferPool;
 import net.jxta.impl.util.TimeUtils;
 
 /**
  * Low-level TcpMessenger
  *
  */
-class TcpConnection implements Runnable {
+class TcpConnection implements Connection, Runnable {
     
     /**
      *  Log4J Logger
@@ -421,7 +425,7 @@ class TcpConnection implements Runnable {
         recvThread.setDaemon(true);
     }
     
-    protected void start() {
+    public void start() {
         recvThread.start();
     }
 
@@ -470,8 +474,22 @@ class TcpConnection implements Runnable {
                     LOG.debug("Sending " + msg + " (" + serialed.getByteLength() + ") to " + dstAddress + " via " + inetAddress.getHostAddress() + ":" + port);
                 }
 
-                header.sendToStream(outputStream);
-                serialed.sendToStream(outputStream);
+                // Small buffers are coalesced by the buffered stream, large
+                // ones go through to the socket without being copied.
+                ByteBuffer[] buffers = TcpTransport.getMessageBuffers(header, serialed);
+                
+                for (int eachBuffer = 0; eachBuffer < buffers.length; eachBuffer++) {
+                    ByteBuffer aBuffer = buffers[eachBuffer];
+                    
+                    if (aBuffer.hasArray()) {
+                        outputStream.write(aBuffer.array(), aBuffer.arrayOffset() + aBuffer.position(), aBuffer.remaining());
+                    } else {
+                        byte[] copy = new byte[aBuffer.remaining()];
+                        
+                        aBuffer.get(copy);
+                        outputStream.write(copy);
+                    }
+                }
                 outputStream.flush();
                 
                 // all done!
@@ -541,6 +559,10 @@ class TcpConnection implements Runnable {
                     
                     long msglength = header.getContentLengthHeader();
                     
+                    if ((msglength < 0) || (msglength > TcpTransport.MaxMessageSize)) {
+                        throw new IOException("Invalid message length " + msglength);
+                    }
+                    
                     // FIXME 20020730 bondolo@jxta.org Do something with content-coding here.
                     
                     if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -555,7 +577,16 @@ class TcpConnection implements Runnable {
                     Message msg = null;
 
                     try {
-                        msg = WireFormatMessageFactory.fromWire(new LimitInputStream(inputStream, msglength, true), msgMime, (MimeMediaType) null);
+                        InputStream body = new LimitInputStream(inputStream, msglength, true);
+                        
+                        if ((null != msgMime) && msgMime.equalsIngoringParams(EndpointServiceImpl.DEFAULT_MESSAGE_TYPE)) {
+                            // The element data of binary messages is read into
+                            // pooled buffers which the endpoint releases if the
+                            // message is discarded.
+                            msg = WireFormatMessageBinary.fromWire(body, msgMime, BufferPool.getDefault());
+                        } else {
+                            msg = WireFormatMessageFactory.fromWire(body, msgMime, (MimeMediaType) null);
+                        }
                     } catch (IOException failed) {
                         if (LOG.isEnabledFor(Level.INFO)) {
                             LOG.info("tcp receive - failed reading msg from " + inetAddress.getHostAddress() + ":" + port);
@@ -744,7 +775,7 @@ class TcpConnection implements Runnable {
         lastUsed = time;
     }
     
-    TransportBindingMeter getTransportBindingMeter() {
+    public TransportBindingMeter getTransportBindingMeter() {
         return transportBindingMeter;
     }
     
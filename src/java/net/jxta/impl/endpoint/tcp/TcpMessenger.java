@@ -116,7 +116,7 @@ class TcpMessenger extends BlockingMessenger {
     /**
      *  The connection
      **/
-    volatile TcpConnection conn;
+    volatile Connection conn;
     
     /**
      * If this is an incoming connection we must not close it when this messenger disapears.
@@ -138,7 +138,7 @@ class TcpMessenger extends BlockingMessenger {
      *  @param destaddr the destination of the messenger
      *  @param p    the tcp MessageSender we are working for.
      **/
-    TcpMessenger(EndpointAddress destaddr, TcpConnection conn, TcpTransport p)
+    TcpMessenger(EndpointAddress destaddr, Connection conn, TcpTransport p)
         throws IOException {
 
         // We need self destruction: tcp messengers are expenssive to make and they refer to
@@ -175,7 +175,7 @@ class TcpMessenger extends BlockingMessenger {
         /**
          *  Create a connection. Not needed immediately, but this gets things going
          **/
-        this(destaddr, new TcpConnection(destaddr, p), p);
+        this(destaddr, p.newConnection(destaddr), p);
         this.incoming = false;
     }
 
@@ -211,7 +211,7 @@ class TcpMessenger extends BlockingMessenger {
      **/
     public void closeImpl() {
 
-        TcpConnection toClose = conn;
+        Connection toClose = conn;
 
         if (toClose == null) {
             return;
@@ -235,7 +235,7 @@ class TcpMessenger extends BlockingMessenger {
     // should still work, but it's a stretch. Transports should get a deeper retrofit eventually.
     public boolean isClosed() {
 
-        TcpConnection holdIt = conn;
+        Connection holdIt = conn;
 
         if (holdIt == null) {
             return true;
@@ -273,7 +273,7 @@ class TcpMessenger extends BlockingMessenger {
      * timeout for that.
      */
     public boolean isIdleImpl() {
-        TcpConnection holdIt = conn;
+        Connection holdIt = conn;
 
         return (holdIt == null) || (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), holdIt.getLastUsed()) > 15 * TimeUtils.AMINUTE);
     }
@@ -307,7 +307,7 @@ class TcpMessenger extends BlockingMessenger {
         // to prevent an NPE if they happen in parallel.
         // So, get a private reference just long enough to send.
 
-        TcpConnection myConn = conn;
+        Connection myConn = conn;
 
         if (isClosed()) {
             IOException failure = new IOException("Messenger was closed, it cannot be used to send messages.");
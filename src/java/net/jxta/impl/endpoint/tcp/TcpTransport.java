@@ -75,11 +75,10 @@ import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 
-import java.util.Timer;
-import java.util.TimerTask;
 
 import java.io.UnsupportedEncodingException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.NoSuchElementException;
 
 import org.apache.log4j.Level;
@@ -122,6 +121,7 @@ import net.jxta.exception.PeerGroupException;
 import net.jxta.impl.endpoint.EndpointServiceImpl;
 import net.jxta.impl.endpoint.IPUtils;
 import net.jxta.impl.endpoint.LoopbackMessenger;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
 import net.jxta.impl.endpoint.msgframing.MessagePackageHeader.Header;
 import net.jxta.impl.endpoint.transportMeter.TransportBindingMeter;
@@ -130,8 +130,10 @@ import net.jxta.impl.endpoint.transportMeter.TransportMeterBuildSettings;
 import net.jxta.impl.endpoint.transportMeter.TransportServiceMonitor;
 import net.jxta.impl.meter.MonitorManager;
 import net.jxta.impl.protocol.TCPAdv;
+import net.jxta.impl.util.BufferPool;
+import net.jxta.impl.util.ScheduledTask;
+import net.jxta.impl.util.SharedTimer;
 import net.jxta.impl.util.TimeUtils;
-import net.jxta.impl.util.TimerThreadNamer;
 
 
 /**
@@ -211,6 +213,48 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
     
     static final int              MaxAcceptCnxBacklog = 50; // Java's default is 50
     
+    /**
+     *  System property which, if "true", selects the selector based
+     *  {@link NioTcpConnection} rather than a thread per connection.
+     **/
+    static final String           NIO_PROPERTY = "net.jxta.impl.endpoint.tcp.TcpTransport.nio";
+    
+    /**
+     *  System property which specifies the number of selector threads used
+     *  in NIO mode.
+     **/
+    static final String           NIO_SELECTORS_PROPERTY = "net.jxta.impl.endpoint.tcp.TcpTransport.nio.selectors";
+    
+    /**
+     *  System property which specifies the number of threads which dispatch
+     *  received messages in NIO mode.
+     **/
+    static final String           NIO_DISPATCHERS_PROPERTY = "net.jxta.impl.endpoint.tcp.TcpTransport.nio.dispatchers";
+    
+    /**
+     *  Default number of dispatcher threads in NIO mode. Listeners may block
+     *  (the relay and router send from within their listeners), so this is
+     *  rather more than the number of selectors.
+     **/
+    static final int              DEFAULT_NIO_DISPATCHERS = 16;
+    
+    /**
+     *  System property which specifies the largest message body in bytes
+     *  accepted from a remote peer. A connection announcing a larger message
+     *  is closed before any of the body is read.
+     **/
+    static final String           MAX_MESSAGE_SIZE_PROPERTY = "net.jxta.impl.endpoint.tcp.maxMessageSize";
+    
+    /**
+     *  Default largest message body accepted from a remote peer.
+     **/
+    static final long             DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024; // 16 MBytes
+    
+    /**
+     *  The largest message body accepted from a remote peer.
+     **/
+    static final long             MaxMessageSize = Long.getLong(MAX_MESSAGE_SIZE_PROPERTY, DEFAULT_MAX_MESSAGE_SIZE).longValue();
+    
     // Connections that are watched often - io in progress
     List                          ShortCycle = Collections.synchronizedList(new ArrayList());
     
@@ -228,6 +272,12 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
     private int                   restrictionPort = -1;
     private IncomingUnicastServer unicastServer = null;
     
+    /**
+     *  The reactor which services our connections if we are in NIO mode,
+     *  otherwise null.
+     **/
+    private NioTcpReactor         reactor = null;
+    
     private boolean               isClosed = false;
     
     private boolean               allowMulticast = true;
@@ -260,12 +310,12 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
      **/
     ThreadGroup                   myThreadGroup = null;
     
-    final Timer                   connectionWatchTimer;
+    final SharedTimer             connectionWatchTimer;
      
     /**
-     * TimerTask used to watch over connections.
+     * ScheduledTask used to watch over connections.
      */
-    static class Watcher extends TimerTask {
+    static class Watcher extends ScheduledTask {
         private Collection watchList;
         public Watcher(Collection watchList) {
             this.watchList = watchList;
@@ -307,8 +357,7 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             // Keep the default
         }
         
-        connectionWatchTimer = new Timer(true);
-        connectionWatchTimer.schedule(new TimerThreadNamer("TCP Transport Connection Timer"), 0);
+        connectionWatchTimer = new SharedTimer("TCP Transport Connection Timer");
         
         // Setup the timer for the two connection watch lists.
         connectionWatchTimer.schedule(new Watcher(LongCycle), LongTimeout, LongTimeout);
@@ -456,6 +505,15 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             // Start the servers
             myThreadGroup = new ThreadGroup(group.getHomeThreadGroup(), "TcpTransport " + usingInterface.getHostAddress());
             
+            if (Boolean.getBoolean(NIO_PROPERTY)) {
+                int selectors = Integer.getInteger(NIO_SELECTORS_PROPERTY,
+                        Math.min(4, Runtime.getRuntime().availableProcessors())).intValue();
+                int dispatchers = Integer.getInteger(NIO_DISPATCHERS_PROPERTY, DEFAULT_NIO_DISPATCHERS).intValue();
+                
+                reactor = new NioTcpReactor(this, selectors, dispatchers);
+                reactor.start(myThreadGroup);
+            }
+            
             /*
              * DVT KLUDGE TO MAKE THE ROUTER'S LIFE MISERABLE.
              * This permits to restrict this peer to connect only to
@@ -715,6 +773,7 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             }
             
             configInfo.append("\n\tConfiguration :");
+            configInfo.append("\n\t\tConnection I/O: " + ((null != reactor) ? "NIO" : "Thread per connection"));
             if (null != unicastServer) {
                 if (-1 == unicastServer.getStartPort()) {
                     configInfo.append("\n\t\tUnicast Server Bind Addr: " + usingInterface.getHostAddress() + ":" + serverSocketPort);
@@ -806,6 +865,11 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
         
         connectionWatchTimer.cancel();
         
+        if (reactor != null) {
+            reactor.stop();
+            reactor = null;
+        }
+        
         // Close all watched streams. The input threads will kill the
         // connections.
         
@@ -829,6 +893,10 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
         ShortCycle.clear();
         LongCycle.clear();
         
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Incoming message buffers : " + BufferPool.getDefault());
+        }
+        
         // Accelerated GC (or so some say).
         endpoint = null;
         group = null;
@@ -1287,6 +1355,65 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
         return result;
     }
     
+    /**
+     *  Returns the framing header and serialized message as a sequence of
+     *  buffers for a gathering write. For binary wire format messages the
+     *  element data is not copied.
+     *
+     *  @param header the framing header for the message.
+     *  @param serialed the serialized message.
+     *  @return the buffers in the order they should be sent.
+     *  @throws IOException for failures serializing the header or message.
+     **/
+    static ByteBuffer[] getMessageBuffers(MessagePackageHeader header, WireFormatMessage serialed) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(128);
+        
+        header.sendToStream(headerBytes);
+        
+        ByteBuffer[] bodyBuffers;
+        
+        if (serialed instanceof WireFormatMessageBinary) {
+            bodyBuffers = ((WireFormatMessageBinary) serialed).getByteBuffers();
+        } else {
+            ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream((int) serialed.getByteLength());
+            
+            serialed.sendToStream(bodyBytes);
+            bodyBuffers = new ByteBuffer[] { ByteBuffer.wrap(bodyBytes.toByteArray()) };
+        }
+        
+        ByteBuffer[] buffers = new ByteBuffer[bodyBuffers.length + 1];
+        
+        buffers[0] = ByteBuffer.wrap(headerBytes.toByteArray());
+        System.arraycopy(bodyBuffers, 0, buffers, 1, bodyBuffers.length);
+        
+        return buffers;
+    }
+    
+    /**
+     *  Create a new outgoing connection of the kind appropriate for our mode.
+     *
+     *  @param destaddr the destination address of the connection.
+     *  @return the new connection.
+     *  @throws IOException for failures in creating the connection.
+     **/
+    Connection newConnection(EndpointAddress destaddr) throws IOException {
+        NioTcpReactor useReactor = reactor;
+        
+        if (null != useReactor) {
+            return new NioTcpConnection(destaddr, this, useReactor);
+        } else {
+            return new TcpConnection(destaddr, this);
+        }
+    }
+    
+    /**
+     *  Returns the reactor which services our connections if we are in NIO
+     *  mode, otherwise null.
+     **/
+    NioTcpReactor getReactor() {
+        return reactor;
+    }
+    
     int getRestrictionPort() {
         return restrictionPort;
     }
@@ -73,8 +73,6 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -108,7 +106,8 @@ import net.jxta.service.Service;
 
 import net.jxta.exception.PeerGroupException;
 
-import net.jxta.impl.util.TimerThreadNamer;
+import net.jxta.impl.util.ScheduledTask;
+import net.jxta.impl.util.SharedTimer;
 
 /**
  *  This class provides the sub-class of Credential which is associated with the
@@ -166,11 +165,7 @@ public final class PSECredential implements Credential, CredentialPCLSupport {
     /**
      *  A Timer we use for managing the cert expirations.
      **/
-    private static Timer expirationTimer = new Timer( true );
-    
-    static {
-        expirationTimer.schedule(new TimerThreadNamer("PSECredential Expiration Timer"), 0 );
-    }
+    private static final SharedTimer expirationTimer = new SharedTimer( "PSECredential Expiration Timer" );
     
     /**
      * The MembershipService service which generated this credential.
@@ -209,8 +204,8 @@ public final class PSECredential implements Credential, CredentialPCLSupport {
     /**
      *  Optional Timer task
      **/
-    private TimerTask becomesValidTask = null;
-    private TimerTask expiresTask = null;
+    private ScheduledTask becomesValidTask = null;
+    private ScheduledTask expiresTask = null;
     
     /**
      *  Are we still a valid credential?
@@ -561,7 +556,7 @@ public final class PSECredential implements Credential, CredentialPCLSupport {
                 becomesValidTask.cancel();
             }
             
-            becomesValidTask = new TimerTask() {
+            becomesValidTask = new ScheduledTask() {
                 
                 public void run() {
                     support.firePropertyChange( "expired", false, true );
@@ -580,7 +575,7 @@ public final class PSECredential implements Credential, CredentialPCLSupport {
         }
         
         if( expires.compareTo( now ) > 0  ) {
-            expiresTask = new TimerTask() {
+            expiresTask = new ScheduledTask() {
                 
                 public void run() {
                     support.firePropertyChange( "expired", true, false );
@@ -61,8 +61,6 @@ import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.Hashtable;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
 import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
 
@@ -88,7 +86,8 @@ import net.jxta.meter.ServiceMonitorFilter;
 import net.jxta.peer.PeerID;
 import net.jxta.util.documentSerializable.DocumentSerializableUtilities;
 import net.jxta.util.documentSerializable.DocumentSerializationException;
-import net.jxta.impl.util.TimerThreadNamer;
+import net.jxta.impl.util.ScheduledTask;
+import net.jxta.impl.util.SharedTimer;
 
 
 class RemoteMonitorPeerInfoHandler implements PeerInfoHandler {
@@ -105,13 +104,13 @@ class RemoteMonitorPeerInfoHandler implements PeerInfoHandler {
     private Hashtable timeouts = new Hashtable();
     private PeerGroup peerGroup;
     private PeerInfoServiceImpl peerInfoServiceImpl;
-    private Timer timer = new Timer(true);
+    private final SharedTimer timer;
 
     RemoteMonitorPeerInfoHandler(PeerGroup peerGroup,
                                  PeerInfoServiceImpl peerInfoServiceImpl) {
         this.peerGroup = peerGroup;
         this.peerInfoServiceImpl = peerInfoServiceImpl;
-        timer.schedule(new TimerThreadNamer("RemoteMonitorPeerInfo timer for " + peerGroup.getPeerGroupID()), 0);
+        timer = new SharedTimer("RemoteMonitorPeerInfo timer for " + peerGroup.getPeerGroupID());
     }
 
     public void stop() {
@@ -209,7 +208,7 @@ class RemoteMonitorPeerInfoHandler implements PeerInfoHandler {
 
         requestInfos.put(new Integer(queryId), requestInfo);
 
-        timer.schedule(new TimerTask() {
+        timer.schedule(new ScheduledTask() {
                     public void run() {
                         if (!requestInfo.responseReceived) {
                             PeerMonitorInfoEvent peerMonitorInfoEvent = new PeerMonitorInfoEvent(peerID, null);
@@ -236,7 +235,7 @@ class RemoteMonitorPeerInfoHandler implements PeerInfoHandler {
 
         requestInfos.put(new Integer(queryId), requestInfo);
 
-        timer.schedule(new TimerTask() {
+        timer.schedule(new ScheduledTask() {
                     public void run() {
                         if (!requestInfo.responseReceived) {
 
@@ -267,7 +266,7 @@ class RemoteMonitorPeerInfoHandler implements PeerInfoHandler {
 
         requestInfos.put(new Integer(queryId), requestInfo);
 
-        timer.schedule(new TimerTask() {
+        timer.schedule(new ScheduledTask() {
                     public void run() {
                         if (!requestInfo.responseReceived) {
                             MonitorEvent monitorEvent = MonitorEvent.createFailureEvent(MonitorEvent.TIMEOUT, requestInfo.peerId,
@@ -311,7 +310,7 @@ class RemoteMonitorPeerInfoHandler implements PeerInfoHandler {
 
         final RequestInfo requestInfo = oldRequestInfo;
 
-        timer.schedule(new TimerTask() {
+        timer.schedule(new ScheduledTask() {
                     public void run() {
 
                         requestInfos.remove(new Integer(requestInfo.queryId));
@@ -475,7 +474,7 @@ class RemoteMonitorPeerInfoHandler implements PeerInfoHandler {
         final int queryId = requestInfo.queryId;
 
         timer.schedule(
-            new TimerTask() {
+            new ScheduledTask() {
                 public void run() {
                     if (requestInfos.containsKey(new Integer(queryId))) {
                         try {
@@ -501,7 +500,7 @@ class RemoteMonitorPeerInfoHandler implements PeerInfoHandler {
         final int queryId = requestInfo.queryId;
 
         if (renewTime > MIN_LEASE) {
-            timer.schedule(new TimerTask() {
+            timer.schedule(new ScheduledTask() {
                         public void run() {
                             try {
                                 renewLease(queryId);
@@ -761,7 +760,7 @@ class RemoteMonitorPeerInfoHandler implements PeerInfoHandler {
 
     private void setupLeaseTimeout(final int leaseId, long lease) {
 
-        timer.schedule(new TimerTask() {
+        timer.schedule(new ScheduledTask() {
                     public void run() {
                         LeaseInfo leaseInfo = (LeaseInfo) leaseInfos.get(new Integer(leaseId));
 
@@ -744,10 +744,7 @@ class PipeResolver implements SrdiInterface, InternalQueryHandler, SrdiHandler,
         SrdiMessage srdiMsg;
 
         try {
-            StructuredTextDocument asDoc = (StructuredTextDocument)
-                    StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(message.getPayload()));
-            
-            srdiMsg = new SrdiMessageImpl(asDoc);
+            srdiMsg = srdi.getSrdiMessage(message);
         } catch (Throwable e) {
             // we don't understand this msg, let's skip it
             if (LOG.isEnabledFor(Level.DEBUG)) {
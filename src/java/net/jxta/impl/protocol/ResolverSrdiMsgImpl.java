@@ -57,11 +57,15 @@ package net.jxta.impl.protocol;
 
 
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Enumeration;
 
 import net.jxta.credential.Credential;
 import net.jxta.document.*;
+import net.jxta.id.IDFactory;
 import net.jxta.membership.MembershipService;
+import net.jxta.peer.PeerID;
 import net.jxta.protocol.ResolverSrdiMsg;
 
 import org.apache.log4j.Level;
@@ -90,6 +94,21 @@ public class ResolverSrdiMsgImpl extends ResolverSrdiMsg {
      */
     public final static String payloadTag = "Payload";
 
+    /**
+     *  Payload attribute holding the encoding of a non-XML payload
+     */
+    public final static String payloadTypeAttr = "type";
+
+    /**
+     *  Element holding the PeerID of the sender
+     */
+    public final static String srcPidTag = "SrcPID";
+
+    /**
+     *  Element holding the payload encoding accepted by the sender
+     */
+    public final static String acceptTag = "Accept";
+
     /**
      *Constructor for the ResolverSrdiMsgImpl object
      */
@@ -162,6 +181,17 @@ public class ResolverSrdiMsgImpl extends ResolverSrdiMsg {
         }
         e = adv.createElement(payloadTag, getPayload());
         adv.appendChild(e);
+        if (getPayloadType() != null && e instanceof Attributable) {
+            ((Attributable) e).addAttribute(payloadTypeAttr, getPayloadType().toString());
+        }
+        if (getSrcPeerID() != null) {
+            e = adv.createElement(srcPidTag, getSrcPeerID().toString());
+            adv.appendChild(e);
+        }
+        if (getAccept() != null) {
+            e = adv.createElement(acceptTag, getAccept().toString());
+            adv.appendChild(e);
+        }
         return adv;
     }
 
@@ -201,6 +231,28 @@ public class ResolverSrdiMsgImpl extends ResolverSrdiMsg {
             // Set payload
             if (elem.getName().equals(payloadTag)) {
                 setPayload(elem.getTextValue());
+
+                Attribute type = elem.getAttribute(payloadTypeAttr);
+
+                if (type != null) {
+                    setPayloadType(new MimeMediaType(type.getValue()));
+                }
+                continue;
+            }
+
+            if (elem.getName().equals(srcPidTag)) {
+                try {
+                    setSrcPeerID((PeerID) IDFactory.fromURI(new URI(elem.getTextValue())));
+                } catch (URISyntaxException badID) {
+                    throw new IllegalArgumentException("Invalid source PeerID in message");
+                } catch (ClassCastException badID) {
+                    throw new IllegalArgumentException("Source ID is not a PeerID");
+                }
+                continue;
+            }
+
+            if (elem.getName().equals(acceptTag)) {
+                setAccept(new MimeMediaType(elem.getTextValue()));
                 continue;
             }
         }
@@ -56,12 +56,18 @@
 package net.jxta.impl.protocol;
 
 
+import java.io.BufferedReader;
 import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.net.URI;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -120,6 +126,41 @@ public class SrdiMessageImpl extends SrdiMessage {
      */
     public final static String expirationTag = "Expiration";
 
+    /**
+     *  Mime type of the compact encoding of SRDI messages.
+     *
+     *  <p/>The compact encoding is line oriented : the version, the peer id,
+     *  the primary key, the ttl, the number of distinct secondary keys
+     *  followed by the keys and one line per entry holding the index of its
+     *  key, its expiration and its value. It ends with a line holding a
+     *  single ".". Numbers are written in base 36, strings escaped so that
+     *  they fit on a line, "\N" stands for null.
+     *
+     *  <p/>The encoding is text so that it may be carried as the payload of
+     *  a resolver SRDI message and still be compressed with it.
+     */
+    public final static MimeMediaType COMPACT_MIME_TYPE = new MimeMediaType("text/x-jxta-srdi");
+
+    /**
+     *  Version of the compact encoding.
+     */
+    private final static String COMPACT_VERSION = "1";
+
+    /**
+     *  Last line of the compact encoding.
+     */
+    private final static String COMPACT_END = ".";
+
+    /**
+     *  Radix of the numbers of the compact encoding.
+     */
+    private final static int COMPACT_RADIX = 36;
+
+    /**
+     *  Largest key table accepted in the compact encoding.
+     */
+    private final static int MAX_COMPACT_KEYS = 65536;
+
     /**
      * Construct an empty doc
      */
@@ -242,6 +283,26 @@ public class SrdiMessageImpl extends SrdiMessage {
         setEntries(entries);
     }
 
+    /**
+     * Construct a msg from the payload of a resolver SRDI message
+     *
+     * @param  type     encoding of the payload, null for an XML document
+     * @param  payload  the payload
+     * @exception  IOException  if the payload cannot be decoded
+     */
+    public SrdiMessageImpl(MimeMediaType type, String payload) throws IOException {
+
+        if (type == null || type.equalsIngoringParams(MimeMediaType.XMLUTF8)) {
+            XMLDocument doc = (XMLDocument) StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(payload));
+
+            readIt(doc);
+        } else if (type.equalsIngoringParams(COMPACT_MIME_TYPE)) {
+            readCompact(new StringReader(payload));
+        } else {
+            throw new IOException("Unsupported SRDI payload type : " + type);
+        }
+    }
+
     /**
      * @param  doc
      */
@@ -355,6 +416,251 @@ public class SrdiMessageImpl extends SrdiMessage {
         return adv;
     }
 
+    /**
+     * Reads the compact encoding of a message
+     *
+     * @param  source  the encoded message
+     * @exception  IOException  if the encoding is invalid
+     */
+    public void readCompact(Reader source) throws IOException {
+
+        BufferedReader in = new BufferedReader(source);
+        String version = readLine(in);
+
+        if (!COMPACT_VERSION.equals(version)) {
+            throw new IOException("Unsupported SRDI encoding version : " + version);
+        }
+
+        try {
+            String peerid = unescape(readLine(in));
+
+            if (peerid != null) {
+                try {
+                    setPeerID((PeerID) IDFactory.fromURI(new URI(peerid)));
+                } catch (URISyntaxException badID) {
+                    throw new IllegalArgumentException("Invalid PeerID ID in message");
+                }
+            }
+            setPrimaryKey(unescape(readLine(in)));
+            setTTL(Integer.parseInt(readLine(in), COMPACT_RADIX));
+
+            int keyCount = Integer.parseInt(readLine(in), COMPACT_RADIX);
+
+            if (keyCount < 0 || keyCount > MAX_COMPACT_KEYS) {
+                throw new IOException("Invalid key count : " + keyCount);
+            }
+
+            // the count comes from the remote peer, the list grows as the keys are read.
+            List keys = new ArrayList();
+
+            for (int eachKey = 0; eachKey < keyCount; eachKey++) {
+                keys.add(unescape(readLine(in)));
+            }
+
+            String line;
+
+            while (!COMPACT_END.equals(line = readLine(in))) {
+                int keyEnd = line.indexOf(' ');
+                int expirationEnd = line.indexOf(' ', keyEnd + 1);
+
+                if (keyEnd < 0 || expirationEnd < 0) {
+                    throw new IOException("Invalid SRDI entry : " + line);
+                }
+
+                int keyIndex = Integer.parseInt(line.substring(0, keyEnd), COMPACT_RADIX);
+
+                if (keyIndex < 0 || keyIndex >= keys.size()) {
+                    throw new IOException("Invalid key index : " + keyIndex);
+                }
+
+                String key = (String) keys.get(keyIndex);
+                long expiration = Long.parseLong(line.substring(keyEnd + 1, expirationEnd), COMPACT_RADIX);
+                String value = unescape(line.substring(expirationEnd + 1));
+
+                if (null == value) {
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("SrdiMessage Entry with a Null value");
+                    }
+                    continue;
+                }
+                if (null == key) {
+                    key = "NA";
+                }
+                addEntry(new SrdiMessage.Entry(key, value, expiration));
+            }
+        } catch (NumberFormatException badNumber) {
+            IOException failure = new IOException("Invalid number in SRDI message");
+
+            failure.initCause(badNumber);
+            throw failure;
+        }
+    }
+
+    /**
+     * returns the compact encoding of this message
+     *
+     * @return    String compact encoding of this message
+     */
+    public String toCompactString() {
+
+        List entries = new ArrayList(getEntries());
+        Map keyIndexes = new HashMap();
+        List keys = new ArrayList();
+        Iterator eachEntry = entries.iterator();
+
+        while (eachEntry.hasNext()) {
+            SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+
+            if (entry.key == null && entry.value == null) {
+                // skip bad entries
+                eachEntry.remove();
+                continue;
+            }
+            if (!keyIndexes.containsKey(entry.key)) {
+                keyIndexes.put(entry.key, Integer.toString(keys.size(), COMPACT_RADIX));
+                keys.add(entry.key);
+            }
+        }
+
+        StringBuffer out = new StringBuffer(64 + 64 * entries.size());
+
+        out.append(COMPACT_VERSION).append('\n');
+        escape(out, (getPeerID() == null) ? null : getPeerID().toString());
+        escape(out, getPrimaryKey());
+        out.append(Integer.toString(getTTL(), COMPACT_RADIX)).append('\n');
+        out.append(Integer.toString(keys.size(), COMPACT_RADIX)).append('\n');
+
+        Iterator eachKey = keys.iterator();
+
+        while (eachKey.hasNext()) {
+            escape(out, (String) eachKey.next());
+        }
+
+        eachEntry = entries.iterator();
+        while (eachEntry.hasNext()) {
+            SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+
+            out.append((String) keyIndexes.get(entry.key)).append(' ');
+            out.append(Long.toString(entry.expiration, COMPACT_RADIX)).append(' ');
+            escape(out, entry.value);
+        }
+        out.append(COMPACT_END);
+
+        return out.toString();
+    }
+
+    /**
+     *  Reads a line of the compact encoding.
+     */
+    private static String readLine(BufferedReader in) throws IOException {
+        String line = in.readLine();
+
+        if (line == null) {
+            throw new IOException("Truncated SRDI message");
+        }
+        return line;
+    }
+
+    /**
+     *  Appends a string to the compact encoding as a line of its own.
+     */
+    private static void escape(StringBuffer out, String value) {
+        if (value == null) {
+            out.append("\\N\n");
+            return;
+        }
+
+        for (int each = 0; each < value.length(); each++) {
+            char c = value.charAt(each);
+
+            switch (c) {
+            case '\\':
+                out.append("\\\\");
+                break;
+
+            case '\n':
+                out.append("\\n");
+                break;
+
+            case '\r':
+                out.append("\\r");
+                break;
+
+            default:
+                if (c < 0x20) {
+                    String hex = Integer.toHexString(c);
+
+                    out.append("\\u00");
+                    if (hex.length() < 2) {
+                        out.append('0');
+                    }
+                    out.append(hex);
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('\n');
+    }
+
+    /**
+     *  Reverses {@link #escape}.
+     */
+    private static String unescape(String line) throws IOException {
+        if ("\\N".equals(line)) {
+            return null;
+        }
+        if (line.indexOf('\\') < 0) {
+            return line;
+        }
+
+        StringBuffer value = new StringBuffer(line.length());
+
+        for (int each = 0; each < line.length(); each++) {
+            char c = line.charAt(each);
+
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (++each == line.length()) {
+                throw new IOException("Invalid escape in SRDI message");
+            }
+
+            c = line.charAt(each);
+            switch (c) {
+            case '\\':
+                value.append('\\');
+                break;
+
+            case 'n':
+                value.append('\n');
+                break;
+
+            case 'r':
+                value.append('\r');
+                break;
+
+            case 'u':
+                if (each + 4 >= line.length()) {
+                    throw new IOException("Invalid escape in SRDI message");
+                }
+                try {
+                    value.append((char) Integer.parseInt(line.substring(each + 1, each + 5), 16));
+                } catch (NumberFormatException badEscape) {
+                    throw new IOException("Invalid escape in SRDI message");
+                }
+                each += 4;
+                break;
+
+            default:
+                throw new IOException("Invalid escape in SRDI message");
+            }
+        }
+
+        return value.toString();
+    }
+
     /**
      * returns the document string representation of this object
      *
@@ -292,8 +292,7 @@ public class ProxyService implements Service,
             // This changes should be pulled out as soon as ERM is implemented
             // in a more inteligent and effective way so that it doesn't
             // have any impact on JXME peers.
-            EndpointAddress relayAddr = srcAddr;
-            relayAddr.setProtocolName("relay");
+            EndpointAddress relayAddr = new EndpointAddress("relay", srcAddr.getProtocolAddress(), srcAddr.getServiceName(), srcAddr.getServiceParameter());
             requestor = Requestor.createRequestor(group, message, relayAddr);
         } catch (IOException e) {
             if (LOG.isEnabledFor(Level.WARN)) {
@@ -56,19 +56,15 @@
 package net.jxta.impl.rendezvous;
 
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Vector;
 
 import java.io.IOException;
@@ -111,8 +107,11 @@ import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousMeterBuildSettings;
 import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousServiceMonitor;
 import net.jxta.impl.rendezvous.rpv.PeerView;
 import net.jxta.impl.rendezvous.rpv.PeerViewElement;
+import net.jxta.impl.rendezvous.rpv.PeerViewListener;
+import net.jxta.impl.util.DuplicateFilter;
+import net.jxta.impl.util.ScheduledTask;
+import net.jxta.impl.util.SharedTimer;
 import net.jxta.impl.util.TimeUtils;
-import net.jxta.impl.util.TimerThreadNamer;
 
 
 /**
@@ -136,6 +135,19 @@ public final class RendezVousServiceImpl implements RendezVousService {
     private static final long DEMOTION_MIN_CLIENT_COUNT = 3;
     protected static final int MAX_MSGIDS = 1000;
 
+    /**
+     *  System property which overrides the number of propagated message ids
+     *  remembered for duplicate detection.
+     */
+    private static final String MSGIDS_CAPACITY_PROPERTY = RendezVousServiceImpl.class.getName() + ".msgIdCapacity";
+
+    /**
+     *  System property which sets the time in milliseconds after which a
+     *  propagated message id is forgotten. By default message ids are
+     *  remembered until displaced.
+     */
+    private static final String MSGIDS_EXPIRY_PROPERTY = RendezVousServiceImpl.class.getName() + ".msgIdExpiry";
+
     private final static Random random = new Random();
 
     private PeerGroup group = null;
@@ -147,7 +159,7 @@ public final class RendezVousServiceImpl implements RendezVousService {
 
     private RendezvousServiceMonitor rendezvousServiceMonitor;
 
-    private final Timer timer = new Timer(true);
+    private SharedTimer timer = null;
     private RdvWatchdogTask autoRdvTask = null;
 
     private long rdv_watchdog_interval = 5 * TimeUtils.AMINUTE; // 5 Minutes
@@ -155,13 +167,23 @@ public final class RendezVousServiceImpl implements RendezVousService {
     private final Set eventListeners = Collections.synchronizedSet(new HashSet());
     private final Map propListeners = new HashMap();
 
+    /**
+     *  The listeners for the events of the peer view, added to each peer
+     *  view as it is created.
+     */
+    private final Set peerViewListeners = Collections.synchronizedSet(new HashSet());
+
     /**
      *  The peer view for this peer group.
      */
     public volatile PeerView rpv = null;
 
-    private final List msgIds = new ArrayList(MAX_MSGIDS);
-    private int messagesReceived;
+    /**
+     *  The ids of recently propagated messages.
+     */
+    private final DuplicateFilter msgIds = new DuplicateFilter(
+            Integer.getInteger(MSGIDS_CAPACITY_PROPERTY, MAX_MSGIDS).intValue(),
+            Long.getLong(MSGIDS_EXPIRY_PROPERTY, 0).longValue());
 
     private RdvConfigAdv.RendezVousConfiguration config = RdvConfigAdv.RendezVousConfiguration.EDGE;
     private boolean autoRendezvous = false;
@@ -264,7 +286,7 @@ public final class RendezVousServiceImpl implements RendezVousService {
         this.assignedID = assignedID;
         this.implAdvertisement = (ModuleImplAdvertisement) impl;
 
-        timer.schedule(new TimerThreadNamer("RendezVousServiceImpl Timer for " + group.getPeerGroupID()), 0);
+        timer = new SharedTimer("RendezVousServiceImpl Timer for " + group.getPeerGroupID());
 
         advGroup = g.getParentGroup();
 
@@ -371,6 +393,12 @@ public final class RendezVousServiceImpl implements RendezVousService {
         if (RdvConfigAdv.RendezVousConfiguration.AD_HOC != config) {
             rpv = new PeerView(group, advGroup, this, getAssignedID().toString() + group.getPeerGroupID().getUniqueValue().toString());
 
+            Iterator eachListener = Arrays.asList(peerViewListeners.toArray()).iterator();
+
+            while (eachListener.hasNext()) {
+                rpv.addListener((PeerViewListener) eachListener.next());
+            }
+
             rpv.start();
         }
 
@@ -967,6 +995,38 @@ public final class RendezVousServiceImpl implements RendezVousService {
         return eventListeners.remove(listener);
     }
 
+    /**
+     *  Adds a listener for the events of the peer view. The listener remains
+     *  registered should the peer view be created anew.
+     *
+     *  @param listener the listener
+     */
+    public final void addPeerViewListener(PeerViewListener listener) {
+
+        peerViewListeners.add(listener);
+
+        PeerView currView = rpv;
+        if (null != currView) {
+            currView.addListener(listener);
+        }
+    }
+
+    /**
+     *  Removes a listener added with addPeerViewListener.
+     *
+     *  @param listener the listener
+     *  @return whether the listener was registered
+     */
+    public final boolean removePeerViewListener(PeerViewListener listener) {
+
+        PeerView currView = rpv;
+        if (null != currView) {
+            currView.removeListener(listener);
+        }
+
+        return peerViewListeners.remove(listener);
+    }
+
     /**
      *  Creates a rendezvous event and sends it to all registered listeners.
      */
@@ -1017,7 +1077,7 @@ public final class RendezVousServiceImpl implements RendezVousService {
     /**
      * Edge Peer mode connection watchdog.
      */
-    private class RdvWatchdogTask extends TimerTask {
+    private class RdvWatchdogTask extends ScheduledTask {
 
         /**
          *  {@inheritDoc}
@@ -1065,11 +1125,7 @@ public final class RendezVousServiceImpl implements RendezVousService {
 
     public boolean isMsgIdRecorded(UUID id) {
 
-        boolean found;
-
-        synchronized (msgIds) {
-            found = msgIds.contains(id);
-        }
+        boolean found = msgIds.contains(id);
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug(id + " = " + found);
@@ -1086,19 +1142,9 @@ public final class RendezVousServiceImpl implements RendezVousService {
      */
     public boolean addMsgId(UUID id) {
 
-        synchronized (msgIds) {
-            if (isMsgIdRecorded(id)) {
-                // Already there. Nothing to do
-                return false;
-            }
-
-            if (msgIds.size() < MAX_MSGIDS) {
-                msgIds.add(id);
-            } else {
-                msgIds.set((messagesReceived % MAX_MSGIDS), id);
-            }
-
-            messagesReceived++;
+        if (!msgIds.add(id)) {
+            // Already there. Nothing to do
+            return false;
         }
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -76,6 +76,7 @@ import net.jxta.rendezvous.RendezvousListener;
 import net.jxta.service.Service;
 
 import net.jxta.impl.rendezvous.rpv.PeerView;
+import net.jxta.impl.rendezvous.rpv.PeerViewListener;
 
 /**
  * This class implements the RendezVousService interface.
@@ -270,6 +271,26 @@ public class RendezVousServiceInterface implements RendezVousService {
         return impl.removeListener(listener);
     }
     
+    /**
+     *  Adds a listener for the events of the peer view.
+     *
+     *  @see RendezVousServiceImpl#addPeerViewListener(PeerViewListener)
+     **/
+    public void addPeerViewListener(PeerViewListener listener) {
+        
+        impl.addPeerViewListener(listener);
+    }
+    
+    /**
+     *  Removes a listener for the events of the peer view.
+     *
+     *  @see RendezVousServiceImpl#removePeerViewListener(PeerViewListener)
+     **/
+    public boolean removePeerViewListener(PeerViewListener listener) {
+        
+        return impl.removePeerViewListener(listener);
+    }
+    
     /**
      *  {@inheritDoc}
      **/
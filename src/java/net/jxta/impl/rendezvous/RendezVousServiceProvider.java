@@ -83,6 +83,8 @@ import net.jxta.id.IDFactory;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.protocol.PeerAdvertisement;
 
+import net.jxta.impl.endpoint.ConsumingEndpointListener;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 import net.jxta.impl.id.UUID.UUID;
 import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousMeter;
 import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousMeterBuildSettings;
@@ -97,7 +99,7 @@ import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousServiceMonitor;
  * synchronization. The RendezvousServiceImpl provides synchronization control
  * only only those methods which involve changing the active provider.
  */
-public abstract class RendezVousServiceProvider implements EndpointListener {
+public abstract class RendezVousServiceProvider implements ConsumingEndpointListener {
     
     /**
      *  Log4J Category
@@ -507,6 +509,13 @@ public abstract class RendezVousServiceProvider implements EndpointListener {
     protected void processReceivedMessage(Message message, RendezVousPropagateMessage propHdr, EndpointAddress srcAddr, EndpointAddress dstAddr) {
         
         EndpointListener listener = rdvService.getListener(dstAddr.getServiceName() + dstAddr.getServiceParameter());
+        boolean repropagate = rdvService.isRendezVous() || (listener == null);
+        
+        // The message outlives this call if it is repropagated or if the
+        // listener does not say that it is done with it upon return.
+        if (repropagate || !(listener instanceof ConsumingEndpointListener)) {
+            WireFormatMessageBinary.keepBuffers(message);
+        }
         
         if (listener != null) {
             // We have a local listener for this message.
@@ -531,7 +540,7 @@ public abstract class RendezVousServiceProvider implements EndpointListener {
             }
         }
         
-        if (rdvService.isRendezVous() || (listener == null)) {
+        if (repropagate) {
             // We do not have a local listener. Repropagate it.
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Repropagating " + message + " (" + propHdr.getMsgId() + ")");
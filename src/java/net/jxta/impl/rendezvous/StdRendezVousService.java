@@ -61,7 +61,6 @@ package net.jxta.impl.rendezvous;
 import java.net.URI;
 import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.Timer;
 import java.util.Iterator;
 import java.util.List;
 
@@ -90,8 +89,8 @@ import net.jxta.protocol.RouteAdvertisement;
 
 import net.jxta.impl.rendezvous.rpv.PeerViewElement;
 import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousMeterBuildSettings;
+import net.jxta.impl.util.SharedTimer;
 import net.jxta.impl.util.TimeUtils;
-import net.jxta.impl.util.TimerThreadNamer;
 
 
 /**
@@ -130,7 +129,7 @@ public abstract class StdRendezVousService extends RendezVousServiceProvider {
      **/
     private StdRdvProtocolListener      handler;
     
-    protected final Timer               timer;
+    protected final SharedTimer         timer;
     
     /**
      *  Interface for listeners to : &lt;assignedID>/<group-unique>
@@ -149,8 +148,7 @@ public abstract class StdRendezVousService extends RendezVousServiceProvider {
         pName = rdvService.getAssignedID().toString();
         pParam = group.getPeerGroupID().getUniqueValue().toString();
         
-        timer = new Timer(true);
-        timer.schedule(new TimerThreadNamer("StdRendezVousService Timer for " + group.getPeerGroupID()), 0);
+        timer = new SharedTimer("StdRendezVousService Timer for " + group.getPeerGroupID());
     }
     
     /**
@@ -69,7 +69,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
-import java.util.TimerTask;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -106,6 +105,7 @@ import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousMeterBuildSettings;
 import net.jxta.impl.rendezvous.rpv.PeerViewElement;
 import net.jxta.impl.rendezvous.rpv.PeerViewListener;
 import net.jxta.impl.rendezvous.rpv.PeerViewEvent;
+import net.jxta.impl.util.ScheduledTask;
 import net.jxta.impl.util.TimeUtils;
 
 
@@ -994,7 +994,7 @@ public class EdgePeerRdvService extends StdRendezVousService implements PeerView
      *  <p/>Checks leases, challenges when peer adv has changed, initiates
      *  lease renewals, starts new lease requests.
      **/
-    private class MonitorTask extends TimerTask {
+    private class MonitorTask extends ScheduledTask {
         
         /**
          *  @inheritDoc
@@ -63,7 +63,6 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Vector;
-import java.util.TimerTask;
 import java.util.List;
 
 import java.io.IOException;
@@ -103,6 +102,7 @@ import net.jxta.impl.rendezvous.StdRendezVousService;
 import net.jxta.impl.rendezvous.limited.LimitedRangeWalk;
 import net.jxta.impl.rendezvous.rendezvousMeter.ClientConnectionMeter;
 import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousMeterBuildSettings;
+import net.jxta.impl.util.ScheduledTask;
 import net.jxta.impl.util.TimeUtils;
 
 
@@ -818,7 +818,7 @@ public class RdvPeerRdvService extends StdRendezVousService {
     /**
      *  Periodic cleanup task
      **/
-    private class GCTask extends TimerTask {
+    private class GCTask extends ScheduledTask {
         
         /**
          *  {@inheritDoc
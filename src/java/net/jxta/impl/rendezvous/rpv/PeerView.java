@@ -75,8 +75,6 @@ import java.util.ListIterator;
 import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeSet;
 
 import java.io.IOException;
@@ -126,8 +124,9 @@ import net.jxta.impl.config.Config;
 import net.jxta.impl.endpoint.relay.RelayClient;
 import net.jxta.impl.protocol.RdvConfigAdv;
 import net.jxta.impl.rendezvous.RendezVousServiceImpl;
+import net.jxta.impl.util.ScheduledTask;
+import net.jxta.impl.util.SharedTimer;
 import net.jxta.impl.util.TimeUtils;
-import net.jxta.impl.util.TimerThreadNamer;
 
 
 /**
@@ -331,38 +330,17 @@ public final class PeerView implements EndpointListener, RendezvousListener {
     private long nextSeedingURIrefreshTime = 0;
     
     /**
-     * A single timer is used to periodically kick each PeerView
-     * into activity. For the Random PeerView, this activity consists
-     * of selecting a PeerViewElement at random from its view and
-     * sending it across to a randomly-selected peer from its view.
+     * The timer used to periodically kick the PeerView into activity. For
+     * the Random PeerView, this activity consists of selecting a
+     * PeerViewElement at random from its view and sending it across to a
+     * randomly-selected peer from its view.
      *
-     * <p/>FIXME 20021121 lomax
-     *
-     * <p/>The original idea of using a common timer in order to save threads IS a
-     * very good idea. However, limitations, and actually, bugs, in java.util.Timer
-     * creates the following problems when using a static Timer:
-     *
-     *  <ul>
-     *  <li>Memory Leak: Cancelling a TimerTask does not remove it from the
-     *     execution queue of the Timer until the Timer is cancelled or the
-     *     TimerTask is fired. Since most of the TimerTasks are inner classes
-     *     this can mean that the PeerView is held around for a long time.</li>
-     *
-     *  <li>java.util.Timer is not only not real-time (which is more or less fine
-     *     for the PeerView, but it sequentially invokes tasks (only one Thread
-     *     per Timer). As a result, tasks that takes a long time to run delays
-     *     other tasks.</li>
-     *  </ul>
-     *
-     * <p/>The PeerView would function better with a better Timer, but JDK does
-     * not provide a standard timer that would fullfill the needs of the
-     * PeerView. Maybe we should implement a JXTA Timer, since lots of the JXTA
-     * services, by being very asynchronous, rely on the same kind of timer
-     * semantics as the PeerView. Until then, creating a Timer per instance of
-     * the PeerView (i.e. per instance of joined PeerGroup) is the best
-     * workaround.
+     * <p/>The timer shares the JXTA timer threads with the other services.
+     * Cancelled tasks are removed from the timer immediately so they no
+     * longer keep the PeerView referenced and a slow task no longer delays
+     * all the other tasks.
      **/
-    private final Timer timer;
+    private final SharedTimer timer;
     
     /**
      * A random number generator.
@@ -497,8 +475,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
         
         this.uniqueGroupId = group.getPeerGroupID().getUniqueValue().toString();
         
-        timer = new Timer(true);
-        timer.schedule(new TimerThreadNamer("PeerView Timer for " + group.getPeerGroupID()), 0);
+        timer = new SharedTimer("PeerView Timer for " + group.getPeerGroupID());
         
         ConfigParams confAdv = group.getConfigAdvertisement();
         
@@ -985,7 +962,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
                 
                 while (eachTask.hasNext()) {
                     try {
-                        TimerTask task = (TimerTask) eachTask.next();
+                        ScheduledTask task = (ScheduledTask) eachTask.next();
                         
                         task.cancel();
                         eachTask.remove();
@@ -1012,7 +989,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
         }
     }
     
-    protected void addTask(TimerTask task, long delay, long interval) {
+    protected void addTask(ScheduledTask task, long delay, long interval) {
         
         synchronized (scheduledTasks) {
             if (scheduledTasks.contains(task)) {
@@ -1031,7 +1008,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
         }
     }
     
-    protected void removeTask(TimerTask task) {
+    protected void removeTask(ScheduledTask task) {
         scheduledTasks.remove(task);
     }
     
@@ -1239,7 +1216,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
      * Service, and since updateStatus is invoked this work must happen in
      * background, giving a chance to other services to be started.
      **/
-    private class OpenPipesTask extends TimerTask {
+    private class OpenPipesTask extends ScheduledTask {
         
         /**
          *  {@inheritDoc}
@@ -1497,7 +1474,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
     }
     
     /**
-     * Invoked by the Timer thread to cause each PeerView to initiate
+     * Invoked by the timer to cause each PeerView to initiate
      * a Peer Advertisement exchange.
      */
     private void kick() {
@@ -2083,7 +2060,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
             return;
         }
         
-        TimerTask task = new AdvertisingGroupQueryTask();
+        ScheduledTask task = new AdvertisingGroupQueryTask();
         
         addTask(task, delay, -1);
     }
@@ -2091,7 +2068,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
     /**
      * Class implementing the query request on the AdvertisingGroup
      **/
-    private final class AdvertisingGroupQueryTask extends TimerTask {
+    private final class AdvertisingGroupQueryTask extends ScheduledTask {
         
         /**
          *  {@inheritDoc}
@@ -2358,7 +2335,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
     /**
      * A task that checks on upPeer and downPeer.
      **/
-    private final class WatchdogTask extends TimerTask {
+    private final class WatchdogTask extends ScheduledTask {
         
         WatchdogTask() {
         }
@@ -2522,7 +2499,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
     /**
      * Class implementing the kicker
      **/
-    private final class KickerTask extends TimerTask {
+    private final class KickerTask extends ScheduledTask {
         
         /**
          *  {@inheritDoc}
@@ -2575,10 +2552,10 @@ public final class PeerView implements EndpointListener, RendezvousListener {
     }
     
     /**
-     * Class implementing the TimerTask that tries to send an advertisement
+     * Class implementing the ScheduledTask that tries to send an advertisement
      * to a remote peer, in background.
      **/
-    private final class TimedSendTask extends TimerTask {
+    private final class TimedSendTask extends ScheduledTask {
         
         private final PeerViewElement pve;
         private PeerViewElement destpve = null;
@@ -108,6 +108,8 @@ import net.jxta.resolver.ResolverService;
 import net.jxta.resolver.SrdiHandler;
 import net.jxta.service.Service;
 
+import net.jxta.impl.endpoint.ConsumingEndpointListener;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 import net.jxta.impl.endpoint.router.EndpointRouter;
 import net.jxta.impl.endpoint.router.RouteControl;
 import net.jxta.impl.meter.MonitorManager;
@@ -1132,7 +1134,7 @@ public class ResolverServiceImpl implements ResolverService {
     /**
      *   Inner class to handle incoming queries
      */
-    private class DemuxQuery implements EndpointListener {
+    private class DemuxQuery implements ConsumingEndpointListener {
 
         /**
          * {@inheritDoc}
@@ -1192,6 +1194,8 @@ public class ResolverServiceImpl implements ResolverService {
                     LOG.debug("Repropagating query " +  message + " from " + srcAddr);
                 }
 
+                // The message is sent on, possibly from a messenger queue.
+                WireFormatMessageBinary.keepBuffers(message);
                 repropagateQuery(message, query);
             }
         }
@@ -1201,7 +1205,7 @@ public class ResolverServiceImpl implements ResolverService {
     /**
      * Inner class to handle incoming responses
      */
-    private class DemuxResponse implements EndpointListener {
+    private class DemuxResponse implements ConsumingEndpointListener {
 
         /**
          *  @inheritDoc
@@ -1261,7 +1265,7 @@ public class ResolverServiceImpl implements ResolverService {
     /**
      *  Inner class to handle SRDI messages
      */
-    private class DemuxSrdi implements EndpointListener {
+    private class DemuxSrdi implements ConsumingEndpointListener {
 
         /**
          *  @inheritDoc
@@ -0,0 +1,296 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+/**
+ *  A pool of reusable byte arrays organized by size class. Each size class is
+ *  a power of two between {@link #MIN_CLASS_SIZE} and the maximum size given
+ *  to the constructor. Requests larger than the largest size class are
+ *  allocated directly and never pooled.
+ *
+ *  <p/>Arrays returned by {@link #allocate(int)} may be longer than requested
+ *  and are not cleared. Callers must keep track of how much of the array they
+ *  actually use. Returning an array with {@link #release(byte[])} is optional;
+ *  an array which is never released is simply reclaimed by the garbage
+ *  collector. An array must not be used after it has been released.
+ *
+ *  <p/>Each size class is separately synchronized so that contention is
+ *  limited to users of buffers of similar size.
+ **/
+public final class BufferPool {
+    
+    /**
+     *  The size of the smallest size class.
+     **/
+    public static final int MIN_CLASS_SIZE = 256;
+    
+    /**
+     *  The default maximum pooled buffer size.
+     **/
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+    
+    /**
+     *  The default maximum number of idle buffers retained per size class.
+     **/
+    public static final int DEFAULT_BUFFERS_PER_CLASS = 32;
+    
+    /**
+     *  A shared pool with the default settings.
+     **/
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_SIZE, DEFAULT_BUFFERS_PER_CLASS);
+    
+    /**
+     *  The idle buffers of a single size class.
+     **/
+    private static final class SizeClass {
+        final int size;
+        final byte[][] idle;
+        int count = 0;
+        
+        SizeClass(int size, int maxIdle) {
+            this.size = size;
+            idle = new byte[maxIdle][];
+        }
+    }
+    
+    private final SizeClass[] classes;
+    
+    private final int maxSize;
+    
+    /*
+     *  Statistics. These are updated without synchronization and are thus
+     *  approximate.
+     */
+    private volatile long allocations = 0;
+    private volatile long hits = 0;
+    private volatile long unpooled = 0;
+    private volatile long releases = 0;
+    private volatile long discards = 0;
+    
+    /**
+     *  Returns the shared buffer pool.
+     *
+     *  @return the shared buffer pool.
+     **/
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+    
+    /**
+     *  Create a new buffer pool.
+     *
+     *  @param maxSize the size of the largest buffer which will be pooled.
+     *  Rounded up to a power of two.
+     *  @param buffersPerClass the maximum number of idle buffers retained for
+     *  each size class.
+     **/
+    public BufferPool(int maxSize, int buffersPerClass) {
+        if (maxSize < MIN_CLASS_SIZE) {
+            throw new IllegalArgumentException("maxSize must be at least " + MIN_CLASS_SIZE);
+        }
+        
+        if (buffersPerClass < 0) {
+            throw new IllegalArgumentException("buffersPerClass must not be negative");
+        }
+        
+        int nClasses = classIndex(maxSize) + 1;
+        
+        classes = new SizeClass[nClasses];
+        for (int eachClass = 0; eachClass < nClasses; eachClass++) {
+            classes[eachClass] = new SizeClass(MIN_CLASS_SIZE << eachClass, buffersPerClass);
+        }
+        
+        this.maxSize = classes[nClasses - 1].size;
+    }
+    
+    /**
+     *  Returns the index of the smallest size class which can hold the
+     *  specified number of bytes.
+     **/
+    private static int classIndex(int size) {
+        int index = 0;
+        int classSize = MIN_CLASS_SIZE;
+        
+        while (classSize < size) {
+            classSize <<= 1;
+            index++;
+        }
+        
+        return index;
+    }
+    
+    /**
+     *  Returns a byte array of at least the specified length. The contents of
+     *  the array are undefined.
+     *
+     *  @param minSize the minimum length of the array.
+     *  @return a byte array of at least <code>minSize</code> bytes.
+     **/
+    public byte[] allocate(int minSize) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("negative size");
+        }
+        
+        allocations++;
+        
+        if (minSize > maxSize) {
+            unpooled++;
+            return new byte[minSize];
+        }
+        
+        SizeClass sizeClass = classes[classIndex(minSize)];
+        
+        synchronized (sizeClass) {
+            if (sizeClass.count > 0) {
+                sizeClass.count--;
+                byte[] result = sizeClass.idle[sizeClass.count];
+                sizeClass.idle[sizeClass.count] = null;
+                hits++;
+                return result;
+            }
+        }
+        
+        return new byte[sizeClass.size];
+    }
+    
+    /**
+     *  Return a byte array to the pool. Arrays which were not allocated from
+     *  this pool, or which would overflow their size class, are left for the
+     *  garbage collector.
+     *
+     *  @param buffer the array to return. May be <code>null</code>.
+     **/
+    public void release(byte[] buffer) {
+        if ((null == buffer) || (buffer.length < MIN_CLASS_SIZE) || (buffer.length > maxSize)) {
+            return;
+        }
+        
+        int index = classIndex(buffer.length);
+        SizeClass sizeClass = classes[index];
+        
+        if (sizeClass.size != buffer.length) {
+            // Not one of ours.
+            return;
+        }
+        
+        releases++;
+        
+        synchronized (sizeClass) {
+            if (sizeClass.count < sizeClass.idle.length) {
+                sizeClass.idle[sizeClass.count++] = buffer;
+                return;
+            }
+        }
+        
+        discards++;
+    }
+    
+    /**
+     *  Returns the number of calls to {@link #allocate(int)}.
+     *
+     *  @return the number of allocations.
+     **/
+    public long getAllocations() {
+        return allocations;
+    }
+    
+    /**
+     *  Returns the number of allocations which were satisfied with an idle
+     *  buffer.
+     *
+     *  @return the number of allocations which reused a buffer.
+     **/
+    public long getHits() {
+        return hits;
+    }
+    
+    /**
+     *  Returns the number of allocations which were too large to be pooled.
+     *
+     *  @return the number of allocations which were too large to be pooled.
+     **/
+    public long getUnpooled() {
+        return unpooled;
+    }
+    
+    /**
+     *  Returns the number of buffers returned to the pool.
+     *
+     *  @return the number of buffers returned to the pool.
+     **/
+    public long getReleases() {
+        return releases;
+    }
+    
+    /**
+     *  Returns the number of returned buffers which were discarded because
+     *  their size class was full.
+     *
+     *  @return the number of discarded buffers.
+     **/
+    public long getDiscards() {
+        return discards;
+    }
+    
+    /**
+     *  {@inheritDoc}
+     **/
+    public String toString() {
+        return "BufferPool(max=" + maxSize + ") allocations=" + allocations + " hits=" + hits + " unpooled=" + unpooled + " releases=" + releases + " discards=" + discards;
+    }
+}
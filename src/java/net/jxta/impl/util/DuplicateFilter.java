@@ -0,0 +1,306 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Remembers recently seen identifiers, typically message ids, so that
+ *  duplicates can be detected in constant time. At most <code>capacity</code>
+ *  identifiers are remembered; when full the oldest identifier is forgotten.
+ *  Optionally identifiers are also forgotten once they are older than a fixed
+ *  expiry time.
+ *
+ *  <p/>The identifiers are divided amongst a number of independently locked
+ *  stripes according to their hash code so that threads checking different
+ *  identifiers rarely contend.
+ **/
+public final class DuplicateFilter {
+    
+    /**
+     *  The default number of stripes.
+     **/
+    public static final int DEFAULT_STRIPES = 16;
+    
+    /**
+     *  A remembered identifier.
+     **/
+    private static final class Entry {
+        Object id;
+        long recorded;
+    }
+    
+    /**
+     *  A portion of the filter. Identifiers are kept in a hash map for lookup
+     *  and in a ring in the order they were recorded for eviction.
+     **/
+    private static final class Stripe {
+        final Map ids;
+        final Entry[] ring;
+        int head = 0;
+        int count = 0;
+        
+        Stripe(int capacity) {
+            ids = new HashMap(capacity * 2);
+            ring = new Entry[capacity];
+        }
+    }
+    
+    private final Stripe[] stripes;
+    
+    private final int capacity;
+    
+    private final long expiry;
+    
+    /**
+     *  Create a new duplicate filter with the default number of stripes.
+     *
+     *  @param capacity the maximum number of identifiers to remember.
+     *  @param expiry the time in milliseconds after which identifiers are
+     *  forgotten or zero to remember identifiers until they are displaced.
+     **/
+    public DuplicateFilter(int capacity, long expiry) {
+        this(capacity, expiry, DEFAULT_STRIPES);
+    }
+    
+    /**
+     *  Create a new duplicate filter.
+     *
+     *  @param capacity the maximum number of identifiers to remember.
+     *  @param expiry the time in milliseconds after which identifiers are
+     *  forgotten or zero to remember identifiers until they are displaced.
+     *  @param nStripes the number of independently locked stripes.
+     **/
+    public DuplicateFilter(int capacity, long expiry, int nStripes) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        
+        if (expiry < 0) {
+            throw new IllegalArgumentException("expiry must not be negative");
+        }
+        
+        if (nStripes < 1) {
+            throw new IllegalArgumentException("nStripes must be positive");
+        }
+        
+        nStripes = Math.min(nStripes, capacity);
+        
+        stripes = new Stripe[nStripes];
+        
+        for (int eachStripe = 0; eachStripe < nStripes; eachStripe++) {
+            // spread any remainder over the first stripes.
+            int stripeCapacity = (capacity / nStripes) + ((eachStripe < (capacity % nStripes)) ? 1 : 0);
+            
+            stripes[eachStripe] = new Stripe(stripeCapacity);
+        }
+        
+        this.capacity = capacity;
+        this.expiry = expiry;
+    }
+    
+    /**
+     *  Returns the stripe responsible for the identifier.
+     **/
+    private Stripe getStripe(Object id) {
+        int hash = id.hashCode();
+        
+        hash ^= (hash >>> 16);
+        hash ^= (hash >>> 7);
+        
+        return stripes[(hash & 0x7FFFFFFF) % stripes.length];
+    }
+    
+    /**
+     *  Returns <tt>true</tt> if the entry has expired.
+     **/
+    private boolean isExpired(Entry entry, long now) {
+        return (0 != expiry) && (TimeUtils.toRelativeTimeMillis(now, entry.recorded) >= expiry);
+    }
+    
+    /**
+     *  Returns <tt>true</tt> if the identifier has been recorded and has not
+     *  been forgotten.
+     *
+     *  @param id the identifier.
+     *  @return <tt>true</tt> if the identifier is remembered.
+     **/
+    public boolean contains(Object id) {
+        Stripe stripe = getStripe(id);
+        
+        synchronized (stripe) {
+            Entry entry = (Entry) stripe.ids.get(id);
+            
+            return (null != entry) && ((0 == expiry) || !isExpired(entry, TimeUtils.timeNow()));
+        }
+    }
+    
+    /**
+     *  Record an identifier unless it is already remembered.
+     *
+     *  @param id the identifier.
+     *  @return <tt>true</tt> if the identifier was recorded, <tt>false</tt>
+     *  if it was already remembered (a duplicate).
+     **/
+    public boolean add(Object id) {
+        Stripe stripe = getStripe(id);
+        long now = (0 == expiry) ? 0 : TimeUtils.timeNow();
+        
+        synchronized (stripe) {
+            Entry[] ring = stripe.ring;
+            
+            // forget anything which has expired. The ring is in the order the
+            // identifiers were recorded so an expired identifier is always
+            // forgotten here and is then recorded again at the tail.
+            while ((stripe.count > 0) && isExpired(ring[stripe.head], now)) {
+                stripe.ids.remove(ring[stripe.head].id);
+                stripe.head = (stripe.head + 1) % ring.length;
+                stripe.count--;
+            }
+            
+            if (stripe.ids.containsKey(id)) {
+                return false;
+            }
+            
+            int tail = (stripe.head + stripe.count) % ring.length;
+            
+            if (stripe.count == ring.length) {
+                // full, forget the oldest.
+                stripe.ids.remove(ring[tail].id);
+                stripe.head = (stripe.head + 1) % ring.length;
+                stripe.count--;
+            }
+            
+            Entry entry = ring[tail];
+            
+            if (null == entry) {
+                entry = new Entry();
+                ring[tail] = entry;
+            }
+            
+            entry.id = id;
+            entry.recorded = now;
+            
+            stripe.ids.put(id, entry);
+            stripe.count++;
+        }
+        
+        return true;
+    }
+    
+    /**
+     *  Forget all identifiers.
+     **/
+    public void clear() {
+        for (int eachStripe = 0; eachStripe < stripes.length; eachStripe++) {
+            Stripe stripe = stripes[eachStripe];
+            
+            synchronized (stripe) {
+                stripe.ids.clear();
+                
+                for (int eachEntry = 0; eachEntry < stripe.ring.length; eachEntry++) {
+                    if (null != stripe.ring[eachEntry]) {
+                        stripe.ring[eachEntry].id = null;
+                    }
+                }
+                
+                stripe.head = 0;
+                stripe.count = 0;
+            }
+        }
+    }
+    
+    /**
+     *  Returns the number of identifiers currently remembered. Identifiers
+     *  which have expired but have not yet been purged are included.
+     *
+     *  @return the number of identifiers currently remembered.
+     **/
+    public int size() {
+        int size = 0;
+        
+        for (int eachStripe = 0; eachStripe < stripes.length; eachStripe++) {
+            Stripe stripe = stripes[eachStripe];
+            
+            synchronized (stripe) {
+                size += stripe.count;
+            }
+        }
+        
+        return size;
+    }
+    
+    /**
+     *  Returns the maximum number of identifiers remembered.
+     *
+     *  @return the maximum number of identifiers remembered.
+     **/
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     *  Returns the time after which identifiers are forgotten.
+     *
+     *  @return the expiry time in milliseconds or zero for no expiry.
+     **/
+    public long getExpiry() {
+        return expiry;
+    }
+}
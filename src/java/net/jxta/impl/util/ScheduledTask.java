@@ -0,0 +1,164 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.util.TimerTask;
+
+/**
+ *  A task which may be scheduled for one-time or repeated execution by a
+ *  {@link SharedTimer}. The class extends {@link java.util.TimerTask} so that
+ *  existing tasks may be migrated by changing only their superclass, but unlike
+ *  a task scheduled on a {@link java.util.Timer}, cancelling a scheduled task
+ *  immediately removes it from the timer.
+ *
+ *  @see TimerWheel
+ **/
+public abstract class ScheduledTask extends TimerTask {
+    
+    /**
+     *  The task has not yet been scheduled.
+     **/
+    static final int VIRGIN = 0;
+    
+    /**
+     *  The task is scheduled for execution.
+     **/
+    static final int SCHEDULED = 1;
+    
+    /**
+     *  The task was a one-time task and has been executed.
+     **/
+    static final int EXECUTED = 2;
+    
+    /**
+     *  The task has been cancelled.
+     **/
+    static final int CANCELLED = 3;
+    
+    /*
+     *  Except for the wheel, which is set only once, the following fields are
+     *  owned by the wheel and are accessed only while holding its lock.
+     */
+    
+    int state = VIRGIN;
+    
+    volatile TimerWheel wheel = null;
+    
+    SharedTimer owner = null;
+    
+    /**
+     *  Absolute time at which the task is next due.
+     **/
+    long deadline;
+    
+    /**
+     *  Period for repeating tasks or zero for one-time tasks.
+     **/
+    long period;
+    
+    boolean fixedRate;
+    
+    /**
+     *  Number of further revolutions of the wheel before the task is due.
+     **/
+    long rounds;
+    
+    /**
+     *  The index of the bucket the task is in or -1 if it is not in a bucket.
+     **/
+    int bucket = -1;
+    
+    ScheduledTask prev = null;
+    
+    ScheduledTask next = null;
+    
+    /**
+     *  Absolute time at which the most recent execution was due.
+     **/
+    volatile long lastDeadline = 0;
+    
+    /**
+     *  Creates a new scheduled task.
+     **/
+    protected ScheduledTask() {
+        super();
+    }
+    
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>The task is removed from its timer immediately.
+     **/
+    public boolean cancel() {
+        TimerWheel theWheel = wheel;
+        
+        if (null == theWheel) {
+            // never scheduled.
+            return false;
+        }
+        
+        return theWheel.cancel(this);
+    }
+    
+    /**
+     *  {@inheritDoc}
+     **/
+    public long scheduledExecutionTime() {
+        return lastDeadline;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ *  A replacement for {@link java.util.Timer} whose tasks are executed by a
+ *  shared {@link TimerWheel} rather than by a thread dedicated to the timer.
+ *  Each service creates its own timer so that it can cancel all of its tasks
+ *  when it stops, but all of the timers share the same few threads.
+ *
+ *  <p/>As with <code>java.util.Timer</code>, a task may only be scheduled once
+ *  and a cancelled timer may not be used to schedule further tasks, and the
+ *  tasks of a timer are run one at a time in the order they became due.
+ *  Unlike <code>java.util.Timer</code>, the thread which runs the tasks
+ *  may differ from one task to the next and a task which throws an
+ *  exception does not cancel the timer.
+ **/
+public final class SharedTimer {
+    
+    private final String name;
+    
+    private final TimerWheel wheel;
+    
+    /**
+     *  The tasks which are currently scheduled.
+     **/
+    private final Set tasks = new HashSet();
+    
+    private boolean cancelled = false;
+    
+    /**
+     *  The due tasks awaiting execution. Guarded by the run queue of the
+     *  wheel.
+     **/
+    final LinkedList due = new LinkedList();
+    
+    /**
+     *  True while the timer is in the run queue of the wheel or one of its
+     *  tasks is running. Guarded by the run queue of the wheel.
+     **/
+    boolean queued = false;
+    
+    /**
+     *  Creates a new timer which uses the default wheel.
+     *
+     *  @param name the name of the timer. Used to name the thread while
+     *  the timer's tasks are running.
+     **/
+    public SharedTimer(String name) {
+        this(name, TimerWheel.getDefault());
+    }
+    
+    /**
+     *  Creates a new timer.
+     *
+     *  @param name the name of the timer. Used to name the thread while
+     *  the timer's tasks are running.
+     *  @param wheel the wheel which will execute the timer's tasks.
+     **/
+    public SharedTimer(String name, TimerWheel wheel) {
+        this.name = name;
+        this.wheel = wheel;
+    }
+    
+    /**
+     *  Returns the name of the timer.
+     *
+     *  @return the name of the timer.
+     **/
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     *  Schedules a task for execution after a delay.
+     *
+     *  @param task the task.
+     *  @param delay delay in milliseconds before the task is executed.
+     **/
+    public void schedule(ScheduledTask task, long delay) {
+        schedule(task, delay, 0, false);
+    }
+    
+    /**
+     *  Schedules a task for execution at a specified time. If the time is in
+     *  the past the task is executed immediately.
+     *
+     *  @param task the task.
+     *  @param time the time at which the task is executed.
+     **/
+    public void schedule(ScheduledTask task, Date time) {
+        schedule(task, Math.max(0, TimeUtils.toRelativeTimeMillis(time.getTime())), 0, false);
+    }
+    
+    /**
+     *  Schedules a task for repeated execution with a fixed delay between the
+     *  start of each execution.
+     *
+     *  @param task the task.
+     *  @param delay delay in milliseconds before the task is first executed.
+     *  @param period the delay in milliseconds between executions.
+     **/
+    public void schedule(ScheduledTask task, long delay, long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Non-positive period.");
+        }
+        
+        schedule(task, delay, period, false);
+    }
+    
+    /**
+     *  Schedules a task for repeated execution at a fixed rate relative to
+     *  its first execution.
+     *
+     *  @param task the task.
+     *  @param delay delay in milliseconds before the task is first executed.
+     *  @param period the interval in milliseconds between executions.
+     **/
+    public void scheduleAtFixedRate(ScheduledTask task, long delay, long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Non-positive period.");
+        }
+        
+        schedule(task, delay, period, true);
+    }
+    
+    private void schedule(ScheduledTask task, long delay, long period, boolean fixedRate) {
+        synchronized (tasks) {
+            if (cancelled) {
+                throw new IllegalStateException("Timer already cancelled.");
+            }
+            
+            wheel.schedule(task, this, delay, period, fixedRate);
+            tasks.add(task);
+        }
+    }
+    
+    /**
+     *  Cancels the timer and all of its scheduled tasks. A task which is
+     *  currently running is allowed to complete.
+     **/
+    public void cancel() {
+        Object[] cancel;
+        
+        synchronized (tasks) {
+            cancelled = true;
+            cancel = tasks.toArray();
+            tasks.clear();
+        }
+        
+        for (int eachTask = 0; eachTask < cancel.length; eachTask++) {
+            ((ScheduledTask) cancel[eachTask]).cancel();
+        }
+    }
+    
+    /**
+     *  Called by the wheel when a task will not run again.
+     *
+     *  @param task the task.
+     **/
+    void forget(ScheduledTask task) {
+        synchronized (tasks) {
+            tasks.remove(task);
+        }
+    }
+}
@@ -0,0 +1,634 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ *  A hashed timing wheel which executes {@link ScheduledTask}s on behalf of
+ *  {@link SharedTimer}s. A single wheel, the {@link #getDefault() default
+ *  wheel}, is normally shared by all of the JXTA services within the JVM so
+ *  that a few threads serve all of their timers.
+ *
+ *  <p/>Time is divided into ticks. Tasks are kept in an array of buckets
+ *  indexed by the tick at which they are due, modulo the number of buckets,
+ *  with tasks due more than one revolution of the wheel in the future
+ *  remembering how many further revolutions they must wait. Scheduling and
+ *  cancelling a task are therefore constant time operations and cancelled
+ *  tasks are removed from the wheel immediately.
+ *
+ *  <p/>A single thread advances the wheel. Due tasks are handed to a pool of
+ *  worker threads which grows as needed, up to a limit, and shrinks as the
+ *  workers become idle. The tasks of each {@link SharedTimer} are run one
+ *  at a time, in the order they became due, as a <code>java.util.Timer</code>
+ *  would run them, so a slow task delays the other tasks of its own timer
+ *  but not those of other timers unless all of the workers are busy. The
+ *  difference between when each task was due
+ *  and when it started is recorded and available through
+ *  {@link #getMaxLateness()} and {@link #getAverageLateness()}. Lateness
+ *  includes up to one tick of scheduling granularity.
+ *
+ *  <p/>The default wheel may be tuned with the following system properties:
+ *
+ *  <ul>
+ *      <li><code>net.jxta.impl.util.TimerWheel.tickDuration</code> : the
+ *      duration of a tick in milliseconds.</li>
+ *      <li><code>net.jxta.impl.util.TimerWheel.wheelSize</code> : the number of
+ *      buckets, rounded up to a power of two.</li>
+ *      <li><code>net.jxta.impl.util.TimerWheel.maxWorkers</code> : the maximum
+ *      number of worker threads.</li>
+ *  </ul>
+ **/
+public final class TimerWheel {
+    
+    /**
+     *  Log4J Logger
+     **/
+    private static final Logger LOG = Logger.getLogger(TimerWheel.class.getName());
+    
+    /**
+     *  The default duration of a tick in milliseconds.
+     **/
+    public static final long DEFAULT_TICK_DURATION = TimeUtils.ATENTHOFASECOND;
+    
+    /**
+     *  The default number of buckets.
+     **/
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    
+    /**
+     *  The default maximum number of worker threads. Since the tasks of a
+     *  timer never run concurrently, this is well above the number of timers
+     *  normally in use so that tasks which block delay only their own timer.
+     **/
+    public static final int DEFAULT_MAX_WORKERS = 64;
+    
+    /**
+     *  The time after which an idle worker thread exits.
+     **/
+    private static final long WORKER_IDLE_TIMEOUT = TimeUtils.AMINUTE;
+    
+    private static final String WORKER_NAME = "JXTA Timer Worker";
+    
+    /**
+     *  The default wheel.
+     **/
+    private static TimerWheel defaultWheel = null;
+    
+    private final long tickDuration;
+    
+    /**
+     *  Each bucket is the head of a doubly linked list of tasks.
+     **/
+    private final ScheduledTask[] buckets;
+    
+    private final int mask;
+    
+    private final long startTime;
+    
+    /**
+     *  The next tick to be processed.
+     **/
+    private long tick = 0;
+    
+    /**
+     *  The number of tasks in the buckets.
+     **/
+    private int scheduled = 0;
+    
+    /**
+     *  Timers with due tasks awaiting a worker and due tasks without a timer.
+     *  Also the lock for the worker pool and for the due tasks of the timers.
+     **/
+    private final LinkedList runQueue = new LinkedList();
+    
+    private final int maxWorkers;
+    
+    private int workers = 0;
+    
+    private int idleWorkers = 0;
+    
+    private long executions = 0;
+    
+    private long totalLateness = 0;
+    
+    private long maxLateness = 0;
+    
+    /**
+     *  Returns the wheel shared by all of the JXTA services.
+     *
+     *  @return the default wheel.
+     **/
+    public static synchronized TimerWheel getDefault() {
+        if (null == defaultWheel) {
+            String prefix = TimerWheel.class.getName();
+            
+            defaultWheel = new TimerWheel(Long.getLong(prefix + ".tickDuration", DEFAULT_TICK_DURATION).longValue(),
+                                          Integer.getInteger(prefix + ".wheelSize", DEFAULT_WHEEL_SIZE).intValue(),
+                                          Integer.getInteger(prefix + ".maxWorkers", DEFAULT_MAX_WORKERS).intValue());
+        }
+        
+        return defaultWheel;
+    }
+    
+    /**
+     *  Creates a new wheel and starts the thread which advances it.
+     *
+     *  @param tickDuration the duration of a tick in milliseconds.
+     *  @param wheelSize the number of buckets, rounded up to a power of two.
+     *  @param maxWorkers the maximum number of threads which will execute
+     *  tasks.
+     **/
+    public TimerWheel(long tickDuration, int wheelSize, int maxWorkers) {
+        if (tickDuration < 1) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        
+        if ((wheelSize < 1) || (wheelSize > (1 << 30))) {
+            throw new IllegalArgumentException("wheelSize out of range");
+        }
+        
+        if (maxWorkers < 1) {
+            throw new IllegalArgumentException("maxWorkers must be positive");
+        }
+        
+        int size = 1;
+        
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        
+        this.tickDuration = tickDuration;
+        this.buckets = new ScheduledTask[size];
+        this.mask = size - 1;
+        this.maxWorkers = maxWorkers;
+        this.startTime = TimeUtils.timeNow();
+        
+        Thread ticker = new Thread(new Ticker(), "JXTA Timer Wheel");
+        
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+    
+    /**
+     *  Returns the duration of a tick.
+     *
+     *  @return the duration of a tick in milliseconds.
+     **/
+    public long getTickDuration() {
+        return tickDuration;
+    }
+    
+    /**
+     *  Returns the number of tasks currently waiting to become due.
+     *
+     *  @return the number of tasks currently waiting to become due.
+     **/
+    public synchronized int getScheduledTaskCount() {
+        return scheduled;
+    }
+    
+    /**
+     *  Returns the number of task executions which have started.
+     *
+     *  @return the number of task executions which have started.
+     **/
+    public synchronized long getExecutions() {
+        return executions;
+    }
+    
+    /**
+     *  Returns the greatest delay between a task becoming due and its execution
+     *  starting.
+     *
+     *  @return the maximum lateness in milliseconds.
+     **/
+    public synchronized long getMaxLateness() {
+        return maxLateness;
+    }
+    
+    /**
+     *  Returns the average delay between a task becoming due and its execution
+     *  starting.
+     *
+     *  @return the average lateness in milliseconds.
+     **/
+    public synchronized long getAverageLateness() {
+        return (0 == executions) ? 0 : totalLateness / executions;
+    }
+    
+    /**
+     *  Schedules a task.
+     *
+     *  @param task the task.
+     *  @param owner the timer on whose behalf the task is scheduled.
+     *  @param delay delay in milliseconds before the task is first executed.
+     *  @param period period in milliseconds between executions or zero for a
+     *  one-time task.
+     *  @param fixedRate if true then executions are scheduled relative to
+     *  the first execution otherwise relative to the previous execution.
+     **/
+    void schedule(ScheduledTask task, SharedTimer owner, long delay, long period, boolean fixedRate) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Negative delay.");
+        }
+        
+        if (period < 0) {
+            throw new IllegalArgumentException("Negative period.");
+        }
+        
+        synchronized (this) {
+            if (ScheduledTask.VIRGIN != task.state) {
+                throw new IllegalStateException("Task already scheduled or cancelled.");
+            }
+            
+            task.wheel = this;
+            task.owner = owner;
+            task.period = period;
+            task.fixedRate = fixedRate;
+            task.state = ScheduledTask.SCHEDULED;
+            
+            insert(task, TimeUtils.toAbsoluteTimeMillis(delay));
+        }
+    }
+    
+    /**
+     *  Cancels a task.
+     *
+     *  @param task the task.
+     *  @return true if the task was prevented from running one or more times.
+     **/
+    boolean cancel(ScheduledTask task) {
+        SharedTimer owner;
+        
+        synchronized (this) {
+            if (ScheduledTask.SCHEDULED != task.state) {
+                return false;
+            }
+            
+            task.state = ScheduledTask.CANCELLED;
+            unlink(task);
+            owner = task.owner;
+        }
+        
+        if (null != owner) {
+            owner.forget(task);
+        }
+        
+        return true;
+    }
+    
+    /**
+     *  Adds a task to the bucket for the tick at which it is due. Must be
+     *  called while holding the wheel's lock.
+     *
+     *  @param task the task.
+     *  @param deadline the absolute time at which the task is due.
+     **/
+    private void insert(ScheduledTask task, long deadline) {
+        long due = (deadline - startTime + tickDuration - 1) / tickDuration;
+        
+        if (due < tick) {
+            due = tick;
+        }
+        
+        int index = (int) (due & mask);
+        ScheduledTask head = buckets[index];
+        
+        task.deadline = deadline;
+        task.rounds = (due - tick) / buckets.length;
+        task.bucket = index;
+        task.prev = null;
+        task.next = head;
+        
+        if (null != head) {
+            head.prev = task;
+        }
+        
+        buckets[index] = task;
+        scheduled++;
+    }
+    
+    /**
+     *  Removes a task from its bucket, if it is in one. Must be called while
+     *  holding the wheel's lock.
+     *
+     *  @param task the task.
+     **/
+    private void unlink(ScheduledTask task) {
+        if (-1 == task.bucket) {
+            return;
+        }
+        
+        if (null != task.prev) {
+            task.prev.next = task.next;
+        } else {
+            buckets[task.bucket] = task.next;
+        }
+        
+        if (null != task.next) {
+            task.next.prev = task.prev;
+        }
+        
+        task.bucket = -1;
+        task.prev = null;
+        task.next = null;
+        scheduled--;
+    }
+    
+    /**
+     *  Processes the next tick if it has arrived.
+     *
+     *  @return the time in milliseconds until the next tick or zero if the
+     *  tick was processed.
+     **/
+    private long advance() {
+        LinkedList due = null;
+        
+        synchronized (this) {
+            long wait = TimeUtils.toRelativeTimeMillis(startTime + (tick * tickDuration));
+            
+            if (wait > 0) {
+                return wait;
+            }
+            
+            ScheduledTask each = buckets[(int) (tick & mask)];
+            
+            while (null != each) {
+                ScheduledTask next = each.next;
+                
+                if (each.rounds <= 0) {
+                    unlink(each);
+                    if (null == due) {
+                        due = new LinkedList();
+                    }
+                    due.add(each);
+                } else {
+                    each.rounds--;
+                }
+                
+                each = next;
+            }
+            
+            tick++;
+        }
+        
+        if (null != due) {
+            dispatch(due);
+        }
+        
+        return 0;
+    }
+    
+    /**
+     *  Hands due tasks to the workers, starting new workers if needed.
+     *
+     *  @param due the due tasks.
+     **/
+    private void dispatch(LinkedList due) {
+        synchronized (runQueue) {
+            Iterator eachTask = due.iterator();
+            
+            while (eachTask.hasNext()) {
+                ScheduledTask task = (ScheduledTask) eachTask.next();
+                SharedTimer owner = task.owner;
+                
+                if (null == owner) {
+                    runQueue.add(task);
+                    continue;
+                }
+                
+                owner.due.add(task);
+                
+                // a timer is queued once, when it has no task queued or running.
+                if (!owner.queued) {
+                    owner.queued = true;
+                    runQueue.add(owner);
+                }
+            }
+            
+            while ((runQueue.size() > idleWorkers) && (workers < maxWorkers)) {
+                Thread worker = new Thread(new Worker(), WORKER_NAME);
+                
+                worker.setDaemon(true);
+                worker.start();
+                workers++;
+                idleWorkers++;
+            }
+            
+            runQueue.notifyAll();
+        }
+    }
+    
+    /**
+     *  Executes a task and reschedules it if it repeats.
+     *
+     *  @param task the task.
+     **/
+    private void execute(ScheduledTask task) {
+        long start = TimeUtils.timeNow();
+        SharedTimer owner;
+        
+        synchronized (this) {
+            if (ScheduledTask.SCHEDULED != task.state) {
+                // cancelled while awaiting a worker.
+                return;
+            }
+            
+            long lateness = Math.max(0, start - task.deadline);
+            
+            executions++;
+            totalLateness += lateness;
+            if (lateness > maxLateness) {
+                maxLateness = lateness;
+            }
+            
+            task.lastDeadline = task.deadline;
+            owner = task.owner;
+        }
+        
+        Thread current = Thread.currentThread();
+        
+        if (null != owner) {
+            current.setName(WORKER_NAME + " - " + owner.getName());
+        }
+        
+        try {
+            task.run();
+        } catch (Throwable all) {
+            if (LOG.isEnabledFor(Level.ERROR)) {
+                LOG.error("Uncaught Throwable in timer task " + current.getName(), all);
+            }
+        } finally {
+            current.setName(WORKER_NAME);
+        }
+        
+        synchronized (this) {
+            if (ScheduledTask.SCHEDULED != task.state) {
+                // cancelled while running.
+                return;
+            }
+            
+            if (task.period > 0) {
+                insert(task, (task.fixedRate ? task.deadline : start) + task.period);
+                return;
+            }
+            
+            task.state = ScheduledTask.EXECUTED;
+        }
+        
+        if (null != owner) {
+            owner.forget(task);
+        }
+    }
+    
+    /**
+     *  Advances the wheel as time passes.
+     **/
+    private class Ticker implements Runnable {
+        
+        /**
+         *  {@inheritDoc}
+         **/
+        public void run() {
+            while (true) {
+                try {
+                    long wait = advance();
+                    
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                } catch (Throwable all) {
+                    if (LOG.isEnabledFor(Level.ERROR)) {
+                        LOG.error("Uncaught Throwable in " + Thread.currentThread().getName(), all);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     *  Executes due tasks. Exits after being idle for a while.
+     **/
+    private class Worker implements Runnable {
+        
+        /**
+         *  {@inheritDoc}
+         **/
+        public void run() {
+            while (true) {
+                ScheduledTask task;
+                SharedTimer owner = null;
+                
+                synchronized (runQueue) {
+                    long idleUntil = TimeUtils.toAbsoluteTimeMillis(WORKER_IDLE_TIMEOUT);
+                    
+                    while (runQueue.isEmpty()) {
+                        long wait = TimeUtils.toRelativeTimeMillis(idleUntil);
+                        
+                        if (wait <= 0) {
+                            idleWorkers--;
+                            workers--;
+                            return;
+                        }
+                        
+                        try {
+                            runQueue.wait(wait);
+                        } catch (InterruptedException woken) {
+                            Thread.interrupted();
+                        }
+                    }
+                    
+                    Object next = runQueue.removeFirst();
+                    
+                    if (next instanceof SharedTimer) {
+                        owner = (SharedTimer) next;
+                        task = (ScheduledTask) owner.due.removeFirst();
+                    } else {
+                        task = (ScheduledTask) next;
+                    }
+                    idleWorkers--;
+                }
+                
+                try {
+                    execute(task);
+                } finally {
+                    synchronized (runQueue) {
+                        idleWorkers++;
+                        
+                        if (null != owner) {
+                            if (owner.due.isEmpty()) {
+                                owner.queued = false;
+                            } else {
+                                // behind the other timers which are waiting.
+                                runQueue.add(owner);
+                                runQueue.notify();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
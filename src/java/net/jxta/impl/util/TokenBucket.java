@@ -0,0 +1,167 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+/**
+ *  Limits the rate at which some work is done. Tokens accumulate at a fixed
+ *  rate up to a burst size and each unit of work takes a token, waiting for
+ *  it if none is available.
+ **/
+public final class TokenBucket {
+    
+    /**
+     *  Tokens added per second.
+     **/
+    private final long rate;
+    
+    /**
+     *  The maximum number of tokens kept.
+     **/
+    private final long burst;
+    
+    /**
+     *  The tokens currently available.
+     **/
+    private long tokens;
+    
+    /**
+     *  The last time tokens were added.
+     **/
+    private long refilled;
+    
+    /**
+     *  Create a new token bucket which starts full.
+     *
+     *  @param rate the number of tokens added per second.
+     *  @param burst the maximum number of tokens kept.
+     **/
+    public TokenBucket(long rate, long burst) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be positive");
+        }
+        
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilled = TimeUtils.timeNow();
+    }
+    
+    /**
+     *  Adds the tokens accumulated since the last refill.
+     **/
+    private void refill(long now) {
+        long elapsed = TimeUtils.toRelativeTimeMillis(now, refilled);
+        long added = (elapsed * rate) / TimeUtils.ASECOND;
+        
+        if (added > 0) {
+            tokens = Math.min(burst, tokens + added);
+            // keep the fraction of a token not yet added.
+            refilled = (tokens == burst) ? now : refilled + ((added * TimeUtils.ASECOND) / rate);
+        }
+    }
+    
+    /**
+     *  Takes tokens if they are available.
+     *
+     *  @param count the number of tokens.
+     *  @return <tt>true</tt> if the tokens were taken.
+     **/
+    public synchronized boolean tryAcquire(long count) {
+        refill(TimeUtils.timeNow());
+        
+        if (tokens < Math.min(count, burst)) {
+            return false;
+        }
+        
+        tokens -= count;
+        
+        return true;
+    }
+    
+    /**
+     *  Takes tokens, waiting until they are available. More tokens than the
+     *  burst size may be taken at once, the bucket then stays in debt until
+     *  enough tokens have accumulated again.
+     *
+     *  @param count the number of tokens.
+     *  @throws InterruptedException if interrupted while waiting.
+     **/
+    public synchronized void acquire(long count) throws InterruptedException {
+        long needed = Math.min(count, burst);
+        
+        while (true) {
+            long now = TimeUtils.timeNow();
+            
+            refill(now);
+            
+            if (tokens >= needed) {
+                break;
+            }
+            
+            long delay = Math.max(1, ((needed - tokens) * TimeUtils.ASECOND) / rate);
+            
+            wait(delay);
+        }
+        
+        tokens -= count;
+    }
+}
@@ -59,20 +59,21 @@ package net.jxta.impl.xindice.core.filer;
  * $Id: BTree.java,v 1.1 2007/01/16 11:01:31 thomas Exp $
  */
 
+import net.jxta.impl.util.ReadWriteLock;
 import net.jxta.impl.xindice.core.DBException;
 import net.jxta.impl.xindice.core.FaultCodes;
 import net.jxta.impl.xindice.core.data.Value;
 import net.jxta.impl.xindice.core.indexer.IndexQuery;
 
-import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.List;
 
 /**
  * BTree represents a Variable Magnitude Simple-Prefix B+Tree File.
@@ -98,6 +99,14 @@ import java.util.WeakHashMap;
  * This implementation supports the notion of nested roots.  This means
  * that you can create a btree where the pointers actually point to the
  * root of a separate btree being managed in the same file.
+ * <br><br>
+ * Concurrency is controlled by latches rather than by locking the whole
+ * tree. Since only a split changes the branch pages, lookups, queries and
+ * inserts or removals which do not split descend the branches holding the
+ * tree latch shared, and latch only the leaf they reach: shared to read
+ * it, exclusively to change it. An insert which finds that its leaf must
+ * split starts again holding the tree latch exclusively. Readers and
+ * writers of different leaves therefore proceed in parallel.
  */
 
 public class BTree extends Paged {
@@ -105,7 +114,14 @@ public class BTree extends Paged {
     protected static final byte BRANCH = 2;
     protected static final byte STREAM = 3;
 
-    private Map cache = new WeakHashMap();
+    // Returned by an insert which needs to split a node but may not.
+    private static final long SPLIT = Long.MIN_VALUE;
+
+    // Shared while descending, held exclusively while splitting.
+    private final ReadWriteLock structure = new ReadWriteLock();
+
+    // Guards attaching nodes to their pages.
+    private final Object nodeLock = new Object();
 
     private BTreeFileHeader fileHeader;
     private BTreeRootInfo rootInfo;
@@ -176,7 +192,7 @@ public class BTree extends Paged {
      * @return The previous value for the pointer (or -1)
      */
     public long addValue(Value value, long pointer) throws IOException, BTreeException {
-        return getRootNode().addValue(value, pointer);
+        return addValue(rootInfo, value, pointer);
     }
 
     /**
@@ -191,7 +207,27 @@ public class BTree extends Paged {
      * @return The previous value for the pointer (or -1)
      */
     public long addValue(BTreeRootInfo root, Value value, long pointer) throws IOException, BTreeException {
-        return getRootNode(root).addValue(value, pointer);
+        if (value == null) {
+            throw new BTreeException(FaultCodes.DBE_CANNOT_CREATE, "Can't add a null Value");
+        }
+
+        structure.acquireRead();
+        try {
+            long oldPtr = getRootNode(root).addValue(value, pointer, false);
+            if (oldPtr != SPLIT) {
+                return oldPtr;
+            }
+        } finally {
+            structure.releaseRead();
+        }
+
+        // The leaf must be split, start again holding the tree exclusively.
+        structure.acquireWrite();
+        try {
+            return getRootNode(root).addValue(value, pointer, true);
+        } finally {
+            structure.releaseWrite();
+        }
     }
 
     /**
@@ -202,7 +238,7 @@ public class BTree extends Paged {
      * @return The pointer that was associated with it
      */
     public long removeValue(Value value) throws IOException, BTreeException {
-        return getRootNode().removeValue(value);
+        return removeValue(rootInfo, value);
     }
 
     /**
@@ -214,7 +250,12 @@ public class BTree extends Paged {
      * @return The pointer that was associated with it
      */
     public long removeValue(BTreeRootInfo root, Value value) throws IOException, BTreeException {
-        return getRootNode(root).removeValue(value);
+        structure.acquireRead();
+        try {
+            return getRootNode(root).removeValue(value);
+        } finally {
+            structure.releaseRead();
+        }
     }
 
     /**
@@ -225,7 +266,7 @@ public class BTree extends Paged {
      * @return The pointer that was associated with it
      */
     public long findValue(Value value) throws IOException, BTreeException {
-        return getRootNode().findValue(value);
+        return findValue(rootInfo, value);
     }
 
     /**
@@ -237,30 +278,48 @@ public class BTree extends Paged {
      * @return The pointer that was associated with it
      */
     public long findValue(BTreeRootInfo root, Value value) throws IOException, BTreeException {
-        return getRootNode(root).findValue(value);
+        structure.acquireRead();
+        try {
+            return getRootNode(root).findValue(value);
+        } finally {
+            structure.releaseRead();
+        }
     }
 
     /**
      * query performs a query against the BTree and performs callback
-     * operations to report the search results.
+     * operations to report the search results. The results are gathered
+     * before the callback is called, so the callback may change the BTree.
+     * Reporting stops once the callback returns false.
      *
      * @param query The IndexQuery to use (or null for everything)
      * @param callback The callback instance
      */
     public void query(IndexQuery query, BTreeCallback callback) throws IOException, BTreeException {
-        getRootNode().query(query, callback);
+        query(rootInfo, query, callback);
     }
 
     /**
      * query performs a query against the BTree and performs callback
-     * operations to report the search results.
+     * operations to report the search results. The results are gathered
+     * before the callback is called, so the callback may change the BTree.
+     * Reporting stops once the callback returns false.
      *
      * @param root The BTree's root information (for nested trees)
      * @param query The IndexQuery to use (or null for everything)
      * @param callback The callback instance
      */
     public void query(BTreeRootInfo root, IndexQuery query, BTreeCallback callback) throws IOException, BTreeException {
-        getRootNode(root).query(query, callback);
+        QueryResults results = new QueryResults();
+
+        structure.acquireRead();
+        try {
+            getRootNode(root).query(query, results);
+        } finally {
+            structure.releaseRead();
+        }
+
+        results.report(callback);
     }
 
     /**
@@ -339,7 +398,8 @@ public class BTree extends Paged {
         } else {
             long p = newRoot.page.getPageNum();
             root.setPage(p);
-            addValue(parent, root.name, p);
+            // the tree latch is already held exclusively.
+            getRootNode(parent).addValue(root.name, p, true);
         }
     }
 
@@ -380,12 +440,14 @@ public class BTree extends Paged {
     private BTreeNode getBTreeNode(BTreeRootInfo root, long page, BTreeNode parent) {
         try {
             BTreeNode node;
-            synchronized (this) {
-                Long pNum = new Long(page);
-                node = (BTreeNode) cache.get(pNum);
+            synchronized (nodeLock) {
+                // The node is kept with its page so that it is cached for as
+                // long as the page is.
+                Page p = getPage(page);
+                node = (BTreeNode) p.getAttachment();
                 if (node == null) {
-                    Page p = getPage(pNum);
                     node = new BTreeNode(root, p, parent);
+                    p.setAttachment(node);
                 } else {
                     node.root = root;
                     node.parent = parent;
@@ -407,6 +469,7 @@ public class BTree extends Paged {
         try {
             Page p = getFreePage();
             BTreeNode node = new BTreeNode(root, p, parent);
+            p.setAttachment(node);
             node.ph.setStatus(status);
             node.setValues(new Value[0]);
             node.setPointers(new long[0]);
@@ -416,6 +479,200 @@ public class BTree extends Paged {
         }
     }
 
+    /**
+     * load returns a Loader which builds the BTree bottom-up from values
+     * given in ascending order.  Each node is filled to a percentage of its
+     * page and written once, so the tree is densely packed and no node is
+     * ever split.  The BTree must be empty, and must not be used otherwise
+     * until the Loader is finished.
+     *
+     * @param fill The percentage of each page to fill
+     * @return The Loader
+     */
+    public final Loader load(int fill) throws BTreeException {
+        structure.acquireRead();
+        try {
+            if (rootNode.ph.getStatus() != LEAF || rootNode.valueCount() != 0) {
+                throw new BTreeException(FaultCodes.DBE_CANNOT_CREATE, "Can't load a BTree which isn't empty");
+            }
+        } finally {
+            structure.releaseRead();
+        }
+        return new Loader(fill);
+    }
+
+    /**
+     * Loader builds a BTree bottom-up.  Leaves are filled from the values
+     * as they are added, and each full node is written and added to the
+     * node being filled on the level above, which becomes the root when the
+     * Loader is finished.
+     */
+    public final class Loader {
+        // The nodes being filled, the leaf first.
+        private final List levels = new ArrayList();
+        private final int limit;
+        private Value last = null;
+        private boolean finished = false;
+
+        private Loader(int fill) {
+            fill = Math.max(10, Math.min(fill, 100));
+            limit = (int) (((long) fileHeader.getWorkSize() * fill) / 100);
+        }
+
+        /**
+         * add adds a value, which must be greater than the last value
+         * added, and associates a pointer with it.
+         *
+         * @param value The Value to add
+         * @param pointer The pointer to associate with it
+         */
+        public void add(Value value, long pointer) throws IOException, BTreeException {
+            if (finished) {
+                throw new BTreeException(FaultCodes.DBE_CANNOT_CREATE, "Loader is finished");
+            }
+            if (value == null) {
+                throw new BTreeException(FaultCodes.DBE_CANNOT_CREATE, "Can't add a null Value");
+            }
+            if (last != null && value.compareTo(last) <= 0) {
+                throw new BTreeException(FaultCodes.DBE_CANNOT_CREATE, "Value '" + value + "' is out of order");
+            }
+
+            Level leaf = getLevel(0);
+            if (!leaf.values.isEmpty() && leaf.sizeWith(value, pointer) > limit) {
+                leaf.flush(separator(last, value));
+            }
+            leaf.values.add(value);
+            leaf.ptrs.add(new Long(pointer));
+            last = value;
+        }
+
+        /**
+         * finish writes the nodes still being filled and makes the highest
+         * of them the root.
+         */
+        public void finish() throws IOException, DBException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+
+            if (!levels.isEmpty()) {
+                structure.acquireWrite();
+                try {
+                    // flushing a level may add one above it
+                    for (int i = 0; i < levels.size() - 1; i++) {
+                        ((Level) levels.get(i)).flush(null);
+                    }
+                    ((Level) levels.get(levels.size() - 1)).writeRoot();
+                } finally {
+                    structure.releaseWrite();
+                }
+            }
+            flush();
+        }
+
+        private Level getLevel(int depth) {
+            if (depth == levels.size()) {
+                levels.add(new Level(depth, depth == 0 ? LEAF : BRANCH));
+            }
+            return (Level) levels.get(depth);
+        }
+
+        /**
+         * Level is the node being filled on one level of the tree.
+         */
+        private final class Level {
+            private final int depth;
+            private final byte status;
+            private final List values = new ArrayList();
+            private final List ptrs = new ArrayList();
+            // Separates this node from the one written before it.
+            private Value separator = null;
+
+            Level(int depth, byte status) {
+                this.depth = depth;
+                this.status = status;
+            }
+
+            /**
+             * Adds the next child of a branch, with the separator between
+             * it and the child before.
+             */
+            void addChild(Value sep, long pointer) throws IOException, BTreeException {
+                if (ptrs.isEmpty()) {
+                    ptrs.add(new Long(pointer));
+                } else if (sizeWith(sep, pointer) > limit) {
+                    // the separator moves up to the level above
+                    flush(sep);
+                    ptrs.add(new Long(pointer));
+                } else {
+                    values.add(sep);
+                    ptrs.add(new Long(pointer));
+                }
+            }
+
+            int sizeWith(Value value, long pointer) {
+                Value[] vals = (Value[]) values.toArray(new Value[values.size() + 1]);
+                long[] pointers = toLongs(1);
+
+                vals[vals.length - 1] = value;
+                pointers[pointers.length - 1] = pointer;
+                return BTreeNodeImage.encodedSize(vals, pointers);
+            }
+
+            /**
+             * Writes the node and adds it to the level above.
+             *
+             * @param next The separator between the node and the next one
+             */
+            void flush(Value next) throws IOException, BTreeException {
+                BTreeNode node = createBTreeNode(rootInfo, status, null);
+                if (node == null) {
+                    throw new BTreeException(FaultCodes.DBE_CANNOT_CREATE, "Can't allocate a node");
+                }
+                fill(node);
+                getLevel(depth + 1).addChild(separator, node.page.getPageNum());
+
+                separator = next;
+                values.clear();
+                ptrs.clear();
+            }
+
+            /**
+             * Writes the node into the root page.
+             */
+            void writeRoot() throws IOException {
+                rootNode.ph.setStatus(status);
+                fill(rootNode);
+            }
+
+            private void fill(BTreeNode node) throws IOException {
+                node.setValues((Value[]) values.toArray(new Value[values.size()]));
+                node.setPointers(toLongs(0));
+                node.write();
+            }
+
+            private long[] toLongs(int extra) {
+                long[] pointers = new long[ptrs.size() + extra];
+                for (int i = 0; i < ptrs.size(); i++) {
+                    pointers[i] = ((Long) ptrs.get(i)).longValue();
+                }
+                return pointers;
+            }
+        }
+    }
+
+    /**
+     * separator returns the shortest Value which is greater than value1
+     * and not greater than value2.
+     */
+    private static Value separator(Value value1, Value value2) {
+        int idx = value1.compareTo(value2);
+        byte[] b = new byte[Math.abs(idx)];
+        System.arraycopy(value2.getData(), 0, b, 0, b.length);
+        return new Value(b);
+    }
+
     /**
      * BTreeRootInfo
      */
@@ -473,18 +730,57 @@ public class BTree extends Paged {
     }
 
     /**
-     * BTreeNode
+     * QueryResults gathers the results of a query so that they are reported
+     * once the latches have been released.
+     */
+
+    private static final class QueryResults implements BTreeCallback {
+        private List values = new ArrayList();
+        private long[] pointers = new long[16];
+
+        public boolean indexInfo(Value value, long pointer) {
+            int count = values.size();
+            if (count == pointers.length) {
+                long[] newPointers = new long[count * 2];
+                System.arraycopy(pointers, 0, newPointers, 0, count);
+                pointers = newPointers;
+            }
+            pointers[count] = pointer;
+            values.add(value);
+            return true;
+        }
+
+        public void report(BTreeCallback callback) {
+            for (int i = 0; i < values.size(); i++) {
+                if (!callback.indexInfo((Value) values.get(i), pointers[i])) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * BTreeNode. The node takes no monitor of its own, its contents are
+     * guarded by the tree latch and by its leaf latch.
      */
 
     private final class BTreeNode {
         private BTreeRootInfo root;
         private Page page;
         private BTreePageHeader ph;
-        private Value[] values;
-        private long[] ptrs;
+        // The node as stored, null if only the arrays are current.
+        private BTreeNodeImage image;
+        // The values and pointers, materialised from the image when needed.
+        // Readers sharing a latch may materialise them concurrently, they
+        // are volatile so that the arrays are published with their contents.
+        private volatile Value[] values;
+        private volatile long[] ptrs;
         private BTreeNode parent;
         private boolean loaded;
 
+        // Latches the contents of a leaf.
+        private final ReadWriteLock latch = new ReadWriteLock();
+
         public BTreeNode(BTreeRootInfo root, Page page, BTreeNode parent) {
             this.root = root;
             this.page = page;
@@ -498,33 +794,93 @@ public class BTree extends Paged {
             ph = (BTreePageHeader) page.getPageHeader();
         }
 
-        public synchronized void setValues(Value[] values) {
+        public void setValues(Value[] values) {
+            expand();
             this.values = values;
             ph.setValueCount((short) values.length);
         }
 
-        public synchronized Value[] getValues() {
-            return values;
+        public Value[] getValues() {
+            Value[] result = values;
+            if (result == null) {
+                result = image.getValues();
+                values = result;
+            }
+            return result;
         }
 
-        public synchronized void setPointers(long[] ptrs) {
+        public void setPointers(long[] ptrs) {
+            expand();
             this.ptrs = ptrs;
         }
 
-        public synchronized long[] getPointers() {
-            return ptrs;
+        public long[] getPointers() {
+            long[] result = ptrs;
+            if (result == null) {
+                result = image.getPointers();
+                ptrs = result;
+            }
+            return result;
+        }
+
+        /**
+         * Materialises the arrays and discards the image before the node
+         * is changed.
+         */
+        private void expand() {
+            if (image != null) {
+                getValues();
+                getPointers();
+                image = null;
+            }
+        }
+
+        public Value getValue(int idx) {
+            return (image != null) ? image.getValue(idx) : values[idx];
+        }
+
+        public long getPointer(int idx) {
+            return (image != null) ? image.getPointer(idx) : ptrs[idx];
+        }
+
+        public int valueCount() {
+            return (image != null) ? image.getValueCount() : values.length;
+        }
+
+        public int pointerCount() {
+            return (image != null) ? image.getPointerCount() : ptrs.length;
         }
 
-        public synchronized boolean isLoaded() {
+        /**
+         * Searches the values of the node, in the page image if there is one.
+         *
+         * @see java.util.Arrays#binarySearch(Object[], Object)
+         */
+        public int search(Value value) {
+            return (image != null) ? image.search(value) : Arrays.binarySearch(values, value);
+        }
+
+        public boolean isLoaded() {
             return loaded;
         }
 
-        public synchronized void setLoaded(boolean loaded) {
+        public void setLoaded(boolean loaded) {
             this.loaded = loaded;
         }
 
-        public synchronized void read() throws IOException {
+        public void read() throws IOException {
             Value v = readValue(page);
+            byte[] data = v.getData();
+
+            if (BTreeNodeImage.isImage(data)) {
+                image = new BTreeNodeImage(data);
+                values = null;
+                ptrs = null;
+                return;
+            }
+
+            // A node in the original format, it is converted when next written.
+            image = null;
             DataInputStream is = new DataInputStream(v.getInputStream());
 
             // Read in the Values
@@ -542,147 +898,183 @@ public class BTree extends Paged {
             for (int i = 0; i < ptrs.length; i++) {
                 ptrs[i] = is.readLong();
             }
-
-            cache.put(new Long(page.getPageNum()), this);
         }
 
-        public synchronized void write() throws IOException {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream((int)fileHeader.getWorkSize());
-            DataOutputStream os = new DataOutputStream(bos);
+        public void write() throws IOException {
+            Value[] vals = getValues();
+            long[] pointers = getPointers();
+            byte[] data = BTreeNodeImage.encode(vals, pointers);
 
-            // Write out the Values
-            for (int i = 0; i < values.length; i++) {
-                os.writeShort(values[i].getLength());
-                values[i].streamTo(os);
-            }
-
-            // Write out the pointers
-            for (int i = 0; i < ptrs.length; i++) {
-                os.writeLong(ptrs[i]);
+            if (data != null) {
+                // only the image is kept.
+                image = new BTreeNodeImage(data);
+                values = null;
+                ptrs = null;
+            } else {
+                data = BTreeNodeImage.encodeOriginal(vals, pointers);
             }
 
-            writeValue(page, new Value(bos.toByteArray()));
-
-            cache.put(new Long(page.getPageNum()), this);
+            writeValue(page, new Value(data));
         }
 
         public BTreeNode getChildNode(int idx) {
-            boolean load;
-            BTreeRootInfo loadNode;
-            long loadPtr;
-            synchronized (this) {
-                if (ph.getStatus() == BRANCH && idx >= 0 && idx < ptrs.length) {
-                    load = true;
-                    loadNode = root;
-                    loadPtr = ptrs[idx];
-                } else {
-                    load = false;
-                    loadNode = null;
-                    loadPtr = 0;
-                }
-            }
-            if (load) {
-                return getBTreeNode(loadNode, loadPtr, this);
+            // branches do not change while the tree latch is shared.
+            if (ph.getStatus() == BRANCH && idx >= 0 && idx < pointerCount()) {
+                return getBTreeNode(root, getPointer(idx), this);
             } else {
                 return null;
             }
         }
 
-        public synchronized void getChildStream(int idx, Streamable stream) throws IOException {
-            if (ph.getStatus() == LEAF && idx >= 0 && idx < ptrs.length) {
-                Value v = readValue(ptrs[idx]);
-                DataInputStream dis = new DataInputStream(v.getInputStream());
-                stream.read(dis);
+        public void getChildStream(int idx, Streamable stream) throws IOException {
+            long ptr;
+
+            if (ph.getStatus() != LEAF) {
+                return;
+            }
+            latch.acquireRead();
+            try {
+                if (idx < 0 || idx >= pointerCount()) {
+                    return;
+                }
+                ptr = getPointer(idx);
+            } finally {
+                latch.releaseRead();
             }
-        }
 
-        public synchronized long removeValue(Value value) throws IOException, BTreeException {
-            int idx = Arrays.binarySearch(values, value);
+            Value v = readValue(ptr);
+            DataInputStream dis = new DataInputStream(v.getInputStream());
+            stream.read(dis);
+        }
 
-            switch (ph.getStatus()) {
-            case BRANCH:
-                idx = idx < 0 ? -(idx + 1) : idx + 1;
-                return getChildNode(idx).removeValue(value);
+        public long removeValue(Value value) throws IOException, BTreeException {
+            // the page is pinned while the node is in use
+            pinPage(page);
+            try {
+                int idx;
 
-            case LEAF:
-                if (idx < 0) {
-                    throw new BTreeNotFoundException("Value '"+value.toString()+"' doesn't exist");
-                } else {
-                    long oldPtr = ptrs[idx];
+                switch (ph.getStatus()) {
+                case BRANCH:
+                    idx = search(value);
+                    idx = idx < 0 ? -(idx + 1) : idx + 1;
+                    return getChildNode(idx).removeValue(value);
 
-                    setValues(deleteArrayValue(values, idx));
-                    setPointers(deleteArrayLong(ptrs, idx));
+                case LEAF:
+                    // removals never merge nodes so only the leaf changes.
+                    latch.acquireWrite();
+                    try {
+                        idx = search(value);
+                        if (idx < 0) {
+                            throw new BTreeNotFoundException("Value '"+value.toString()+"' doesn't exist");
+                        } else {
+                            long oldPtr = getPointer(idx);
+
+                            setValues(deleteArrayValue(getValues(), idx));
+                            setPointers(deleteArrayLong(getPointers(), idx));
+
+                            write();
+                            return oldPtr;
+                        }
+                    } finally {
+                        latch.releaseWrite();
+                    }
 
-                    write();
-                    return oldPtr;
+                default :
+                    throw new BTreeCorruptException("Invalid page type '" + ph.getStatus() +
+                                                    "' in removeValue");
                 }
-
-            default :
-                throw new BTreeCorruptException("Invalid page type '" + ph.getStatus() +
-                                                "' in removeValue");
+            } finally {
+                unpinPage(page);
             }
         }
 
-        public synchronized long addValue(Value value, long pointer) throws IOException, BTreeException {
-            if (value == null) {
-                throw new BTreeException(FaultCodes.DBE_CANNOT_CREATE, "Can't add a null Value");
-            }
-
-            int idx = Arrays.binarySearch(values, value);
+        /**
+         * Adds a value below this node. Unless exclusive, which requires the
+         * tree latch to be held exclusively, an insert which would split a
+         * node is abandoned and SPLIT returned.
+         */
+        public long addValue(Value value, long pointer, boolean exclusive) throws IOException, BTreeException {
+            // the page is pinned while the node is in use
+            pinPage(page);
+            try {
+                int idx;
 
-            switch (ph.getStatus()) {
-            case BRANCH:
-                idx = idx < 0 ? -(idx + 1) : idx + 1;
-                BTreeNode node = getChildNode(idx);
-                if (node != null) {
-                    return node.addValue(value, pointer);
-                } else {
-                    throw new BTreeCorruptException("Cannot add Value '"+value.toString()+"'");
-                }
+                switch (ph.getStatus()) {
+                case BRANCH:
+                    idx = search(value);
+                    idx = idx < 0 ? -(idx + 1) : idx + 1;
+                    BTreeNode node = getChildNode(idx);
+                    if (node != null) {
+                        return node.addValue(value, pointer, exclusive);
+                    } else {
+                        throw new BTreeCorruptException("Cannot add Value '"+value.toString()+"'");
+                    }
                 
-            case LEAF:
-                if (idx >= 0) {
-                    // Value was found... Overwrite
-                    long oldPtr = ptrs[idx];
-                    ptrs[idx] = pointer;
-
-                    setValues(values);
-                    setPointers(ptrs);
-
-                    write();
-                    return oldPtr;
-                } else {
-                    // Value was not found
-                    idx = -(idx + 1);
-
-                    // Check to see if we've exhausted the block
-                    boolean split = ph.getDataLen() + 6 + value.getLength() > fileHeader.getWorkSize();
+                case LEAF:
+                    latch.acquireWrite();
+                    try {
+                        idx = search(value);
+                        if (idx >= 0) {
+                            // Value was found... Overwrite
+                            long oldPtr = getPointer(idx);
+
+                            // copied as a query may still be reading the old pointers
+                            long[] newPtrs = (long[]) getPointers().clone();
+                            newPtrs[idx] = pointer;
+
+                            setValues(getValues());
+                            setPointers(newPtrs);
+
+                            write();
+                            return oldPtr;
+                        } else {
+                            // Value was not found
+                            idx = -(idx + 1);
+
+                            Value[] newValues = insertArrayValue(getValues(), value, idx);
+                            long[] newPtrs = insertArrayLong(getPointers(), pointer, idx);
+
+                            // Check to see if we've exhausted the block
+                            boolean split = BTreeNodeImage.encodedSize(newValues, newPtrs) > fileHeader.getWorkSize();
+
+                            if (split && !exclusive) {
+                                return SPLIT;
+                            }
 
-                    setValues(insertArrayValue(values, value, idx));
-                    setPointers(insertArrayLong(ptrs, pointer, idx));
+                            setValues(newValues);
+                            setPointers(newPtrs);
 
-                    if (split) {
-                        split();
-                    } else {
-                        write();
+                            if (split) {
+                                split();
+                            } else {
+                                write();
+                            }
+                        }
+                        return -1;
+                    } finally {
+                        latch.releaseWrite();
                     }
-                }
-                return -1;
 
-            default :
-                throw new BTreeCorruptException("Invalid Page Type In addValue");
+                default :
+                    throw new BTreeCorruptException("Invalid Page Type In addValue");
+                }
+            } finally {
+                unpinPage(page);
             }
         }
 
-        public synchronized void promoteValue(Value value, long rightPointer) throws IOException, BTreeException {
-            // Check to see if we've exhausted the block
-            boolean split = ph.getDataLen() + 6 + value.getLength() > fileHeader.getWorkSize();
-
-            int idx = Arrays.binarySearch(values, value);
+        public void promoteValue(Value value, long rightPointer) throws IOException, BTreeException {
+            int idx = search(value);
             idx = idx < 0 ? -(idx + 1) : idx + 1;
 
-            setValues(insertArrayValue(values, value, idx));
-            setPointers(insertArrayLong(ptrs, rightPointer, idx + 1));
+            Value[] newValues = insertArrayValue(getValues(), value, idx);
+            long[] newPtrs = insertArrayLong(getPointers(), rightPointer, idx + 1);
+
+            // Check to see if we've exhausted the block
+            boolean split = BTreeNodeImage.encodedSize(newValues, newPtrs) > fileHeader.getWorkSize();
+
+            setValues(newValues);
+            setPointers(newPtrs);
 
             if (split) {
                 split();
@@ -692,13 +1084,12 @@ public class BTree extends Paged {
         }
 
         public Value getSeparator(Value value1, Value value2) {
-            int idx = value1.compareTo(value2);
-            byte[] b = new byte[Math.abs(idx)];
-            System.arraycopy(value2.getData(), 0, b, 0, b.length);
-            return new Value(b);
+            return separator(value1, value2);
         }
 
-        public synchronized void split() throws IOException, BTreeException {
+        public void split() throws IOException, BTreeException {
+            Value[] values = getValues();
+            long[] ptrs = getPointers();
             Value[] leftVals;
             Value[] rightVals;
             long[] leftPtrs;
@@ -777,210 +1168,238 @@ public class BTree extends Paged {
 
         /////////////////////////////////////////////////////////////////
 
-        public synchronized long findValue(Value value) throws IOException, BTreeException {
-            if (value == null) {
-                throw new BTreeNotFoundException("Can't search on null Value");
-            }
+        public long findValue(Value value) throws IOException, BTreeException {
+            // the page is pinned while the node is in use
+            pinPage(page);
+            try {
+                if (value == null) {
+                    throw new BTreeNotFoundException("Can't search on null Value");
+                }
 
-            int idx = Arrays.binarySearch(values, value);
+                int idx;
 
-            switch (ph.getStatus()) {
-            case BRANCH:
-                idx = idx < 0 ? -(idx + 1) : idx + 1;
-                BTreeNode node = getChildNode(idx);
-                if (node != null) {
-                    return node.findValue(value);
-                } else {
-                    throw new BTreeNotFoundException("Value '"+value.toString()+"' doesn't exist");
-                }
+                switch (ph.getStatus()) {
+                case BRANCH:
+                    idx = search(value);
+                    idx = idx < 0 ? -(idx + 1) : idx + 1;
+                    BTreeNode node = getChildNode(idx);
+                    if (node != null) {
+                        return node.findValue(value);
+                    } else {
+                        throw new BTreeNotFoundException("Value '"+value.toString()+"' doesn't exist");
+                    }
                 
-            case LEAF:
-                if (idx < 0) {
-                    throw new BTreeNotFoundException("Value '"+value.toString()+"' doesn't exist");
-                } else {
-                    return ptrs[idx];
-                }
+                case LEAF:
+                    latch.acquireRead();
+                    try {
+                        idx = search(value);
+                        if (idx < 0) {
+                            throw new BTreeNotFoundException("Value '"+value.toString()+"' doesn't exist");
+                        } else {
+                            return getPointer(idx);
+                        }
+                    } finally {
+                        latch.releaseRead();
+                    }
 
-            default :
-                throw new BTreeCorruptException("Invalid page type '" + ph.getStatus() +
-                                                "' in findValue");
+                default :
+                    throw new BTreeCorruptException("Invalid page type '" + ph.getStatus() +
+                                                    "' in findValue");
+                }
+            } finally {
+                unpinPage(page);
             }
         }
 
         // query is a BEAST of a method
-        public synchronized void query(IndexQuery query, BTreeCallback callback) throws IOException, BTreeException {
-            if (query != null && query.getOperator() != IndexQuery.ANY) {
-                Value[] qvals = query.getValues();
-                int leftIdx = Arrays.binarySearch(values, qvals[0]);
-                int rightIdx = qvals.length > 1 ? Arrays.binarySearch(values, qvals[qvals.length - 1]) : leftIdx;
+        public void query(IndexQuery query, BTreeCallback callback) throws IOException, BTreeException {
+            // the page is pinned while the node is in use
+            pinPage(page);
+            // leaves are latched while they are read, the branches do not
+            // change while the tree latch is shared.
+            boolean leaf = (ph.getStatus() == LEAF);
+            if (leaf) {
+                latch.acquireRead();
+            }
+            try {
+                if (query != null && query.getOperator() != IndexQuery.ANY) {
+                    Value[] qvals = query.getValues();
+                    int leftIdx = search(qvals[0]);
+                    int rightIdx = qvals.length > 1 ? search(qvals[qvals.length - 1]) : leftIdx;
 
-                switch (ph.getStatus()) {
-                case BRANCH:
-                    leftIdx = leftIdx < 0 ? -(leftIdx + 1) : leftIdx + 1;
-                    rightIdx = rightIdx < 0 ? -(rightIdx + 1) : rightIdx + 1;
-
-                    switch (query.getOperator()) {
-                    case IndexQuery.BWX:
-                    case IndexQuery.BW:
-                    case IndexQuery.IN:
-                    case IndexQuery.SW:
-                        for (int i = 0; i < ptrs.length; i++) {
-                            if (i >= leftIdx && i <= rightIdx) {
-                                getChildNode(i).query(query, callback);
+                    switch (ph.getStatus()) {
+                    case BRANCH:
+                        leftIdx = leftIdx < 0 ? -(leftIdx + 1) : leftIdx + 1;
+                        rightIdx = rightIdx < 0 ? -(rightIdx + 1) : rightIdx + 1;
+
+                        switch (query.getOperator()) {
+                        case IndexQuery.BWX:
+                        case IndexQuery.BW:
+                        case IndexQuery.IN:
+                        case IndexQuery.SW:
+                            for (int i = 0; i < pointerCount(); i++) {
+                                if (i >= leftIdx && i <= rightIdx) {
+                                    getChildNode(i).query(query, callback);
+                                }
                             }
-                        }
-                        break;
+                            break;
 
-                    case IndexQuery.NBWX:
-                    case IndexQuery.NBW:
-                    case IndexQuery.NIN:
-                    case IndexQuery.NSW:
-                        for (int i = 0; i < ptrs.length; i++) {
-                            if (i <= leftIdx || i >= rightIdx) {
-                                getChildNode(i).query(query, callback);
+                        case IndexQuery.NBWX:
+                        case IndexQuery.NBW:
+                        case IndexQuery.NIN:
+                        case IndexQuery.NSW:
+                            for (int i = 0; i < pointerCount(); i++) {
+                                if (i <= leftIdx || i >= rightIdx) {
+                                    getChildNode(i).query(query, callback);
+                                }
                             }
-                        }
-                        break;
+                            break;
 
-                    case IndexQuery.EQ:
-                        getChildNode(leftIdx).query(query, callback);
-                        break;
+                        case IndexQuery.EQ:
+                            getChildNode(leftIdx).query(query, callback);
+                            break;
 
-                    case IndexQuery.LT:
-                    case IndexQuery.LEQ:
-                        for (int i = 0; i < ptrs.length; i++) {
-                            if (i <= leftIdx) {
-                                getChildNode(i).query(query, callback);
+                        case IndexQuery.LT:
+                        case IndexQuery.LEQ:
+                            for (int i = 0; i < pointerCount(); i++) {
+                                if (i <= leftIdx) {
+                                    getChildNode(i).query(query, callback);
+                                }
                             }
-                        }
-                        break;
+                            break;
 
-                    case IndexQuery.GT:
-                    case IndexQuery.GEQ:
-                        for (int i = 0; i < ptrs.length; i++) {
-                            if (i >= rightIdx) {
-                                getChildNode(i).query(query, callback);
+                        case IndexQuery.GT:
+                        case IndexQuery.GEQ:
+                            for (int i = 0; i < pointerCount(); i++) {
+                                if (i >= rightIdx) {
+                                    getChildNode(i).query(query, callback);
+                                }
                             }
-                        }
-                        break;
-
-                    case IndexQuery.NEQ:
-                    default :
-                        for (int i = 0; i < ptrs.length; i++) {
-                            getChildNode(i).query(query, callback);
-                        }
-                        break;
-                    }
-                    break;
-
-                case LEAF:
-                    switch (query.getOperator()) {
-                    case IndexQuery.EQ:
-                        if (leftIdx >= 0) {
-                            callback.indexInfo(values[leftIdx], ptrs[leftIdx]);
-                        }
-                        break;
+                            break;
 
-                    case IndexQuery.NEQ:
-                        for (int i = 0; i < ptrs.length; i++) {
-                            if (i != leftIdx) {
-                                callback.indexInfo(values[i], ptrs[i]);
+                        case IndexQuery.NEQ:
+                        default :
+                            for (int i = 0; i < pointerCount(); i++) {
+                                getChildNode(i).query(query, callback);
                             }
+                            break;
                         }
                         break;
 
-                    case IndexQuery.BWX:
-                    case IndexQuery.BW:
-                    case IndexQuery.SW:
-                    case IndexQuery.IN:
-                        if (leftIdx < 0) {
-                            leftIdx = -(leftIdx + 1);
-                        }
-                        if (rightIdx < 0) {
-                            rightIdx = -(rightIdx + 1);
-                        }
-                        for (int i = 0; i < ptrs.length; i++) {
-                            if (i >= leftIdx && i <= rightIdx && query.testValue(values[i])) {
-                                callback.indexInfo(values[i], ptrs[i]);
+                    case LEAF:
+                        switch (query.getOperator()) {
+                        case IndexQuery.EQ:
+                            if (leftIdx >= 0) {
+                                callback.indexInfo(getValue(leftIdx), getPointer(leftIdx));
                             }
-                        }
-                        break;
+                            break;
 
-                    case IndexQuery.NBWX:
-                    case IndexQuery.NBW:
-                    case IndexQuery.NSW:
-                        if (leftIdx < 0) {
-                            leftIdx = -(leftIdx + 1);
-                        }
-                        if (rightIdx < 0) {
-                            rightIdx = -(rightIdx + 1);
-                        }
-                        for (int i = 0; i < ptrs.length; i++) {
-                            if ((i <= leftIdx || i >= rightIdx) && query.testValue(values[i])) {
-                                callback.indexInfo(values[i], ptrs[i]);
+                        case IndexQuery.NEQ:
+                            for (int i = 0; i < pointerCount(); i++) {
+                                if (i != leftIdx) {
+                                    callback.indexInfo(getValue(i), getPointer(i));
+                                }
                             }
-			}
-                        break;
+                            break;
 
-                        case IndexQuery.LT:
-                        case IndexQuery.LEQ:
+                        case IndexQuery.BWX:
+                        case IndexQuery.BW:
+                        case IndexQuery.SW:
+                        case IndexQuery.IN:
                             if (leftIdx < 0) {
                                 leftIdx = -(leftIdx + 1);
                             }
-                            for (int i = 0; i < ptrs.length; i++) {
-                                if (i <= leftIdx && query.testValue(values[i])) {
-                                    callback.indexInfo(values[i], ptrs[i]);
+                            if (rightIdx < 0) {
+                                rightIdx = -(rightIdx + 1);
+                            }
+                            for (int i = 0; i < pointerCount(); i++) {
+                                if (i >= leftIdx && i <= rightIdx && query.testValue(getValue(i))) {
+                                    callback.indexInfo(getValue(i), getPointer(i));
                                 }
                             }
                             break;
 
-                        case IndexQuery.GT:
-                        case IndexQuery.GEQ:
+                        case IndexQuery.NBWX:
+                        case IndexQuery.NBW:
+                        case IndexQuery.NSW:
+                            if (leftIdx < 0) {
+                                leftIdx = -(leftIdx + 1);
+                            }
                             if (rightIdx < 0) {
                                 rightIdx = -(rightIdx + 1);
                             }
-
-                            for (int i = 0; i < ptrs.length; i++) {
-                                if (i >= rightIdx && query.testValue(values[i])) {
-                                    callback.indexInfo(values[i], ptrs[i]);
+                            for (int i = 0; i < pointerCount(); i++) {
+                                if ((i <= leftIdx || i >= rightIdx) && query.testValue(getValue(i))) {
+                                    callback.indexInfo(getValue(i), getPointer(i));
                                 }
-                            }
+    			}
                             break;
 
-                        case IndexQuery.NIN:
-                        default :
-                            for (int i = 0; i < ptrs.length; i++) {
-                                if (query.testValue(values[i])) {
-                                    callback.indexInfo(values[i], ptrs[i]);
+                            case IndexQuery.LT:
+                            case IndexQuery.LEQ:
+                                if (leftIdx < 0) {
+                                    leftIdx = -(leftIdx + 1);
+                                }
+                                for (int i = 0; i < pointerCount(); i++) {
+                                    if (i <= leftIdx && query.testValue(getValue(i))) {
+                                        callback.indexInfo(getValue(i), getPointer(i));
+                                    }
                                 }
+                                break;
+
+                            case IndexQuery.GT:
+                            case IndexQuery.GEQ:
+                                if (rightIdx < 0) {
+                                    rightIdx = -(rightIdx + 1);
+                                }
+
+                                for (int i = 0; i < pointerCount(); i++) {
+                                    if (i >= rightIdx && query.testValue(getValue(i))) {
+                                        callback.indexInfo(getValue(i), getPointer(i));
+                                    }
+                                }
+                                break;
+
+                            case IndexQuery.NIN:
+                            default :
+                                for (int i = 0; i < pointerCount(); i++) {
+                                    if (query.testValue(getValue(i))) {
+                                        callback.indexInfo(getValue(i), getPointer(i));
+                                    }
+                                }
+                                break;
                             }
                             break;
+
+                        default :
+                            throw new BTreeCorruptException("Invalid Page Type In query");
                         }
-                        break;
 
-                    default :
-                        throw new BTreeCorruptException("Invalid Page Type In query");
-                    }
+                    } else {
+                        // No Query - Just Walk The Tree
+                        switch (ph.getStatus()) {
+                        case BRANCH:
+                            for (int i = 0; i < pointerCount(); i++) {
+                                getChildNode(i).query(query, callback);
+                            }
+                            break;
 
-                } else {
-                    // No Query - Just Walk The Tree
-                    switch (ph.getStatus()) {
-                    case BRANCH:
-                        for (int i = 0; i < ptrs.length; i++) {
-                            getChildNode(i).query(query, callback);
-                        }
-                        break;
+                        case LEAF:
+                            for (int i = 0; i < valueCount(); i++) {
+                                callback.indexInfo(getValue(i), getPointer(i));
+                            }
+                            break;
 
-                    case LEAF:
-                        for (int i = 0; i < values.length; i++) {
-                            callback.indexInfo(values[i], ptrs[i]);
+                        default :
+                            throw new BTreeCorruptException("Invalid Page Type In query");
                         }
-                        break;
-
-                    default :
-                        throw new BTreeCorruptException("Invalid Page Type In query");
                     }
+            } finally {
+                if (leaf) {
+                    latch.releaseRead();
                 }
+                unpinPage(page);
+            }
             }
         }
 
@@ -1028,12 +1447,12 @@ public class BTree extends Paged {
                 super(read);
             }
 
-            public synchronized void read(RandomAccessFile raf) throws IOException {
+            public synchronized void read(DataInput raf) throws IOException {
                 super.read(raf);
                 rootPage = raf.readLong();
             }
 
-            public synchronized void write(RandomAccessFile raf) throws IOException {
+            public synchronized void write(DataOutput raf) throws IOException {
                 super.write(raf);
                 raf.writeLong(rootPage);
             }
@@ -67,11 +67,12 @@ import net.jxta.impl.xindice.core.data.RecordSet;
 import net.jxta.impl.xindice.core.data.Value;
 import net.jxta.impl.xindice.core.indexer.NameIndexer;
 
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -255,6 +256,93 @@ public final class BTreeFiler extends BTree implements Filer {
       return false;
    }
 
+   /**
+    * loadRecords returns a RecordLoader which fills an empty BTreeFiler
+    * from records given in ascending key order.  The records are written
+    * to consecutive pages and the tree is built bottom-up, rather than
+    * each record being inserted and flushed on its own.
+    *
+    * @param fill The percentage of each tree page to fill
+    * @return The RecordLoader
+    */
+   public RecordLoader loadRecords(int fill) throws DBException {
+      checkOpened();
+      return new RecordLoader(load(fill));
+   }
+
+   /**
+    * RecordLoader
+    */
+
+   public final class RecordLoader {
+      private final Loader loader;
+
+      private RecordLoader(Loader loader) {
+         this.loader = loader;
+      }
+
+      /**
+       * add writes a record, whose key must be greater than the key of
+       * the last record added.  The created, modified, lifetime and
+       * expiration meta data of the record are kept.
+       *
+       * @param record The record to write
+       * @return The position of the record
+       */
+      public long add(Record record) throws DBException {
+         Key key = record.getKey();
+         Value value = record.getValue();
+
+         if (key == null || key.equals("")) {
+            throw new FilerException(FaultCodes.DBE_CANNOT_CREATE, "Invalid key: '" + key + "'");
+         }
+         if (value == null) {
+            throw new FilerException(FaultCodes.DBE_CANNOT_CREATE, "Invalid null value");
+         }
+         try {
+            Page p = getFreePage();
+            try {
+               loader.add(key, p.getPageNum());
+            } catch (BTreeException e) {
+               unlinkPages(p);
+               throw e;
+            }
+            fileHeader.incRecordCount();
+
+            long t = System.currentTimeMillis();
+            BTreeFilerPageHeader ph = (BTreeFilerPageHeader) p.getPageHeader();
+            ph.setCreated(getTime(record, Record.CREATED, t));
+            ph.setModified(getTime(record, Record.MODIFIED, t));
+            ph.setLifetime(getTime(record, Record.LIFETIME, 0));
+            ph.setExpiration(getTime(record, Record.EXPIRATION, 0));
+            ph.setStatus(RECORD);
+
+            writeValue(p, value);
+            return p.getPageNum();
+         } catch (IOException e) {
+            throw new FilerException(FaultCodes.DBE_CANNOT_CREATE,
+                                     "Can't write record '" + key + "': " + e.getMessage(), e);
+         }
+      }
+
+      /**
+       * finish completes the tree and flushes the file.
+       */
+      public void finish() throws DBException {
+         try {
+            loader.finish();
+         } catch (IOException e) {
+            throw new FilerException(FaultCodes.DBE_CANNOT_CREATE,
+                                     "Can't finish loading: " + e.getMessage(), e);
+         }
+      }
+
+      private long getTime(Record record, String name, long def) {
+         Long time = (Long) record.getMetaData(name);
+         return time != null ? time.longValue() : def;
+      }
+   }
+
    public long getRecordCount() throws DBException {
       checkOpened();
       return fileHeader.getRecordCount();
@@ -353,12 +441,12 @@ public final class BTreeFiler extends BTree implements Filer {
          super(read);
       }
 
-      public synchronized void read(RandomAccessFile raf) throws IOException {
+      public synchronized void read(DataInput raf) throws IOException {
          super.read(raf);
          totalBytes = raf.readLong();
       }
 
-      public synchronized void write(RandomAccessFile raf) throws IOException {
+      public synchronized void write(DataOutput raf) throws IOException {
          super.write(raf);
          raf.writeLong(totalBytes);
       }
@@ -0,0 +1,419 @@
+package net.jxta.impl.xindice.core.filer;
+
+/*
+ * The Apache Software License, Version 1.1
+ *
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Xindice" and "Apache Software Foundation" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache",
+ *    nor may "Apache" appear in their name, without prior written
+ *    permission of the Apache Software Foundation.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation and was
+ * originally based on software copyright (c) 1999-2001, The dbXML
+ * Group, L.L.C., http://www.dbxmlgroup.com.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * $Id$
+ */
+
+
+import net.jxta.impl.xindice.core.data.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * BTreeNodeImage is the prefix compressed form in which a BTree node is
+ * stored. The prefix shared by all of the values of the node is stored
+ * once, followed by a directory of the offsets of the remaining suffixes,
+ * the suffixes and the pointers. Values are found by a binary search of
+ * the directory which compares the search value with the bytes of the
+ * image, so looking up a value does not create any Value objects.
+ * <p/>
+ * An image is laid out as
+ * <pre>
+ *     short     MARKER
+ *     short     value count
+ *     short     prefix length
+ *     byte[]    prefix
+ *     short[]   suffix offsets, one per value plus the end of the suffixes
+ *     byte[]    suffixes
+ *     long[]    pointers
+ * </pre>
+ * The offsets are unsigned and relative to the start of the suffixes. The
+ * marker distinguishes an image from the original node format, which
+ * starts with the non-negative length of the first value.
+ * <p/>
+ * Images are immutable once created.
+ */
+
+final class BTreeNodeImage {
+
+    /**
+     * Marks the start of an image.
+     */
+    private static final short MARKER = -1;
+
+    // The size of the fixed part of an image.
+    private static final int HEADER_SIZE = 6;
+
+    // The largest offset which can be stored in the directory.
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private final byte[] data;
+    private final int count;
+    private final int prefixLen;
+    private final int dirPos;
+    private final int suffixPos;
+    private final int ptrPos;
+    private final int ptrCount;
+
+    /**
+     * Creates an image from its encoded form.
+     *
+     * @param data The encoded image
+     */
+    BTreeNodeImage(byte[] data) {
+        this.data = data;
+        count = readShort(data, 2);
+        prefixLen = readShort(data, 4);
+        dirPos = HEADER_SIZE + prefixLen;
+        suffixPos = dirPos + (2 * (count + 1));
+        ptrPos = suffixPos + readShort(data, dirPos + (2 * count));
+        ptrCount = (data.length - ptrPos) / 8;
+    }
+
+    /**
+     * Returns true if the node data is an image rather than the original
+     * node format.
+     *
+     * @param data The node data
+     * @return true if the data is an image
+     */
+    static boolean isImage(byte[] data) {
+        return (data.length >= HEADER_SIZE) && (((data[0] << 8) | (data[1] & 0xFF)) == MARKER);
+    }
+
+    /**
+     * Encodes values and pointers as an image.
+     *
+     * @param values The values, in order
+     * @param ptrs The pointers
+     * @return The image or null if the values are too large to be encoded
+     */
+    static byte[] encode(Value[] values, long[] ptrs) {
+        int prefixLen = commonPrefix(values);
+        int suffixLen = suffixLength(values, prefixLen);
+
+        if (suffixLen > MAX_OFFSET) {
+            return null;
+        }
+
+        byte[] data = new byte[size(values.length, prefixLen, suffixLen, ptrs.length)];
+        writeShort(data, 0, MARKER);
+        writeShort(data, 2, values.length);
+        writeShort(data, 4, prefixLen);
+        if (values.length > 0) {
+            System.arraycopy(values[0].getData(), 0, data, HEADER_SIZE, prefixLen);
+        }
+
+        int dirPos = HEADER_SIZE + prefixLen;
+        int suffixPos = dirPos + (2 * (values.length + 1));
+        int offset = 0;
+        for (int i = 0; i < values.length; i++) {
+            writeShort(data, dirPos + (2 * i), offset);
+            byte[] b = values[i].getData();
+            System.arraycopy(b, prefixLen, data, suffixPos + offset, b.length - prefixLen);
+            offset += b.length - prefixLen;
+        }
+        writeShort(data, dirPos + (2 * values.length), offset);
+
+        int ptrPos = suffixPos + offset;
+        for (int i = 0; i < ptrs.length; i++) {
+            writeLong(data, ptrPos + (8 * i), ptrs[i]);
+        }
+        return data;
+    }
+
+    /**
+     * Encodes values and pointers in the original node format, used when
+     * they are too large for an image.
+     *
+     * @param values The values
+     * @param ptrs The pointers
+     * @return The encoded node
+     * @throws IOException if an Exception occurs
+     */
+    static byte[] encodeOriginal(Value[] values, long[] ptrs) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+
+        // Write out the Values
+        for (int i = 0; i < values.length; i++) {
+            os.writeShort(values[i].getLength());
+            values[i].streamTo(os);
+        }
+
+        // Write out the pointers
+        for (int i = 0; i < ptrs.length; i++) {
+            os.writeLong(ptrs[i]);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Returns the number of bytes in which values and pointers are stored.
+     *
+     * @param values The values
+     * @param ptrs The pointers
+     * @return The encoded size
+     */
+    static int encodedSize(Value[] values, long[] ptrs) {
+        int prefixLen = commonPrefix(values);
+        int suffixLen = suffixLength(values, prefixLen);
+
+        if (suffixLen > MAX_OFFSET) {
+            // the original format
+            return (2 * values.length) + (prefixLen * values.length) + suffixLen + (8 * ptrs.length);
+        }
+        return size(values.length, prefixLen, suffixLen, ptrs.length);
+    }
+
+    /**
+     * Returns the number of values in the image.
+     *
+     * @return The number of values
+     */
+    int getValueCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of pointers in the image.
+     *
+     * @return The number of pointers
+     */
+    int getPointerCount() {
+        return ptrCount;
+    }
+
+    /**
+     * Returns a pointer.
+     *
+     * @param idx The index of the pointer
+     * @return The pointer
+     */
+    long getPointer(int idx) {
+        if (idx < 0 || idx >= ptrCount) {
+            throw new ArrayIndexOutOfBoundsException(idx);
+        }
+        return readLong(data, ptrPos + (8 * idx));
+    }
+
+    /**
+     * Returns a value.
+     *
+     * @param idx The index of the value
+     * @return The value
+     */
+    Value getValue(int idx) {
+        if (idx < 0 || idx >= count) {
+            throw new ArrayIndexOutOfBoundsException(idx);
+        }
+        int start = suffixPos + readShort(data, dirPos + (2 * idx));
+        int end = suffixPos + readShort(data, dirPos + (2 * (idx + 1)));
+        byte[] b = new byte[prefixLen + (end - start)];
+
+        System.arraycopy(data, HEADER_SIZE, b, 0, prefixLen);
+        System.arraycopy(data, start, b, prefixLen, end - start);
+        return new Value(b);
+    }
+
+    /**
+     * Returns all of the values.
+     *
+     * @return The values
+     */
+    Value[] getValues() {
+        Value[] values = new Value[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = getValue(i);
+        }
+        return values;
+    }
+
+    /**
+     * Returns all of the pointers.
+     *
+     * @return The pointers
+     */
+    long[] getPointers() {
+        long[] ptrs = new long[ptrCount];
+        for (int i = 0; i < ptrCount; i++) {
+            ptrs[i] = readLong(data, ptrPos + (8 * i));
+        }
+        return ptrs;
+    }
+
+    /**
+     * Searches the values for a value, with the same result as
+     * {@link java.util.Arrays#binarySearch(Object[], Object)} would give for
+     * the array of values.
+     *
+     * @param value The value to find
+     * @return The index of the value if found, otherwise
+     *         (-(insertion point) - 1)
+     */
+    int search(Value value) {
+        byte[] key = value.getData();
+
+        // compare with the prefix once, it decides the search if it differs.
+        int stop = Math.min(prefixLen, key.length);
+        for (int i = 0; i < stop; i++) {
+            byte b1 = data[HEADER_SIZE + i];
+            byte b2 = key[i];
+            if (b1 != b2) {
+                return (b1 > b2) ? -1 : -(count + 1);
+            }
+        }
+        if (key.length < prefixLen) {
+            // every value starts with the key so is greater than it
+            return -1;
+        }
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareSuffix(mid, key);
+
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Compares the suffix of a value with the remainder of a key which
+     * shares the prefix.
+     */
+    private int compareSuffix(int idx, byte[] key) {
+        int start = suffixPos + readShort(data, dirPos + (2 * idx));
+        int len = suffixPos + readShort(data, dirPos + (2 * (idx + 1))) - start;
+        int klen = key.length - prefixLen;
+        int stop = Math.min(len, klen);
+
+        for (int i = 0; i < stop; i++) {
+            byte b1 = data[start + i];
+            byte b2 = key[prefixLen + i];
+            if (b1 != b2) {
+                return (b1 > b2) ? 1 : -1;
+            }
+        }
+        return len - klen;
+    }
+
+    private static int size(int count, int prefixLen, int suffixLen, int ptrCount) {
+        return HEADER_SIZE + prefixLen + (2 * (count + 1)) + suffixLen + (8 * ptrCount);
+    }
+
+    private static int commonPrefix(Value[] values) {
+        if (values.length == 0) {
+            return 0;
+        }
+
+        byte[] first = values[0].getData();
+        int prefixLen = Math.min(first.length, Short.MAX_VALUE);
+        for (int i = 1; i < values.length && prefixLen > 0; i++) {
+            byte[] b = values[i].getData();
+            int stop = Math.min(prefixLen, b.length);
+            int j = 0;
+            while (j < stop && first[j] == b[j]) {
+                j++;
+            }
+            prefixLen = j;
+        }
+        return prefixLen;
+    }
+
+    private static int suffixLength(Value[] values, int prefixLen) {
+        int len = 0;
+        for (int i = 0; i < values.length; i++) {
+            len += values[i].getLength() - prefixLen;
+        }
+        return len;
+    }
+
+    private static int readShort(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] b, int pos, int v) {
+        b[pos] = (byte) (v >>> 8);
+        b[pos + 1] = (byte) v;
+    }
+
+    private static long readLong(byte[] b, int pos) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[pos + i] & 0xFF);
+        }
+        return v;
+    }
+
+    private static void writeLong(byte[] b, int pos, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[pos + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
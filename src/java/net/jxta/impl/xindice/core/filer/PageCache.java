@@ -0,0 +1,333 @@
+package net.jxta.impl.xindice.core.filer;
+
+/*
+ * The Apache Software License, Version 1.1
+ *
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Xindice" and "Apache Software Foundation" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache",
+ *    nor may "Apache" appear in their name, without prior written
+ *    permission of the Apache Software Foundation.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation and was
+ * originally based on software copyright (c) 1999-2001, The dbXML
+ * Group, L.L.C., http://www.dbxmlgroup.com.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * $Id$
+ */
+
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PageCache is the buffer pool of a Paged file. Pages are replaced using
+ * the CLOCK algorithm: the pages are kept in a ring which is swept by a
+ * hand, a page that has been used since the hand last passed it is given
+ * a second chance and the first page that has not been is evicted. Pinned
+ * pages are never evicted, so the cache may hold more pages than its
+ * capacity while many pages are pinned.
+ * <p/>
+ * Evicted pages are remembered weakly so that a page that is still
+ * referenced is found again rather than read into a second copy.
+ * <p/>
+ * PageCache is not synchronized. The Paged file guards it with its own lock.
+ */
+
+final class PageCache {
+
+    /**
+     * A slot in the ring.
+     */
+    private static final class Entry {
+        private final Object key;
+        private final Object page;
+        private boolean referenced = true;
+        private int pins = 0;
+        private Entry next;
+        private Entry prev;
+
+        private Entry(Object key, Object page) {
+            this.key = key;
+            this.page = page;
+        }
+    }
+
+    /**
+     * A weak reference to an evicted page.
+     */
+    private static final class Released extends WeakReference {
+        private final Object key;
+
+        private Released(Object key, Object page, ReferenceQueue queue) {
+            super(page, queue);
+            this.key = key;
+        }
+    }
+
+    // The entries by key.
+    private final Map entries = new HashMap();
+
+    // Evicted pages which may still be in use, by key.
+    private final Map released = new HashMap();
+
+    // Queue of the evicted pages which have been collected.
+    private final ReferenceQueue collected = new ReferenceQueue();
+
+    // The clock hand, or null if the cache is empty.
+    private Entry hand = null;
+
+    // The number of unpinned pages the cache holds before it evicts.
+    private int capacity;
+
+    private long evictions = 0;
+
+    PageCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Sets the capacity of the cache, evicting pages if necessary.
+     *
+     * @param capacity The number of pages
+     */
+    void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative");
+        }
+        this.capacity = capacity;
+        evict();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the page with the specified key and marks it as recently used.
+     *
+     * @param key The key of the page
+     * @return The page or null if the cache does not hold it
+     */
+    Object get(Object key) {
+        Entry entry = (Entry) entries.get(key);
+
+        if (entry != null) {
+            entry.referenced = true;
+            return entry.page;
+        }
+
+        Released ref = (Released) released.remove(key);
+        Object page = (ref != null) ? ref.get() : null;
+        if (page != null) {
+            put(key, page);
+        }
+        return page;
+    }
+
+    /**
+     * Adds a page to the cache, evicting pages if the cache is full.
+     *
+     * @param key The key of the page
+     * @param page The page
+     */
+    void put(Object key, Object page) {
+        insert(key, page);
+        evict();
+    }
+
+    /**
+     * Adds a page to the ring without evicting.
+     *
+     * @param key The key of the page
+     * @param page The page
+     * @return The entry for the page
+     */
+    private Entry insert(Object key, Object page) {
+        remove(key);
+
+        Entry entry = new Entry(key, page);
+        if (hand == null) {
+            entry.next = entry;
+            entry.prev = entry;
+            hand = entry;
+        } else {
+            // insert just behind the hand so that it is the last page swept
+            entry.next = hand;
+            entry.prev = hand.prev;
+            hand.prev.next = entry;
+            hand.prev = entry;
+        }
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Removes a page from the cache.
+     *
+     * @param key The key of the page
+     */
+    void remove(Object key) {
+        released.remove(key);
+        Entry entry = (Entry) entries.remove(key);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Pins a page so that it is not evicted, adding it to the cache if
+     * necessary. Pins are counted, each pin must be matched by an unpin.
+     *
+     * @param key The key of the page
+     * @param page The page
+     */
+    void pin(Object key, Object page) {
+        Entry entry = (Entry) entries.get(key);
+        if (entry == null) {
+            entry = insert(key, page);
+        }
+        entry.pins++;
+        entry.referenced = true;
+        evict();
+    }
+
+    /**
+     * Releases a pin on a page.
+     *
+     * @param key The key of the page
+     */
+    void unpin(Object key) {
+        Entry entry = (Entry) entries.get(key);
+        if ((entry != null) && (entry.pins > 0)) {
+            entry.pins--;
+        }
+        evict();
+    }
+
+    /**
+     * Removes all of the pages from the cache.
+     */
+    void clear() {
+        entries.clear();
+        released.clear();
+        hand = null;
+        expunge();
+    }
+
+    /**
+     * Sweeps the clock until the cache is within its capacity or only
+     * pinned pages remain.
+     */
+    private void evict() {
+        while (entries.size() > capacity) {
+            Entry victim = null;
+
+            // two passes are enough: the first clears the reference bits.
+            for (int swept = 0; swept < 2 * entries.size(); swept++) {
+                Entry entry = hand;
+                hand = hand.next;
+                if (entry.pins > 0) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    continue;
+                }
+                victim = entry;
+                break;
+            }
+
+            if (victim == null) {
+                // everything is pinned.
+                return;
+            }
+
+            entries.remove(victim.key);
+            unlink(victim);
+            released.put(victim.key, new Released(victim.key, victim.page, collected));
+            evictions++;
+        }
+
+        expunge();
+    }
+
+    /**
+     * Forgets the evicted pages which have been collected.
+     */
+    private void expunge() {
+        Released ref;
+        while ((ref = (Released) collected.poll()) != null) {
+            if (released.get(ref.key) == ref) {
+                released.remove(ref.key);
+            }
+        }
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.next == entry) {
+            hand = null;
+        } else {
+            if (hand == entry) {
+                hand = entry.next;
+            }
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+        }
+        entry.next = null;
+        entry.prev = null;
+    }
+}
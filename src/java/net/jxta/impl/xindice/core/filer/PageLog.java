@@ -0,0 +1,267 @@
+package net.jxta.impl.xindice.core.filer;
+
+/*
+ * The Apache Software License, Version 1.1
+ *
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Xindice" and "Apache Software Foundation" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache",
+ *    nor may "Apache" appear in their name, without prior written
+ *    permission of the Apache Software Foundation.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation and was
+ * originally based on software copyright (c) 1999-2001, The dbXML
+ * Group, L.L.C., http://www.dbxmlgroup.com.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * $Id$
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * PageLog is the write-ahead log used by a Paged file. Page images are
+ * appended to the log in batches, each of which is made durable with a
+ * single sync of the log. A batch is only replayed if it was completely
+ * written, so replaying the log after a crash never leaves the file with
+ * part of a batch applied. A batch holds the pages flushed since the
+ * previous one, which need not be all of the pages of an update.
+ * <p/>
+ * Each batch is written as a magic number, the length of the batch body,
+ * the body and the CRC32 of the body. The body is the number of images
+ * followed by, for each image, the page number, the length of the image
+ * and the image itself.
+ */
+
+final class PageLog {
+    /**
+     * The page number used for the image of the file header.
+     */
+    static final long FILE_HEADER = -1;
+
+    private static final int BATCH_MAGIC = 0x4A58574C;
+
+    private final File file;
+
+    private RandomAccessFile raf = null;
+
+    /**
+     * An image of a page or of the file header.
+     */
+    static final class Image {
+        final long pageNum;
+        final byte[] data;
+
+        Image(long pageNum, byte[] data) {
+            this.pageNum = pageNum;
+            this.data = data;
+        }
+    }
+
+    PageLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * open opens the log for appending.
+     *
+     * @throws IOException if an Exception occurs
+     */
+    void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+    }
+
+    /**
+     * close closes the log.
+     *
+     * @throws IOException if an Exception occurs
+     */
+    void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    /**
+     * length returns the current length of the log.
+     *
+     * @return The length of the log in bytes
+     * @throws IOException if an Exception occurs
+     */
+    long length() throws IOException {
+        return raf.length();
+    }
+
+    /**
+     * append writes a batch of images to the end of the log and syncs the
+     * log. If the batch cannot be written it is removed from the log.
+     *
+     * @param images The images to write
+     * @throws IOException if an Exception occurs
+     */
+    void append(List images) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+
+        dos.writeInt(images.size());
+        Iterator i = images.iterator();
+        while (i.hasNext()) {
+            Image image = (Image) i.next();
+            dos.writeLong(image.pageNum);
+            dos.writeInt(image.data.length);
+            dos.write(image.data);
+        }
+        dos.flush();
+
+        byte[] body = bos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        bos = new ByteArrayOutputStream(body.length + 16);
+        dos = new DataOutputStream(bos);
+        dos.writeInt(BATCH_MAGIC);
+        dos.writeInt(body.length);
+        dos.write(body);
+        dos.writeLong(crc.getValue());
+        dos.flush();
+
+        // a batch which fails is removed, so that the batch of the retry
+        // follows the last good batch rather than a torn one.
+        long start = raf.length();
+        raf.seek(start);
+        try {
+            raf.write(bos.toByteArray());
+            raf.getFD().sync();
+        } catch (IOException e) {
+            try {
+                raf.setLength(start);
+                raf.seek(start);
+            } catch (IOException ignored) {
+                // the original failure is the one reported.
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * truncate discards the contents of the log. Called once all of the
+     * logged images have been synced to the file.
+     *
+     * @throws IOException if an Exception occurs
+     */
+    void truncate() throws IOException {
+        raf.setLength(0);
+        raf.seek(0);
+        raf.getFD().sync();
+    }
+
+    /**
+     * read returns the images of all of the complete batches in a log, in
+     * the order they were written. Reading stops at the first incomplete
+     * or damaged batch.
+     *
+     * @param file The log file
+     * @return The images
+     * @throws IOException if an Exception occurs
+     */
+    static List read(File file) throws IOException {
+        List images = new ArrayList();
+
+        if (!file.exists()) {
+            return images;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long remaining = raf.length();
+
+            while (remaining >= 16) {
+                if (raf.readInt() != BATCH_MAGIC) {
+                    break;
+                }
+
+                int len = raf.readInt();
+                if ((len < 4) || (len > (remaining - 16))) {
+                    break;
+                }
+
+                byte[] body = new byte[len];
+                raf.readFully(body);
+
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (raf.readLong() != crc.getValue()) {
+                    break;
+                }
+                remaining -= len + 16;
+
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(body));
+                int count = dis.readInt();
+                for (int i = 0; i < count; i++) {
+                    long pageNum = dis.readLong();
+                    byte[] data = new byte[dis.readInt()];
+                    dis.readFully(data);
+                    images.add(new Image(pageNum, data));
+                }
+            }
+        } finally {
+            raf.close();
+        }
+
+        return images;
+    }
+}
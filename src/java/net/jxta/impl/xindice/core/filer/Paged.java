@@ -64,6 +64,9 @@ import net.jxta.impl.xindice.core.FaultCodes;
 import net.jxta.impl.xindice.core.data.Key;
 import net.jxta.impl.xindice.core.data.Value;
 
+import net.jxta.impl.util.ScheduledTask;
+import net.jxta.impl.util.SharedTimer;
+
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
@@ -78,12 +81,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.EmptyStackException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
-import java.util.WeakHashMap;
 
 /**
  * Paged is a paged file foundation that is used by both the BTree
@@ -97,12 +104,22 @@ public abstract class Paged {
      **/
     private final static Logger LOG = Logger.getLogger(Paged.class.getName());    
 
-    // The maximum number of pages that will be held in the dirty cache.
+    // The number of dirty pages which starts a background write.
     private static final int MAX_DIRTY_SIZE = 128;
 
+    // The number of dirty pages at which writers flush the pages themselves
+    // rather than leave them to the background write.
+    private static final int MAX_DIRTY_BACKLOG = 4 * MAX_DIRTY_SIZE;
+
     // The maximum number of open random access files we can have
     private static final int MAX_DESCRIPTORS = 16;
 
+    // The default number of clean pages held in the page cache.
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    // The size, in pages, of the regions in which a memory mapped file is mapped.
+    private static final int REGION_PAGES = 256;
+
     protected static final byte UNUSED = 0;
     protected static final byte OVERFLOW = 126;
     protected static final byte DELETED = 127;
@@ -111,12 +128,83 @@ public abstract class Paged {
     // flag whether to sync DB on every write or not.
     protected boolean sync = true;
 
-    // Cache of recently read pages.
-    private Map pages = new WeakHashMap();
+    // The log is synced to the file and truncated once it grows beyond this size.
+    private static final long CHECKPOINT_SIZE = 4 * 1024 * 1024;
+
+    // Timer used to schedule the group commits of the write-ahead log and
+    // the background writes of dirty pages. The tasks of a timer run one at
+    // a time, so each file has its own timer and a slow sync of one file
+    // does not hold up the others.
+    private final SharedTimer commitTimer = new SharedTimer("Paged Background Writer");
+
+    // Write-ahead log settings. A commit interval of zero disables the log.
+    private long commitInterval = 0;
+    private int commitSize = 0;
+
+    // The write-ahead log or null if pages are written directly to the file.
+    private PageLog log = null;
+
+    // Images of flushed pages awaiting the next group commit.
+    private List batch = new ArrayList();
+
+    // The number of the batch currently being gathered.
+    private long batchNumber = 0;
+
+    // Pages which are in the log but not yet written to the file, keyed by
+    // page number. They are kept here so that they are not read back from
+    // the file before they have been written.
+    private Map logged = new HashMap();
+
+    // The scheduled group commit or null if none is scheduled.
+    private ScheduledTask commitTask = null;
+
+    // The number of consecutive failed group commits. Failed commits are
+    // retried after a delay which doubles with each failure.
+    private int commitFailures = 0;
+
+    // The longest delay before retrying a failed group commit.
+    private static final long MAX_COMMIT_RETRY_DELAY = 60 * 1000;
+
+    // Serializes group commits.
+    private final Object commitLock = new Object();
+
+    // Guards the page caches, the write-ahead log batch and the background
+    // writes. A private lock is used rather than this Paged so that callers
+    // which synchronize on the file for their own purposes cannot deadlock
+    // with the BTree latches.
+    private final Object lock = new Object();
+
+    // Guards the list of free pages.
+    private final Object freeListLock = new Object();
+
+    // Cache of recently used pages.
+    private PageCache pages = new PageCache(DEFAULT_CACHE_SIZE);
+
+    // Page cache statistics.
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+    private long dirtyFlushes = 0;
+
+    // Whether pages are read and written through memory mapped regions.
+    private boolean memoryMapped = false;
+
+    // The file and channel used for the mapping, or null if not mapped.
+    // The channel is only set and cleared while holding the region lock.
+    private RandomAccessFile mapFile = null;
+    private volatile FileChannel channel = null;
+
+    // The mapped regions, mapped as they are first used. Guarded by the
+    // region lock.
+    private MappedByteBuffer[] regions = null;
+    private final Object regionLock = new Object();
 
     // Cache of modified pages waiting to be written out.
     private Map dirty = new HashMap();
 
+    // The scheduled background write of the dirty pages or null if none is
+    // scheduled.
+    private ScheduledTask writeBehindTask = null;
+
     // Random access file cache.
     private Stack descriptors = new Stack();
 
@@ -229,10 +317,18 @@ public abstract class Paged {
      */
     protected final Page getPage(Long lp) throws IOException {
         Page p;
-        synchronized (this) {
+        synchronized (lock) {
             // Check if it's in the dirty cache
             p = (Page) dirty.get(lp);
 
+            // if not check if it's waiting to be written from the log
+            if (p == null) {
+                LoggedPage lpage = (LoggedPage) logged.get(lp);
+                if (lpage != null) {
+                    p = lpage.page;
+                }
+            }
+
             // if not check if it's already loaded in the page cache
             if (p == null) {
                 p = (Page) pages.get(lp);
@@ -240,8 +336,11 @@ public abstract class Paged {
 
             // if still not found we need to create it and add it to the page cache.
             if (p == null) {
+                cacheMisses++;
                 p = new Page(lp.longValue());
                 pages.put(lp, p);
+            } else {
+                cacheHits++;
             }
         }
 
@@ -267,6 +366,94 @@ public abstract class Paged {
         return getPage(new Long(pageNum));
     }
 
+    /**
+     * pinPage keeps a page in the page cache until it is unpinned. Pins
+     * are counted, each call must be matched by a call to unpinPage.
+     *
+     * @param page The Page
+     */
+    protected final void pinPage(Page page) {
+        Long lp = new Long(page.getPageNum());
+        synchronized (lock) {
+            pages.pin(lp, page);
+        }
+    }
+
+    /**
+     * unpinPage releases a pin on a page, allowing it to be evicted from
+     * the page cache once it is no longer pinned.
+     *
+     * @param page The Page
+     */
+    protected final void unpinPage(Page page) {
+        Long lp = new Long(page.getPageNum());
+        synchronized (lock) {
+            pages.unpin(lp);
+        }
+    }
+
+    /**
+     * markDirty adds a page to the dirty cache. Once there are enough
+     * dirty pages they are written in the background, unless the writers
+     * have got so far ahead that they must write the pages themselves.
+     *
+     * @param page The Page
+     * @throws IOException if an Exception occurs
+     */
+    private void markDirty(Page page) throws IOException {
+        Long lp = new Long(page.getPageNum());
+        boolean backlog;
+
+        synchronized (lock) {
+            dirty.put(lp, page);
+            if (dirty.size() <= MAX_DIRTY_SIZE) {
+                return;
+            }
+
+            backlog = dirty.size() > MAX_DIRTY_BACKLOG;
+            if (!backlog && (writeBehindTask == null)) {
+                writeBehindTask = new ScheduledTask() {
+                    public void run() {
+                        writeBehind(this);
+                    }
+                };
+                commitTimer.schedule(writeBehindTask, 0);
+            }
+        }
+
+        if (backlog) {
+            try {
+                // Too many dirty pages... flush them
+                flush();
+            } catch (DBException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * writeBehind flushes the dirty pages in the background.
+     *
+     * @param task The task performing the write
+     */
+    private void writeBehind(ScheduledTask task) {
+        synchronized (lock) {
+            if (writeBehindTask != task) {
+                // a flush got there first.
+                return;
+            }
+            writeBehindTask = null;
+        }
+
+        try {
+            flush();
+        } catch (DBException e) {
+            if (LOG.isEnabledFor(Level.ERROR)) {
+                LOG.error("Background write failed for " + file.getName(), e);
+            }
+        }
+    }
+
     /**
      * readValue reads the multi-Paged Value starting at the specified
      * Page.
@@ -390,48 +577,50 @@ public abstract class Paged {
      * @throws IOException if an Exception occurs
      */
     protected final void unlinkPages(Page page) throws IOException {
-        // Handle the page if it's in primary space by setting its status to
-        // DELETED and freeing any overflow pages linked to it.
-        if (page.pageNum < fileHeader.pageCount) {
-            long nextPage = page.header.nextPage;
-            page.header.setStatus(DELETED);
-            page.header.setNextPage(NO_PAGE);
-            page.write();
-
-            // See if there are any chained pages from the page that was just removed
-            if (nextPage == NO_PAGE) {
-                page = null;
-            } else {
-                page = getPage(nextPage);
+        synchronized (freeListLock) {
+            // Handle the page if it's in primary space by setting its status to
+            // DELETED and freeing any overflow pages linked to it.
+            if (page.pageNum < fileHeader.pageCount) {
+                long nextPage = page.header.nextPage;
+                page.header.setStatus(DELETED);
+                page.header.setNextPage(NO_PAGE);
+                page.write();
+
+                // See if there are any chained pages from the page that was just removed
+                if (nextPage == NO_PAGE) {
+                    page = null;
+                } else {
+                    page = getPage(nextPage);
+                }
             }
-        }
 
-        // Add any overflow pages to the list of free pages.
-        if (page != null) {
-            // Get the first page in the chain.
-            long firstPage = page.pageNum;
+            // Add any overflow pages to the list of free pages.
+            if (page != null) {
+                // Get the first page in the chain.
+                long firstPage = page.pageNum;
 
-            // Find the last page in the chain.
-            while (page.header.nextPage != NO_PAGE) {
-                page = getPage(page.header.nextPage);
-            }
-            long lastPage = page.pageNum;
-
-            // If there are already some free pages, add the start of the chain
-            // to the list of free pages.
-            if (fileHeader.lastFreePage != NO_PAGE) {
-                Page p = getPage(fileHeader.lastFreePage);
-                p.header.setNextPage(firstPage);
-                p.write();
-            }
+                // Find the last page in the chain.
+                while (page.header.nextPage != NO_PAGE) {
+                    page = getPage(page.header.nextPage);
+                }
+                long lastPage = page.pageNum;
+
+                // If there are already some free pages, add the start of the chain
+                // to the list of free pages.
+                if (fileHeader.lastFreePage != NO_PAGE) {
+                    Page p = getPage(fileHeader.lastFreePage);
+                    p.header.setNextPage(firstPage);
+                    p.write();
+                }
 
-            // Otherwise set the chain as the list of free pages.
-            if (fileHeader.firstFreePage == NO_PAGE) {
-                fileHeader.setFirstFreePage(firstPage);
-            }
+                // Otherwise set the chain as the list of free pages.
+                if (fileHeader.firstFreePage == NO_PAGE) {
+                    fileHeader.setFirstFreePage(firstPage);
+                }
 
-            // Add a reference to the end of the chain.
-            fileHeader.setLastFreePage(lastPage);
+                // Add a reference to the end of the chain.
+                fileHeader.setLastFreePage(lastPage);
+            }
         }
     }
 
@@ -454,26 +643,28 @@ public abstract class Paged {
      * @throws IOException if an Exception occurs
      */
     protected final Page getFreePage() throws IOException {
-        Page p = null;
-        long pageNum = fileHeader.firstFreePage;
-        if (pageNum != NO_PAGE) {
-            // Steal a deleted page
-            p = getPage(pageNum);
-            fileHeader.setFirstFreePage(p.getPageHeader().nextPage);
-            if (fileHeader.firstFreePage == NO_PAGE) {
-                fileHeader.setLastFreePage(NO_PAGE);
-	    }
-        } else {
-            // Grow the file
-            pageNum = fileHeader.totalCount;
-            fileHeader.setTotalCount(pageNum + 1);
-            p = getPage(pageNum);
-        }
+        synchronized (freeListLock) {
+            Page p = null;
+            long pageNum = fileHeader.firstFreePage;
+            if (pageNum != NO_PAGE) {
+                // Steal a deleted page
+                p = getPage(pageNum);
+                fileHeader.setFirstFreePage(p.getPageHeader().nextPage);
+                if (fileHeader.firstFreePage == NO_PAGE) {
+                    fileHeader.setLastFreePage(NO_PAGE);
+                }
+            } else {
+                // Grow the file
+                pageNum = fileHeader.totalCount;
+                fileHeader.setTotalCount(pageNum + 1);
+                p = getPage(pageNum);
+            }
 
-        // Initialize The Page Header (Cleanly)
-        p.header.setNextPage(NO_PAGE);
-        p.header.setStatus(UNUSED);
-        return p;
+            // Initialize The Page Header (Cleanly)
+            p.header.setNextPage(NO_PAGE);
+            p.header.setStatus(UNUSED);
+            return p;
+        }
     }
 
     protected final void checkOpened() throws DBException {
@@ -482,6 +673,259 @@ public abstract class Paged {
 	}
     }
 
+    /**
+     * setWriteAheadLog enables the write-ahead log. Instead of writing and
+     * syncing each flushed page, flushed pages are gathered and written to
+     * a log in group commits, each of which needs only a single sync. The
+     * pages are written to the file once they have been committed to the
+     * log and the log is replayed when the file is next opened. Updates
+     * made since the last group commit may be lost in a crash. Each group
+     * commit is either completely replayed or not replayed at all, so no
+     * page is left partly written, but a group commit holds whichever pages
+     * had been flushed when it was gathered. Dirty pages are also flushed
+     * in the background, so a group commit may hold only part of an update
+     * which changes several pages, such as a BTree split.
+     * <p/>
+     * Must be called before the file is created or opened.
+     *
+     * @param commitInterval The maximum time in milliseconds a flushed page
+     *        waits before it is committed
+     * @param commitSize The number of flushed pages which causes an
+     *        immediate commit
+     */
+    public void setWriteAheadLog(long commitInterval, int commitSize) {
+        if (commitInterval <= 0 || commitSize <= 0) {
+            throw new IllegalArgumentException("Commit interval and size must be positive");
+        }
+        this.commitInterval = commitInterval;
+        this.commitSize = commitSize;
+    }
+
+    /**
+     * setCacheSize sets the maximum number of clean pages held in the page
+     * cache. Dirty pages are held until they are written regardless of the
+     * cache size.
+     *
+     * @param cacheSize The number of pages
+     */
+    public void setCacheSize(int cacheSize) {
+        synchronized (lock) {
+            pages.setCapacity(cacheSize);
+        }
+    }
+
+    /**
+     * getCacheSize returns the maximum number of clean pages held in the
+     * page cache.
+     *
+     * @return The number of pages
+     */
+    public int getCacheSize() {
+        synchronized (lock) {
+            return pages.getCapacity();
+        }
+    }
+
+    /**
+     * getCacheHits returns the number of page requests which were answered
+     * from the page cache.
+     *
+     * @return The number of hits
+     */
+    public long getCacheHits() {
+        synchronized (lock) {
+            return cacheHits;
+        }
+    }
+
+    /**
+     * getCacheMisses returns the number of page requests which required the
+     * page to be read from the file.
+     *
+     * @return The number of misses
+     */
+    public long getCacheMisses() {
+        synchronized (lock) {
+            return cacheMisses;
+        }
+    }
+
+    /**
+     * getCacheEvictions returns the number of pages which have been evicted
+     * from the page cache.
+     *
+     * @return The number of evictions
+     */
+    public long getCacheEvictions() {
+        synchronized (lock) {
+            return pages.getEvictions();
+        }
+    }
+
+    /**
+     * getDirtyFlushes returns the number of dirty pages which have been
+     * flushed, either to the file or to the write-ahead log.
+     *
+     * @return The number of flushed pages
+     */
+    public long getDirtyFlushes() {
+        synchronized (lock) {
+            return dirtyFlushes;
+        }
+    }
+
+    /**
+     * setMemoryMapped selects whether pages are read and written through
+     * memory mapped regions of the file rather than through seek and
+     * read. The file is mapped in regions of several pages as they are
+     * first used, growing the file a region at a time.
+     * <p/>
+     * Must be called before the file is opened.
+     *
+     * @param memoryMapped true to map the file
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * openMapping opens the channel used to map the file.
+     *
+     * @throws IOException if an Exception occurs
+     */
+    private void openMapping() throws IOException {
+        mapFile = new RandomAccessFile(file, "rw");
+        synchronized (regionLock) {
+            regions = new MappedByteBuffer[16];
+            channel = mapFile.getChannel();
+        }
+    }
+
+    /**
+     * closeMapping forces the mapped regions to the file and closes the
+     * channel. Once the region lock has been released no region is handed
+     * out or mapped, pages read or written after that fail with an
+     * IOException. A region handed out before the mapping was closed stays
+     * valid for the reader still using it. Java offers no way to unmap a
+     * region, the regions are unmapped once they are garbage collected.
+     *
+     * @throws IOException if an Exception occurs
+     */
+    private void closeMapping() throws IOException {
+        RandomAccessFile closing;
+        synchronized (regionLock) {
+            forceMapping();
+            channel = null;
+            regions = null;
+            closing = mapFile;
+            mapFile = null;
+        }
+        if (closing != null) {
+            closing.close();
+        }
+    }
+
+    /**
+     * forceMapping forces any changes to the mapped regions to the file.
+     */
+    private void forceMapping() {
+        synchronized (regionLock) {
+            if (regions != null) {
+                for (int i = 0; i < regions.length; i++) {
+                    if (regions[i] != null) {
+                        regions[i].force();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * getRegion returns the mapped region containing the specified offset,
+     * mapping it if necessary.
+     *
+     * @param offset The offset of a page
+     * @return The region
+     * @throws IOException if an Exception occurs
+     */
+    private MappedByteBuffer getRegion(long offset) throws IOException {
+        long regionSize = (long) REGION_PAGES * fileHeader.pageSize;
+        int index = (int) ((offset - fileHeader.headerSize) / regionSize);
+
+        synchronized (regionLock) {
+            if (regions == null || channel == null) {
+                throw new IOException("File is not mapped");
+            }
+
+            if (index >= regions.length) {
+                MappedByteBuffer[] newRegions = new MappedByteBuffer[Math.max(index + 1, regions.length * 2)];
+                System.arraycopy(regions, 0, newRegions, 0, regions.length);
+                regions = newRegions;
+            }
+
+            MappedByteBuffer region = regions[index];
+            if (region == null) {
+                region = channel.map(FileChannel.MapMode.READ_WRITE, fileHeader.headerSize + (index * regionSize), regionSize);
+                regions[index] = region;
+            }
+            return region;
+        }
+    }
+
+    /**
+     * readMapped reads a page from its mapped region.
+     *
+     * @param offset The offset of the page
+     * @param data The array to read into
+     * @throws IOException if an Exception occurs
+     */
+    private void readMapped(long offset, byte[] data) throws IOException {
+        ByteBuffer buffer = getRegion(offset).duplicate();
+        buffer.position((int) ((offset - fileHeader.headerSize) % ((long) REGION_PAGES * fileHeader.pageSize)));
+        buffer.get(data);
+    }
+
+    /**
+     * writeMapped writes a page to its mapped region.
+     *
+     * @param offset The offset of the page
+     * @param data The page data
+     * @param force true to force the region to the file
+     * @throws IOException if an Exception occurs
+     */
+    private void writeMapped(long offset, byte[] data, boolean force) throws IOException {
+        MappedByteBuffer region = getRegion(offset);
+        ByteBuffer buffer = region.duplicate();
+        buffer.position((int) ((offset - fileHeader.headerSize) % ((long) REGION_PAGES * fileHeader.pageSize)));
+        buffer.put(data);
+        if (force) {
+            region.force();
+        }
+    }
+
+    /**
+     * syncFile forces all changes, including those made through the mapped
+     * regions, to the device.
+     *
+     * @param raf The descriptor to use
+     * @throws IOException if an Exception occurs
+     */
+    private void syncFile(RandomAccessFile raf) throws IOException {
+        if (channel != null) {
+            forceMapping();
+        }
+        raf.getFD().sync();
+    }
+
+    /**
+     * getLogFile returns the file used for the write-ahead log.
+     *
+     * @return The log File
+     */
+    private File getLogFile() {
+        return new File(file.getPath() + ".log");
+    }
+
     /**
      * getFileHeader returns the FileHeader
      *
@@ -498,6 +942,10 @@ public abstract class Paged {
     public boolean create() throws DBException {
         RandomAccessFile raf = null;
         try {
+            if (commitInterval > 0) {
+                // a log left over from a previous file must not be replayed.
+                getLogFile().delete();
+            }
             raf = getDescriptor();
             fileHeader.write();
             flush();
@@ -517,6 +965,20 @@ public abstract class Paged {
             if (exists()) {
                 raf = getDescriptor();
                 fileHeader.read();
+                if (commitInterval > 0) {
+                    if (recover(raf)) {
+                        fileHeader.read();
+                    }
+                    PageLog newLog = new PageLog(getLogFile());
+                    newLog.open();
+                    newLog.truncate();
+                    synchronized (lock) {
+                        log = newLog;
+                    }
+                }
+                if (memoryMapped) {
+                    openMapping();
+                }
                 opened = true;
             } else {
                 opened = false;
@@ -529,7 +991,27 @@ public abstract class Paged {
         }
     }
 
-    public synchronized boolean close() throws DBException {
+    public boolean close() throws DBException {
+        if (commitInterval > 0) {
+            closeLog();
+        }
+
+        boolean closed;
+        synchronized (lock) {
+            closed = closeFile();
+        }
+
+        if (closed && channel != null) {
+            try {
+                closeMapping();
+            } catch (IOException e) {
+                throw new FilerException(FaultCodes.GEN_CRITICAL_ERROR, "Error closing " + file.getName(), e);
+            }
+        }
+        return closed;
+    }
+
+    private boolean closeFile() throws DBException {
         try {
             if (isOpened()) {
                 flush();
@@ -569,6 +1051,9 @@ public abstract class Paged {
     public boolean drop() throws DBException {
         try {
             close();
+            if (commitInterval > 0) {
+                getLogFile().delete();
+            }
             if (exists()) {
                 return getFile().delete();
 	    } else {
@@ -582,7 +1067,22 @@ public abstract class Paged {
     public void flush() throws DBException {
         // TODO: Clean up this code
         boolean error = false;
-        synchronized (this) {
+        synchronized (lock) {
+            if (writeBehindTask != null) {
+                writeBehindTask.cancel();
+                writeBehindTask = null;
+            }
+            dirtyFlushes += dirty.size();
+
+            if (log != null) {
+                try {
+                    gather();
+                } catch (IOException e) {
+                    throw new FilerException(FaultCodes.GEN_CRITICAL_ERROR, "Error performing flush!", e);
+                }
+                return;
+            }
+
             Iterator i = dirty.values().iterator();
 
             while (i.hasNext()) {
@@ -610,6 +1110,269 @@ public abstract class Paged {
     }
 
 
+    /**
+     * gather adds images of the dirty pages and of the file header, if it
+     * is dirty, to the batch awaiting the next group commit and makes sure
+     * that a commit is scheduled. Must be called while holding the lock.
+     *
+     * @throws IOException if an Exception occurs
+     */
+    private void gather() throws IOException {
+        Iterator i = dirty.entrySet().iterator();
+
+        while (i.hasNext()) {
+            Map.Entry entry = (Map.Entry) i.next();
+            Page p = (Page) entry.getValue();
+            byte[] image;
+
+            synchronized (p) {
+                image = (byte[]) p.data.clone();
+            }
+            batch.add(new PageLog.Image(p.pageNum, image));
+
+            LoggedPage lpage = (LoggedPage) logged.get(entry.getKey());
+            if (lpage == null) {
+                lpage = new LoggedPage(p);
+                logged.put(entry.getKey(), lpage);
+            }
+            lpage.page = p;
+            lpage.batch = batchNumber;
+        }
+        dirty.clear();
+
+        if (fileHeader.isDirty()) {
+            batch.add(new PageLog.Image(PageLog.FILE_HEADER, fileHeader.snapshot()));
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long delay = (batch.size() >= commitSize) ? 0 : commitInterval;
+
+        if (commitTask != null) {
+            if (delay > 0) {
+                // already scheduled.
+                return;
+            }
+            commitTask.cancel();
+        }
+
+        scheduleCommit(delay);
+    }
+
+    /**
+     * scheduleCommit schedules a group commit. Must be called while holding
+     * the lock.
+     *
+     * @param delay The delay in milliseconds before the commit
+     */
+    private void scheduleCommit(long delay) {
+        commitTask = new ScheduledTask() {
+            public void run() {
+                try {
+                    commit();
+                } catch (IOException e) {
+                    if (LOG.isEnabledFor(Level.ERROR)) {
+                        LOG.error("Group commit failed for " + file.getName(), e);
+                    }
+                }
+            }
+        };
+        commitTimer.schedule(commitTask, delay);
+    }
+
+    /**
+     * commit writes the gathered page images to the log, syncs the log and
+     * then writes the images to the file. The file is synced and the log
+     * truncated once the log has grown large enough.
+     *
+     * @throws IOException if an Exception occurs
+     */
+    private void commit() throws IOException {
+        synchronized (commitLock) {
+            List images;
+            long committing;
+            PageLog theLog;
+
+            synchronized (lock) {
+                commitTask = null;
+                theLog = log;
+                if (theLog == null || batch.isEmpty()) {
+                    return;
+                }
+                images = batch;
+                batch = new ArrayList();
+                committing = batchNumber++;
+            }
+
+            RandomAccessFile raf = null;
+            try {
+                theLog.append(images);
+
+                raf = getDescriptor();
+                writeImages(raf, images);
+
+                if (theLog.length() > CHECKPOINT_SIZE) {
+                    syncFile(raf);
+                    theLog.truncate();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    // retry with the next commit.
+                    images.addAll(batch);
+                    batch = images;
+                    commitFailures++;
+
+                    // make sure there is a next commit, even if nothing else
+                    // is written.
+                    if (commitTask == null) {
+                        long delay = commitInterval;
+                        for (int i = 1; i < commitFailures && delay < MAX_COMMIT_RETRY_DELAY; i++) {
+                            delay *= 2;
+                        }
+                        scheduleCommit(Math.min(delay, MAX_COMMIT_RETRY_DELAY));
+                    }
+                }
+                throw e;
+            } finally {
+                putDescriptor(raf);
+            }
+
+            synchronized (lock) {
+                commitFailures = 0;
+
+                Iterator i = logged.values().iterator();
+                while (i.hasNext()) {
+                    if (((LoggedPage) i.next()).batch <= committing) {
+                        i.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * closeLog commits any remaining updates, syncs the file and closes the
+     * write-ahead log.
+     *
+     * @throws DBException if an Exception occurs
+     */
+    private void closeLog() throws DBException {
+        flush();
+
+        synchronized (commitLock) {
+            RandomAccessFile raf = null;
+            try {
+                commit();
+
+                raf = getDescriptor();
+                syncFile(raf);
+
+                synchronized (lock) {
+                    if (commitTask != null) {
+                        commitTask.cancel();
+                        commitTask = null;
+                    }
+                    if (log != null) {
+                        log.truncate();
+                        log.close();
+                        log = null;
+                    }
+                }
+            } catch (IOException e) {
+                throw new FilerException(FaultCodes.GEN_CRITICAL_ERROR, "Error closing log for " + file.getName(), e);
+            } finally {
+                putDescriptor(raf);
+            }
+        }
+    }
+
+    /**
+     * recover replays the write-ahead log, if there is one, into the file
+     * and syncs the file.
+     *
+     * @param raf The descriptor to use
+     * @return true if any images were replayed
+     * @throws IOException if an Exception occurs
+     */
+    private boolean recover(RandomAccessFile raf) throws IOException {
+        List images = PageLog.read(getLogFile());
+
+        if (images.isEmpty()) {
+            return false;
+        }
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Replaying " + images.size() + " logged pages into " + file.getName());
+        }
+
+        writeImages(raf, images);
+        raf.getFD().sync();
+        return true;
+    }
+
+    /**
+     * writeImages writes page and file header images to the file.
+     *
+     * @param raf The descriptor to use
+     * @param images The images to write
+     * @throws IOException if an Exception occurs
+     */
+    private void writeImages(RandomAccessFile raf, List images) throws IOException {
+        Iterator i = images.iterator();
+
+        while (i.hasNext()) {
+            PageLog.Image image = (PageLog.Image) i.next();
+
+            if (image.pageNum == PageLog.FILE_HEADER) {
+                raf.seek(0);
+                raf.write(image.data);
+            } else {
+                writePage(raf, fileHeader.headerSize + (image.pageNum * fileHeader.pageSize), image.data);
+            }
+        }
+    }
+
+    /**
+     * writePage writes the data of a page at the specified offset, growing
+     * the file if necessary.
+     *
+     * @param raf The descriptor to use
+     * @param offset The offset of the page
+     * @param data The page data
+     * @throws IOException if an Exception occurs
+     */
+    private void writePage(RandomAccessFile raf, long offset, byte[] data) throws IOException {
+        if (channel != null) {
+            writeMapped(offset, data, false);
+            return;
+        }
+
+        if (offset >= raf.length()) {
+            // Grow the file
+            long o = (fileHeader.headerSize + ((fileHeader.totalCount * 3) / 2) * fileHeader.pageSize) + (fileHeader.pageSize - 1);
+            raf.seek(o);
+            raf.writeByte(0);
+        }
+        raf.seek(offset);
+        raf.write(data);
+    }
+
+    /**
+     * A page which is in the write-ahead log but not yet in the file.
+     */
+    private static final class LoggedPage {
+        Page page;
+
+        // The batch in which the page was last logged.
+        long batch;
+
+        LoggedPage(Page page) {
+            this.page = page;
+        }
+    }
+
     /**
      * createFileHeader must be implemented by a Paged implementation
      * in order to create an appropriate subclass instance of a FileHeader.
@@ -805,7 +1568,7 @@ public abstract class Paged {
             }
         }
 
-        public synchronized void read(RandomAccessFile raf) throws IOException {
+        public synchronized void read(DataInput raf) throws IOException {
             headerSize = raf.readShort();
             pageSize = raf.readInt();
             pageCount = raf.readLong();
@@ -833,7 +1596,7 @@ public abstract class Paged {
             }
         }
 
-        public synchronized void write(RandomAccessFile raf) throws IOException {
+        public synchronized void write(DataOutput raf) throws IOException {
             raf.writeShort(headerSize);
             raf.writeInt(pageSize);
             raf.writeLong(pageCount);
@@ -845,6 +1608,22 @@ public abstract class Paged {
             raf.writeLong(recordCount);
         }
 
+        /**
+         * snapshot returns the serialized header and marks the header as
+         * no longer dirty.
+         *
+         * @return The serialized header
+         * @throws IOException if an Exception occurs
+         */
+        synchronized final byte[] snapshot() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            write(dos);
+            dos.flush();
+            dirty = false;
+            return bos.toByteArray();
+        }
+
         public synchronized final void setDirty() {
             dirty = true;
         }
@@ -1149,6 +1928,9 @@ public abstract class Paged {
 
         private boolean loaded;
 
+        /** The decoded form of this page, kept for as long as the page is cached */
+        private Object attachment;
+
         public Page() {
         }
 
@@ -1162,9 +1944,13 @@ public abstract class Paged {
             try {
                 data = new byte[fileHeader.pageSize];
 
-                raf = getDescriptor();
-                raf.seek(offset);
-                raf.read(data);
+                if (channel != null) {
+                    readMapped(offset, data);
+                } else {
+                    raf = getDescriptor();
+                    raf.seek(offset);
+                    raf.read(data);
+                }
 
                 ByteArrayInputStream bis = new ByteArrayInputStream(data);
                 DataInputStream dis = new DataInputStream(bis);
@@ -1179,37 +1965,31 @@ public abstract class Paged {
             }
         }
 
-        public synchronized void write() throws IOException {
-            // Write out the header
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(fileHeader.getPageHeaderSize());
-            DataOutputStream dos = new DataOutputStream(bos);
-            header.write(dos);
-            byte[] b = bos.toByteArray();
-            System.arraycopy(b, 0, data, 0, b.length);
-
-            dirty.put(new Long(pageNum), this);
-            if (dirty.size() > MAX_DIRTY_SIZE) {
-                try {
-                    // Too many dirty pages... flush them
-                    Paged.this.flush();
-                } catch (Exception e) {
-                    throw new IOException(e.getMessage());
-                }
+        public void write() throws IOException {
+            synchronized (this) {
+                // Write out the header
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(fileHeader.getPageHeaderSize());
+                DataOutputStream dos = new DataOutputStream(bos);
+                header.write(dos);
+                byte[] b = bos.toByteArray();
+                System.arraycopy(b, 0, data, 0, b.length);
             }
+
+            // The page must not be locked while the dirty cache is, flush
+            // locks them the other way around.
+            markDirty(this);
         }
 
         public synchronized void flush() throws IOException {
+            if (channel != null) {
+                writeMapped(offset, data, sync);
+                return;
+            }
+
             RandomAccessFile raf = null;
             try {
                 raf = getDescriptor();
-                if (offset >= raf.length()) {
-                    // Grow the file
-                    long o = (fileHeader.headerSize + ((fileHeader.totalCount * 3) / 2) * fileHeader.pageSize) + (fileHeader.pageSize - 1);
-                    raf.seek(o);
-                    raf.writeByte(0);
-                }
-                raf.seek(offset);
-                raf.write(data);
+                writePage(raf, offset, data);
                 if (sync) {
                     raf.getFD().sync();
                 }
@@ -1273,6 +2053,14 @@ public abstract class Paged {
             this.loaded = loaded;
         }
 
+        public synchronized Object getAttachment() {
+            return attachment;
+        }
+
+        public synchronized void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
         public synchronized int compareTo(Object o) {
             return (int) (pageNum - ((Page) o).pageNum);
         }
@@ -0,0 +1,245 @@
+package net.jxta.impl.xindice.core.indexer;
+
+/*
+ * The Apache Software License, Version 1.1
+ *
+ *
+ * Copyright (c) 1999 The Apache Software Foundation.  All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Apache Software Foundation (http://www.apache.org/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Xindice" and "Apache Software Foundation" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact apache@apache.org.
+ *
+ * 5. Products derived from this software may not be called "Apache",
+ *    nor may "Apache" appear in their name, without prior written
+ *    permission of the Apache Software Foundation.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE APACHE SOFTWARE FOUNDATION OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation and was
+ * originally based on software copyright (c) 1999-2001, The dbXML
+ * Group, L.L.C., http://www.dbxmlgroup.com.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ * $Id$
+ */
+
+import net.jxta.impl.xindice.core.DBException;
+import net.jxta.impl.xindice.core.data.Value;
+import net.jxta.impl.xindice.core.filer.BTree;
+import net.jxta.impl.xindice.core.filer.BTreeCallback;
+import net.jxta.impl.xindice.core.filer.BTreeCorruptException;
+import net.jxta.impl.xindice.core.filer.BTreeException;
+import net.jxta.impl.xindice.core.filer.BTreeNotFoundException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * NGramIndexer is a substring index over the values of a NameIndexer.
+ * Every value is stored once for each distinct n-gram (run of GRAM bytes)
+ * it contains, as the n-gram followed by the value.  The values which
+ * contain a pattern are then among the values stored under every n-gram
+ * of the pattern, which lets ends-with and contains queries visit only
+ * those candidates instead of walking the whole NameIndexer.  Candidates
+ * are a superset of the matches and must be checked by the caller.
+ */
+
+public final class NGramIndexer extends BTree {
+
+   /**
+    * The length of an n-gram in bytes.
+    */
+   public static final int GRAM = 3;
+
+   private static final short PAGESIZE = 4096;
+   private static final short MAXKEYSIZE = 256 + GRAM;
+
+   private FileHeader fileHeader;
+
+   public NGramIndexer() {
+      super();
+      fileHeader = getFileHeader();
+      fileHeader.setPageSize(PAGESIZE);
+      fileHeader.setMaxKeySize(MAXKEYSIZE);
+   }
+
+   public void setLocation(String dir, String file) {
+      setFile(new File(dir, file+".tri"));
+   }
+
+   /**
+    * add adds a value under each of its n-grams.
+    *
+    * @param value The value to add
+    */
+   public void add(Value value) throws DBException {
+      try {
+         Iterator i = grams(value).iterator();
+         while ( i.hasNext() ) {
+            addValue(key((Value) i.next(), value), 0);
+         }
+         flush();
+      }
+      catch ( IOException e ) {
+         throw new BTreeCorruptException("Corruption detected on add");
+      }
+   }
+
+   /**
+    * remove removes a value from under each of its n-grams.
+    *
+    * @param value The value to remove
+    */
+   public void remove(Value value) throws DBException {
+      try {
+         Iterator i = grams(value).iterator();
+         while ( i.hasNext() ) {
+            try {
+               removeValue(key((Value) i.next(), value));
+            }
+            catch ( BTreeNotFoundException e ) {
+               // never added, the index was built after the value
+            }
+         }
+      }
+      catch ( IOException e ) {
+         throw new BTreeCorruptException("Corruption detected on remove");
+      }
+   }
+
+   /**
+    * load fills an empty index with a collection of values.  The keys of
+    * all of the values are sorted and the tree is built bottom-up.
+    *
+    * @param values The Values to add
+    * @param fill The percentage of each page to fill
+    */
+   public void load(Collection values, int fill) throws DBException {
+      Set keys = new TreeSet();
+      Iterator v = values.iterator();
+      while ( v.hasNext() ) {
+         Value value = (Value) v.next();
+         Iterator i = grams(value).iterator();
+         while ( i.hasNext() )
+            keys.add(key((Value) i.next(), value));
+      }
+
+      try {
+         Loader loader = load(fill);
+         Iterator k = keys.iterator();
+         while ( k.hasNext() )
+            loader.add((Value) k.next(), 0);
+         loader.finish();
+      }
+      catch ( IOException e ) {
+         throw new BTreeCorruptException("Corruption detected on load");
+      }
+   }
+
+   /**
+    * candidates returns the values which contain every n-gram of the
+    * pattern, in Value order.
+    *
+    * @param pattern The substring being searched for
+    * @return The candidate Values, or null if the pattern is shorter than
+    *         an n-gram and the index can't be used
+    */
+   public Set candidates(Value pattern) throws IOException, BTreeException {
+      if ( pattern.getLength() < GRAM )
+         return null;
+
+      Set result = null;
+      Iterator i = grams(pattern).iterator();
+      while ( i.hasNext() ) {
+         Set values = new TreeSet();
+         query(new IndexQuery(IndexQuery.SW, (Value) i.next()), new Collector(values));
+         if ( result == null )
+            result = values;
+         else
+            result.retainAll(values);
+         if ( result.isEmpty() )
+            break;
+      }
+      return result;
+   }
+
+   public synchronized void flush() throws DBException {
+      super.flush();
+   }
+
+   /**
+    * grams returns the distinct n-grams of a value.
+    */
+   private static Set grams(Value value) {
+      Set grams = new TreeSet();
+      byte[] data = value.getData();
+      for ( int i = 0; i + GRAM <= data.length; i++ )
+         grams.add(new Value(data, i, GRAM));
+      return grams;
+   }
+
+   private static Value key(Value gram, Value value) {
+      byte[] b = new byte[GRAM + value.getLength()];
+      gram.copyTo(b, 0);
+      value.copyTo(b, GRAM);
+      return new Value(b);
+   }
+
+   /**
+    * Collector strips the n-gram from each key it is given and gathers
+    * the values.
+    */
+   private static final class Collector implements BTreeCallback {
+      private final Set values;
+
+      Collector(Set values) {
+         this.values = values;
+      }
+
+      public boolean indexInfo(Value key, long pointer) {
+         byte[] data = key.getData();
+         values.add(new Value(data, GRAM, data.length - GRAM));
+         return true;
+      }
+   }
+}
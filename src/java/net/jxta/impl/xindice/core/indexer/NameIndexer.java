@@ -92,7 +92,7 @@ public final class NameIndexer extends BTree implements Indexer {
       setFile(new File(dir, file+".idx"));
    }
 
-   public synchronized void remove(Key key) throws DBException {
+   public void remove(Key key) throws DBException {
       try {
          removeValue(key);
       }
@@ -101,7 +101,7 @@ public final class NameIndexer extends BTree implements Indexer {
       }
    }
 
-   public synchronized void add(Key key, long pos) throws DBException {
+   public void add(Key key, long pos) throws DBException {
       try {
          addValue(key, pos);
          flush();
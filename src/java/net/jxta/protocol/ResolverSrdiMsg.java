@@ -58,6 +58,7 @@ package net.jxta.protocol;
 import net.jxta.document.Document;
 import net.jxta.document.MimeMediaType;
 import net.jxta.credential.Credential;
+import net.jxta.peer.PeerID;
 /**
  * ResolverSrdiMsg is generic resolver wrapper for Services that wish to 
  * implement their own distribution of indices. this message provides the 
@@ -70,6 +71,9 @@ public abstract class ResolverSrdiMsg {
 	private String handlername = null;
 	private Credential credential = null;
 	private String payload = null;
+	private MimeMediaType payloadType = null;
+	private PeerID srcPeerID = null;
+	private MimeMediaType accept = null;
 
 
 	/**
@@ -151,6 +155,75 @@ public abstract class ResolverSrdiMsg {
 	}
 
 
+	/**
+	 * returns the encoding of the payload, or null if the payload is an
+	 * XML document
+	 *
+	 * @return    MimeMediaType encoding of the payload
+	 */
+
+	public MimeMediaType getPayloadType() {
+		return payloadType;
+	}
+
+
+	/**
+	 * set the encoding of the payload, null for an XML document
+	 *
+	 * @param  type   The new payload encoding
+	 */
+
+	public void setPayloadType(MimeMediaType type) {
+		this.payloadType = type;
+	}
+
+
+	/**
+	 * returns the peer which sent this message, which may differ from the
+	 * peer the entries of the payload belong to
+	 *
+	 * @return    PeerID of the sender or null if unknown
+	 */
+
+	public PeerID getSrcPeerID() {
+		return srcPeerID;
+	}
+
+
+	/**
+	 * set the peer which sends this message
+	 *
+	 * @param  pid   PeerID of the sender
+	 */
+
+	public void setSrcPeerID(PeerID pid) {
+		this.srcPeerID = pid;
+	}
+
+
+	/**
+	 * returns the payload encoding the sender also accepts, or null if it
+	 * only accepts XML payloads
+	 *
+	 * @return    MimeMediaType accepted payload encoding
+	 */
+
+	public MimeMediaType getAccept() {
+		return accept;
+	}
+
+
+	/**
+	 * set the payload encoding the sender also accepts
+	 *
+	 * @param  type   accepted payload encoding
+	 */
+
+	public void setAccept(MimeMediaType type) {
+		this.accept = type;
+	}
+
+
 	/**
 	 * Write advertisement into a document. asMimeType is a mime media-type
 	 * specification and provides the form of the document which is being